@@ -17,6 +17,7 @@
  */
 package org.tomahawk.libtomahawk.collection;
 
+import org.tomahawk.libtomahawk.utils.TomahawkUtils;
 import org.tomahawk.tomahawk_android.R;
 import org.tomahawk.tomahawk_android.adapters.TomahawkBaseAdapter;
 
@@ -27,6 +28,7 @@ import android.widget.ImageView;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -41,10 +43,21 @@ public class Album extends BitmapItem implements TomahawkBaseAdapter.TomahawkLis
 
     private ConcurrentHashMap<Long, Track> mTracks;
 
+    /**
+     * Rows of {@link Track}s, which are held in a {@link TrackStore} instead of mTracks
+     */
+    private TrackStore mTrackStore;
+
+    private int[] mTrackRows;
+
+    private int mTrackRowCount;
+
     private long mId;
 
     private String mName;
 
+    private byte[] mSortKey = TomahawkUtils.getSortKey(null);
+
     private String mAlbumArtPath;
 
     private static Bitmap sAlbumPlaceHolderBitmap;
@@ -72,7 +85,7 @@ public class Album extends BitmapItem implements TomahawkBaseAdapter.TomahawkLis
     public static Album get(long id) {
 
         if (!sAlbums.containsKey(id)) {
-            sAlbums.put(id, new Album(id));
+            sAlbums.putIfAbsent(id, new Album(id));
         }
 
         return sAlbums.get(id);
@@ -121,11 +134,73 @@ public class Album extends BitmapItem implements TomahawkBaseAdapter.TomahawkLis
         mTracks.put(track.getId(), track);
     }
 
+    /**
+     * Remove the Track with the given id from this Album.
+     */
+    public void removeTrack(long trackId) {
+        mTracks.remove(trackId);
+    }
+
+    /**
+     * Add the Track in the given row of the given {@link TrackStore} to this Album, without
+     * creating a {@link Track} object for it. A row, which has already been added, isn't added
+     * again. Before the rows are grown, the ones, which have been removed from the store or have
+     * moved to another Album since, are dropped.
+     */
+    public synchronized void addTrackRow(TrackStore store, int row) {
+        mTrackStore = store;
+        if (mTrackRows == null) {
+            mTrackRows = new int[4];
+        }
+        for (int i = 0; i < mTrackRowCount; i++) {
+            if (mTrackRows[i] == row) {
+                return;
+            }
+        }
+        if (mTrackRowCount == mTrackRows.length) {
+            int count = 0;
+            for (int i = 0; i < mTrackRowCount; i++) {
+                int storedRow = mTrackRows[i];
+                if (!store.isRemoved(storedRow) && store.getAlbum(storedRow) == this) {
+                    mTrackRows[count++] = storedRow;
+                }
+            }
+            mTrackRowCount = count;
+            if (mTrackRowCount == mTrackRows.length) {
+                mTrackRows = Arrays.copyOf(mTrackRows, mTrackRowCount * 2);
+            }
+        }
+        mTrackRows[mTrackRowCount++] = row;
+    }
+
+    /**
+     * Add the flyweights of all rows, which have been added via addTrackRow and still belong to
+     * this Album, to the given list
+     */
+    private void addStoredTracks(ArrayList<Track> tracks) {
+        TrackStore store;
+        int[] rows;
+        int count;
+        synchronized (this) {
+            store = mTrackStore;
+            rows = mTrackRows;
+            count = mTrackRowCount;
+        }
+        if (store != null) {
+            for (Track track : store.getTracks(rows, count)) {
+                if (track.getAlbum() == this) {
+                    tracks.add(track);
+                }
+            }
+        }
+    }
+
     /**
      * Get a list of all Tracks from this Album.
      */
     public ArrayList<Track> getTracks() {
         ArrayList<Track> tracks = new ArrayList<Track>(mTracks.values());
+        addStoredTracks(tracks);
         Collections.sort(tracks, new TrackComparator(TrackComparator.COMPARE_DISCNUM));
         return tracks;
     }
@@ -144,8 +219,19 @@ public class Album extends BitmapItem implements TomahawkBaseAdapter.TomahawkLis
         this.mId = id;
     }
 
+    /**
+     * Set the name and precompute the sort key, which is used to sort this Album alphabetically.
+     */
     public void setName(String name) {
         mName = name;
+        mSortKey = TomahawkUtils.getSortKey(name);
+    }
+
+    /**
+     * @return the precomputed, locale-aware sort key of this Album's name
+     */
+    public byte[] getSortKey() {
+        return mSortKey;
     }
 
     public String getAlbumArtPath() {
@@ -17,6 +17,8 @@
  */
 package org.tomahawk.libtomahawk.collection;
 
+import org.tomahawk.libtomahawk.utils.TomahawkUtils;
+
 import java.util.Comparator;
 
 /**
@@ -28,7 +30,7 @@ public class AlbumComparator implements Comparator<Album> {
 
     public static final int COMPARE_SCORE = 2;
 
-    private static int mFlag = COMPARE_ALPHA;
+    private int mFlag = COMPARE_ALPHA;
 
     public AlbumComparator(int flag) {
         super();
@@ -40,7 +42,7 @@ public class AlbumComparator implements Comparator<Album> {
         switch (mFlag) {
 
             case COMPARE_ALPHA:
-                return a1.getName().compareTo(a2.getName());
+                return TomahawkUtils.compareSortKeys(a1.getSortKey(), a2.getSortKey());
 
             case COMPARE_SCORE:
                 Float score1 = a1.getScore();
@@ -17,9 +17,11 @@
  */
 package org.tomahawk.libtomahawk.collection;
 
+import org.tomahawk.libtomahawk.utils.TomahawkUtils;
 import org.tomahawk.tomahawk_android.adapters.TomahawkBaseAdapter;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -34,10 +36,21 @@ public class Artist implements TomahawkBaseAdapter.TomahawkListItem {
 
     private String mName;
 
+    private byte[] mSortKey = TomahawkUtils.getSortKey(null);
+
     private ConcurrentHashMap<Long, Album> mAlbums;
 
     private ConcurrentHashMap<Long, Track> mTracks;
 
+    /**
+     * Rows of {@link Track}s, which are held in a {@link TrackStore} instead of mTracks
+     */
+    private TrackStore mTrackStore;
+
+    private int[] mTrackRows;
+
+    private int mTrackRowCount;
+
     private float mScore;
 
     public Artist() {
@@ -55,7 +68,7 @@ public class Artist implements TomahawkBaseAdapter.TomahawkListItem {
     public static Artist get(long id) {
 
         if (!sArtists.containsKey(id)) {
-            sArtists.put(id, new Artist(id));
+            sArtists.putIfAbsent(id, new Artist(id));
         }
 
         return sArtists.get(id);
@@ -102,8 +115,70 @@ public class Artist implements TomahawkBaseAdapter.TomahawkListItem {
         mTracks.put(track.getId(), track);
     }
 
+    /**
+     * Remove the Track with the given id from this Artist.
+     */
+    public void removeTrack(long trackId) {
+        mTracks.remove(trackId);
+    }
+
+    /**
+     * Add the Track in the given row of the given {@link TrackStore} to this Artist, without
+     * creating a {@link Track} object for it. A row, which has already been added, isn't added
+     * again. Before the rows are grown, the ones, which have been removed from the store or have
+     * moved to another Artist since, are dropped.
+     */
+    public synchronized void addTrackRow(TrackStore store, int row) {
+        mTrackStore = store;
+        if (mTrackRows == null) {
+            mTrackRows = new int[4];
+        }
+        for (int i = 0; i < mTrackRowCount; i++) {
+            if (mTrackRows[i] == row) {
+                return;
+            }
+        }
+        if (mTrackRowCount == mTrackRows.length) {
+            int count = 0;
+            for (int i = 0; i < mTrackRowCount; i++) {
+                int storedRow = mTrackRows[i];
+                if (!store.isRemoved(storedRow) && store.getArtist(storedRow) == this) {
+                    mTrackRows[count++] = storedRow;
+                }
+            }
+            mTrackRowCount = count;
+            if (mTrackRowCount == mTrackRows.length) {
+                mTrackRows = Arrays.copyOf(mTrackRows, mTrackRowCount * 2);
+            }
+        }
+        mTrackRows[mTrackRowCount++] = row;
+    }
+
+    /**
+     * Add the flyweights of all rows, which have been added via addTrackRow and still belong to
+     * this Artist, to the given list
+     */
+    private void addStoredTracks(ArrayList<Track> tracks) {
+        TrackStore store;
+        int[] rows;
+        int count;
+        synchronized (this) {
+            store = mTrackStore;
+            rows = mTrackRows;
+            count = mTrackRowCount;
+        }
+        if (store != null) {
+            for (Track track : store.getTracks(rows, count)) {
+                if (track.getArtist() == this) {
+                    tracks.add(track);
+                }
+            }
+        }
+    }
+
     public ArrayList<Track> getTracks() {
         ArrayList<Track> list = new ArrayList<Track>(mTracks.values());
+        addStoredTracks(list);
         Collections.sort(list, new TrackComparator(TrackComparator.COMPARE_DISCNUM));
         return list;
     }
@@ -112,6 +187,13 @@ public class Artist implements TomahawkBaseAdapter.TomahawkListItem {
         mAlbums.put(album.getId(), album);
     }
 
+    /**
+     * Remove the Album with the given id from this Artist.
+     */
+    public void removeAlbum(long albumId) {
+        mAlbums.remove(albumId);
+    }
+
     public void clearAlbums() {
         mAlbums = new ConcurrentHashMap<Long, Album>();
     }
@@ -122,8 +204,19 @@ public class Artist implements TomahawkBaseAdapter.TomahawkListItem {
         return albums;
     }
 
+    /**
+     * Set the name and precompute the sort key, which is used to sort this Artist alphabetically.
+     */
     public void setName(String name) {
         mName = name;
+        mSortKey = TomahawkUtils.getSortKey(name);
+    }
+
+    /**
+     * @return the precomputed, locale-aware sort key of this Artist's name
+     */
+    public byte[] getSortKey() {
+        return mSortKey;
     }
 
     public void setId(long id) {
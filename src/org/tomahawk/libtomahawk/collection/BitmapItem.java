@@ -31,6 +31,7 @@ import android.widget.ImageView;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
 import java.net.URL;
@@ -48,6 +49,11 @@ public class BitmapItem {
 
     public static final int BITMAP_MAXSIZE = 512;
 
+    /**
+     * Prefix of paths, which point to album art embedded in an audio file
+     */
+    private static final String EMBEDDED_ART_PREFIX = "embedded:";
+
     private static final int sCacheSize = (int) (Runtime.getRuntime().maxMemory() / 1024) / 8;
 
     private static AlbumArtCache sAlbumArtCache;
@@ -162,6 +168,8 @@ public class BitmapItem {
                     Log.e(TAG, "doInBackground: " + e.getClass() + ": " + e.getLocalizedMessage());
                     return null;
                 }
+            } else if (path.startsWith(EMBEDDED_ART_PREFIX)) {
+                return resizeBitmap(decodeEmbeddedArt(path, opts));
             } else {
                 return resizeBitmap(BitmapFactory.decodeFile(path, opts));
             }
@@ -227,6 +235,50 @@ public class BitmapItem {
         }
     }
 
+    /**
+     * Build a path, which can be used as an album art path and points to album art embedded in an
+     * audio file
+     *
+     * @param filePath the path of the audio file
+     * @param offset   the offset of the image data inside the audio file
+     * @param length   the length of the image data
+     */
+    public static String getEmbeddedArtPath(String filePath, long offset, int length) {
+        return EMBEDDED_ART_PREFIX + offset + ":" + length + ":" + filePath;
+    }
+
+    /**
+     * Decode album art embedded in an audio file by reading only the image data
+     *
+     * @param embeddedArtPath a path built by getEmbeddedArtPath
+     */
+    private static Bitmap decodeEmbeddedArt(String embeddedArtPath, BitmapFactory.Options opts) {
+        String[] parts = embeddedArtPath.substring(EMBEDDED_ART_PREFIX.length()).split(":", 3);
+        RandomAccessFile file = null;
+        try {
+            long offset = Long.parseLong(parts[0]);
+            byte[] data = new byte[Integer.parseInt(parts[1])];
+            file = new RandomAccessFile(parts[2], "r");
+            file.seek(offset);
+            file.readFully(data);
+            return BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+        } catch (IOException e) {
+            Log.e(TAG, "decodeEmbeddedArt: " + e.getClass() + ": " + e.getLocalizedMessage());
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "decodeEmbeddedArt: " + e.getClass() + ": " + e.getLocalizedMessage());
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "decodeEmbeddedArt: " + e.getClass() + ": "
+                            + e.getLocalizedMessage());
+                }
+            }
+        }
+        return null;
+    }
+
     /**
      * Checks if another running task is already associated with the {@link ImageView}
      */
@@ -25,6 +25,10 @@ import java.util.List;
  */
 public abstract class Collection {
 
+    /**
+     * Broadcast after a {@link Collection} has been updated. Its extras describe the changes, see
+     * {@link CollectionDelta#fromIntent(android.content.Intent)}.
+     */
     public static final String COLLECTION_UPDATED
             = "org.tomahawk.libtomahawk.Collection.COLLECTION_UPDATED";
 
@@ -77,6 +81,32 @@ public abstract class Collection {
      */
     public abstract List<Track> getTracks();
 
+    /**
+     * Return a read-only view of all {@link Track}s, sorted alphabetically. The view is backed by
+     * a snapshot, which is shared between all callers, so no copy of the {@link Track}s is made.
+     */
+    public abstract List<Track> getTrackList();
+
+    /**
+     * Return a read-only window of the sorted {@link Track}s.
+     *
+     * @param offset the position of the first {@link Track} inside the window
+     * @param limit  the maximum number of {@link Track}s inside the window
+     */
+    public List<Track> getTracks(int offset, int limit) {
+        List<Track> tracks = getTrackList();
+        int fromIndex = Math.max(0, Math.min(offset, tracks.size()));
+        int toIndex = Math.min(tracks.size(), fromIndex + Math.max(0, limit));
+        return tracks.subList(fromIndex, toIndex);
+    }
+
+    /**
+     * @return the number of {@link Track}s in this {@link Collection}
+     */
+    public int getTrackCount() {
+        return getTrackList().size();
+    }
+
     /**
      * Get the {@link Track} by giving the {@link Track}'s ID
      *
@@ -106,6 +136,12 @@ public abstract class Collection {
      */
     public abstract void update();
 
+    /**
+     * @return the version of this {@link Collection}, which is increased with every {@link
+     *         CollectionDelta} that is broadcast
+     */
+    public abstract long getVersion();
+
     /**
      * @return the ID of this {@link Collection} object
      */
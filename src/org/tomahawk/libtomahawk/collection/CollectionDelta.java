@@ -0,0 +1,273 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.collection;
+
+import android.content.Intent;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Describes which {@link Track}s, {@link Album}s, {@link Artist}s and {@link CustomPlaylist}s of a
+ * {@link Collection} have been added, removed or changed by an update. Every delta carries the
+ * version of the {@link Collection} it leads to, so that listeners can tell whether they have
+ * missed an update and need to reload everything instead of patching their state in place.
+ * Deltas, which touch too many items to be broadcast, only carry a full reload flag instead.
+ */
+public class CollectionDelta {
+
+    public static final int TYPE_TRACKS = 0;
+
+    public static final int TYPE_ALBUMS = 1;
+
+    public static final int TYPE_ARTISTS = 2;
+
+    public static final int TYPE_PLAYLISTS = 3;
+
+    public static final int KIND_ADDED = 0;
+
+    public static final int KIND_REMOVED = 1;
+
+    public static final int KIND_CHANGED = 2;
+
+    private static final int TYPE_COUNT = 4;
+
+    private static final int KIND_COUNT = 3;
+
+    public static final String COLLECTIONDELTA_COLLECTION_ID = "collectiondelta_collection_id";
+
+    public static final String COLLECTIONDELTA_VERSION = "collectiondelta_version";
+
+    public static final String COLLECTIONDELTA_FULL_RELOAD = "collectiondelta_full_reload";
+
+    private static final String COLLECTIONDELTA_IDS = "collectiondelta_ids_";
+
+    // The maximum number of ids to put into a broadcast, so that it stays far below the limit of
+    // the binder transaction buffer
+    private static final int MAX_BROADCAST_IDS = 2000;
+
+    private final ArrayList<Set<Long>> mIds = new ArrayList<Set<Long>>(TYPE_COUNT * KIND_COUNT);
+
+    private int mCollectionId;
+
+    private long mVersion;
+
+    private boolean mFullReload;
+
+    public CollectionDelta() {
+        for (int i = 0; i < TYPE_COUNT * KIND_COUNT; i++) {
+            mIds.add(new HashSet<Long>());
+        }
+    }
+
+    /**
+     * Restore a {@link CollectionDelta} from the extras of a {@link Collection#COLLECTION_UPDATED}
+     * broadcast.
+     *
+     * @return the {@link CollectionDelta}, or null if the broadcast doesn't carry one
+     */
+    public static CollectionDelta fromIntent(Intent intent) {
+        if (!intent.hasExtra(COLLECTIONDELTA_VERSION)) {
+            return null;
+        }
+        CollectionDelta delta = new CollectionDelta();
+        delta.mCollectionId = intent.getIntExtra(COLLECTIONDELTA_COLLECTION_ID, 0);
+        delta.mVersion = intent.getLongExtra(COLLECTIONDELTA_VERSION, 0);
+        delta.mFullReload = intent.getBooleanExtra(COLLECTIONDELTA_FULL_RELOAD, false);
+        for (int i = 0; i < TYPE_COUNT * KIND_COUNT; i++) {
+            long[] ids = intent.getLongArrayExtra(COLLECTIONDELTA_IDS + i);
+            if (ids != null) {
+                for (long id : ids) {
+                    delta.mIds.get(i).add(id);
+                }
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * Store this {@link CollectionDelta} in the extras of the given {@link Intent}. If it touches
+     * more than {@link #MAX_BROADCAST_IDS} items, only the full reload flag is stored instead of
+     * the ids.
+     *
+     * @return the given {@link Intent}
+     */
+    public synchronized Intent toIntent(Intent intent) {
+        intent.putExtra(COLLECTIONDELTA_COLLECTION_ID, mCollectionId);
+        intent.putExtra(COLLECTIONDELTA_VERSION, mVersion);
+        int idCount = 0;
+        for (Set<Long> idSet : mIds) {
+            idCount += idSet.size();
+        }
+        if (mFullReload || idCount > MAX_BROADCAST_IDS) {
+            intent.putExtra(COLLECTIONDELTA_FULL_RELOAD, true);
+            return intent;
+        }
+        for (int i = 0; i < TYPE_COUNT * KIND_COUNT; i++) {
+            Set<Long> idSet = mIds.get(i);
+            if (!idSet.isEmpty()) {
+                long[] ids = new long[idSet.size()];
+                int j = 0;
+                for (Long id : idSet) {
+                    ids[j++] = id;
+                }
+                intent.putExtra(COLLECTIONDELTA_IDS + i, ids);
+            }
+        }
+        return intent;
+    }
+
+    /**
+     * Record that the item of the given type and id has been added, removed or changed. An item,
+     * which has been added by this delta, stays added if it is changed afterwards, and an item,
+     * which has been added and removed again, is dropped from the delta.
+     */
+    public synchronized void add(int type, int kind, long id) {
+        Set<Long> added = getIdSet(type, KIND_ADDED);
+        if (kind == KIND_CHANGED) {
+            if (!added.contains(id)) {
+                getIdSet(type, KIND_CHANGED).add(id);
+            }
+        } else if (kind == KIND_REMOVED) {
+            getIdSet(type, KIND_CHANGED).remove(id);
+            if (!added.remove(id)) {
+                getIdSet(type, KIND_REMOVED).add(id);
+            }
+        } else {
+            getIdSet(type, KIND_REMOVED).remove(id);
+            added.add(id);
+        }
+    }
+
+    /**
+     * @return the ids of all items of the given type, which have been added, removed or changed.
+     *         Empty, if this is a full reload.
+     */
+    public synchronized Set<Long> getIds(int type, int kind) {
+        return new HashSet<Long>(getIdSet(type, kind));
+    }
+
+    /**
+     * @return whether or not the item of the given type and id has been touched by this delta.
+     *         Always true for a full reload.
+     */
+    public synchronized boolean contains(int type, long id) {
+        if (mFullReload) {
+            return true;
+        }
+        for (int kind = 0; kind < KIND_COUNT; kind++) {
+            if (getIdSet(type, kind).contains(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether or not any item of the given type has been touched by this delta. Always
+     *         true for a full reload.
+     */
+    public synchronized boolean contains(int type) {
+        if (mFullReload) {
+            return true;
+        }
+        for (int kind = 0; kind < KIND_COUNT; kind++) {
+            if (!getIdSet(type, kind).isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether or not this delta doesn't touch anything at all
+     */
+    public synchronized boolean isEmpty() {
+        if (mFullReload) {
+            return false;
+        }
+        for (Set<Long> ids : mIds) {
+            if (!ids.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getCollectionId() {
+        return mCollectionId;
+    }
+
+    public void setCollectionId(int collectionId) {
+        mCollectionId = collectionId;
+    }
+
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public void setVersion(long version) {
+        mVersion = version;
+    }
+
+    /**
+     * @return whether or not this delta doesn't name the touched items, so that everything has to
+     *         be reloaded
+     */
+    public synchronized boolean isFullReload() {
+        return mFullReload;
+    }
+
+    public synchronized void setFullReload(boolean fullReload) {
+        mFullReload = fullReload;
+    }
+
+    /**
+     * @return whether or not this delta directly follows the given version of its {@link
+     *         Collection}, so that state of that version can be patched with it. If it doesn't,
+     *         at least one delta has been missed and everything has to be reloaded.
+     */
+    public synchronized boolean follows(long version) {
+        return !mFullReload && mVersion == version + 1;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public synchronized String toString() {
+        String[] types = {"tracks", "albums", "artists", "playlists"};
+        StringBuilder builder = new StringBuilder("CollectionDelta(version " + mVersion);
+        if (mFullReload) {
+            builder.append(", full reload");
+        }
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            builder.append(", ").append(types[type]).append(": +")
+                    .append(getIdSet(type, KIND_ADDED).size()).append(" -")
+                    .append(getIdSet(type, KIND_REMOVED).size()).append(" ~")
+                    .append(getIdSet(type, KIND_CHANGED).size());
+        }
+        return builder.append(")").toString();
+    }
+
+    private Set<Long> getIdSet(int type, int kind) {
+        return mIds.get(type * KIND_COUNT + kind);
+    }
+}
@@ -20,11 +20,50 @@ package org.tomahawk.libtomahawk.collection;
 import org.tomahawk.tomahawk_android.adapters.TomahawkBaseAdapter;
 
 import java.util.ArrayList;
+import java.util.Collection;
 
 public class CustomPlaylist extends Playlist implements TomahawkBaseAdapter.TomahawkListItem {
 
+    /**
+     * Loads the tracks of a CustomPlaylist, which has been created from a header.
+     */
+    public interface TrackLoader {
+
+        /**
+         * Load all tracks of the given CustomPlaylist in the background and hand them to {@link
+         * CustomPlaylist#onTracksLoaded(java.util.ArrayList)} on the main thread. Must not
+         * block.
+         */
+        void loadTracks(CustomPlaylist customPlaylist);
+    }
+
+    /**
+     * Is notified on the main thread, once the tracks of a CustomPlaylist have been loaded.
+     */
+    public interface OnTracksLoadedListener {
+
+        void onTracksLoaded(CustomPlaylist customPlaylist);
+    }
+
     private long mId;
 
+    private TrackLoader mTrackLoader;
+
+    private boolean mTracksLoaded;
+
+    private boolean mTracksLoading;
+
+    private ArrayList<OnTracksLoadedListener> mOnTracksLoadedListeners
+            = new ArrayList<OnTracksLoadedListener>();
+
+    private int mTrackCount;
+
+    private long mTotalDuration;
+
+    private long mSignature;
+
+    private String mCoverHint;
+
     /**
      * Create a CustomPlaylist from a list of tracks.
      *
@@ -92,6 +131,28 @@ public class CustomPlaylist extends Playlist implements TomahawkBaseAdapter.Toma
         return pl;
     }
 
+    /**
+     * Creates a CustomPlaylist header, which only knows about the size of its list of tracks. The
+     * tracks themselves are loaded in the background through the {@link TrackLoader} on first
+     * access. Until then the list of tracks is empty.
+     *
+     * @param signature a value, which changes whenever the tracks of the playlist change
+     * @param coverHint the path to an album art, which can be shown for the playlist
+     * @return a reference to the constructed CustomPlaylist
+     */
+    public static CustomPlaylist fromHeader(String name, int currentTrackIndex, int trackCount,
+            long totalDuration, long signature, String coverHint) {
+        CustomPlaylist pl = new CustomPlaylist(name);
+        pl.setTracks(new ArrayList<Track>());
+        pl.mTracksLoaded = false;
+        pl.mTrackCount = trackCount;
+        pl.mTotalDuration = totalDuration;
+        pl.mSignature = signature;
+        pl.mCoverHint = coverHint;
+        pl.setCurrentTrackIndex(currentTrackIndex);
+        return pl;
+    }
+
     /**
      * Construct a new empty CustomPlaylist.
      */
@@ -114,6 +175,149 @@ public class CustomPlaylist extends Playlist implements TomahawkBaseAdapter.Toma
         return mId;
     }
 
+    public void setTrackLoader(TrackLoader trackLoader) {
+        mTrackLoader = trackLoader;
+    }
+
+    /**
+     * @return whether or not the tracks of this CustomPlaylist are currently held in memory
+     */
+    public synchronized boolean isLoaded() {
+        return mTracksLoaded;
+    }
+
+    /* 
+     * (non-Javadoc)
+     * @see org.tomahawk.libtomahawk.collection.Playlist#setTracks(java.util.Collection)
+     */
+    @Override
+    public synchronized void setTracks(Collection<Track> tracks) {
+        mTracksLoaded = true;
+        super.setTracks(tracks);
+    }
+
+    /* 
+     * (non-Javadoc)
+     * @see org.tomahawk.libtomahawk.collection.Playlist#ensureTracksLoaded()
+     */
+    @Override
+    protected synchronized void ensureTracksLoaded() {
+        if (mTracksLoaded || mTrackLoader == null || mTracksLoading) {
+            return;
+        }
+        mTracksLoading = true;
+        mTrackLoader.loadTracks(this);
+    }
+
+    /**
+     * Load the tracks of this CustomPlaylist in the background, if they aren't held in memory.
+     * Has to be called on the main thread.
+     *
+     * @param listener notified on the main thread, once the tracks are available. Right away, if
+     *                 they already are.
+     */
+    public void loadTracks(OnTracksLoadedListener listener) {
+        synchronized (this) {
+            if (!mTracksLoaded && mTrackLoader != null) {
+                mOnTracksLoadedListeners.add(listener);
+                ensureTracksLoaded();
+                return;
+            }
+        }
+        listener.onTracksLoaded(this);
+    }
+
+    /**
+     * Called by the {@link TrackLoader} on the main thread with the loaded tracks, or null if
+     * they couldn't be loaded.
+     */
+    public void onTracksLoaded(ArrayList<Track> tracks) {
+        ArrayList<OnTracksLoadedListener> listeners;
+        synchronized (this) {
+            mTracksLoading = false;
+            if (tracks != null && !mTracksLoaded) {
+                int currentTrackIndex = getCurrentTrackIndex();
+                setTracks(tracks);
+                setCurrentTrackIndex(currentTrackIndex);
+            }
+            if (!mTracksLoaded) {
+                // The next access tries again
+                mOnTracksLoadedListeners.clear();
+                return;
+            }
+            listeners = new ArrayList<OnTracksLoadedListener>(mOnTracksLoadedListeners);
+            mOnTracksLoadedListeners.clear();
+        }
+        for (OnTracksLoadedListener listener : listeners) {
+            listener.onTracksLoaded(this);
+        }
+    }
+
+    /**
+     * Drop the tracks of this CustomPlaylist from memory, so that they are loaded again on next
+     * access. Shuffled playlists are kept, because their order can't be restored.
+     *
+     * @return whether or not the tracks have been evicted
+     */
+    public synchronized boolean evictTracks() {
+        if (!mTracksLoaded || mTrackLoader == null || isShuffled()) {
+            return false;
+        }
+        mTrackCount = super.getCount();
+        mTotalDuration = computeTotalDuration();
+        int currentTrackIndex = getCurrentTrackIndex();
+        // Replace the list instead of clearing it, because it may still be referenced elsewhere
+        super.setTracks(new ArrayList<Track>());
+        setCurrentTrackIndex(currentTrackIndex);
+        mTracksLoaded = false;
+        return true;
+    }
+
+    /* 
+     * (non-Javadoc)
+     * @see org.tomahawk.libtomahawk.collection.Playlist#getCount()
+     */
+    @Override
+    public synchronized int getCount() {
+        if (!mTracksLoaded) {
+            return mTrackCount;
+        }
+        return super.getCount();
+    }
+
+    /**
+     * @return the summed up duration of all tracks of this CustomPlaylist
+     */
+    public synchronized long getTotalDuration() {
+        if (!mTracksLoaded) {
+            return mTotalDuration;
+        }
+        return computeTotalDuration();
+    }
+
+    private long computeTotalDuration() {
+        long totalDuration = 0;
+        for (Track track : super.getTracks()) {
+            totalDuration += track.getDuration();
+        }
+        return totalDuration;
+    }
+
+    /**
+     * @return a value, which changes whenever the tracks of this CustomPlaylist change in the
+     *         database
+     */
+    public long getSignature() {
+        return mSignature;
+    }
+
+    /**
+     * @return the path to an album art, which can be shown for this CustomPlaylist, or null
+     */
+    public String getCoverHint() {
+        return mCoverHint;
+    }
+
     @Override
     public String getName() {
         return super.getName();
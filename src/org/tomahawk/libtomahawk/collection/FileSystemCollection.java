@@ -0,0 +1,542 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.collection;
+
+import org.tomahawk.libtomahawk.scanner.DirectoryScanner;
+import org.tomahawk.libtomahawk.scanner.TagCache;
+import org.tomahawk.libtomahawk.scanner.TagInfo;
+import org.tomahawk.libtomahawk.scanner.TagParser;
+import org.tomahawk.tomahawk_android.TomahawkApp;
+
+import android.content.Intent;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link Collection}, which doesn't rely on the MediaStore, but walks the configured music
+ * directories itself and parses the tags of every audio file with a {@link TagParser}. This makes
+ * new files show up without waiting for the media scanner and provides fields, which the
+ * MediaStore doesn't have, like the disc number. Entities are streamed into the collection while
+ * the scan is running, every BROADCAST_BATCH_SIZE files a {@link CollectionDelta} is broadcast.
+ */
+public class FileSystemCollection extends Collection {
+
+    private static final String TAG = FileSystemCollection.class.getName();
+
+    public static final int Id = 1;
+
+    private static final int BROADCAST_BATCH_SIZE = 250;
+
+    private TomahawkApp mTomahawkApp;
+
+    private List<File> mRoots;
+
+    private volatile DirectoryScanner mDirectoryScanner;
+
+    private TagCache mTagCache;
+
+    private Handler mHandler;
+
+    private ConcurrentHashMap<Long, Artist> mArtists = new ConcurrentHashMap<Long, Artist>();
+
+    private Artist mCachedArtist;
+
+    private ConcurrentHashMap<Long, Album> mAlbums = new ConcurrentHashMap<Long, Album>();
+
+    private Album mCachedAlbum;
+
+    private ConcurrentHashMap<Long, Track> mTracks = new ConcurrentHashMap<Long, Track>();
+
+    private volatile List<Track> mSortedTracks;
+
+    private ConcurrentHashMap<Long, CustomPlaylist> mCustomPlaylists
+            = new ConcurrentHashMap<Long, CustomPlaylist>();
+
+    /**
+     * Lookup tables, which are only ever accessed by the scanning thread
+     */
+    private HashMap<String, Track> mTracksByPath = new HashMap<String, Track>();
+
+    private HashMap<String, Artist> mArtistsByName = new HashMap<String, Artist>();
+
+    private HashMap<String, Album> mAlbumsByKey = new HashMap<String, Album>();
+
+    private long mVersion;
+
+    private Runnable mUpdateRunnable = new Runnable() {
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Runnable#run()
+         */
+        @Override
+        public void run() {
+            update();
+        }
+    };
+
+    /**
+     * Construct a new FileSystemCollection, which scans the given directories. Directories, which
+     * the MediaStore already covers, are left out. Like the loading of the {@link TagCache}, this
+     * is done by the first scan on the scanning thread.
+     */
+    public FileSystemCollection(TomahawkApp tomahawkApp, List<File> roots) {
+        mTomahawkApp = tomahawkApp;
+        mRoots = roots;
+
+        HandlerThread handlerThread = new HandlerThread("FileSystemScan",
+                android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        handlerThread.start();
+        mHandler = new Handler(handlerThread.getLooper());
+        requestUpdate();
+    }
+
+    /**
+     * @return the given directories without the ones on the external storage. The MediaStore
+     *         already indexes those, so scanning them as well would list every file twice.
+     */
+    public static List<File> getRootsOutsideMediaStore(List<File> roots) {
+        String externalStorage = Environment.getExternalStorageDirectory().getAbsolutePath();
+        ArrayList<File> filteredRoots = new ArrayList<File>();
+        for (File root : roots) {
+            String path = root.getAbsolutePath();
+            if (!path.equals(externalStorage)
+                    && !path.startsWith(externalStorage + File.separator)) {
+                filteredRoots.add(root);
+            }
+        }
+        return filteredRoots;
+    }
+
+    /**
+     * Request a rescan of all directories. A rescan, which is already pending, is replaced.
+     */
+    public void requestUpdate() {
+        mHandler.removeCallbacks(mUpdateRunnable);
+        mHandler.post(mUpdateRunnable);
+    }
+
+    /**
+     * Cancel a running scan
+     */
+    public void cancelUpdate() {
+        mHandler.removeCallbacks(mUpdateRunnable);
+        if (mDirectoryScanner != null) {
+            mDirectoryScanner.cancel();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.tomahawk.libtomahawk.Collection#update()
+     */
+    @Override
+    public void update() {
+        long startTime = System.currentTimeMillis();
+        if (mDirectoryScanner == null) {
+            mRoots = getRootsOutsideMediaStore(mRoots);
+            if (mRoots.isEmpty()) {
+                Log.d(TAG, "update: all directories are covered by the MediaStore");
+                return;
+            }
+            mTagCache = mTomahawkApp.getTagCache();
+            mDirectoryScanner = new DirectoryScanner(mRoots, new TagParser(), mTagCache);
+        }
+        mTagCache.resetStatistics();
+        final HashSet<String> scannedPaths = new HashSet<String>();
+        final CollectionDelta[] delta = {new CollectionDelta()};
+        final int[] batchCount = {0};
+        mDirectoryScanner.scan(new DirectoryScanner.Listener() {
+            @Override
+            public void onFileScanned(File file, TagInfo tagInfo) {
+                scannedPaths.add(file.getAbsolutePath());
+                addFile(file, tagInfo, delta[0]);
+                if (++batchCount[0] == BROADCAST_BATCH_SIZE) {
+                    sendUpdatedBroadcast(delta[0]);
+                    delta[0] = new CollectionDelta();
+                    batchCount[0] = 0;
+                }
+            }
+
+            @Override
+            public void onFileFailed(File file, IOException e) {
+                Log.e(TAG, "update: " + file + ": " + e.getClass() + ": "
+                        + e.getLocalizedMessage());
+            }
+        });
+        if (!mDirectoryScanner.isCancelled()) {
+            removeMissingFiles(scannedPaths, delta[0]);
+        }
+        try {
+            mTagCache.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "update: " + e.getClass() + ": " + e.getLocalizedMessage());
+        }
+        sendUpdatedBroadcast(delta[0]);
+        Log.d(TAG, "Scanned " + mDirectoryScanner.getFileCount() + " files in "
+                + mDirectoryScanner.getDirectoryCount() + " directories in " + (
+                System.currentTimeMillis() - startTime) + "ms, "
+                + mDirectoryScanner.getFailedCount() + " failed, tag cache hit ratio: "
+                + mTagCache.getHitRatio());
+    }
+
+    /**
+     * Create or update the {@link Track}, {@link Album} and {@link Artist} of the given file. The
+     * {@link Album} belongs to the album artist, if the file has one, so that compilations aren't
+     * split into one {@link Album} per track artist.
+     */
+    private void addFile(File file, TagInfo tagInfo, CollectionDelta delta) {
+        String path = file.getAbsolutePath();
+        String artistName = tagInfo.getArtist() != null ? tagInfo.getArtist() : "";
+        String albumArtistName = !TextUtils.isEmpty(tagInfo.getAlbumArtist())
+                ? tagInfo.getAlbumArtist() : artistName;
+
+        Artist artist = getOrCreateArtist(artistName, delta);
+        Artist albumArtist = getOrCreateArtist(albumArtistName, delta);
+
+        String albumName = tagInfo.getAlbum() != null ? tagInfo.getAlbum() : "";
+        String albumKey = getAlbumKey(albumArtistName, albumName);
+        Album album = mAlbumsByKey.get(albumKey);
+        if (album == null) {
+            album = new Album(mTomahawkApp.getUniqueAlbumId());
+            album.setName(albumName);
+            album.setArtist(albumArtist);
+            mAlbumsByKey.put(albumKey, album);
+            mAlbums.put(album.getId(), album);
+            delta.add(CollectionDelta.TYPE_ALBUMS, CollectionDelta.KIND_ADDED, album.getId());
+        }
+        if (tagInfo.getYear() > 0 && album.getFirstYear() == null) {
+            album.setFirstYear(String.valueOf(tagInfo.getYear()));
+        }
+        if (tagInfo.hasArt() && album.getAlbumArtPath() == null) {
+            album.setAlbumArtPath(BitmapItem.getEmbeddedArtPath(path, tagInfo.getArtOffset(),
+                    tagInfo.getArtLength()));
+        }
+
+        Track track = mTracksByPath.get(path);
+        int kind = CollectionDelta.KIND_CHANGED;
+        Album oldAlbum = null;
+        Artist oldArtist = null;
+        if (track == null) {
+            track = new Track(mTomahawkApp.getUniqueTrackId());
+            track.setPath(path);
+            track.setLocal(true);
+            mTracksByPath.put(path, track);
+            kind = CollectionDelta.KIND_ADDED;
+        } else if (track.getAlbum() != album || track.getArtist() != artist) {
+            oldAlbum = track.getAlbum();
+            oldArtist = track.getArtist();
+            oldAlbum.removeTrack(track.getId());
+            oldArtist.removeTrack(track.getId());
+        }
+        String name = tagInfo.getTitle() != null ? tagInfo.getTitle() : file.getName();
+        if (!TextUtils.equals(track.getName(), name)) {
+            track.setName(name);
+        }
+        track.setDuration(tagInfo.getDuration());
+        track.setTrackNumber(tagInfo.getTrackNumber());
+        track.setDiscNumber(tagInfo.getDiscNumber());
+        track.setYear(tagInfo.getYear());
+        // Track sizes are ints, files larger than 2GB are clamped
+        track.setSize((int) Math.min(file.length(), Integer.MAX_VALUE));
+        track.setAlbum(album);
+        track.setArtist(artist);
+        album.addTrack(track);
+        artist.addTrack(track);
+        artist.addAlbum(album);
+        albumArtist.addAlbum(album);
+        mTracks.put(track.getId(), track);
+        mSortedTracks = null;
+
+        delta.add(CollectionDelta.TYPE_TRACKS, kind, track.getId());
+        delta.add(CollectionDelta.TYPE_ALBUMS, CollectionDelta.KIND_CHANGED, album.getId());
+        delta.add(CollectionDelta.TYPE_ARTISTS, CollectionDelta.KIND_CHANGED, artist.getId());
+        if (oldAlbum != null) {
+            removeIfEmpty(oldAlbum, oldArtist, delta);
+        }
+    }
+
+    /**
+     * @return the {@link Artist} with the given name. If there is none yet, it is created and
+     *         recorded as added in the given {@link CollectionDelta}.
+     */
+    private Artist getOrCreateArtist(String artistName, CollectionDelta delta) {
+        Artist artist = mArtistsByName.get(artistName);
+        if (artist == null) {
+            artist = new Artist(mTomahawkApp.getUniqueArtistId());
+            artist.setName(artistName);
+            mArtistsByName.put(artistName, artist);
+            mArtists.put(artist.getId(), artist);
+            delta.add(CollectionDelta.TYPE_ARTISTS, CollectionDelta.KIND_ADDED, artist.getId());
+        }
+        return artist;
+    }
+
+    private static String getAlbumKey(String albumArtistName, String albumName) {
+        return albumArtistName + "\u0000" + albumName;
+    }
+
+    /**
+     * Remove all {@link Track}s, whose files haven't been seen by the last scan. Files, which
+     * couldn't be read themselves or lie in a directory, which couldn't be listed, are kept.
+     */
+    private void removeMissingFiles(HashSet<String> scannedPaths, CollectionDelta delta) {
+        for (Track track : new ArrayList<Track>(mTracksByPath.values())) {
+            if (!scannedPaths.contains(track.getPath())
+                    && !mDirectoryScanner.hasFailed(track.getPath())) {
+                mTracksByPath.remove(track.getPath());
+                try {
+                    mTagCache.remove(track.getPath());
+                } catch (IOException e) {
+                    Log.e(TAG, "removeMissingFiles: " + e.getClass() + ": "
+                            + e.getLocalizedMessage());
+                }
+                mTracks.remove(track.getId());
+                track.getAlbum().removeTrack(track.getId());
+                track.getArtist().removeTrack(track.getId());
+                mSortedTracks = null;
+                delta.add(CollectionDelta.TYPE_TRACKS, CollectionDelta.KIND_REMOVED,
+                        track.getId());
+                removeIfEmpty(track.getAlbum(), track.getArtist(), delta);
+            }
+        }
+    }
+
+    /**
+     * Called after a {@link Track} has been taken away from the given {@link Album} and {@link
+     * Artist}. Drops the {@link Album} from the {@link Artist}, if none of its other {@link
+     * Track}s are on it, and drops the {@link Album} and {@link Artist} from this collection, if
+     * they have become empty. Every dropped or changed entity is recorded in the given {@link
+     * CollectionDelta}.
+     */
+    private void removeIfEmpty(Album album, Artist artist, CollectionDelta delta) {
+        if (album.getArtist() != artist) {
+            boolean isOnAlbum = false;
+            for (Track track : artist.getTracks()) {
+                if (track.getAlbum() == album) {
+                    isOnAlbum = true;
+                    break;
+                }
+            }
+            if (!isOnAlbum) {
+                artist.removeAlbum(album.getId());
+            }
+        }
+        if (album.getTracks().isEmpty()) {
+            Artist albumArtist = album.getArtist();
+            mAlbums.remove(album.getId());
+            mAlbumsByKey.remove(getAlbumKey(albumArtist.getName(), album.getName()));
+            albumArtist.removeAlbum(album.getId());
+            artist.removeAlbum(album.getId());
+            delta.add(CollectionDelta.TYPE_ALBUMS, CollectionDelta.KIND_REMOVED, album.getId());
+            if (albumArtist != artist) {
+                removeIfEmpty(albumArtist, delta);
+            }
+        } else {
+            delta.add(CollectionDelta.TYPE_ALBUMS, CollectionDelta.KIND_CHANGED, album.getId());
+        }
+        removeIfEmpty(artist, delta);
+    }
+
+    /**
+     * Drop the given {@link Artist} from this collection, if it has neither {@link Track}s nor
+     * {@link Album}s anymore, otherwise record it as changed in the given {@link CollectionDelta}
+     */
+    private void removeIfEmpty(Artist artist, CollectionDelta delta) {
+        if (artist.getTracks().isEmpty() && artist.getAlbums().isEmpty()) {
+            mArtists.remove(artist.getId());
+            mArtistsByName.remove(artist.getName());
+            delta.add(CollectionDelta.TYPE_ARTISTS, CollectionDelta.KIND_REMOVED, artist.getId());
+        } else {
+            delta.add(CollectionDelta.TYPE_ARTISTS, CollectionDelta.KIND_CHANGED, artist.getId());
+        }
+    }
+
+    /**
+     * Send a {@link Collection#COLLECTION_UPDATED} broadcast carrying the given {@link
+     * CollectionDelta}, if it isn't empty
+     */
+    private void sendUpdatedBroadcast(CollectionDelta delta) {
+        synchronized (this) {
+            if (delta.isEmpty()) {
+                return;
+            }
+            delta.setCollectionId(Id);
+            delta.setVersion(++mVersion);
+        }
+        TomahawkApp.getContext()
+                .sendBroadcast(delta.toIntent(new Intent(COLLECTION_UPDATED)));
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.tomahawk.libtomahawk.Collection#getArtists()
+     */
+    @Override
+    public List<Artist> getArtists() {
+        ArrayList<Artist> artists = new ArrayList<Artist>(mArtists.values());
+        Collections.sort(artists, new ArtistComparator(ArtistComparator.COMPARE_ALPHA));
+        return artists;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.tomahawk.libtomahawk.Collection#getArtistById(java.lang.Long)
+     */
+    @Override
+    public Artist getArtistById(Long id) {
+        return mArtists.get(id);
+    }
+
+    @Override
+    public void setCachedArtist(Artist artist) {
+        mCachedArtist = artist;
+    }
+
+    @Override
+    public Artist getCachedArtist() {
+        return mCachedArtist;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.tomahawk.libtomahawk.Collection#getAlbums()
+     */
+    @Override
+    public List<Album> getAlbums() {
+        ArrayList<Album> albums = new ArrayList<Album>(mAlbums.values());
+        Collections.sort(albums, new AlbumComparator(AlbumComparator.COMPARE_ALPHA));
+        return albums;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.tomahawk.libtomahawk.Collection#getAlbumById(java.lang.Long)
+     */
+    @Override
+    public Album getAlbumById(Long id) {
+        return mAlbums.get(id);
+    }
+
+    @Override
+    public void setCachedAlbum(Album album) {
+        mCachedAlbum = album;
+    }
+
+    @Override
+    public Album getCachedAlbum() {
+        return mCachedAlbum;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.tomahawk.libtomahawk.Collection#getTracks()
+     */
+    @Override
+    public List<Track> getTracks() {
+        return new ArrayList<Track>(getTrackList());
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.tomahawk.libtomahawk.Collection#getTrackList()
+     */
+    @Override
+    public List<Track> getTrackList() {
+        List<Track> sortedTracks = mSortedTracks;
+        if (sortedTracks == null) {
+            Track[] tracks = mTracks.values().toArray(new Track[mTracks.size()]);
+            Arrays.sort(tracks, new TrackComparator(TrackComparator.COMPARE_ALPHA));
+            sortedTracks = Collections.unmodifiableList(Arrays.asList(tracks));
+            mSortedTracks = sortedTracks;
+        }
+        return sortedTracks;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.tomahawk.libtomahawk.Collection#getTrackById(java.lang.Long)
+     */
+    @Override
+    public Track getTrackById(Long id) {
+        return mTracks.get(id);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.tomahawk.libtomahawk.Collection#getCustomPlaylists()
+     */
+    @Override
+    public List<CustomPlaylist> getCustomPlaylists() {
+        return new ArrayList<CustomPlaylist>(mCustomPlaylists.values());
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.tomahawk.libtomahawk.Collection#getCustomPlaylistById(java.lang.Long)
+     */
+    @Override
+    public CustomPlaylist getCustomPlaylistById(Long id) {
+        return mCustomPlaylists.get(id);
+    }
+
+    @Override
+    public void addCustomPlaylist(long playlistId, CustomPlaylist customPlaylist) {
+        customPlaylist.setId(playlistId);
+        mCustomPlaylists.put(playlistId, customPlaylist);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.tomahawk.libtomahawk.Collection#getVersion()
+     */
+    @Override
+    public synchronized long getVersion() {
+        return mVersion;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.tomahawk.libtomahawk.Collection#getId()
+     */
+    @Override
+    public int getId() {
+        return Id;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.tomahawk.libtomahawk.Collection#isLocal()
+     */
+    @Override
+    public boolean isLocal() {
+        return true;
+    }
+}
@@ -0,0 +1,769 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.collection;
+
+import org.tomahawk.libtomahawk.scanner.TagCache;
+import org.tomahawk.libtomahawk.scanner.TagInfo;
+import org.tomahawk.libtomahawk.scanner.TagParser;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.MediaStore;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class loads the local MediaStore library into a {@link UserCollection} in three stages. A
+ * reader stage pulls rows from the MediaStore cursor in batches. Every batch is handed to a pool of
+ * workers, which build and normalize the {@link Track}, {@link Album} and {@link Artist} objects
+ * (names and sort keys). A single linker stage finally commits the entities and their relations in
+ * the order in which they were read, so that only one thread ever writes the collection's maps.
+ * <p/>
+ * If a {@link TrackStore} is given and the library is large, the linker writes the tracks into that
+ * store instead of creating one {@link Track} object per row.
+ * <p/>
+ * Fields, which the MediaStore doesn't provide, are only filled in from the {@link TagCache} while
+ * the collection is built. Files, whose tags haven't been cached yet, are collected and parsed by
+ * {@link #parseTags(Map)} in a later background pass, so that the build never waits for the tag
+ * parser.
+ * <p/>
+ * Every addition, removal and change is recorded in an optional {@link CollectionDelta}.
+ */
+public class IngestionPipeline {
+
+    private static final String TAG = IngestionPipeline.class.getName();
+
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * Libraries with at least this many tracks are held in the {@link TrackStore}
+     */
+    public static final int TRACKSTORE_THRESHOLD = 20000;
+
+    private static final String[] TRACKS_PROJECTION = {MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.DATA, MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.DURATION, MediaStore.Audio.Media.TRACK,
+            MediaStore.Audio.Media.ARTIST_ID, MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.ALBUM_ID, MediaStore.Audio.Media.ALBUM};
+
+    private static final String[] ALBUMS_PROJECTION = {MediaStore.Audio.Albums._ID,
+            MediaStore.Audio.Albums.ALBUM_ART, MediaStore.Audio.Albums.FIRST_YEAR,
+            MediaStore.Audio.Albums.LAST_YEAR};
+
+    private final ContentResolver mContentResolver;
+
+    private final ConcurrentHashMap<Long, Artist> mArtists;
+
+    private final ConcurrentHashMap<Long, Album> mAlbums;
+
+    private final ConcurrentHashMap<Long, Track> mTracks;
+
+    private final TrackStore mTrackStore;
+
+    private volatile boolean mUseTrackStore;
+
+    private final CollectionDelta mDelta;
+
+    /**
+     * The ids of all tracks, which have been linked. Only ever accessed by the linker.
+     */
+    private final HashSet<Long> mLinkedTrackIds = new HashSet<Long>();
+
+    /**
+     * The paths of all new tracks by their ids, whose tags haven't been found in the {@link
+     * TagCache}. Only ever accessed by the linker.
+     */
+    private final LinkedHashMap<Long, String> mUntaggedTracks = new LinkedHashMap<Long, String>();
+
+    private boolean mHasFailedBatches;
+
+    private TagCache mTagCache;
+
+    private final TagParser mTagParser = new TagParser();
+
+    private Map<Long, String[]> mAlbumInfos;
+
+    private final AtomicLong mWorkerTime = new AtomicLong();
+
+    /**
+     * A raw row as read from the MediaStore cursor
+     */
+    private static class Row {
+
+        long trackId;
+
+        String path;
+
+        String trackName;
+
+        long duration;
+
+        int trackNumber;
+
+        long artistId;
+
+        String artistName;
+
+        long albumId;
+
+        String albumName;
+    }
+
+    /**
+     * A built row, ready to be linked
+     */
+    private static class Entry {
+
+        Track track;
+
+        Artist artist;
+
+        Album album;
+
+        boolean isAlbumKnown;
+
+        boolean isTrackKnown;
+
+        /**
+         * The cached tags of a new track, null if there are none
+         */
+        TagInfo tagInfo;
+
+        /**
+         * Whether or not the tags of a new track still have to be parsed
+         */
+        boolean isUntagged;
+
+        /**
+         * The raw row. If track is null, the track is to be written into the {@link TrackStore}.
+         */
+        Row row;
+    }
+
+    /**
+     * Construct a new IngestionPipeline, which writes into the given maps
+     */
+    public IngestionPipeline(ContentResolver contentResolver,
+            ConcurrentHashMap<Long, Artist> artists, ConcurrentHashMap<Long, Album> albums,
+            ConcurrentHashMap<Long, Track> tracks) {
+        this(contentResolver, artists, albums, tracks, null, null);
+    }
+
+    /**
+     * Construct a new IngestionPipeline, which writes into the given maps. If the library contains
+     * at least TRACKSTORE_THRESHOLD tracks, or if the given {@link TrackStore} already contains
+     * tracks, new tracks are written into the {@link TrackStore} instead of the tracks map. All
+     * additions, removals and changes are recorded in the given {@link CollectionDelta}.
+     */
+    public IngestionPipeline(ContentResolver contentResolver,
+            ConcurrentHashMap<Long, Artist> artists, ConcurrentHashMap<Long, Album> albums,
+            ConcurrentHashMap<Long, Track> tracks, TrackStore trackStore,
+            CollectionDelta delta) {
+        mContentResolver = contentResolver;
+        mArtists = artists;
+        mAlbums = albums;
+        mTracks = tracks;
+        mTrackStore = trackStore;
+        mDelta = delta;
+    }
+
+    /**
+     * Set a {@link TagCache}, which is used to fill in the fields the MediaStore doesn't provide,
+     * like the disc number and embedded album art. Files, which aren't cached yet, are left to
+     * {@link #parseTags(Map)}.
+     */
+    public void setTagCache(TagCache tagCache) {
+        mTagCache = tagCache;
+    }
+
+    /**
+     * Run all stages of the pipeline. Blocks until every row has been linked.
+     */
+    public void run() {
+        long startTime = System.currentTimeMillis();
+        mWorkerTime.set(0);
+        if (mTagCache != null) {
+            mTagCache.resetStatistics();
+        }
+        int threadCount = Math.max(1, Runtime.getRuntime().availableProcessors());
+        ExecutorService executorService = Executors
+                .newFixedThreadPool(threadCount, new IngestionThreadFactory());
+        LinkedList<Future<List<Entry>>> pendingBatches = new LinkedList<Future<List<Entry>>>();
+        long readTime = 0;
+        long linkTime = 0;
+        int rowCount = 0;
+        try {
+            long readStartTime = System.currentTimeMillis();
+            mAlbumInfos = readAlbumInfos();
+            String selection = MediaStore.Audio.Media.IS_MUSIC + " != 0";
+            Cursor cursor = mContentResolver
+                    .query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, TRACKS_PROJECTION,
+                            selection, null, null);
+            readTime += System.currentTimeMillis() - readStartTime;
+            boolean isComplete = cursor != null;
+            if (cursor != null) {
+                try {
+                    mUseTrackStore = mTrackStore != null && (mTrackStore.size() > 0
+                            || cursor.getCount() >= TRACKSTORE_THRESHOLD);
+                    List<Row> batch = new ArrayList<Row>(BATCH_SIZE);
+                    readStartTime = System.currentTimeMillis();
+                    while (cursor.moveToNext()) {
+                        batch.add(readRow(cursor));
+                        rowCount++;
+                        if (batch.size() == BATCH_SIZE) {
+                            readTime += System.currentTimeMillis() - readStartTime;
+                            pendingBatches.add(executorService.submit(new BuildTask(batch)));
+                            batch = new ArrayList<Row>(BATCH_SIZE);
+                            linkTime += linkDoneBatches(pendingBatches, false);
+                            readStartTime = System.currentTimeMillis();
+                        }
+                    }
+                    readTime += System.currentTimeMillis() - readStartTime;
+                    if (!batch.isEmpty()) {
+                        pendingBatches.add(executorService.submit(new BuildTask(batch)));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            linkTime += linkDoneBatches(pendingBatches, true);
+            if (isComplete && !mHasFailedBatches) {
+                long removeStartTime = System.currentTimeMillis();
+                removeUnlinkedTracks();
+                linkTime += System.currentTimeMillis() - removeStartTime;
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+        if (mTagCache != null) {
+            try {
+                mTagCache.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "run: " + e.getClass() + ": " + e.getLocalizedMessage());
+            }
+            Log.d(TAG, "Tag cache hit ratio: " + mTagCache.getHitRatio() + " ("
+                    + mTagCache.getHitCount() + " hits, " + mTagCache.getMissCount()
+                    + " misses)");
+        }
+        if (mUseTrackStore) {
+            mTrackStore.trimToSize();
+            Log.d(TAG, "TrackStore holds " + mTrackStore.size() + " tracks in about "
+                    + mTrackStore.getEstimatedSize() / 1024 + "kB");
+        }
+        Log.d(TAG, "Ingested " + rowCount + " tracks in " + (System.currentTimeMillis()
+                - startTime) + "ms (read: " + readTime + "ms, build: " + mWorkerTime.get()
+                + "ms on " + threadCount + " workers, link: " + linkTime + "ms), "
+                + mUntaggedTracks.size() + " tracks left to tag");
+    }
+
+    /**
+     * @return the paths of all tracks by their ids, which have been added by {@link #run()}, but
+     *         whose tags haven't been cached yet
+     */
+    public Map<Long, String> getUntaggedTracks() {
+        return mUntaggedTracks;
+    }
+
+    /**
+     * Parse the tags of the given tracks and fill in the fields the MediaStore doesn't provide.
+     * Meant to be called in small chunks by a low priority background pass, once the collection
+     * has been built. Tracks, which have been removed or moved in the meantime, are skipped. Every
+     * track, which has changed, is recorded in the {@link CollectionDelta}.
+     *
+     * @param tracks the paths of the tracks to parse by their ids, usually taken from {@link
+     *               #getUntaggedTracks()}
+     */
+    public void parseTags(Map<Long, String> tracks) {
+        if (mTagCache == null) {
+            return;
+        }
+        for (Map.Entry<Long, String> untaggedTrack : tracks.entrySet()) {
+            long trackId = untaggedTrack.getKey();
+            String path = untaggedTrack.getValue();
+            Track track = mTracks.get(trackId);
+            if (track == null && mTrackStore != null) {
+                int storeRow = mTrackStore.getRow(trackId);
+                if (storeRow >= 0) {
+                    track = mTrackStore.getTrack(storeRow);
+                }
+            }
+            if (track == null || !TextUtils.equals(track.getPath(), path)) {
+                continue;
+            }
+            TagInfo tagInfo = parseTagInfo(new File(path));
+            if (tagInfo != null && applyTagInfo(track, track.getAlbum(), path, tagInfo)) {
+                recordTrack(CollectionDelta.KIND_CHANGED, trackId, track.getAlbum(),
+                        track.getArtist());
+            }
+        }
+        try {
+            mTagCache.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "parseTags: " + e.getClass() + ": " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * @return the tags of the given file, parsed and added to the {@link TagCache} if they
+     *         haven't been cached yet. Null if they can't be parsed.
+     */
+    private TagInfo parseTagInfo(File file) {
+        TagInfo tagInfo = mTagCache.get(file);
+        if (tagInfo == null && TagParser.isSupported(file.getPath())) {
+            try {
+                tagInfo = mTagParser.parse(file);
+                if (tagInfo != null) {
+                    mTagCache.put(file, tagInfo);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "parseTagInfo: " + e.getClass() + ": " + e.getLocalizedMessage());
+            } catch (RuntimeException e) {
+                Log.e(TAG, "parseTagInfo: " + e.getClass() + ": " + e.getLocalizedMessage());
+            }
+        }
+        return tagInfo;
+    }
+
+    /**
+     * Fill in the fields of the given {@link Track}, which the MediaStore doesn't provide, from
+     * the given tags.
+     *
+     * @return whether or not anything has changed
+     */
+    private static boolean applyTagInfo(Track track, Album album, String path,
+            TagInfo tagInfo) {
+        boolean isChanged = false;
+        if (track.getDiscNumber() != tagInfo.getDiscNumber()) {
+            track.setDiscNumber(tagInfo.getDiscNumber());
+            isChanged = true;
+        }
+        if (track.getYear() != tagInfo.getYear()) {
+            track.setYear(tagInfo.getYear());
+            isChanged = true;
+        }
+        return applyEmbeddedArt(album, path, tagInfo) || isChanged;
+    }
+
+    /**
+     * Use the album art embedded in the given file for the given {@link Album}, if it hasn't got
+     * any album art yet. Several workers may see the same album.
+     *
+     * @return whether or not the album art has been set
+     */
+    private static boolean applyEmbeddedArt(Album album, String path, TagInfo tagInfo) {
+        if (album == null || !tagInfo.hasArt()) {
+            return false;
+        }
+        synchronized (album) {
+            if (album.getAlbumArtPath() != null) {
+                return false;
+            }
+            album.setAlbumArtPath(BitmapItem.getEmbeddedArtPath(path, tagInfo.getArtOffset(),
+                    tagInfo.getArtLength()));
+        }
+        return true;
+    }
+
+    /**
+     * Read all album infos with a single query, instead of querying once per album.
+     */
+    private Map<Long, String[]> readAlbumInfos() {
+        Map<Long, String[]> albumInfos = new HashMap<Long, String[]>();
+        Cursor cursor = mContentResolver
+                .query(MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI, ALBUMS_PROJECTION, null,
+                        null, null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                albumInfos.put(cursor.getLong(0),
+                        new String[]{cursor.getString(1), cursor.getString(2),
+                                cursor.getString(3)});
+            }
+            cursor.close();
+        }
+        return albumInfos;
+    }
+
+    private Row readRow(Cursor cursor) {
+        Row row = new Row();
+        row.trackId = cursor.getLong(0);
+        row.path = cursor.getString(1);
+        row.trackName = cursor.getString(2);
+        row.duration = cursor.getLong(3);
+        row.trackNumber = cursor.getInt(4);
+        row.artistId = cursor.getLong(5);
+        row.artistName = cursor.getString(6);
+        row.albumId = cursor.getLong(7);
+        row.albumName = cursor.getString(8);
+        return row;
+    }
+
+    /**
+     * Link all batches at the head of the queue, which are done building. Batches are linked in the
+     * order in which they have been read.
+     *
+     * @param waitForAll whether or not to block until every batch has been linked
+     * @return the time spent linking in ms
+     */
+    private long linkDoneBatches(LinkedList<Future<List<Entry>>> pendingBatches,
+            boolean waitForAll) {
+        long linkTime = 0;
+        while (!pendingBatches.isEmpty() && (waitForAll || pendingBatches.getFirst().isDone())) {
+            Future<List<Entry>> future = pendingBatches.removeFirst();
+            List<Entry> entries;
+            try {
+                entries = future.get();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "linkDoneBatches: " + e.getClass() + ": " + e.getLocalizedMessage());
+                Thread.currentThread().interrupt();
+                mHasFailedBatches = true;
+                break;
+            } catch (ExecutionException e) {
+                Log.e(TAG, "linkDoneBatches: " + e.getClass() + ": " + e.getLocalizedMessage());
+                mHasFailedBatches = true;
+                continue;
+            }
+            long startTime = System.currentTimeMillis();
+            for (Entry entry : entries) {
+                link(entry);
+            }
+            linkTime += System.currentTimeMillis() - startTime;
+        }
+        return linkTime;
+    }
+
+    /**
+     * Commit the given entry and its relations to the collection. Only ever called by the linker.
+     */
+    private void link(Entry entry) {
+        Track track = entry.track;
+        Artist artist = entry.artist;
+        Album album = entry.album;
+        Row row = entry.row;
+        mLinkedTrackIds.add(row.trackId);
+        if (mArtists.putIfAbsent(artist.getId(), artist) == null) {
+            record(CollectionDelta.TYPE_ARTISTS, CollectionDelta.KIND_ADDED, artist.getId());
+        }
+        if (entry.isAlbumKnown && mAlbums.putIfAbsent(album.getId(), album) == null) {
+            record(CollectionDelta.TYPE_ALBUMS, CollectionDelta.KIND_ADDED, album.getId());
+        }
+        artist.addAlbum(album);
+        album.setArtist(artist);
+
+        if (track == null) {
+            int storeRow = mTrackStore.add(row.trackId, row.path, row.trackName, row.duration,
+                    row.trackNumber, album, artist);
+            if (storeRow >= 0) {
+                if (entry.tagInfo != null) {
+                    mTrackStore.setDiscNumber(storeRow, entry.tagInfo.getDiscNumber());
+                    mTrackStore.setYear(storeRow, entry.tagInfo.getYear());
+                    applyEmbeddedArt(album, row.path, entry.tagInfo);
+                } else if (entry.isUntagged) {
+                    mUntaggedTracks.put(row.trackId, row.path);
+                }
+                artist.addTrackRow(mTrackStore, storeRow);
+                album.addTrackRow(mTrackStore, storeRow);
+                recordTrack(CollectionDelta.KIND_ADDED, row.trackId, album, artist);
+            } else {
+                storeRow = -storeRow - 1;
+                Album oldAlbum = mTrackStore.getAlbum(storeRow);
+                Artist oldArtist = mTrackStore.getArtist(storeRow);
+                if (update(mTrackStore.getTrack(storeRow), row, oldAlbum, oldArtist, album,
+                        artist)) {
+                    if (oldAlbum != album) {
+                        album.addTrackRow(mTrackStore, storeRow);
+                    }
+                    if (oldArtist != artist) {
+                        artist.addTrackRow(mTrackStore, storeRow);
+                    }
+                }
+            }
+            return;
+        }
+        if (!entry.isTrackKnown) {
+            mTracks.putIfAbsent(track.getId(), track);
+            if (entry.isUntagged) {
+                mUntaggedTracks.put(row.trackId, row.path);
+            }
+            recordTrack(CollectionDelta.KIND_ADDED, track.getId(), album, artist);
+        } else {
+            update(track, row, track.getAlbum(), track.getArtist(), album, artist);
+        }
+
+        artist.addTrack(track);
+        album.addTrack(track);
+
+        track.setAlbum(album);
+        track.setArtist(artist);
+    }
+
+    /**
+     * Apply the given row to a {@link Track}, which is already part of the collection.
+     *
+     * @return whether or not anything has changed
+     */
+    private boolean update(Track track, Row row, Album oldAlbum, Artist oldArtist, Album album,
+            Artist artist) {
+        boolean isChanged = false;
+        if (!TextUtils.equals(track.getPath(), row.path)) {
+            track.setPath(row.path);
+            isChanged = true;
+        }
+        if (!TextUtils.equals(track.getName(), row.trackName)) {
+            track.setName(row.trackName);
+            isChanged = true;
+        }
+        if (track.getDuration() != row.duration) {
+            track.setDuration(row.duration);
+            isChanged = true;
+        }
+        if (track.getTrackNumber() != row.trackNumber) {
+            track.setTrackNumber(row.trackNumber);
+            isChanged = true;
+        }
+        if (oldAlbum != album) {
+            if (oldAlbum != null) {
+                oldAlbum.removeTrack(track.getId());
+                record(CollectionDelta.TYPE_ALBUMS, CollectionDelta.KIND_CHANGED,
+                        oldAlbum.getId());
+            }
+            track.setAlbum(album);
+            isChanged = true;
+        }
+        if (oldArtist != artist) {
+            if (oldArtist != null) {
+                oldArtist.removeTrack(track.getId());
+                record(CollectionDelta.TYPE_ARTISTS, CollectionDelta.KIND_CHANGED,
+                        oldArtist.getId());
+            }
+            track.setArtist(artist);
+            isChanged = true;
+        }
+        if (isChanged) {
+            recordTrack(CollectionDelta.KIND_CHANGED, track.getId(), album, artist);
+        }
+        return isChanged;
+    }
+
+    /**
+     * Remove all tracks, which are part of the collection but haven't been linked by this run,
+     * because they are gone from the MediaStore. {@link Album}s and {@link Artist}s, which are
+     * left without any tracks, are removed as well.
+     */
+    private void removeUnlinkedTracks() {
+        HashSet<Album> touchedAlbums = new HashSet<Album>();
+        HashSet<Artist> touchedArtists = new HashSet<Artist>();
+        for (Track track : mTracks.values()) {
+            if (!mLinkedTrackIds.contains(track.getId())) {
+                mTracks.remove(track.getId());
+                Album album = track.getAlbum();
+                Artist artist = track.getArtist();
+                if (album != null) {
+                    album.removeTrack(track.getId());
+                    touchedAlbums.add(album);
+                }
+                if (artist != null) {
+                    artist.removeTrack(track.getId());
+                    touchedArtists.add(artist);
+                }
+                recordTrack(CollectionDelta.KIND_REMOVED, track.getId(), album, artist);
+            }
+        }
+        if (mTrackStore != null) {
+            for (int row = 0; row < mTrackStore.getRowCount(); row++) {
+                long trackId = mTrackStore.getId(row);
+                if (!mTrackStore.isRemoved(row) && !mLinkedTrackIds.contains(trackId)) {
+                    Album album = mTrackStore.getAlbum(row);
+                    Artist artist = mTrackStore.getArtist(row);
+                    mTrackStore.remove(trackId);
+                    if (album != null) {
+                        touchedAlbums.add(album);
+                    }
+                    if (artist != null) {
+                        touchedArtists.add(artist);
+                    }
+                    recordTrack(CollectionDelta.KIND_REMOVED, trackId, album, artist);
+                }
+            }
+        }
+        for (Album album : touchedAlbums) {
+            if (album.getTracks().isEmpty() && mAlbums.remove(album.getId()) != null) {
+                record(CollectionDelta.TYPE_ALBUMS, CollectionDelta.KIND_REMOVED, album.getId());
+            }
+        }
+        for (Artist artist : touchedArtists) {
+            if (artist.getTracks().isEmpty() && mArtists.remove(artist.getId()) != null) {
+                record(CollectionDelta.TYPE_ARTISTS, CollectionDelta.KIND_REMOVED,
+                        artist.getId());
+            }
+        }
+    }
+
+    /**
+     * Record a track in the delta. Its {@link Album} and {@link Artist} are recorded as changed.
+     */
+    private void recordTrack(int kind, long trackId, Album album, Artist artist) {
+        record(CollectionDelta.TYPE_TRACKS, kind, trackId);
+        if (album != null) {
+            record(CollectionDelta.TYPE_ALBUMS, CollectionDelta.KIND_CHANGED, album.getId());
+        }
+        if (artist != null) {
+            record(CollectionDelta.TYPE_ARTISTS, CollectionDelta.KIND_CHANGED, artist.getId());
+        }
+    }
+
+    private void record(int type, int kind, long id) {
+        if (mDelta != null) {
+            mDelta.add(type, kind, id);
+        }
+    }
+
+    /**
+     * Builds and normalizes the entities of one batch of rows
+     */
+    private class BuildTask implements Callable<List<Entry>> {
+
+        private final List<Row> mRows;
+
+        BuildTask(List<Row> rows) {
+            mRows = rows;
+        }
+
+        @Override
+        public List<Entry> call() {
+            long startTime = System.currentTimeMillis();
+            List<Entry> entries = new ArrayList<Entry>(mRows.size());
+            for (Row row : mRows) {
+                Entry entry = new Entry();
+
+                entry.artist = mArtists.get(row.artistId);
+                if (entry.artist == null) {
+                    entry.artist = Artist.get(row.artistId);
+                    setNameIfChanged(entry.artist, row.artistName);
+                }
+
+                entry.album = mAlbums.get(row.albumId);
+                entry.isAlbumKnown = entry.album != null;
+                if (entry.album == null) {
+                    entry.album = Album.get(row.albumId);
+                    setNameIfChanged(entry.album, row.albumName);
+                    String[] albumInfo = mAlbumInfos.get(row.albumId);
+                    if (albumInfo != null) {
+                        entry.album.setAlbumArtPath(albumInfo[0]);
+                        entry.album.setFirstYear(albumInfo[1]);
+                        entry.album.setLastYear(albumInfo[2]);
+                        entry.isAlbumKnown = true;
+                    }
+                }
+
+                entry.row = row;
+                entry.track = mTracks.get(row.trackId);
+                entry.isTrackKnown = entry.track != null;
+                if (entry.track == null && !mUseTrackStore) {
+                    entry.track = Track.get(row.trackId);
+                    entry.track.setPath(row.path);
+                    if (!TextUtils.equals(entry.track.getName(), row.trackName)) {
+                        entry.track.setName(row.trackName);
+                    }
+                    entry.track.setDuration(row.duration);
+                    entry.track.setTrackNumber(row.trackNumber);
+                    entry.track.setLocal(true);
+                }
+                if (mTagCache != null && row.path != null && !entry.isTrackKnown) {
+                    lookUpTagInfo(entry, row.path);
+                }
+                entries.add(entry);
+            }
+            mWorkerTime.addAndGet(System.currentTimeMillis() - startTime);
+            return entries;
+        }
+
+        /**
+         * Fill in the fields of the given new entry, which the MediaStore doesn't provide, from
+         * the {@link TagCache}. A file, which isn't cached yet, is only marked as untagged, it is
+         * never parsed here. Rows, which go into the {@link TrackStore}, are filled in by the
+         * linker.
+         */
+        private void lookUpTagInfo(Entry entry, String path) {
+            entry.tagInfo = mTagCache.get(new File(path));
+            if (entry.tagInfo == null) {
+                entry.isUntagged = TagParser.isSupported(path);
+            } else if (entry.track != null) {
+                applyTagInfo(entry.track, entry.album, path, entry.tagInfo);
+            }
+        }
+
+        /**
+         * Several workers may see the same artist, only compute its sort key once.
+         */
+        private void setNameIfChanged(Artist artist, String name) {
+            synchronized (artist) {
+                if (!TextUtils.equals(artist.getName(), name)) {
+                    artist.setName(name);
+                }
+            }
+        }
+
+        /**
+         * Several workers may see the same album, only compute its sort key once.
+         */
+        private void setNameIfChanged(Album album, String name) {
+            synchronized (album) {
+                if (!TextUtils.equals(album.getName(), name)) {
+                    album.setName(name);
+                }
+            }
+        }
+    }
+
+    private static class IngestionThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mThreadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    android.os.Process
+                            .setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "CollectionIngestion-" + mThreadCount.incrementAndGet());
+            return thread;
+        }
+    }
+}
@@ -20,11 +20,20 @@ package org.tomahawk.libtomahawk.collection;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Random;
 
 /**
  * This class represents an abstract Playlist.
+ *
+ * The Tracks are kept in their original order only. The shuffled order is a permutation of
+ * indexes into that list, which is generated lazily from a seed (see {@link ShuffleOrder}), so
+ * shuffling, unshuffling and editing a shuffled Playlist never copy or scan the Tracks themselves,
+ * and only the part of the shuffled order up to the last edited position is materialized.
+ * All positions handed in and out of this class are positions in the play order, which is the
+ * shuffled order while shuffled. A lazily repaired index from Track ids to their position makes
+ * looking up a Track constant time, even in very large Playlists.
  */
 public abstract class Playlist implements Playable {
 
@@ -32,8 +41,18 @@ public abstract class Playlist implements Playable {
 
     private ArrayList<Track> mTracks;
 
+    // Play position -> index in mTracks. Null, while this Playlist isn't shuffled.
+    private ShuffleOrder mShuffleOrder;
+
+    // The shuffled order as a list of Tracks, built on demand for getTracks()
     private ArrayList<Track> mShuffledTracks;
 
+    // Track id -> index in mTracks of its first occurrence. Entries below mIndexValidUntil are
+    // valid, the ones above have to be repaired after an edit.
+    private final HashMap<Long, Integer> mTrackIndex = new HashMap<Long, Integer>();
+
+    private int mIndexValidUntil;
+
     private int mCurrentTrackIndex;
 
     private boolean mShuffled;
@@ -67,6 +86,13 @@ public abstract class Playlist implements Playable {
         this.mName = name;
     }
 
+    /**
+     * Called before the tracks of this Playlist are accessed. Subclasses, whose tracks are not
+     * always kept in memory, load them here.
+     */
+    protected void ensureTracksLoaded() {
+    }
+
     /* 
      * (non-Javadoc)
      * @see org.tomahawk.libtomahawk.playlist.Playable#setTracks(java.util.Collection)
@@ -74,6 +100,10 @@ public abstract class Playlist implements Playable {
     @Override
     public void setTracks(Collection<Track> tracks) {
         mTracks = (ArrayList<Track>) tracks;
+        invalidateTrackIndex(0);
+        if (mShuffled) {
+            reshuffle();
+        }
 
         if (mTracks != null && !mTracks.isEmpty()) {
             mCurrentTrackIndex = 0;
@@ -88,15 +118,10 @@ public abstract class Playlist implements Playable {
      */
     @Override
     public void setCurrentTrack(Track newtrack) {
-        List<Track> tracks = mShuffled ? mShuffledTracks : mTracks;
-        int i = 0;
-        while (i < tracks.size()) {
-            Track track = tracks.get(i);
-            if (newtrack.getId() == track.getId()) {
-                mCurrentTrackIndex = i;
-                break;
-            }
-            i++;
+        ensureTracksLoaded();
+        int index = indexOfTrack(newtrack);
+        if (index >= 0) {
+            mCurrentTrackIndex = toPosition(index);
         }
     }
 
@@ -110,11 +135,8 @@ public abstract class Playlist implements Playable {
      */
     @Override
     public Track getCurrentTrack() {
-        List<Track> tracks = mShuffled ? mShuffledTracks : mTracks;
-        if (tracks != null && mCurrentTrackIndex >= 0 && mCurrentTrackIndex < tracks.size()) {
-            return tracks.get(mCurrentTrackIndex);
-        }
-        return null;
+        ensureTracksLoaded();
+        return mTracks != null ? peekTrackAtPos(mCurrentTrackIndex) : null;
     }
 
     public int getCurrentTrackIndex() {
@@ -127,11 +149,10 @@ public abstract class Playlist implements Playable {
      */
     @Override
     public Track getNextTrack() {
-        List<Track> tracks = mShuffled ? mShuffledTracks : mTracks;
-        if (mCurrentTrackIndex + 1 < tracks.size()) {
-            Track track = tracks.get(mCurrentTrackIndex + 1);
+        ensureTracksLoaded();
+        if (mCurrentTrackIndex + 1 < mTracks.size()) {
             mCurrentTrackIndex = mCurrentTrackIndex + 1;
-            return track;
+            return peekTrackAtPos(mCurrentTrackIndex);
         } else if (mRepeating) {
             mCurrentTrackIndex = 0;
             return getFirstTrack();
@@ -145,13 +166,12 @@ public abstract class Playlist implements Playable {
      */
     @Override
     public Track getPreviousTrack() {
-        List<Track> tracks = mShuffled ? mShuffledTracks : mTracks;
+        ensureTracksLoaded();
         if (mCurrentTrackIndex - 1 >= 0) {
-            Track track = tracks.get(mCurrentTrackIndex - 1);
             mCurrentTrackIndex = mCurrentTrackIndex - 1;
-            return track;
+            return peekTrackAtPos(mCurrentTrackIndex);
         } else if (mRepeating) {
-            mCurrentTrackIndex = tracks.size() - 1;
+            mCurrentTrackIndex = mTracks.size() - 1;
             return getLastTrack();
         }
         return null;
@@ -163,9 +183,10 @@ public abstract class Playlist implements Playable {
      */
     @Override
     public Track getTrackAtPos(int i) {
-        if (i >= 0 && i < (mShuffled ? mShuffledTracks.size() : mTracks.size())) {
+        ensureTracksLoaded();
+        if (i >= 0 && i < mTracks.size()) {
             mCurrentTrackIndex = i;
-            return mShuffled ? mShuffledTracks.get(i) : mTracks.get(i);
+            return peekTrackAtPos(i);
         }
         return null;
     }
@@ -176,11 +197,12 @@ public abstract class Playlist implements Playable {
      */
     @Override
     public Track getFirstTrack() {
-        if (mShuffled ? mShuffledTracks.isEmpty() : mTracks.isEmpty()) {
+        ensureTracksLoaded();
+        if (mTracks.isEmpty()) {
             return null;
         }
 
-        return mShuffled ? mShuffledTracks.get(0) : mTracks.get(0);
+        return peekTrackAtPos(0);
     }
 
     /* 
@@ -189,12 +211,12 @@ public abstract class Playlist implements Playable {
      */
     @Override
     public Track getLastTrack() {
-        if (mShuffled ? mShuffledTracks.isEmpty() : mTracks.isEmpty()) {
+        ensureTracksLoaded();
+        if (mTracks.isEmpty()) {
             return null;
         }
 
-        return mShuffled ? mShuffledTracks.get(mShuffledTracks.size() - 1)
-                : mTracks.get(mTracks.size() - 1);
+        return peekTrackAtPos(mTracks.size() - 1);
     }
 
     /**
@@ -227,24 +249,46 @@ public abstract class Playlist implements Playable {
      * @return Returns next Track. Returns null if there is none.
      */
     public Track peekNextTrack() {
-        List<Track> tracks = mShuffled ? mShuffledTracks : mTracks;
-        if (mCurrentTrackIndex + 1 < tracks.size()) {
-            return tracks.get(mCurrentTrackIndex + 1);
+        ensureTracksLoaded();
+        if (mCurrentTrackIndex + 1 < mTracks.size()) {
+            return peekTrackAtPos(mCurrentTrackIndex + 1);
         } else if (mRepeating) {
             return getFirstTrack();
         }
         return null;
     }
 
+    /**
+     * Returns up to count Tracks following the current one, taking shuffle and repeat mode into
+     * account, but does not update the internal Track iterator. The first one is the Track
+     * returned by peekNextTrack().
+     */
+    public ArrayList<Track> peekNextTracks(int count) {
+        ensureTracksLoaded();
+        int size = mTracks.size();
+        ArrayList<Track> nextTracks = new ArrayList<Track>();
+        for (int i = 1; i <= size && nextTracks.size() < count; i++) {
+            int position = mCurrentTrackIndex + i;
+            if (position >= size) {
+                if (!mRepeating) {
+                    break;
+                }
+                position -= size;
+            }
+            nextTracks.add(peekTrackAtPos(position));
+        }
+        return nextTracks;
+    }
+
     /**
      * Returns the previous Track but does not update the internal Track iterator.
      *
      * @return Returns previous Track. Returns null if there is none.
      */
     public Track peekPreviousTrack() {
+        ensureTracksLoaded();
         if (mCurrentTrackIndex - 1 >= 0) {
-            List<Track> tracks = mShuffled ? mShuffledTracks : mTracks;
-            return tracks.get(mCurrentTrackIndex - 1);
+            return peekTrackAtPos(mCurrentTrackIndex - 1);
         } else if (mRepeating) {
             return getLastTrack();
         }
@@ -257,38 +301,97 @@ public abstract class Playlist implements Playable {
      * @return Returns the Track at the given position. Returns null if there is none.
      */
     public Track peekTrackAtPos(int i) {
-        if (i >= 0 && i < (mShuffled ? mShuffledTracks.size() : mTracks.size())) {
-            return mShuffled ? mShuffledTracks.get(i) : mTracks.get(i);
+        ensureTracksLoaded();
+        if (i >= 0 && i < mTracks.size()) {
+            return mTracks.get(toIndex(i));
         }
         return null;
     }
 
     /**
-     * Set this playlist to shuffle mode.
+     * Set this playlist to shuffle mode. A new shuffled order is started with the current Track.
      */
-    @SuppressWarnings("unchecked")
     public void setShuffled(boolean shuffled) {
-        Track oldCurrentTrack = getCurrentTrack();
+        ensureTracksLoaded();
+        if (shuffled == mShuffled) {
+            return;
+        }
+        int currentIndex = mCurrentTrackIndex >= 0 && mCurrentTrackIndex < mTracks.size()
+                ? toIndex(mCurrentTrackIndex) : -1;
         mShuffled = shuffled;
-        int i = 0;
 
         if (shuffled) {
-            mShuffledTracks = (ArrayList<Track>) mTracks.clone();
-            Collections.shuffle(mShuffledTracks);
+            shuffle(new Random().nextLong(), currentIndex);
         } else {
+            mShuffleOrder = null;
             mShuffledTracks = null;
         }
 
-        List<Track> tracks = mShuffled ? mShuffledTracks : mTracks;
-        while (i < tracks.size()) {
-            if (oldCurrentTrack == tracks.get(i)) {
-                mCurrentTrackIndex = i;
-                break;
-            }
-            i++;
+        if (currentIndex >= 0) {
+            mCurrentTrackIndex = toPosition(currentIndex);
         }
     }
 
+    /**
+     * Shuffle this playlist in the order generated from the given seed and first index, e.g. to
+     * restore a stored shuffle state. The current track index is kept as a position in the new
+     * order.
+     *
+     * @see #getShuffleSeed()
+     * @see #getShuffleFirstIndex()
+     */
+    public void setShuffled(long seed, int firstIndex) {
+        ensureTracksLoaded();
+        mShuffled = true;
+        shuffle(seed, firstIndex);
+    }
+
+    /**
+     * @return the seed of the shuffled order, or 0 if this Playlist isn't shuffled
+     */
+    public long getShuffleSeed() {
+        ensureTracksLoaded();
+        if (!mShuffled) {
+            return 0;
+        }
+        syncShuffleOrder();
+        return mShuffleOrder.getSeed();
+    }
+
+    /**
+     * @return the index in the original order of the Track, which the shuffled order has been
+     * started with, or -1 if there is none
+     */
+    public int getShuffleFirstIndex() {
+        ensureTracksLoaded();
+        if (!mShuffled) {
+            return -1;
+        }
+        syncShuffleOrder();
+        return mShuffleOrder.getFirstIndex();
+    }
+
+    /**
+     * @return whether this Playlist is shuffled in the order, which is generated from its shuffle
+     * seed and first index. That's no longer the case, once it has been edited while shuffled.
+     */
+    public boolean isShuffleReproducible() {
+        ensureTracksLoaded();
+        if (!mShuffled) {
+            return false;
+        }
+        syncShuffleOrder();
+        return !mShuffleOrder.isEdited();
+    }
+
+    /**
+     * @return the number of positions of the shuffled order, which have been materialized by
+     * edits, or 0 if this Playlist isn't shuffled
+     */
+    public int getMaterializedShuffleCount() {
+        return mShuffled && mShuffleOrder != null ? mShuffleOrder.getMaterializedCount() : 0;
+    }
+
     /**
      * Set this playlist to repeat mode.
      */
@@ -314,32 +417,224 @@ public abstract class Playlist implements Playable {
      * Return the current count of tracks in the playlist
      */
     public int getCount() {
+        ensureTracksLoaded();
         return mTracks.size();
     }
 
     /**
-     * Return all tracks in the playlist
+     * Return all tracks in the playlist in their original order, regardless of the shuffle mode.
+     */
+    public ArrayList<Track> getOriginalTracks() {
+        ensureTracksLoaded();
+        return mTracks;
+    }
+
+    /**
+     * Return all tracks in the playlist in play order. While shuffled, the returned list is a
+     * snapshot, which is built on first access after a change.
      */
     public ArrayList<Track> getTracks() {
-        return mShuffled ? mShuffledTracks : mTracks;
+        ensureTracksLoaded();
+        if (!mShuffled) {
+            return mTracks;
+        }
+        syncShuffleOrder();
+        if (mShuffledTracks == null) {
+            mShuffledTracks = new ArrayList<Track>(mTracks.size());
+            for (int i = 0; i < mTracks.size(); i++) {
+                mShuffledTracks.add(mTracks.get(mShuffleOrder.get(i)));
+            }
+        }
+        return mShuffledTracks;
     }
 
     public void addTracks(int position, ArrayList<Track> tracks) {
-        (mShuffled ? mShuffledTracks : mTracks).addAll(position, tracks);
+        ensureTracksLoaded();
+        position = Math.max(0, Math.min(position, mTracks.size()));
+        if (!mShuffled) {
+            mTracks.addAll(position, tracks);
+            invalidateTrackIndex(position);
+        } else {
+            // Appended to the original order, so that no index in the shuffled order shifts
+            syncShuffleOrder();
+            int size = mTracks.size();
+            mTracks.addAll(tracks);
+            mShuffleOrder.insert(position, size, tracks.size());
+            mShuffledTracks = null;
+            invalidateTrackIndex(size);
+        }
+        if (position <= mCurrentTrackIndex) {
+            mCurrentTrackIndex += tracks.size();
+        }
     }
 
     public void addTracks(ArrayList<Track> tracks) {
-        (mShuffled ? mShuffledTracks : mTracks).addAll(tracks);
+        ensureTracksLoaded();
+        addTracks(mTracks.size(), tracks);
     }
 
     public void deleteTrackAtPos(int position) {
-        if (mShuffledTracks != null) {
-            (!mShuffled ? mShuffledTracks : mTracks)
-                    .remove((mShuffled ? mShuffledTracks : mTracks).get(position));
+        ensureTracksLoaded();
+        if (position < 0 || position >= mTracks.size()) {
+            return;
+        }
+        int index = toIndex(position);
+        if (mShuffled) {
+            mShuffleOrder.remove(position);
+            mShuffledTracks = null;
         }
-        (mShuffled ? mShuffledTracks : mTracks).remove(position);
+        long id = mTracks.remove(index).getId();
+        Integer indexed = mTrackIndex.get(id);
+        if (indexed != null && indexed == index) {
+            // Re-added by the next repair, if the Track occurs again later on
+            mTrackIndex.remove(id);
+        }
+        invalidateTrackIndex(index);
         if (mCurrentTrackIndex > position) {
             mCurrentTrackIndex--;
         }
     }
+
+    /**
+     * Move the Track at the given position to another position. Both positions are positions in
+     * the play order.
+     */
+    public void moveTrack(int from, int to) {
+        ensureTracksLoaded();
+        int size = mTracks.size();
+        if (from == to || from < 0 || from >= size || to < 0 || to >= size) {
+            return;
+        }
+        if (mShuffled) {
+            syncShuffleOrder();
+            mShuffleOrder.move(from, to);
+            mShuffledTracks = null;
+        } else {
+            mTracks.add(to, mTracks.remove(from));
+            invalidateTrackIndex(Math.min(from, to));
+        }
+        if (mCurrentTrackIndex == from) {
+            mCurrentTrackIndex = to;
+        } else if (from < mCurrentTrackIndex && mCurrentTrackIndex <= to) {
+            mCurrentTrackIndex--;
+        } else if (to <= mCurrentTrackIndex && mCurrentTrackIndex < from) {
+            mCurrentTrackIndex++;
+        }
+    }
+
+    /**
+     * @return the index in the original order of the Track at the given play position
+     */
+    private int toIndex(int position) {
+        if (!mShuffled) {
+            return position;
+        }
+        syncShuffleOrder();
+        return mShuffleOrder.get(position);
+    }
+
+    /**
+     * @return the play position of the Track at the given index in the original order
+     */
+    private int toPosition(int index) {
+        if (!mShuffled) {
+            return index;
+        }
+        syncShuffleOrder();
+        return mShuffleOrder.positionOf(index);
+    }
+
+    /**
+     * Start a new permutation of the original order. Nothing of it is generated before it's
+     * accessed.
+     */
+    private void shuffle(long seed, int firstIndex) {
+        mShuffleOrder = new ShuffleOrder(mTracks != null ? mTracks.size() : 0, seed, firstIndex);
+        mShuffledTracks = null;
+    }
+
+    /**
+     * The list of Tracks may be shared with and changed by its creator, e.g. an Album. In that
+     * case the shuffled order doesn't fit anymore. Tracks appended to the list are inserted at
+     * the end of the shuffled order like any other edit. If Tracks have been removed, it's
+     * unknown which ones, so the shuffled order is regenerated.
+     */
+    private void syncShuffleOrder() {
+        if (mShuffleOrder == null) {
+            shuffle(new Random().nextLong(), -1);
+        } else if (mShuffleOrder.size() < mTracks.size()) {
+            int size = mShuffleOrder.size();
+            mShuffleOrder.insert(size, size, mTracks.size() - size);
+            mShuffledTracks = null;
+        } else if (mShuffleOrder.size() > mTracks.size()) {
+            reshuffle();
+        }
+    }
+
+    /**
+     * Regenerate the shuffled order for a changed list of Tracks. The seed and first index are
+     * kept, so that the shuffle state, which has been stored with this Playlist, still describes
+     * the new order.
+     */
+    private void reshuffle() {
+        if (mShuffleOrder != null) {
+            shuffle(mShuffleOrder.getSeed(), mShuffleOrder.getFirstIndex());
+        } else {
+            shuffle(new Random().nextLong(), -1);
+        }
+    }
+
+    /**
+     * @return the index in the original order of the first occurrence of the given Track, or -1
+     * if it isn't part of this Playlist
+     */
+    private int indexOfTrack(Track track) {
+        long id = track.getId();
+        Integer index = mTrackIndex.get(id);
+        if (index != null && index < mIndexValidUntil && index < mTracks.size()
+                && mTracks.get(index).getId() == id) {
+            return index;
+        }
+        repairTrackIndex();
+        index = mTrackIndex.get(id);
+        if (index == null) {
+            return -1;
+        }
+        if (index >= mTracks.size() || mTracks.get(index).getId() != id) {
+            // A leftover of a Track, which isn't part of this Playlist anymore
+            mTrackIndex.remove(id);
+            return -1;
+        }
+        return index;
+    }
+
+    /**
+     * Index all Tracks from mIndexValidUntil on. Entries pointing at or after it may be stale and
+     * are only kept, if they still point at an earlier occurrence found by this repair.
+     */
+    private void repairTrackIndex() {
+        int validUntil = mIndexValidUntil;
+        if (validUntil > mTracks.size()) {
+            validUntil = 0;
+        }
+        if (validUntil == 0) {
+            mTrackIndex.clear();
+        }
+        for (int i = validUntil; i < mTracks.size(); i++) {
+            long id = mTracks.get(i).getId();
+            Integer known = mTrackIndex.get(id);
+            if (known == null || (known >= validUntil
+                    && (known >= i || mTracks.get(known).getId() != id))) {
+                mTrackIndex.put(id, i);
+            }
+        }
+        mIndexValidUntil = mTracks.size();
+    }
+
+    /**
+     * Mark the index of Tracks as stale from the given index in the original order on.
+     */
+    private void invalidateTrackIndex(int index) {
+        mIndexValidUntil = Math.min(mIndexValidUntil, index);
+    }
 }
@@ -0,0 +1,327 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.collection;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * A random permutation of the indexes 0 to count - 1, which is generated lazily. The unedited
+ * permutation is a seeded, invertible mapping between positions and indexes (a small Feistel
+ * network, which walks its cycles until it lands inside of the range), so that the index at a
+ * position and the position of an index can both be computed directly, without generating any
+ * other part of it.
+ *
+ * Only edits materialize a prefix of the permutation, which reaches up to the edited position.
+ * Removed indexes are remembered in a sorted list, so that the larger indexes can be shifted down
+ * when they are read, instead of rewriting the whole permutation.
+ *
+ * As long as it isn't edited, the permutation is fully determined by its count, its seed and its
+ * first index, so it can be stored in a few bytes and regenerated later.
+ */
+class ShuffleOrder {
+
+    private static final int ROUND_COUNT = 6;
+
+    private final long mSeed;
+
+    private final int mFirstIndex;
+
+    // The number of indexes of the unedited permutation
+    private final int mCount;
+
+    private final int mHalfBits;
+
+    private final long mHalfMask;
+
+    private final int[] mRoundKeys = new int[ROUND_COUNT];
+
+    // The position of the first index in the permutation before it has been swapped to position 0
+    private final int mFirstIndexSwapPosition;
+
+    // The materialized prefix of the permutation. Like all indexes stored in here, these are raw
+    // indexes, which still count the removed indexes.
+    private int[] mPrefix = new int[16];
+
+    private int mPrefixCount;
+
+    // The unedited permutation continues at this position after the prefix
+    private int mNextPosition;
+
+    // The sorted raw indexes, which have been removed
+    private int[] mRemoved = new int[4];
+
+    private int mRemovedCount;
+
+    // Raw index -> position of all indexes in the prefix, rebuilt on demand
+    private HashMap<Integer, Integer> mPositions;
+
+    private boolean mEdited;
+
+    /**
+     * Create a new permutation of count indexes.
+     *
+     * @param firstIndex the index at position 0, e.g. the index of the current track, or -1 to
+     *                   draw it randomly like all others
+     */
+    ShuffleOrder(int count, long seed, int firstIndex) {
+        mSeed = seed;
+        mFirstIndex = firstIndex >= 0 && firstIndex < count ? firstIndex : -1;
+        mCount = count;
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(count - 1, 1));
+        mHalfBits = (bits + 1) / 2;
+        mHalfMask = (1L << mHalfBits) - 1;
+        Random random = new Random(seed);
+        for (int i = 0; i < ROUND_COUNT; i++) {
+            mRoundKeys[i] = random.nextInt();
+        }
+        mFirstIndexSwapPosition = mFirstIndex >= 0 ? decrypt(mFirstIndex) : -1;
+    }
+
+    long getSeed() {
+        return mSeed;
+    }
+
+    int getFirstIndex() {
+        return mFirstIndex;
+    }
+
+    /**
+     * @return whether this permutation has been edited, so that it can't be regenerated from its
+     * seed anymore
+     */
+    boolean isEdited() {
+        return mEdited;
+    }
+
+    int size() {
+        return mPrefixCount + mCount - mNextPosition;
+    }
+
+    /**
+     * @return the index at the given position
+     */
+    int get(int position) {
+        int rawIndex;
+        if (position < mPrefixCount) {
+            rawIndex = mPrefix[position];
+        } else {
+            rawIndex = indexAt(mNextPosition + position - mPrefixCount);
+        }
+        // The raw index itself is never removed, so this is the number of removed indexes below it
+        return rawIndex + Arrays.binarySearch(mRemoved, 0, mRemovedCount, rawIndex) + 1;
+    }
+
+    /**
+     * @return the position of the given index, or -1 if it isn't part of this permutation
+     */
+    int positionOf(int index) {
+        if (index < 0) {
+            return -1;
+        }
+        int rawIndex = toRawIndex(index);
+        if (mPositions == null) {
+            mPositions = new HashMap<Integer, Integer>();
+            for (int i = 0; i < mPrefixCount; i++) {
+                mPositions.put(mPrefix[i], i);
+            }
+        }
+        Integer position = mPositions.get(rawIndex);
+        if (position != null) {
+            return position;
+        }
+        if (rawIndex < mCount) {
+            int uneditedPosition = positionOfIndex(rawIndex);
+            if (uneditedPosition >= mNextPosition) {
+                return mPrefixCount + uneditedPosition - mNextPosition;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Insert the count indexes starting with firstIndex at the given position. The inserted
+     * indexes have to be larger than all indexes of this permutation.
+     */
+    void insert(int position, int firstIndex, int count) {
+        materialize(position);
+        int firstRawIndex = toRawIndex(firstIndex);
+        mPrefix = ensureCapacity(mPrefix, mPrefixCount + count);
+        System.arraycopy(mPrefix, position, mPrefix, position + count, mPrefixCount - position);
+        for (int i = 0; i < count; i++) {
+            mPrefix[position + i] = firstRawIndex + i;
+        }
+        mPrefixCount += count;
+        mPositions = null;
+        mEdited = true;
+    }
+
+    void move(int from, int to) {
+        materialize(Math.max(from, to) + 1);
+        int index = mPrefix[from];
+        if (from < to) {
+            System.arraycopy(mPrefix, from + 1, mPrefix, from, to - from);
+        } else {
+            System.arraycopy(mPrefix, to, mPrefix, to + 1, from - to);
+        }
+        mPrefix[to] = index;
+        mPositions = null;
+        mEdited = true;
+    }
+
+    /**
+     * Remove the index at the given position. All larger indexes are decremented, so that they
+     * keep pointing at the same tracks, after the track at the removed index has been removed.
+     * Only the prefix up to the given position is materialized, the larger indexes are shifted
+     * when they are read.
+     */
+    void remove(int position) {
+        materialize(position + 1);
+        int rawIndex = mPrefix[position];
+        System.arraycopy(mPrefix, position + 1, mPrefix, position, mPrefixCount - position - 1);
+        mPrefixCount--;
+        int insertionPoint = -Arrays.binarySearch(mRemoved, 0, mRemovedCount, rawIndex) - 1;
+        mRemoved = ensureCapacity(mRemoved, mRemovedCount + 1);
+        System.arraycopy(mRemoved, insertionPoint, mRemoved, insertionPoint + 1,
+                mRemovedCount - insertionPoint);
+        mRemoved[insertionPoint] = rawIndex;
+        mRemovedCount++;
+        mPositions = null;
+        mEdited = true;
+    }
+
+    /**
+     * @return the number of positions, which have been materialized by edits
+     */
+    int getMaterializedCount() {
+        return mPrefixCount;
+    }
+
+    /**
+     * Move the unedited permutation into the prefix, until it contains count indexes or the
+     * unedited permutation is used up.
+     */
+    private void materialize(int count) {
+        while (mPrefixCount < count && mNextPosition < mCount) {
+            int rawIndex = indexAt(mNextPosition++);
+            mPrefix = ensureCapacity(mPrefix, mPrefixCount + 1);
+            mPrefix[mPrefixCount++] = rawIndex;
+            if (mPositions != null) {
+                mPositions.put(rawIndex, mPrefixCount - 1);
+            }
+        }
+    }
+
+    /**
+     * @return the raw index of the given index, which counts all removed indexes below it
+     */
+    private int toRawIndex(int index) {
+        int rawIndex = index;
+        for (int i = 0; i < mRemovedCount && mRemoved[i] <= rawIndex; i++) {
+            rawIndex++;
+        }
+        return rawIndex;
+    }
+
+    /**
+     * @return the index at the given position of the unedited permutation, where the first index
+     * has been swapped to position 0
+     */
+    private int indexAt(int position) {
+        if (mFirstIndex >= 0) {
+            if (position == 0) {
+                return mFirstIndex;
+            } else if (position == mFirstIndexSwapPosition) {
+                return encrypt(0);
+            }
+        }
+        return encrypt(position);
+    }
+
+    /**
+     * @return the position of the given index in the unedited permutation
+     */
+    private int positionOfIndex(int index) {
+        if (mFirstIndex >= 0) {
+            if (index == mFirstIndex) {
+                return 0;
+            } else if (index == encrypt(0)) {
+                return mFirstIndexSwapPosition;
+            }
+        }
+        return decrypt(index);
+    }
+
+    /**
+     * Map the given position to an index. The Feistel network permutes a range of a power of four,
+     * which is at most four times as large as mCount. Results outside of mCount are mapped again,
+     * until one lands inside of it, which keeps the mapping a permutation of mCount.
+     */
+    private int encrypt(int position) {
+        long value = position;
+        do {
+            long left = value >>> mHalfBits;
+            long right = value & mHalfMask;
+            for (int i = 0; i < ROUND_COUNT; i++) {
+                long newRight = left ^ round(right, mRoundKeys[i]);
+                left = right;
+                right = newRight;
+            }
+            value = left << mHalfBits | right;
+        } while (value >= mCount);
+        return (int) value;
+    }
+
+    /**
+     * The inverse of {@link #encrypt(int)}
+     */
+    private int decrypt(int index) {
+        long value = index;
+        do {
+            long left = value >>> mHalfBits;
+            long right = value & mHalfMask;
+            for (int i = ROUND_COUNT - 1; i >= 0; i--) {
+                long newLeft = right ^ round(left, mRoundKeys[i]);
+                right = left;
+                left = newLeft;
+            }
+            value = left << mHalfBits | right;
+        } while (value >= mCount);
+        return (int) value;
+    }
+
+    private long round(long half, int key) {
+        int hash = (int) half * 0x9e3779b1 + key;
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash & mHalfMask;
+    }
+
+    private static int[] ensureCapacity(int[] array, int capacity) {
+        if (array.length >= capacity) {
+            return array;
+        }
+        int[] newArray = new int[Math.max(capacity, array.length * 3 / 2)];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+}
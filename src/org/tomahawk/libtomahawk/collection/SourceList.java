@@ -45,6 +45,13 @@ public class SourceList {
         mSources.add(mLocalSource);
     }
 
+    /**
+     * Adds a further source, e.g. another local {@link Collection}.
+     */
+    public void addSource(Source source) {
+        mSources.add(source);
+    }
+
     /**
      * Returns the Source that represents this device.
      */
@@ -19,6 +19,7 @@ package org.tomahawk.libtomahawk.collection;
 
 import org.tomahawk.libtomahawk.resolver.DataBaseResolver;
 import org.tomahawk.libtomahawk.resolver.Resolver;
+import org.tomahawk.libtomahawk.utils.TomahawkUtils;
 import org.tomahawk.tomahawk_android.adapters.TomahawkBaseAdapter;
 
 import android.text.TextUtils;
@@ -41,6 +42,8 @@ public class Track implements TomahawkBaseAdapter.TomahawkListItem {
 
     private String mName;
 
+    private byte[] mSortKey = TomahawkUtils.getSortKey(null);
+
     private Album mAlbum;
 
     private Artist mArtist;
@@ -53,6 +56,8 @@ public class Track implements TomahawkBaseAdapter.TomahawkListItem {
 
     private int mTrackNumber;
 
+    private int mDiscNumber;
+
     private int mYear;
 
     private long mId;
@@ -67,6 +72,13 @@ public class Track implements TomahawkBaseAdapter.TomahawkListItem {
 
     private boolean isResolved;
 
+    /**
+     * The {@link TrackStore} backing this Track, if it is a flyweight over one of its rows
+     */
+    private TrackStore mStore;
+
+    private int mRow;
+
     public Track() {
     }
 
@@ -74,13 +86,23 @@ public class Track implements TomahawkBaseAdapter.TomahawkListItem {
         setId(l);
     }
 
+    /**
+     * Construct a new flyweight Track, which reads and writes its data from and to the given row of
+     * the given {@link TrackStore}
+     */
+    Track(TrackStore store, int row) {
+        mStore = store;
+        mRow = row;
+        mId = store.getId(row);
+    }
+
     /**
      * Construct a new Album from the id
      */
     public static Track get(long id) {
 
         if (!sTracks.containsKey(id)) {
-            sTracks.put(id, new Track(id));
+            sTracks.putIfAbsent(id, new Track(id));
         }
 
         return sTracks.get(id);
@@ -101,6 +123,9 @@ public class Track implements TomahawkBaseAdapter.TomahawkListItem {
      */
     @Override
     public String getName() {
+        if (mStore != null) {
+            return mStore.getName(mRow);
+        }
         return mName;
     }
 
@@ -110,6 +135,9 @@ public class Track implements TomahawkBaseAdapter.TomahawkListItem {
      */
     @Override
     public Artist getArtist() {
+        if (mStore != null) {
+            return mStore.getArtist(mRow);
+        }
         return mArtist;
     }
 
@@ -119,6 +147,9 @@ public class Track implements TomahawkBaseAdapter.TomahawkListItem {
      */
     @Override
     public Album getAlbum() {
+        if (mStore != null) {
+            return mStore.getAlbum(mRow);
+        }
         return mAlbum;
     }
 
@@ -131,10 +162,18 @@ public class Track implements TomahawkBaseAdapter.TomahawkListItem {
     }
 
     public String getPath() {
+        if (mStore != null) {
+            return mStore.getPath(mRow);
+        }
         return mPath;
     }
 
     public void setPath(String path) {
+        if (mStore != null) {
+            // The store marks the row as resolved itself
+            mStore.setPath(mRow, path);
+            return;
+        }
         this.mPath = path;
         if (path != null && !TextUtils.isEmpty(path)) {
             isResolved = true;
@@ -142,66 +181,152 @@ public class Track implements TomahawkBaseAdapter.TomahawkListItem {
     }
 
     public boolean isLocal() {
+        if (mStore != null) {
+            return mStore.isLocal(mRow);
+        }
         return mIsLocal;
     }
 
     public void setLocal(boolean mIsLocal) {
-        this.mIsLocal = mIsLocal;
+        if (mStore != null) {
+            mStore.setLocal(mRow, mIsLocal);
+        } else {
+            this.mIsLocal = mIsLocal;
+        }
     }
 
+    /**
+     * Set the name and precompute the sort key, which is used to sort this Track alphabetically.
+     */
     public void setName(String name) {
+        if (mStore != null) {
+            mStore.setName(mRow, name);
+            return;
+        }
         this.mName = name;
+        mSortKey = TomahawkUtils.getSortKey(name);
+    }
+
+    /**
+     * @return the precomputed, locale-aware sort key of this Track's name
+     */
+    public byte[] getSortKey() {
+        if (mStore != null) {
+            return mStore.getSortKey(mRow);
+        }
+        return mSortKey;
     }
 
     public void setAlbum(Album album) {
-        this.mAlbum = album;
+        if (mStore != null) {
+            mStore.setAlbum(mRow, album);
+        } else {
+            this.mAlbum = album;
+        }
     }
 
     public void setArtist(Artist artist) {
-        this.mArtist = artist;
+        if (mStore != null) {
+            mStore.setArtist(mRow, artist);
+        } else {
+            this.mArtist = artist;
+        }
     }
 
     public int getBitrate() {
+        if (mStore != null) {
+            return mStore.getBitrate(mRow);
+        }
         return mBitrate;
     }
 
     public void setBitrate(int bitrate) {
-        this.mBitrate = bitrate;
+        if (mStore != null) {
+            mStore.setBitrate(mRow, bitrate);
+        } else {
+            this.mBitrate = bitrate;
+        }
     }
 
     public int getSize() {
+        if (mStore != null) {
+            return mStore.getSize(mRow);
+        }
         return mSize;
     }
 
     public void setSize(int size) {
-        this.mSize = size;
+        if (mStore != null) {
+            mStore.setSize(mRow, size);
+        } else {
+            this.mSize = size;
+        }
     }
 
     public long getDuration() {
+        if (mStore != null) {
+            return mStore.getDuration(mRow);
+        }
         return mDuration;
     }
 
     public void setDuration(long duration) {
-        this.mDuration = duration;
+        if (mStore != null) {
+            mStore.setDuration(mRow, duration);
+        } else {
+            this.mDuration = duration;
+        }
     }
 
     public int getTrackNumber() {
+        if (mStore != null) {
+            return mStore.getTrackNumber(mRow);
+        }
         return mTrackNumber;
     }
 
     public void setTrackNumber(int trackNumber) {
-        this.mTrackNumber = trackNumber;
+        if (mStore != null) {
+            mStore.setTrackNumber(mRow, trackNumber);
+        } else {
+            this.mTrackNumber = trackNumber;
+        }
+    }
+
+    public int getDiscNumber() {
+        if (mStore != null) {
+            return mStore.getDiscNumber(mRow);
+        }
+        return mDiscNumber;
+    }
+
+    public void setDiscNumber(int discNumber) {
+        if (mStore != null) {
+            mStore.setDiscNumber(mRow, discNumber);
+        } else {
+            this.mDiscNumber = discNumber;
+        }
     }
 
     public int getYear() {
+        if (mStore != null) {
+            return mStore.getYear(mRow);
+        }
         return mYear;
     }
 
     public void setYear(int year) {
-        this.mYear = year;
+        if (mStore != null) {
+            mStore.setYear(mRow, year);
+        } else {
+            this.mYear = year;
+        }
     }
 
     public Resolver getResolver() {
+        if (mStore != null) {
+            return mStore.getResolver(mRow);
+        }
         return mResolver;
     }
 
@@ -211,34 +336,62 @@ public class Track implements TomahawkBaseAdapter.TomahawkListItem {
         } else {
             setLocal(true);
         }
-        this.mResolver = resolver;
+        if (mStore != null) {
+            mStore.setResolver(mRow, resolver);
+        } else {
+            this.mResolver = resolver;
+        }
     }
 
     public float getScore() {
+        if (mStore != null) {
+            return mStore.getScore(mRow);
+        }
         return mScore;
     }
 
     public void setScore(float score) {
-        this.mScore = score;
+        if (mStore != null) {
+            mStore.setScore(mRow, score);
+        } else {
+            this.mScore = score;
+        }
     }
 
     public String getPurchaseUrl() {
+        if (mStore != null) {
+            return mStore.getPurchaseUrl(mRow);
+        }
         return mPurchaseUrl;
     }
 
     public void setPurchaseUrl(String mPurchaseUrl) {
-        this.mPurchaseUrl = mPurchaseUrl;
+        if (mStore != null) {
+            mStore.setPurchaseUrl(mRow, mPurchaseUrl);
+        } else {
+            this.mPurchaseUrl = mPurchaseUrl;
+        }
     }
 
     public String getLinkUrl() {
+        if (mStore != null) {
+            return mStore.getLinkUrl(mRow);
+        }
         return mLinkUrl;
     }
 
     public void setLinkUrl(String mLinkUrl) {
-        this.mLinkUrl = mLinkUrl;
+        if (mStore != null) {
+            mStore.setLinkUrl(mRow, mLinkUrl);
+        } else {
+            this.mLinkUrl = mLinkUrl;
+        }
     }
 
     public boolean isResolved() {
+        if (mStore != null) {
+            return mStore.isResolved(mRow);
+        }
         return isResolved;
     }
 
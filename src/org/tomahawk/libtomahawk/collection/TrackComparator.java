@@ -17,6 +17,8 @@
  */
 package org.tomahawk.libtomahawk.collection;
 
+import org.tomahawk.libtomahawk.utils.TomahawkUtils;
+
 import java.util.Comparator;
 
 /**
@@ -30,7 +32,7 @@ public class TrackComparator implements Comparator<Track> {
 
     public static final int COMPARE_SCORE = 2;
 
-    private static int mFlag = COMPARE_DISCNUM;
+    private int mFlag = COMPARE_DISCNUM;
 
     public TrackComparator(int flag) {
         super();
@@ -42,12 +44,15 @@ public class TrackComparator implements Comparator<Track> {
         switch (mFlag) {
 
             case COMPARE_DISCNUM:
+                if (t1.getDiscNumber() != t2.getDiscNumber()) {
+                    return t1.getDiscNumber() < t2.getDiscNumber() ? -1 : 1;
+                }
                 Integer num1 = t1.getTrackNumber();
                 Integer num2 = t2.getTrackNumber();
                 return num1.compareTo(num2);
 
             case COMPARE_ALPHA:
-                return t1.getName().compareTo(t2.getName());
+                return TomahawkUtils.compareSortKeys(t1.getSortKey(), t2.getSortKey());
 
             case COMPARE_SCORE:
                 Float score1 = t1.getScore();
@@ -0,0 +1,1091 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.collection;
+
+import org.tomahawk.libtomahawk.resolver.Resolver;
+import org.tomahawk.libtomahawk.utils.TomahawkUtils;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A columnar store for the {@link Track}s of very large libraries. Instead of one full {@link
+ * Track} object per row, the data is kept in parallel primitive arrays. Names, paths and URLs are
+ * stored as references into a deduplicated string table (paths are split into directory and file
+ * name, so that every directory is stored only once), {@link Album}s and {@link Artist}s as
+ * references into small entity tables. {@link Track} objects are only created as lightweight
+ * flyweights over a row when somebody actually asks for them, and are dropped again as soon as
+ * nobody references them. All of their state is kept in the columns, so a flyweight, which is
+ * created again later on, looks exactly like the dropped one.
+ *
+ * Removed rows give up their strings and are reused by later rows, once no flyweight of them is
+ * left. Reads only take a shared lock, so they don't wait for each other, only for writes.
+ */
+public class TrackStore {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
+    private final Lock mReadLock = mLock.readLock();
+
+    private final Lock mWriteLock = mLock.writeLock();
+
+    private long[] mIds = new long[INITIAL_CAPACITY];
+
+    private long[] mDurations = new long[INITIAL_CAPACITY];
+
+    private int[] mTrackNumbers = new int[INITIAL_CAPACITY];
+
+    private int[] mDiscNumbers = new int[INITIAL_CAPACITY];
+
+    private int[] mYears = new int[INITIAL_CAPACITY];
+
+    private int[] mNames = new int[INITIAL_CAPACITY];
+
+    private int[] mDirectories = new int[INITIAL_CAPACITY];
+
+    private int[] mFileNames = new int[INITIAL_CAPACITY];
+
+    private int[] mLinkUrls = new int[INITIAL_CAPACITY];
+
+    private int[] mPurchaseUrls = new int[INITIAL_CAPACITY];
+
+    private int[] mAlbums = new int[INITIAL_CAPACITY];
+
+    private int[] mArtists = new int[INITIAL_CAPACITY];
+
+    private int[] mBitrates = new int[INITIAL_CAPACITY];
+
+    private int[] mSizes = new int[INITIAL_CAPACITY];
+
+    private float[] mScores = new float[INITIAL_CAPACITY];
+
+    private int[] mResolvers = new int[INITIAL_CAPACITY];
+
+    private int mSize;
+
+    // Rows are local by default, so only the remote ones are marked
+    private final BitSet mRemoteRows = new BitSet();
+
+    private final BitSet mResolvedRows = new BitSet();
+
+    private final BitSet mRemovedRows = new BitSet();
+
+    // Removed rows, which can be reused by the next added rows
+    private int[] mFreeRows = new int[16];
+
+    private int mFreeRowCount;
+
+    private final StringTable mStrings = new StringTable();
+
+    // The sort keys of the names by their index in the string table, computed on first use. Only
+    // accessed while holding mSortKeyLock, because it is filled in by readers.
+    private byte[][] mSortKeys = new byte[INITIAL_CAPACITY][];
+
+    private long mSortKeyByteCount;
+
+    private final Object mSortKeyLock = new Object();
+
+    private final EntityTable<Album> mAlbumTable = new EntityTable<Album>();
+
+    private final EntityTable<Artist> mArtistTable = new EntityTable<Artist>();
+
+    private final EntityTable<Resolver> mResolverTable = new EntityTable<Resolver>();
+
+    private final LongIntMap mRowsById = new LongIntMap();
+
+    // Only accessed while holding the lock of mFlyweights itself
+    private final HashMap<Integer, FlyweightReference> mFlyweights
+            = new HashMap<Integer, FlyweightReference>();
+
+    // Flyweights, which have been resolved by a Resolver, are kept reachable, so that they keep
+    // their identity while the resolved Track is being played
+    private final HashMap<Integer, Track> mPinnedFlyweights = new HashMap<Integer, Track>();
+
+    private final ReferenceQueue<Track> mFlyweightQueue = new ReferenceQueue<Track>();
+
+    private volatile List<Track> mSortedTracks;
+
+    /**
+     * Add a row to this store. If a row with the given id already exists, it is returned
+     * unchanged.
+     *
+     * @return the index of the row, negated and decremented by one if the row already existed
+     */
+    public int add(long id, String path, String name, long duration, int trackNumber,
+            Album album, Artist artist) {
+        mWriteLock.lock();
+        try {
+            int row = mRowsById.get(id);
+            if (row >= 0) {
+                return -row - 1;
+            }
+            row = takeFreeRow();
+            if (row < 0) {
+                ensureCapacity(mSize + 1);
+                row = mSize++;
+            }
+            mIds[row] = id;
+            mDirectories[row] = -1;
+            mFileNames[row] = -1;
+            setPathInternal(row, path);
+            mNames[row] = mStrings.put(name);
+            mLinkUrls[row] = -1;
+            mPurchaseUrls[row] = -1;
+            mDurations[row] = duration;
+            mTrackNumbers[row] = trackNumber;
+            mDiscNumbers[row] = 0;
+            mYears[row] = 0;
+            mAlbums[row] = mAlbumTable.put(album);
+            mArtists[row] = mArtistTable.put(artist);
+            mBitrates[row] = 0;
+            mSizes[row] = 0;
+            mScores[row] = 0f;
+            mResolvers[row] = -1;
+            mRemoteRows.clear(row);
+            mRemovedRows.clear(row);
+            mRowsById.put(id, row);
+            mSortedTracks = null;
+            return row;
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    /**
+     * @return the row of the {@link Track} with the given id, -1 if there is none
+     */
+    public int getRow(long id) {
+        mReadLock.lock();
+        try {
+            return mRowsById.get(id);
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    /**
+     * Remove the row of the {@link Track} with the given id. The row is kept as a tombstone, so
+     * that the indexes of all other rows stay valid. As soon as no flyweight of it is left, its
+     * strings are released and the row is reused by a later row.
+     *
+     * @return whether or not a row has been removed
+     */
+    public boolean remove(long id) {
+        mWriteLock.lock();
+        try {
+            int row = mRowsById.get(id);
+            if (row < 0) {
+                return false;
+            }
+            mRowsById.remove(id);
+            mRemovedRows.set(row);
+            mFreeRows = ensureCapacity(mFreeRows, mFreeRowCount + 1);
+            mFreeRows[mFreeRowCount++] = row;
+            synchronized (mFlyweights) {
+                mPinnedFlyweights.remove(row);
+            }
+            mSortedTracks = null;
+            return true;
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    /**
+     * @return whether or not the given row has been removed
+     */
+    public boolean isRemoved(int row) {
+        mReadLock.lock();
+        try {
+            return mRemovedRows.get(row);
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of rows in this store, which have not been removed
+     */
+    public int size() {
+        mReadLock.lock();
+        try {
+            return mSize - mRemovedRows.cardinality();
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of rows in this store, including removed ones
+     */
+    public int getRowCount() {
+        mReadLock.lock();
+        try {
+            return mSize;
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    /**
+     * Compact this store after a scan. The strings of all removed rows, which no flyweight refers
+     * to anymore, are released. The lookup index of the string table is dropped, it is only needed
+     * to deduplicate new strings and is rebuilt by the next write, which needs it.
+     */
+    public void trimToSize() {
+        mWriteLock.lock();
+        try {
+            synchronized (mFlyweights) {
+                purgeFlyweights();
+                for (int i = 0; i < mFreeRowCount; i++) {
+                    if (!mFlyweights.containsKey(mFreeRows[i])) {
+                        releaseRow(mFreeRows[i]);
+                    }
+                }
+            }
+            mStrings.dropIndex();
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    /**
+     * Get the {@link Track} flyweight for the given row. As long as a flyweight is referenced,
+     * the same instance is returned for the same row.
+     */
+    public Track getTrack(int row) {
+        mReadLock.lock();
+        try {
+            synchronized (mFlyweights) {
+                purgeFlyweights();
+                FlyweightReference reference = mFlyweights.get(row);
+                Track track = reference != null ? reference.get() : null;
+                if (track == null) {
+                    track = new Track(this, row);
+                    mFlyweights.put(row, new FlyweightReference(row, track, mFlyweightQueue));
+                }
+                return track;
+            }
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    /**
+     * @return a read-only view of all {@link Track}s in this store, sorted alphabetically. The
+     *         flyweights are only created when an item of the view is accessed.
+     */
+    public List<Track> getSortedTracks() {
+        mReadLock.lock();
+        try {
+            // Writes wait for the read lock, so nothing can invalidate the list while sorting
+            List<Track> sortedTracks = mSortedTracks;
+            if (sortedTracks == null) {
+                final byte[][] sortKeys = new byte[mSize][];
+                Integer[] rows = new Integer[mSize - mRemovedRows.cardinality()];
+                int count = 0;
+                for (int i = 0; i < mSize; i++) {
+                    if (!mRemovedRows.get(i)) {
+                        sortKeys[i] = getSortKeyInternal(i);
+                        rows[count++] = i;
+                    }
+                }
+                Arrays.sort(rows, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer row1, Integer row2) {
+                        return TomahawkUtils.compareSortKeys(sortKeys[row1], sortKeys[row2]);
+                    }
+                });
+                int[] sortedRows = new int[rows.length];
+                for (int i = 0; i < rows.length; i++) {
+                    sortedRows[i] = rows[i];
+                }
+                sortedTracks = Collections.unmodifiableList(new RowList(sortedRows));
+                mSortedTracks = sortedTracks;
+            }
+            return sortedTracks;
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    /**
+     * @return a list of flyweights for the given rows, skipping removed ones
+     */
+    public List<Track> getTracks(int[] rows, int count) {
+        mReadLock.lock();
+        try {
+            ArrayList<Track> tracks = new ArrayList<Track>(count);
+            for (int i = 0; i < count; i++) {
+                if (!mRemovedRows.get(rows[i])) {
+                    tracks.add(getTrack(rows[i]));
+                }
+            }
+            return tracks;
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    public long getId(int row) {
+        mReadLock.lock();
+        try {
+            return mIds[row];
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    public String getName(int row) {
+        mReadLock.lock();
+        try {
+            return mStrings.get(mNames[row]);
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    /**
+     * @return the sort key of the name of the given row. It is only computed once for every
+     *         distinct name, which saves flyweights from computing it on every call.
+     */
+    public byte[] getSortKey(int row) {
+        mReadLock.lock();
+        try {
+            return getSortKeyInternal(row);
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    public void setName(int row, String name) {
+        mWriteLock.lock();
+        try {
+            int oldName = mNames[row];
+            mNames[row] = mStrings.put(name);
+            releaseString(oldName);
+            mSortedTracks = null;
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    public String getPath(int row) {
+        mReadLock.lock();
+        try {
+            String directory = mStrings.get(mDirectories[row]);
+            String fileName = mStrings.get(mFileNames[row]);
+            if (directory == null) {
+                return fileName;
+            }
+            return directory + fileName;
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    public void setPath(int row, String path) {
+        mWriteLock.lock();
+        try {
+            setPathInternal(row, path);
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    /**
+     * @return whether or not the given row has ever been given a path
+     */
+    public boolean isResolved(int row) {
+        mReadLock.lock();
+        try {
+            return mResolvedRows.get(row);
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    public String getLinkUrl(int row) {
+        mReadLock.lock();
+        try {
+            return mStrings.get(mLinkUrls[row]);
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    public void setLinkUrl(int row, String linkUrl) {
+        mWriteLock.lock();
+        try {
+            int oldLinkUrl = mLinkUrls[row];
+            mLinkUrls[row] = mStrings.put(linkUrl);
+            releaseString(oldLinkUrl);
+            pinFlyweight(row);
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    public String getPurchaseUrl(int row) {
+        mReadLock.lock();
+        try {
+            return mStrings.get(mPurchaseUrls[row]);
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    public void setPurchaseUrl(int row, String purchaseUrl) {
+        mWriteLock.lock();
+        try {
+            int oldPurchaseUrl = mPurchaseUrls[row];
+            mPurchaseUrls[row] = mStrings.put(purchaseUrl);
+            releaseString(oldPurchaseUrl);
+            pinFlyweight(row);
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    public long getDuration(int row) {
+        mReadLock.lock();
+        try {
+            return mDurations[row];
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    public void setDuration(int row, long duration) {
+        mWriteLock.lock();
+        try {
+            mDurations[row] = duration;
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    public int getTrackNumber(int row) {
+        mReadLock.lock();
+        try {
+            return mTrackNumbers[row];
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    public void setTrackNumber(int row, int trackNumber) {
+        mWriteLock.lock();
+        try {
+            mTrackNumbers[row] = trackNumber;
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    public int getDiscNumber(int row) {
+        mReadLock.lock();
+        try {
+            return mDiscNumbers[row];
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    public void setDiscNumber(int row, int discNumber) {
+        mWriteLock.lock();
+        try {
+            mDiscNumbers[row] = discNumber;
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    public int getYear(int row) {
+        mReadLock.lock();
+        try {
+            return mYears[row];
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    public void setYear(int row, int year) {
+        mWriteLock.lock();
+        try {
+            mYears[row] = year;
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    public Album getAlbum(int row) {
+        mReadLock.lock();
+        try {
+            return mAlbumTable.get(mAlbums[row]);
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    public void setAlbum(int row, Album album) {
+        mWriteLock.lock();
+        try {
+            mAlbums[row] = mAlbumTable.put(album);
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    public Artist getArtist(int row) {
+        mReadLock.lock();
+        try {
+            return mArtistTable.get(mArtists[row]);
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    public void setArtist(int row, Artist artist) {
+        mWriteLock.lock();
+        try {
+            mArtists[row] = mArtistTable.put(artist);
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    public int getBitrate(int row) {
+        mReadLock.lock();
+        try {
+            return mBitrates[row];
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    public void setBitrate(int row, int bitrate) {
+        mWriteLock.lock();
+        try {
+            mBitrates[row] = bitrate;
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    public int getSize(int row) {
+        mReadLock.lock();
+        try {
+            return mSizes[row];
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    public void setSize(int row, int size) {
+        mWriteLock.lock();
+        try {
+            mSizes[row] = size;
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    public float getScore(int row) {
+        mReadLock.lock();
+        try {
+            return mScores[row];
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    public void setScore(int row, float score) {
+        mWriteLock.lock();
+        try {
+            mScores[row] = score;
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    public boolean isLocal(int row) {
+        mReadLock.lock();
+        try {
+            return !mRemoteRows.get(row);
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    public void setLocal(int row, boolean isLocal) {
+        mWriteLock.lock();
+        try {
+            mRemoteRows.set(row, !isLocal);
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    public Resolver getResolver(int row) {
+        mReadLock.lock();
+        try {
+            return mResolverTable.get(mResolvers[row]);
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    public void setResolver(int row, Resolver resolver) {
+        mWriteLock.lock();
+        try {
+            mResolvers[row] = mResolverTable.put(resolver);
+            pinFlyweight(row);
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    /**
+     * @return a rough estimate of the heap used by this store in bytes
+     */
+    public long getEstimatedSize() {
+        mReadLock.lock();
+        try {
+            synchronized (mSortKeyLock) {
+                return (long) mIds.length * (8 + 8 + 4 * 14) + mStrings.getEstimatedSize()
+                        + mRowsById.getEstimatedSize() + mSortKeys.length * 4L
+                        + mSortKeyByteCount;
+            }
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    /**
+     * Has to be called while holding the read or the write lock
+     */
+    private byte[] getSortKeyInternal(int row) {
+        int name = mNames[row];
+        if (name < 0) {
+            return TomahawkUtils.getSortKey(null);
+        }
+        synchronized (mSortKeyLock) {
+            if (name >= mSortKeys.length) {
+                mSortKeys = Arrays.copyOf(mSortKeys, Math.max(name + 1, mSortKeys.length * 2));
+            }
+            if (mSortKeys[name] == null) {
+                mSortKeys[name] = TomahawkUtils.getSortKey(mStrings.get(name));
+                mSortKeyByteCount += mSortKeys[name].length;
+            }
+            return mSortKeys[name];
+        }
+    }
+
+    /**
+     * Drop one reference to the string with the given index. If the string is freed, its cached
+     * sort key is dropped as well, because the index is reused. Has to be called while holding
+     * the write lock.
+     */
+    private void releaseString(int index) {
+        if (mStrings.release(index)) {
+            synchronized (mSortKeyLock) {
+                if (index < mSortKeys.length && mSortKeys[index] != null) {
+                    mSortKeyByteCount -= mSortKeys[index].length;
+                    mSortKeys[index] = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Release the strings of the given removed row. Has to be called while holding the write
+     * lock.
+     */
+    private void releaseRow(int row) {
+        releaseString(mNames[row]);
+        releaseString(mDirectories[row]);
+        releaseString(mFileNames[row]);
+        releaseString(mLinkUrls[row]);
+        releaseString(mPurchaseUrls[row]);
+        mNames[row] = -1;
+        mDirectories[row] = -1;
+        mFileNames[row] = -1;
+        mLinkUrls[row] = -1;
+        mPurchaseUrls[row] = -1;
+        mResolvedRows.clear(row);
+    }
+
+    private void setPathInternal(int row, String path) {
+        int oldDirectory = mDirectories[row];
+        int oldFileName = mFileNames[row];
+        if (path == null) {
+            mDirectories[row] = -1;
+            mFileNames[row] = -1;
+        } else {
+            int separator = path.lastIndexOf('/') + 1;
+            mDirectories[row] = separator > 0 ? mStrings.put(path.substring(0, separator)) : -1;
+            mFileNames[row] = mStrings.put(path.substring(separator));
+            if (path.length() > 0) {
+                mResolvedRows.set(row);
+            }
+        }
+        releaseString(oldDirectory);
+        releaseString(oldFileName);
+    }
+
+    /**
+     * @return a removed row, which no flyweight refers to anymore and whose strings have been
+     *         released, or -1 if there is none. Has to be called while holding the write lock.
+     */
+    private int takeFreeRow() {
+        synchronized (mFlyweights) {
+            purgeFlyweights();
+            for (int i = mFreeRowCount - 1; i >= 0; i--) {
+                int row = mFreeRows[i];
+                if (!mFlyweights.containsKey(row)) {
+                    mFreeRows[i] = mFreeRows[--mFreeRowCount];
+                    releaseRow(row);
+                    return row;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Keep the flyweight of the given row reachable, if there is one. Has to be called while
+     * holding the write lock.
+     */
+    private void pinFlyweight(int row) {
+        synchronized (mFlyweights) {
+            FlyweightReference reference = mFlyweights.get(row);
+            Track track = reference != null ? reference.get() : null;
+            if (track != null) {
+                mPinnedFlyweights.put(row, track);
+            }
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mIds.length) {
+            int newCapacity = Math.max(capacity, mIds.length * 2);
+            mIds = Arrays.copyOf(mIds, newCapacity);
+            mDurations = Arrays.copyOf(mDurations, newCapacity);
+            mTrackNumbers = Arrays.copyOf(mTrackNumbers, newCapacity);
+            mDiscNumbers = Arrays.copyOf(mDiscNumbers, newCapacity);
+            mYears = Arrays.copyOf(mYears, newCapacity);
+            mNames = Arrays.copyOf(mNames, newCapacity);
+            mDirectories = Arrays.copyOf(mDirectories, newCapacity);
+            mFileNames = Arrays.copyOf(mFileNames, newCapacity);
+            mLinkUrls = Arrays.copyOf(mLinkUrls, newCapacity);
+            mPurchaseUrls = Arrays.copyOf(mPurchaseUrls, newCapacity);
+            mAlbums = Arrays.copyOf(mAlbums, newCapacity);
+            mArtists = Arrays.copyOf(mArtists, newCapacity);
+            mBitrates = Arrays.copyOf(mBitrates, newCapacity);
+            mSizes = Arrays.copyOf(mSizes, newCapacity);
+            mScores = Arrays.copyOf(mScores, newCapacity);
+            mResolvers = Arrays.copyOf(mResolvers, newCapacity);
+        }
+    }
+
+    private static int[] ensureCapacity(int[] array, int capacity) {
+        if (array.length >= capacity) {
+            return array;
+        }
+        return Arrays.copyOf(array, Math.max(capacity, array.length * 2));
+    }
+
+    /**
+     * Remove the map entries of all flyweights, which have been garbage collected. Has to be
+     * called while holding the lock of mFlyweights.
+     */
+    private void purgeFlyweights() {
+        FlyweightReference reference;
+        while ((reference = (FlyweightReference) mFlyweightQueue.poll()) != null) {
+            if (mFlyweights.get(reference.mRow) == reference) {
+                mFlyweights.remove(reference.mRow);
+            }
+        }
+    }
+
+    private static class FlyweightReference extends WeakReference<Track> {
+
+        private final int mRow;
+
+        FlyweightReference(int row, Track track, ReferenceQueue<Track> queue) {
+            super(track, queue);
+            mRow = row;
+        }
+    }
+
+    /**
+     * A list view over the given rows, which creates the flyweights on access
+     */
+    private class RowList extends AbstractList<Track> implements RandomAccess {
+
+        private final int[] mRows;
+
+        RowList(int[] rows) {
+            mRows = rows;
+        }
+
+        @Override
+        public Track get(int location) {
+            return getTrack(mRows[location]);
+        }
+
+        @Override
+        public int size() {
+            return mRows.length;
+        }
+    }
+
+    /**
+     * A table of deduplicated, reference counted strings. Every distinct string is stored only
+     * once and referenced by its index. The index of a string, which isn't referenced anymore, is
+     * reused for the next new string. The lookup index is only needed to add strings, so it can be
+     * dropped, while no strings are added, and is rebuilt on demand.
+     */
+    private static class StringTable {
+
+        private String[] mStrings = new String[INITIAL_CAPACITY];
+
+        private int[] mReferenceCounts = new int[INITIAL_CAPACITY];
+
+        private int mCount;
+
+        private int[] mFreeIndexes = new int[16];
+
+        private int mFreeIndexCount;
+
+        private HashMap<String, Integer> mIndexes = new HashMap<String, Integer>();
+
+        private long mCharCount;
+
+        int put(String string) {
+            if (string == null) {
+                return -1;
+            }
+            HashMap<String, Integer> indexes = getIndexes();
+            Integer index = indexes.get(string);
+            if (index == null) {
+                if (mFreeIndexCount > 0) {
+                    index = mFreeIndexes[--mFreeIndexCount];
+                } else {
+                    index = mCount++;
+                    if (index == mStrings.length) {
+                        mStrings = Arrays.copyOf(mStrings, index * 2);
+                        mReferenceCounts = Arrays.copyOf(mReferenceCounts, index * 2);
+                    }
+                }
+                mStrings[index] = string;
+                indexes.put(string, index);
+                mCharCount += string.length();
+            }
+            mReferenceCounts[index]++;
+            return index;
+        }
+
+        /**
+         * Drop one reference to the string with the given index. The string is freed, once it
+         * isn't referenced anymore.
+         *
+         * @return whether or not the string has been freed
+         */
+        boolean release(int index) {
+            if (index < 0 || --mReferenceCounts[index] > 0) {
+                return false;
+            }
+            String string = mStrings[index];
+            mStrings[index] = null;
+            if (mIndexes != null) {
+                mIndexes.remove(string);
+            }
+            mCharCount -= string.length();
+            mFreeIndexes = ensureCapacity(mFreeIndexes, mFreeIndexCount + 1);
+            mFreeIndexes[mFreeIndexCount++] = index;
+            return true;
+        }
+
+        String get(int index) {
+            return index < 0 ? null : mStrings[index];
+        }
+
+        void dropIndex() {
+            mIndexes = null;
+        }
+
+        long getEstimatedSize() {
+            return mCharCount * 2 + mCount * 48L + (mIndexes != null ? mIndexes.size() * 48L : 0);
+        }
+
+        private HashMap<String, Integer> getIndexes() {
+            if (mIndexes == null) {
+                mIndexes = new HashMap<String, Integer>(mCount * 4 / 3 + 1);
+                for (int i = 0; i < mCount; i++) {
+                    if (mStrings[i] != null) {
+                        mIndexes.put(mStrings[i], i);
+                    }
+                }
+            }
+            return mIndexes;
+        }
+    }
+
+    /**
+     * A table of deduplicated entities, referenced by their index
+     */
+    private static class EntityTable<T> {
+
+        private final ArrayList<T> mEntities = new ArrayList<T>();
+
+        private final HashMap<T, Integer> mIndexes = new HashMap<T, Integer>();
+
+        int put(T entity) {
+            if (entity == null) {
+                return -1;
+            }
+            Integer index = mIndexes.get(entity);
+            if (index == null) {
+                index = mEntities.size();
+                mEntities.add(entity);
+                mIndexes.put(entity, index);
+            }
+            return index;
+        }
+
+        T get(int index) {
+            return index < 0 ? null : mEntities.get(index);
+        }
+    }
+
+    /**
+     * A minimal open addressing hash map from long keys to int values, which avoids boxing every
+     * track id.
+     */
+    private static class LongIntMap {
+
+        private long[] mKeys = new long[INITIAL_CAPACITY * 2];
+
+        private int[] mValues = new int[INITIAL_CAPACITY * 2];
+
+        private boolean[] mUsed = new boolean[INITIAL_CAPACITY * 2];
+
+        private int mCount;
+
+        int get(long key) {
+            int mask = mKeys.length - 1;
+            int index = hash(key) & mask;
+            while (mUsed[index]) {
+                if (mKeys[index] == key) {
+                    return mValues[index];
+                }
+                index = (index + 1) & mask;
+            }
+            return -1;
+        }
+
+        void put(long key, int value) {
+            if ((mCount + 1) * 2 > mKeys.length) {
+                rehash(mKeys.length * 2);
+            }
+            int mask = mKeys.length - 1;
+            int index = hash(key) & mask;
+            while (mUsed[index]) {
+                if (mKeys[index] == key) {
+                    mValues[index] = value;
+                    return;
+                }
+                index = (index + 1) & mask;
+            }
+            mUsed[index] = true;
+            mKeys[index] = key;
+            mValues[index] = value;
+            mCount++;
+        }
+
+        /**
+         * Remove the given key. The following entries of its probe sequence are shifted back, so
+         * that no tombstones are needed.
+         */
+        void remove(long key) {
+            int mask = mKeys.length - 1;
+            int index = hash(key) & mask;
+            while (mUsed[index] && mKeys[index] != key) {
+                index = (index + 1) & mask;
+            }
+            if (!mUsed[index]) {
+                return;
+            }
+            mUsed[index] = false;
+            mCount--;
+            int next = (index + 1) & mask;
+            while (mUsed[next]) {
+                int home = hash(mKeys[next]) & mask;
+                // Move the entry into the gap, unless its home lies cyclically in (gap, next]
+                if (index <= next ? (home <= index || home > next)
+                        : (home <= index && home > next)) {
+                    mKeys[index] = mKeys[next];
+                    mValues[index] = mValues[next];
+                    mUsed[index] = true;
+                    mUsed[next] = false;
+                    index = next;
+                }
+                next = (next + 1) & mask;
+            }
+        }
+
+        long getEstimatedSize() {
+            return mKeys.length * 13L;
+        }
+
+        private void rehash(int capacity) {
+            long[] oldKeys = mKeys;
+            int[] oldValues = mValues;
+            boolean[] oldUsed = mUsed;
+            mKeys = new long[capacity];
+            mValues = new int[capacity];
+            mUsed = new boolean[capacity];
+            mCount = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldUsed[i]) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int hash(long key) {
+            int hash = (int) (key ^ (key >>> 32));
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
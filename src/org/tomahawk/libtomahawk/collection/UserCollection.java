@@ -18,21 +18,31 @@
  */
 package org.tomahawk.libtomahawk.collection;
 
+import org.tomahawk.libtomahawk.database.DatabaseExecutor;
 import org.tomahawk.libtomahawk.database.UserPlaylistsDataSource;
+import org.tomahawk.libtomahawk.utils.CoalescingRunner;
 import org.tomahawk.tomahawk_android.TomahawkApp;
 
-import android.content.ContentResolver;
 import android.content.Intent;
 import android.database.ContentObserver;
-import android.database.Cursor;
+import android.database.SQLException;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.provider.MediaStore;
+import android.text.TextUtils;
+import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class UserCollection extends Collection {
 
@@ -45,9 +55,26 @@ public class UserCollection extends Collection {
     public static final String USERCOLLECTION_PLAYLISTCACHED
             = "org.tomahawk.libtomahawk.USERCOLLECTION_PLAYLISTCACHED";
 
+    private static final String TAG = UserCollection.class.getName();
+
     public static final int Id = 0;
 
-    private UserPlaylistsDataSource mUserPlaylistsDataSource;
+    private static final long UPDATE_DEBOUNCE_DELAY = 1000;
+
+    private static final long UPDATE_MAX_LATENCY = 5000;
+
+    private static final int TRACK_PAGE_SIZE = 500;
+
+    // The number of times the pages of a playlist are read again, if it changed in between
+    private static final int TRACK_LOAD_ATTEMPTS = 3;
+
+    // The number of files, whose tags are parsed in one go by the background tag pass
+    private static final int TAG_PASS_CHUNK_SIZE = 64;
+
+    // The delay in ms before the tag pass starts, so that it doesn't compete with the startup
+    private static final long TAG_PASS_DELAY = 3000;
+
+    private TomahawkApp mTomahawkApp;
 
     private HandlerThread mCollectionUpdateHandlerThread;
 
@@ -63,11 +90,59 @@ public class UserCollection extends Collection {
 
     private ConcurrentHashMap<Long, Track> mTracks = new ConcurrentHashMap<Long, Track>();
 
+    /**
+     * A sorted snapshot of all tracks, tagged with the track generation it has been built from
+     */
+    private static class SortedTracks {
+
+        final long generation;
+
+        final List<Track> tracks;
+
+        SortedTracks(long generation, List<Track> tracks) {
+            this.generation = generation;
+            this.tracks = tracks;
+        }
+    }
+
+    private volatile SortedTracks mSortedTracks;
+
+    // Increased whenever tracks have been added, removed or changed, which outdates mSortedTracks
+    private final AtomicLong mTrackGeneration = new AtomicLong();
+
+    /**
+     * Holds the tracks of very large libraries in a columnar layout, see {@link TrackStore}
+     */
+    private TrackStore mTrackStore = new TrackStore();
+
     private CustomPlaylist mCachedCustomPlaylist;
 
+    private volatile Playlist mPlayingPlaylist;
+
     private ConcurrentHashMap<Long, CustomPlaylist> mCustomPlaylists
             = new ConcurrentHashMap<Long, CustomPlaylist>();
 
+    private CoalescingRunner mUpdateRunner;
+
+    private long mVersion;
+
+    /**
+     * The paths of all tracks by their ids, whose tags still have to be parsed by the tag pass.
+     * Only ever accessed on the update thread.
+     */
+    private final LinkedHashMap<Long, String> mUntaggedTracks = new LinkedHashMap<Long, String>();
+
+    private final Runnable mTagPassRunnable = new Runnable() {
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Runnable#run()
+         */
+        @Override
+        public void run() {
+            parseUntaggedTracks();
+        }
+    };
+
     private Runnable mUpdateRunnable = new Runnable() {
         /* 
          * (non-Javadoc)
@@ -75,8 +150,48 @@ public class UserCollection extends Collection {
          */
         @Override
         public void run() {
+            long startTime = System.currentTimeMillis();
             update();
-            mCollectionUpdateHandlerThread.getLooper().quit();
+            Log.d(TAG, "Collection updated in " + (System.currentTimeMillis() - startTime)
+                    + "ms, " + mUpdateRunner.getRequestCount() + " update requests coalesced into "
+                    + mUpdateRunner.getRunCount() + " updates");
+        }
+    };
+
+    /**
+     * Loads the tracks of a playlist header page by page in a single database read. Every page is
+     * a short query, so that a huge playlist doesn't block the writer, and nothing ever waits for
+     * the database. The pages of one playlist only fit together if it hasn't been changed in
+     * between, so all of them are read again, if its track version changed while reading them.
+     * Albums and artists are shared between all pages.
+     */
+    private CustomPlaylist.TrackLoader mTrackLoader = new CustomPlaylist.TrackLoader() {
+        @Override
+        public void loadTracks(final CustomPlaylist customPlaylist) {
+            final long playlistId = customPlaylist.getId();
+            final long startTime = System.currentTimeMillis();
+            mTomahawkApp.getDatabaseExecutor().read(new DatabaseExecutor.Task<ArrayList<Track>>() {
+                @Override
+                public ArrayList<Track> run(UserPlaylistsDataSource userPlaylistsDataSource) {
+                    try {
+                        return loadTracks(userPlaylistsDataSource, playlistId);
+                    } catch (SQLException e) {
+                        Log.e(TAG, "loadTracks: " + e.getClass() + ": "
+                                + e.getLocalizedMessage());
+                        return null;
+                    }
+                }
+            }, new DatabaseExecutor.Callback<ArrayList<Track>>() {
+                @Override
+                public void onResult(ArrayList<Track> tracks) {
+                    if (tracks != null) {
+                        Log.d(TAG, "loadTracks: loaded " + tracks.size() + " tracks of playlist "
+                                + playlistId + " in " + (System.currentTimeMillis() - startTime)
+                                + "ms");
+                    }
+                    customPlaylist.onTracksLoaded(tracks);
+                }
+            });
         }
     };
 
@@ -90,8 +205,7 @@ public class UserCollection extends Collection {
          */
         @Override
         public void onChange(boolean selfChange) {
-            mCollectionUpdateHandlerThread.start();
-            mHandler.post(mUpdateRunnable);
+            requestUpdate();
         }
     };
 
@@ -99,19 +213,30 @@ public class UserCollection extends Collection {
      * Construct a new UserCollection and initialize.
      */
     public UserCollection(TomahawkApp tomahawkApp) {
-        mUserPlaylistsDataSource = new UserPlaylistsDataSource(tomahawkApp,
-                tomahawkApp.getPipeLine());
-
-        TomahawkApp.getContext().getContentResolver()
-                .registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, false,
-                        mLocalMediaObserver);
+        mTomahawkApp = tomahawkApp;
 
         mCollectionUpdateHandlerThread = new HandlerThread("CollectionUpdate",
                 android.os.Process.THREAD_PRIORITY_BACKGROUND);
         mCollectionUpdateHandlerThread.start();
 
         mHandler = new Handler(mCollectionUpdateHandlerThread.getLooper());
-        mHandler.postDelayed(mUpdateRunnable, 300);
+        mUpdateRunner = new CoalescingRunner(mHandler, mUpdateRunnable, UPDATE_DEBOUNCE_DELAY,
+                UPDATE_MAX_LATENCY);
+        mUpdateRunner.request(300);
+
+        TomahawkApp.getContext().getContentResolver()
+                .registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, false,
+                        mLocalMediaObserver);
+    }
+
+    /**
+     * Request an update of this {@link UserCollection}. Bursts of requests, like the ones caused
+     * by a media scan, are coalesced, so that only one update is in flight and at most one more is
+     * pending at any time. Other sync paths should go through this method as well, so that their
+     * updates are merged with the ones triggered by the MediaStore.
+     */
+    public void requestUpdate() {
+        mUpdateRunner.request();
     }
 
     /* 
@@ -212,6 +337,55 @@ public class UserCollection extends Collection {
         mCustomPlaylists.put(playlistId, customPlaylist);
     }
 
+    /**
+     * Read all tracks of the playlist with the given id page by page. If the track version of the
+     * playlist changes while the pages are read, they are read again, up to TRACK_LOAD_ATTEMPTS
+     * times. After that the tracks of the last attempt are returned, the changed header makes
+     * the next update replace them anyway.
+     */
+    private static ArrayList<Track> loadTracks(UserPlaylistsDataSource userPlaylistsDataSource,
+            long playlistId) {
+        ArrayList<Track> tracks = null;
+        for (int attempt = 0; attempt < TRACK_LOAD_ATTEMPTS; attempt++) {
+            long trackVersion = userPlaylistsDataSource.getTrackVersion(playlistId);
+            HashMap<Long, Album> albums = new HashMap<Long, Album>();
+            HashMap<Long, Artist> artists = new HashMap<Long, Artist>();
+            tracks = new ArrayList<Track>();
+            ArrayList<Track> page;
+            do {
+                page = userPlaylistsDataSource.getUserPlaylistTracks(playlistId, tracks.size(),
+                        TRACK_PAGE_SIZE, albums, artists);
+                tracks.addAll(page);
+            } while (page.size() == TRACK_PAGE_SIZE);
+            if (userPlaylistsDataSource.getTrackVersion(playlistId) == trackVersion) {
+                break;
+            }
+        }
+        return tracks;
+    }
+
+    /**
+     * Set the playlist, which the PlaybackService is currently playing, so that its tracks are
+     * never evicted from memory.
+     */
+    public void setPlayingPlaylist(Playlist playlist) {
+        mPlayingPlaylist = playlist;
+    }
+
+    /**
+     * Drop the tracks of all user playlists from memory, except for the one currently being
+     * played. They are loaded again, once they are accessed the next time.
+     */
+    public void evictCustomPlaylistTracks() {
+        int evicted = 0;
+        for (CustomPlaylist customPlaylist : mCustomPlaylists.values()) {
+            if (customPlaylist != mPlayingPlaylist && customPlaylist.evictTracks()) {
+                evicted++;
+            }
+        }
+        Log.d(TAG, "evictCustomPlaylistTracks: evicted the tracks of " + evicted + " playlists");
+    }
+
     /**
      * Store the PlaybackService's currentPlaylist
      */
@@ -232,9 +406,41 @@ public class UserCollection extends Collection {
      */
     @Override
     public List<Track> getTracks() {
-        ArrayList<Track> tracks = new ArrayList<Track>(mTracks.values());
-        Collections.sort(tracks, new TrackComparator(TrackComparator.COMPARE_ALPHA));
-        return tracks;
+        return new ArrayList<Track>(getTrackList());
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.tomahawk.libtomahawk.Collection#getTrackList()
+     */
+    @Override
+    public List<Track> getTrackList() {
+        // Read the generation first, so that a snapshot built while the update thread changes the
+        // tracks is tagged with the old generation and never used after the change
+        long generation = mTrackGeneration.get();
+        SortedTracks snapshot = mSortedTracks;
+        List<Track> sortedTracks;
+        if (snapshot != null && snapshot.generation == generation) {
+            sortedTracks = snapshot.tracks;
+        } else {
+            if (mTracks.isEmpty()) {
+                sortedTracks = mTrackStore.getSortedTracks();
+            } else {
+                Track[] tracks = mTracks.values().toArray(new Track[mTracks.size()]);
+                if (mTrackStore.size() > 0) {
+                    List<Track> storedTracks = mTrackStore.getSortedTracks();
+                    int offset = tracks.length;
+                    tracks = Arrays.copyOf(tracks, offset + storedTracks.size());
+                    for (int i = 0; i < storedTracks.size(); i++) {
+                        tracks[offset + i] = storedTracks.get(i);
+                    }
+                }
+                Arrays.sort(tracks, new TrackComparator(TrackComparator.COMPARE_ALPHA));
+                sortedTracks = Collections.unmodifiableList(Arrays.asList(tracks));
+            }
+            mSortedTracks = new SortedTracks(generation, sortedTracks);
+        }
+        return sortedTracks;
     }
 
     /* 
@@ -243,7 +449,14 @@ public class UserCollection extends Collection {
      */
     @Override
     public Track getTrackById(Long id) {
-        return mTracks.get(id);
+        Track track = mTracks.get(id);
+        if (track == null) {
+            int row = mTrackStore.getRow(id);
+            if (row >= 0) {
+                track = mTrackStore.getTrack(row);
+            }
+        }
+        return track;
     }
 
     /* 
@@ -256,103 +469,147 @@ public class UserCollection extends Collection {
     }
 
     /**
-     * Initialize Tracks.
+     * Initialize Tracks and record all changes in the given {@link CollectionDelta}.
      */
-    private void initializeCollection() {
-        updateUserPlaylists();
-
-        String selection = MediaStore.Audio.Media.IS_MUSIC + " != 0";
-
-        String[] projection = {MediaStore.Audio.Media._ID, MediaStore.Audio.Media.DATA,
-                MediaStore.Audio.Media.TITLE, MediaStore.Audio.Media.DURATION,
-                MediaStore.Audio.Media.TRACK, MediaStore.Audio.Media.ARTIST_ID,
-                MediaStore.Audio.Media.ARTIST, MediaStore.Audio.Media.ALBUM_ID,
-                MediaStore.Audio.Media.ALBUM};
-
-        ContentResolver resolver = TomahawkApp.getContext().getContentResolver();
-
-        Cursor cursor = resolver
-                .query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, projection, selection, null,
-                        null);
-
-        while (cursor != null && cursor.moveToNext()) {
-            Artist artist = mArtists.get(cursor.getLong(5));
-            if (artist == null) {
-                artist = Artist.get(cursor.getLong(5));
-                artist.setName(cursor.getString(6));
-
-                mArtists.put(artist.getId(), artist);
-            }
-
-            Album album = mAlbums.get(cursor.getLong(7));
-            if (album == null) {
-                album = Album.get(cursor.getLong(7));
-                album.setName(cursor.getString(8));
-
-                String albumsel = MediaStore.Audio.Albums._ID + " == " + Long
-                        .toString(album.getId());
-
-                String[] albumproj = {MediaStore.Audio.Albums.ALBUM_ART,
-                        MediaStore.Audio.Albums.FIRST_YEAR, MediaStore.Audio.Albums.LAST_YEAR};
-
-                Cursor albumcursor = resolver
-                        .query(MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI, albumproj, albumsel,
-                                null, null);
-
-                if (albumcursor != null && albumcursor.moveToNext()) {
-
-                    album.setAlbumArtPath(albumcursor.getString(0));
-                    album.setFirstYear(albumcursor.getString(1));
-                    album.setLastYear(albumcursor.getString(2));
-
-                    mAlbums.put(album.getId(), album);
-                }
-
-                if (albumcursor != null) {
-                    albumcursor.close();
-                }
-            }
-
-            Track track = mTracks.get(cursor.getLong(0));
-            if (track == null) {
-                track = Track.get(cursor.getLong(0));
-                track.setPath(cursor.getString(1));
-                track.setName(cursor.getString(2));
-                track.setDuration(cursor.getLong(3));
-                track.setTrackNumber(cursor.getInt(4));
-                track.setLocal(true);
-
-                mTracks.put(track.getId(), track);
-            }
-
-            artist.addAlbum(album);
-            artist.addTrack(track);
-
-            album.addTrack(track);
-            album.setArtist(artist);
+    private void initializeCollection(CollectionDelta delta) {
+        updateUserPlaylists(delta);
+
+        IngestionPipeline ingestionPipeline = new IngestionPipeline(
+                TomahawkApp.getContext().getContentResolver(), mArtists, mAlbums, mTracks,
+                mTrackStore, delta);
+        ingestionPipeline.setTagCache(mTomahawkApp.getTagCache());
+        ingestionPipeline.run();
+        mUntaggedTracks.putAll(ingestionPipeline.getUntaggedTracks());
+        scheduleTagPass(TAG_PASS_DELAY);
+    }
 
-            track.setAlbum(album);
-            track.setArtist(artist);
+    private void scheduleTagPass(long delay) {
+        mHandler.removeCallbacks(mTagPassRunnable);
+        if (!mUntaggedTracks.isEmpty()) {
+            mHandler.postDelayed(mTagPassRunnable, delay);
         }
+    }
 
-        if (cursor != null) {
-            cursor.close();
+    /**
+     * Parse the tags of the next chunk of untagged tracks with the lowest thread priority and
+     * broadcast which tracks have changed. Every chunk is a message of its own on the update
+     * thread, so that updates of the collection are never held up by the whole tag pass.
+     */
+    private void parseUntaggedTracks() {
+        HashMap<Long, String> chunk = new HashMap<Long, String>();
+        Iterator<Map.Entry<Long, String>> iterator = mUntaggedTracks.entrySet().iterator();
+        while (iterator.hasNext() && chunk.size() < TAG_PASS_CHUNK_SIZE) {
+            Map.Entry<Long, String> untaggedTrack = iterator.next();
+            chunk.put(untaggedTrack.getKey(), untaggedTrack.getValue());
+            iterator.remove();
+        }
+        CollectionDelta delta = new CollectionDelta();
+        android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_LOWEST);
+        try {
+            IngestionPipeline ingestionPipeline = new IngestionPipeline(
+                    TomahawkApp.getContext().getContentResolver(), mArtists, mAlbums, mTracks,
+                    mTrackStore, delta);
+            ingestionPipeline.setTagCache(mTomahawkApp.getTagCache());
+            ingestionPipeline.parseTags(chunk);
+        } finally {
+            android.os.Process
+                    .setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
         }
+        if (delta.contains(CollectionDelta.TYPE_TRACKS)) {
+            mTrackGeneration.incrementAndGet();
+        }
+        sendUpdatedBroadcast(delta);
+        scheduleTagPass(0);
     }
 
+    /**
+     * Reload all user playlists from the database in the background and broadcast which of them
+     * have changed. Safe to be called from the main thread.
+     */
     public void updateUserPlaylists() {
-        mUserPlaylistsDataSource.open();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                CollectionDelta delta = new CollectionDelta();
+                updateUserPlaylists(delta);
+                sendUpdatedBroadcast(delta);
+            }
+        });
+    }
+
+    /**
+     * Only the headers of the playlists are loaded. Their tracks are loaded on first access.
+     * Playlists, whose header didn't change, are kept together with their already loaded tracks.
+     * Must not be called on the main thread, because it waits for the database.
+     */
+    private synchronized void updateUserPlaylists(CollectionDelta delta) {
+        ArrayList<CustomPlaylist> customPlayListList;
+        try {
+            customPlayListList = mTomahawkApp.getDatabaseExecutor()
+                    .read(new DatabaseExecutor.Task<ArrayList<CustomPlaylist>>() {
+                        @Override
+                        public ArrayList<CustomPlaylist> run(
+                                UserPlaylistsDataSource userPlaylistsDataSource) {
+                            return userPlaylistsDataSource.getUserPlaylistHeaders();
+                        }
+                    }).get();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "updateUserPlaylists: " + e.getClass() + ": " + e.getLocalizedMessage());
+            return;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "updateUserPlaylists: " + e.getClass() + ": " + e.getLocalizedMessage());
+            return;
+        }
+        HashMap<Long, CustomPlaylist> oldPlaylists = new HashMap<Long, CustomPlaylist>(
+                mCustomPlaylists);
         mCustomPlaylists.clear();
-        ArrayList<CustomPlaylist> customPlayListList = mUserPlaylistsDataSource
-                .getAllUserPlaylists();
         for (CustomPlaylist customPlaylist : customPlayListList) {
-            if (customPlaylist.getId() == UserPlaylistsDataSource.CACHED_PLAYLIST_ID) {
-                setCachedPlaylist(customPlaylist);
+            CustomPlaylist oldPlaylist = oldPlaylists.remove(customPlaylist.getId());
+            if (oldPlaylist == null) {
+                delta.add(CollectionDelta.TYPE_PLAYLISTS, CollectionDelta.KIND_ADDED,
+                        customPlaylist.getId());
+            } else if (!isSamePlaylist(oldPlaylist, customPlaylist)) {
+                delta.add(CollectionDelta.TYPE_PLAYLISTS, CollectionDelta.KIND_CHANGED,
+                        customPlaylist.getId());
             } else {
-                mCustomPlaylists.put(customPlaylist.getId(), customPlaylist);
+                customPlaylist = oldPlaylist;
+            }
+            customPlaylist.setTrackLoader(mTrackLoader);
+            mCustomPlaylists.put(customPlaylist.getId(), customPlaylist);
+        }
+        for (Long id : oldPlaylists.keySet()) {
+            delta.add(CollectionDelta.TYPE_PLAYLISTS, CollectionDelta.KIND_REMOVED, id);
+        }
+    }
+
+    /**
+     * Compares the headers of both {@link CustomPlaylist}s, without loading any {@link Track}s.
+     *
+     * @return whether or not both {@link CustomPlaylist}s have the same name and the same track
+     *         version, which means the same {@link Track}s in the same order
+     */
+    private static boolean isSamePlaylist(CustomPlaylist playlist1, CustomPlaylist playlist2) {
+        return TextUtils.equals(playlist1.getName(), playlist2.getName())
+                && playlist1.getSignature() == playlist2.getSignature()
+                && playlist1.getCount() == playlist2.getCount();
+    }
+
+    /**
+     * Send a {@link Collection#COLLECTION_UPDATED} broadcast carrying the given {@link
+     * CollectionDelta} and the new version of this {@link UserCollection}. Empty deltas are only
+     * broadcast as the very first version, so that listeners learn about the initial load.
+     */
+    private void sendUpdatedBroadcast(CollectionDelta delta) {
+        synchronized (this) {
+            if (delta.isEmpty() && mVersion > 0) {
+                return;
             }
+            delta.setCollectionId(Id);
+            delta.setVersion(++mVersion);
         }
-        TomahawkApp.getContext().sendBroadcast(new Intent(COLLECTION_UPDATED));
+        Log.d(TAG, "Broadcasting " + delta);
+        TomahawkApp.getContext()
+                .sendBroadcast(delta.toIntent(new Intent(COLLECTION_UPDATED)));
     }
 
     /* 
@@ -361,9 +618,22 @@ public class UserCollection extends Collection {
      */
     @Override
     public void update() {
-        initializeCollection();
+        CollectionDelta delta = new CollectionDelta();
+        initializeCollection(delta);
+        if (delta.contains(CollectionDelta.TYPE_TRACKS)) {
+            mTrackGeneration.incrementAndGet();
+        }
+
+        sendUpdatedBroadcast(delta);
+    }
 
-        TomahawkApp.getContext().sendBroadcast(new Intent(COLLECTION_UPDATED));
+    /*
+     * (non-Javadoc)
+     * @see org.tomahawk.libtomahawk.Collection#getVersion()
+     */
+    @Override
+    public synchronized long getVersion() {
+        return mVersion;
     }
 
     /* 
@@ -0,0 +1,385 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.database;
+
+import org.tomahawk.libtomahawk.collection.CustomPlaylist;
+import org.tomahawk.libtomahawk.collection.Playlist;
+import org.tomahawk.libtomahawk.collection.Track;
+
+import android.database.SQLException;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persists the playback queue as the cached user playlist in the background. Every change to the
+ * queue is recorded as a small operation and all recorded operations are written in a single
+ * transaction by the {@link DatabaseExecutor} at most every FLUSH_INTERVAL ms, so that changing
+ * the queue never costs a rewrite of the whole playlist on the calling thread.
+ *
+ * A queue, which is shuffled in the order generated from its shuffle seed, is stored in its
+ * original order together with that seed, so that turning shuffle on and off only writes a few
+ * bytes. Once such a queue is edited, its shuffled order can't be regenerated anymore and it is
+ * stored in play order without a seed again.
+ */
+public class CachedPlaylistWriter {
+
+    private static final String TAG = CachedPlaylistWriter.class.getName();
+
+    public static final long FLUSH_INTERVAL = 5000L;
+
+    // If more operations than this are pending, they are compacted into a single replace
+    private static final int MAX_PENDING_OPERATIONS = 200;
+
+    private static final int OPERATION_REPLACE = 0;
+
+    private static final int OPERATION_INSERT = 1;
+
+    private static final int OPERATION_REMOVE = 2;
+
+    private static final int OPERATION_MOVE = 3;
+
+    private static final int OPERATION_CURRENTTRACKINDEX = 4;
+
+    private static final int OPERATION_SHUFFLESTATE = 5;
+
+    private static class Operation {
+
+        int type;
+
+        // The position of the operation, or the current track index for replace,
+        // currenttrackindex and shufflestate operations
+        int position;
+
+        // The position to move to, or the shuffle first index for replace and shufflestate
+        // operations
+        int toPosition;
+
+        ArrayList<Track> tracks;
+
+        // The shuffle seed for replace and shufflestate operations, null if not shuffled
+        Long shuffleSeed;
+
+        Operation(int type, int position, int toPosition, ArrayList<Track> tracks) {
+            this.type = type;
+            this.position = position;
+            this.toPosition = toPosition;
+            this.tracks = tracks;
+        }
+
+        Operation(int type, int position, int shuffleFirstIndex, ArrayList<Track> tracks,
+                Long shuffleSeed) {
+            this(type, position, shuffleFirstIndex, tracks);
+            this.shuffleSeed = shuffleSeed;
+        }
+    }
+
+    private final DatabaseExecutor mDatabaseExecutor;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Object mLock = new Object();
+
+    // Everything below is guarded by mLock
+
+    private ArrayList<Operation> mPendingOperations = new ArrayList<Operation>();
+
+    // The queue as it will be stored, once all pending operations have been written
+    private ArrayList<Track> mTracks = new ArrayList<Track>();
+
+    private int mCurrentTrackIndex = -1;
+
+    // The shuffle seed stored with the queue, in which case mTracks is in original order
+    private Long mShuffleSeed;
+
+    private int mShuffleFirstIndex = -1;
+
+    // Whether mTracks is the play order of an edited shuffled queue, instead of its original order
+    private boolean mStoredInShuffledOrder;
+
+    private boolean mFlushScheduled;
+
+    private Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public CachedPlaylistWriter(DatabaseExecutor databaseExecutor) {
+        mDatabaseExecutor = databaseExecutor;
+    }
+
+    /**
+     * Tell the writer, that the given playlist is what's currently stored, without writing
+     * anything. Used after the queue has been restored from the database.
+     */
+    public void setStoredPlaylist(Playlist playlist) {
+        synchronized (mLock) {
+            mPendingOperations.clear();
+            if (playlist != null) {
+                setState(playlist);
+            } else {
+                mTracks = new ArrayList<Track>();
+                mCurrentTrackIndex = -1;
+                mShuffleSeed = null;
+                mShuffleFirstIndex = -1;
+                mStoredInShuffledOrder = false;
+            }
+        }
+    }
+
+    /**
+     * Replace the whole stored queue with the given playlist. All pending operations become
+     * obsolete by this.
+     */
+    public void replace(Playlist playlist) {
+        synchronized (mLock) {
+            mPendingOperations.clear();
+            setState(playlist);
+            record(new Operation(OPERATION_REPLACE, mCurrentTrackIndex, mShuffleFirstIndex,
+                    new ArrayList<Track>(mTracks), mShuffleSeed));
+        }
+    }
+
+    /**
+     * Store the shuffle state of the given playlist after it has been shuffled or unshuffled. As
+     * long as the stored tracks stay in the original order, only the shuffle state is written.
+     * Otherwise the whole playlist is replaced.
+     */
+    public void setShuffleState(Playlist playlist) {
+        synchronized (mLock) {
+            if (mStoredInShuffledOrder
+                    || playlist.isShuffled() && !playlist.isShuffleReproducible()) {
+                replace(playlist);
+                return;
+            }
+            mCurrentTrackIndex = playlist.getCurrentTrackIndex();
+            mShuffleSeed = playlist.isShuffled() ? playlist.getShuffleSeed() : null;
+            mShuffleFirstIndex = playlist.getShuffleFirstIndex();
+            record(new Operation(OPERATION_SHUFFLESTATE, mCurrentTrackIndex, mShuffleFirstIndex,
+                    null, mShuffleSeed));
+        }
+    }
+
+    /**
+     * @return whether the queue is stored in its original order together with its shuffle seed.
+     * Single edits can't be recorded in that case, the edited playlist has to be replaced.
+     */
+    public boolean storesShuffleSeed() {
+        synchronized (mLock) {
+            return mShuffleSeed != null;
+        }
+    }
+
+    public void append(List<Track> tracks) {
+        synchronized (mLock) {
+            insert(mTracks.size(), tracks);
+        }
+    }
+
+    public void insert(int position, List<Track> tracks) {
+        synchronized (mLock) {
+            position = Math.max(0, Math.min(position, mTracks.size()));
+            mTracks.addAll(position, tracks);
+            record(new Operation(OPERATION_INSERT, position, 0, new ArrayList<Track>(tracks)));
+        }
+    }
+
+    public void remove(int position) {
+        synchronized (mLock) {
+            if (position >= 0 && position < mTracks.size()) {
+                mTracks.remove(position);
+                record(new Operation(OPERATION_REMOVE, position, 0, null));
+            }
+        }
+    }
+
+    public void move(int from, int to) {
+        synchronized (mLock) {
+            if (from != to && from >= 0 && from < mTracks.size() && to >= 0
+                    && to < mTracks.size()) {
+                mTracks.add(to, mTracks.remove(from));
+                record(new Operation(OPERATION_MOVE, from, to, null));
+            }
+        }
+    }
+
+    public void setCurrentTrackIndex(int currentTrackIndex) {
+        synchronized (mLock) {
+            if (currentTrackIndex == mCurrentTrackIndex) {
+                return;
+            }
+            mCurrentTrackIndex = currentTrackIndex;
+            int last = mPendingOperations.size() - 1;
+            if (last >= 0 && mPendingOperations.get(last).type == OPERATION_CURRENTTRACKINDEX) {
+                // Only the latest index is of interest
+                mPendingOperations.get(last).position = currentTrackIndex;
+            } else {
+                record(new Operation(OPERATION_CURRENTTRACKINDEX, currentTrackIndex, 0, null));
+            }
+        }
+    }
+
+    /**
+     * Queue all pending operations to be written immediately, instead of waiting for the next
+     * scheduled flush. Doesn't wait for the write, the writer thread of the {@link
+     * DatabaseExecutor} finishes it on its own, so that this can be called from onDestroy on the
+     * main thread.
+     */
+    public void close() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        flush();
+    }
+
+    /**
+     * Take over the tracks and the shuffle state of the given playlist. Has to be called while
+     * holding mLock
+     */
+    private void setState(Playlist playlist) {
+        mCurrentTrackIndex = playlist.getCurrentTrackIndex();
+        if (playlist.isShuffleReproducible()) {
+            mTracks = new ArrayList<Track>(playlist.getOriginalTracks());
+            mShuffleSeed = playlist.getShuffleSeed();
+            mShuffleFirstIndex = playlist.getShuffleFirstIndex();
+            mStoredInShuffledOrder = false;
+        } else {
+            mTracks = new ArrayList<Track>(playlist.getTracks());
+            mShuffleSeed = null;
+            mShuffleFirstIndex = -1;
+            mStoredInShuffledOrder = playlist.isShuffled();
+        }
+    }
+
+    /**
+     * Has to be called while holding mLock
+     */
+    private void record(Operation operation) {
+        mPendingOperations.add(operation);
+        if (mPendingOperations.size() > MAX_PENDING_OPERATIONS) {
+            compact();
+        }
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, FLUSH_INTERVAL);
+        }
+    }
+
+    /**
+     * Replace all pending operations with a single replace of the current queue, which is cheaper
+     * to write than a long list of single changes. Has to be called while holding mLock
+     */
+    private void compact() {
+        mPendingOperations.clear();
+        mPendingOperations.add(new Operation(OPERATION_REPLACE, mCurrentTrackIndex,
+                mShuffleFirstIndex, new ArrayList<Track>(mTracks), mShuffleSeed));
+    }
+
+    /**
+     * Queue all pending operations to be written in a single transaction
+     */
+    private void flush() {
+        final ArrayList<Operation> operations;
+        synchronized (mLock) {
+            operations = mPendingOperations;
+            mPendingOperations = new ArrayList<Operation>();
+            mFlushScheduled = false;
+        }
+        if (operations.isEmpty()) {
+            return;
+        }
+        mDatabaseExecutor.write(new DatabaseExecutor.Task<Void>() {
+            @Override
+            public Void run(UserPlaylistsDataSource userPlaylistsDataSource) {
+                write(userPlaylistsDataSource, operations);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Called on the writer thread of the {@link DatabaseExecutor}
+     */
+    private void write(UserPlaylistsDataSource userPlaylistsDataSource,
+            ArrayList<Operation> operations) {
+        long startTime = System.currentTimeMillis();
+        long playlistId = UserPlaylistsDataSource.CACHED_PLAYLIST_ID;
+        try {
+            userPlaylistsDataSource.beginTransaction();
+            try {
+                for (Operation operation : operations) {
+                    switch (operation.type) {
+                        case OPERATION_REPLACE:
+                            userPlaylistsDataSource.storeUserPlaylist(playlistId,
+                                    UserPlaylistsDataSource.CACHED_PLAYLIST_NAME, CustomPlaylist
+                                    .fromTrackList(UserPlaylistsDataSource.CACHED_PLAYLIST_NAME,
+                                            operation.tracks, operation.position));
+                            userPlaylistsDataSource.setShuffleState(playlistId,
+                                    operation.shuffleSeed, operation.toPosition);
+                            break;
+                        case OPERATION_INSERT:
+                            userPlaylistsDataSource.insertTracksAtPos(playlistId,
+                                    operation.position, operation.tracks);
+                            break;
+                        case OPERATION_REMOVE:
+                            userPlaylistsDataSource.deleteTrackAtPos(playlistId,
+                                    operation.position);
+                            break;
+                        case OPERATION_MOVE:
+                            userPlaylistsDataSource.moveTrack(playlistId, operation.position,
+                                    operation.toPosition);
+                            break;
+                        case OPERATION_CURRENTTRACKINDEX:
+                            userPlaylistsDataSource.setCurrentTrackIndex(playlistId,
+                                    operation.position);
+                            break;
+                        case OPERATION_SHUFFLESTATE:
+                            userPlaylistsDataSource.setCurrentTrackIndex(playlistId,
+                                    operation.position);
+                            userPlaylistsDataSource.setShuffleState(playlistId,
+                                    operation.shuffleSeed, operation.toPosition);
+                            break;
+                    }
+                }
+                userPlaylistsDataSource.setTransactionSuccessful();
+            } finally {
+                userPlaylistsDataSource.endTransaction();
+            }
+            Log.d(TAG, "write: wrote " + operations.size() + " operations in "
+                    + (System.currentTimeMillis() - startTime) + "ms");
+        } catch (SQLException e) {
+            Log.e(TAG, "write: " + e.getClass() + ": " + e.getLocalizedMessage());
+            // The transaction has been rolled back, so the stored queue has to be rewritten
+            // completely with the next flush
+            synchronized (mLock) {
+                compact();
+                if (!mFlushScheduled) {
+                    mFlushScheduled = true;
+                    mHandler.postDelayed(mFlushRunnable, FLUSH_INTERVAL);
+                }
+            }
+            // Let the DatabaseExecutor know, so that it doesn't commit the batch this write was
+            // part of. It fails this write instead of running it again, so the compaction above
+            // happens only once.
+            throw e;
+        }
+    }
+}
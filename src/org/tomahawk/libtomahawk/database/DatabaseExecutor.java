@@ -0,0 +1,328 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.database;
+
+import org.tomahawk.libtomahawk.resolver.PipeLine;
+
+import android.content.Context;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteTransactionListener;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The single point of access to the database. All reads and writes are executed as {@link Task}s
+ * off the main thread on one shared {@link UserPlaylistsDataSource}. Writes are executed one after
+ * the other by a single writer thread, which runs all writes queued up at the same time in a
+ * single transaction. Reads run concurrently on a small pool of reader threads, which thanks to
+ * write-ahead logging don't have to wait for the writer.
+ */
+public class DatabaseExecutor {
+
+    private static final String TAG = DatabaseExecutor.class.getName();
+
+    private static final int READER_THREAD_COUNT = 2;
+
+    private static final int MAX_WRITE_BATCH_SIZE = 50;
+
+    /**
+     * A unit of work, which is executed on a database thread
+     */
+    public interface Task<T> {
+
+        T run(UserPlaylistsDataSource userPlaylistsDataSource);
+    }
+
+    /**
+     * Receives the result of a {@link Task} on the main thread
+     */
+    public interface Callback<T> {
+
+        void onResult(T result);
+    }
+
+    private class DatabaseFuture<T> extends FutureTask<T> {
+
+        private Task<T> mTask;
+
+        private Callback<T> mCallback;
+
+        DatabaseFuture(final Task<T> task, Callback<T> callback) {
+            super(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    return task.run(getUserPlaylistsDataSource());
+                }
+            });
+            mTask = task;
+            mCallback = callback;
+        }
+
+        void setResult(T result) {
+            set(result);
+        }
+
+        void setFailure(Throwable t) {
+            setException(t);
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.concurrent.FutureTask#done()
+         */
+        @Override
+        protected void done() {
+            final T result;
+            try {
+                result = get();
+            } catch (InterruptedException e) {
+                return;
+            } catch (CancellationException e) {
+                return;
+            } catch (ExecutionException e) {
+                Log.e(TAG, "done: " + e.getCause().getClass() + ": " + e.getCause()
+                        .getLocalizedMessage());
+                return;
+            }
+            if (mCallback != null) {
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCallback.onResult(result);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Remembers whether the transaction it has been started with is committed or rolled back. A
+     * transaction marked successful is still rolled back, if a nested transaction inside of it
+     * hasn't been marked successful.
+     */
+    private static class TransactionResult implements SQLiteTransactionListener {
+
+        private boolean mCommitted;
+
+        @Override
+        public void onBegin() {
+        }
+
+        @Override
+        public void onCommit() {
+            mCommitted = true;
+        }
+
+        @Override
+        public void onRollback() {
+            mCommitted = false;
+        }
+    }
+
+    private final UserPlaylistsDataSource mUserPlaylistsDataSource;
+
+    private boolean mIsOpen;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final ExecutorService mReadExecutor = Executors
+            .newFixedThreadPool(READER_THREAD_COUNT);
+
+    private final LinkedBlockingQueue<DatabaseFuture<?>> mWriteQueue
+            = new LinkedBlockingQueue<DatabaseFuture<?>>();
+
+    private final Thread mWriterThread = new Thread(TAG + "Writer") {
+        @Override
+        public void run() {
+            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+            ArrayList<DatabaseFuture<?>> batch = new ArrayList<DatabaseFuture<?>>();
+            while (true) {
+                try {
+                    batch.add(mWriteQueue.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                mWriteQueue.drainTo(batch, MAX_WRITE_BATCH_SIZE - 1);
+                try {
+                    runWrites(batch);
+                } catch (RuntimeException e) {
+                    // Never let a failure stop the writer thread, all later writes would hang
+                    Log.e(TAG, "run: " + e.getClass() + ": " + e.getLocalizedMessage());
+                    for (DatabaseFuture<?> future : batch) {
+                        future.setFailure(e);
+                    }
+                }
+                batch.clear();
+            }
+        }
+    };
+
+    public DatabaseExecutor(Context context, PipeLine pipeLine) {
+        mUserPlaylistsDataSource = new UserPlaylistsDataSource(context, pipeLine);
+        mWriterThread.start();
+    }
+
+    public <T> Future<T> read(Task<T> task) {
+        return read(task, null);
+    }
+
+    /**
+     * Execute the given read-only task on one of the reader threads
+     *
+     * @param callback if not null, receives the result on the main thread
+     */
+    public <T> Future<T> read(Task<T> task, Callback<T> callback) {
+        DatabaseFuture<T> future = new DatabaseFuture<T>(task, callback);
+        mReadExecutor.execute(future);
+        return future;
+    }
+
+    public <T> Future<T> write(Task<T> task) {
+        return write(task, null);
+    }
+
+    /**
+     * Queue the given task on the single writer thread. Writes are executed in the order in which
+     * they have been queued.
+     *
+     * @param callback if not null, receives the result on the main thread
+     */
+    public <T> Future<T> write(Task<T> task, Callback<T> callback) {
+        DatabaseFuture<T> future = new DatabaseFuture<T>(task, callback);
+        mWriteQueue.add(future);
+        return future;
+    }
+
+    private synchronized UserPlaylistsDataSource getUserPlaylistsDataSource() {
+        if (!mIsOpen) {
+            mUserPlaylistsDataSource.open();
+            mIsOpen = true;
+        }
+        return mUserPlaylistsDataSource;
+    }
+
+    /**
+     * Run the given writes in a single transaction. If one of them fails, the whole transaction is
+     * rolled back and only that write is failed. It isn't run again, because it may already have
+     * done work outside of the database. All other writes are run again in a new transaction. If
+     * committing fails, or a write has silently rolled back the transaction by ending a nested
+     * transaction of its own without marking it successful, every write is run again in a
+     * transaction of its own.
+     */
+    @SuppressWarnings("unchecked")
+    private void runWrites(ArrayList<DatabaseFuture<?>> batch) {
+        if (batch.size() == 1) {
+            runWrite(batch.get(0));
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        UserPlaylistsDataSource userPlaylistsDataSource = getUserPlaylistsDataSource();
+        TransactionResult transactionResult = new TransactionResult();
+        Object[] results = new Object[batch.size()];
+        boolean committed = false;
+        int failedIndex = -1;
+        RuntimeException failure = null;
+        userPlaylistsDataSource.beginTransactionWithListener(transactionResult);
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                failedIndex = i;
+                results[i] = batch.get(i).mTask.run(userPlaylistsDataSource);
+            }
+            failedIndex = -1;
+            userPlaylistsDataSource.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "runWrites: " + e.getClass() + ": " + e.getLocalizedMessage());
+            failure = e;
+        } finally {
+            committed = endTransaction(userPlaylistsDataSource, transactionResult);
+        }
+        Log.d(TAG, "runWrites: " + batch.size() + " writes in " + (System.currentTimeMillis()
+                - startTime) + "ms, committed=" + committed);
+        if (committed) {
+            for (int i = 0; i < batch.size(); i++) {
+                ((DatabaseFuture<Object>) batch.get(i)).setResult(results[i]);
+            }
+        } else if (failedIndex >= 0) {
+            batch.remove(failedIndex).setFailure(failure);
+            if (!batch.isEmpty()) {
+                runWrites(batch);
+            }
+        } else {
+            for (DatabaseFuture<?> future : batch) {
+                runWrite(future);
+            }
+        }
+    }
+
+    /**
+     * Run the given write in a transaction of its own. It is only completed successfully, if that
+     * transaction has actually been committed.
+     */
+    @SuppressWarnings("unchecked")
+    private void runWrite(DatabaseFuture<?> future) {
+        UserPlaylistsDataSource userPlaylistsDataSource = getUserPlaylistsDataSource();
+        TransactionResult transactionResult = new TransactionResult();
+        Object result = null;
+        boolean committed = false;
+        RuntimeException failure = null;
+        userPlaylistsDataSource.beginTransactionWithListener(transactionResult);
+        try {
+            result = future.mTask.run(userPlaylistsDataSource);
+            userPlaylistsDataSource.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "runWrite: " + e.getClass() + ": " + e.getLocalizedMessage());
+            failure = e;
+        } finally {
+            committed = endTransaction(userPlaylistsDataSource, transactionResult);
+        }
+        if (committed) {
+            ((DatabaseFuture<Object>) future).setResult(result);
+        } else if (failure != null) {
+            future.setFailure(failure);
+        } else {
+            future.setFailure(new SQLException("runWrite: transaction has been rolled back"));
+        }
+    }
+
+    /**
+     * End the current transaction. Committing may throw, in which case the transaction has been
+     * rolled back.
+     *
+     * @return whether or not the transaction has actually been committed
+     */
+    private static boolean endTransaction(UserPlaylistsDataSource userPlaylistsDataSource,
+            TransactionResult transactionResult) {
+        try {
+            userPlaylistsDataSource.endTransaction();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "endTransaction: " + e.getClass() + ": " + e.getLocalizedMessage());
+            return false;
+        }
+        return transactionResult.mCommitted;
+    }
+}
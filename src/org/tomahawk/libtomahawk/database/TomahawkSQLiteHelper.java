@@ -37,6 +37,12 @@ public class TomahawkSQLiteHelper extends SQLiteOpenHelper {
 
     public static final String USERPLAYLISTS_COLUMN_CURRENTTRACKINDEX = "currenttrackindex";
 
+    public static final String USERPLAYLISTS_COLUMN_SHUFFLESEED = "shuffleseed";
+
+    public static final String USERPLAYLISTS_COLUMN_SHUFFLEFIRSTINDEX = "shufflefirstindex";
+
+    public static final String USERPLAYLISTS_COLUMN_TRACKVERSION = "trackversion";
+
     public static final String TABLE_TRACKS = "tracks";
 
     public static final String TRACKS_COLUMN_ID = "id";
@@ -47,6 +53,7 @@ public class TomahawkSQLiteHelper extends SQLiteOpenHelper {
 
     public static final String TRACKS_COLUMN_IDALBUMS = "id_albums";
 
+    // Not written anymore since version 4, replaced by TRACKS_COLUMN_IDARTISTS
     public static final String TRACKS_COLUMN_ARTISTNAME = "artistname";
 
     public static final String TRACKS_COLUMN_PATH = "path";
@@ -69,6 +76,16 @@ public class TomahawkSQLiteHelper extends SQLiteOpenHelper {
 
     public static final String TRACKS_COLUMN_SCORE = "score";
 
+    public static final String TRACKS_COLUMN_POSITION = "position";
+
+    public static final String TRACKS_COLUMN_IDARTISTS = "id_artists";
+
+    public static final String TABLE_ARTISTS = "artists";
+
+    public static final String ARTISTS_COLUMN_ID = "id";
+
+    public static final String ARTISTS_COLUMN_NAME = "name";
+
     public static final String TABLE_ALBUMS = "albums";
 
     public static final String ALBUMS_COLUMN_ID = "id";
@@ -81,9 +98,31 @@ public class TomahawkSQLiteHelper extends SQLiteOpenHelper {
 
     public static final String ALBUMS_COLUMN_LASTYEAR = "lastyear";
 
+    public static final String ALBUMS_COLUMN_IDARTISTS = "id_artists";
+
+    // Full text index of all tracks. The docid of every row is the id of its track.
+    public static final String TABLE_TRACKS_FTS = "tracks_fts";
+
+    public static final String TRACKS_FTS_COLUMN_TRACKNAME = "trackname";
+
+    public static final String TRACKS_FTS_COLUMN_ALBUMNAME = "albumname";
+
+    public static final String TRACKS_FTS_COLUMN_ARTISTNAME = "artistname";
+
     private static final String DATABASE_NAME = "userplaylists.db";
 
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 7;
+
+    public static final String INDEX_TRACKS_IDUSERPLAYLISTS = "tracks_iduserplaylists";
+
+    public static final String INDEX_TRACKS_RESOLVERID_PATH = "tracks_resolverid_path";
+
+    public static final String INDEX_TRACKS_IDUSERPLAYLISTS_POSITION
+            = "tracks_iduserplaylists_position";
+
+    public static final String INDEX_TRACKS_IDALBUMS = "tracks_idalbums";
+
+    public static final String INDEX_TRACKS_IDARTISTS = "tracks_idartists";
 
     // Database creation sql statement
     private static final String CREATE_TABLE_USERPLAYLISTS = "CREATE TABLE `" + TABLE_USERPLAYLISTS
@@ -110,25 +149,288 @@ public class TomahawkSQLiteHelper extends SQLiteOpenHelper {
             + TRACKS_COLUMN_IDALBUMS + "`) REFERENCES `" + TABLE_ALBUMS + "` (`" + ALBUMS_COLUMN_ID
             + "`));";
 
+    /**
+     * A single step, which migrates the schema and the data of the database from the previous
+     * version to the version returned by getVersion(), without losing any data.
+     */
+    private static abstract class Migration {
+
+        abstract int getVersion();
+
+        abstract void migrate(SQLiteDatabase db);
+    }
+
+    /**
+     * All migrations, ordered by version. To change the schema, increase DATABASE_VERSION and add
+     * a Migration for the new version here. Never change a Migration, which has been released.
+     */
+    private static final Migration[] MIGRATIONS = {new Migration() {
+        @Override
+        int getVersion() {
+            return 2;
+        }
+
+        /**
+         * Add the indexes used to look up the tracks of a playlist and to look up tracks by
+         * resolver and path. albums.id is an INTEGER PRIMARY KEY, so lookups by album id already
+         * use the rowid and need no index. Albums, which are no longer referenced by any track,
+         * are left over from older versions and are dropped.
+         */
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS `" + INDEX_TRACKS_IDUSERPLAYLISTS + "` ON `"
+                    + TABLE_TRACKS + "` (`" + TRACKS_COLUMN_IDUSERPLAYLISTS + "`, `"
+                    + TRACKS_COLUMN_ID + "`);");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `" + INDEX_TRACKS_RESOLVERID_PATH + "` ON `"
+                    + TABLE_TRACKS + "` (`" + TRACKS_COLUMN_RESOLVERID + "`, `"
+                    + TRACKS_COLUMN_PATH + "`);");
+            db.execSQL("DELETE FROM `" + TABLE_ALBUMS + "` WHERE `" + ALBUMS_COLUMN_ID
+                    + "` NOT IN (SELECT `" + TRACKS_COLUMN_IDALBUMS + "` FROM `" + TABLE_TRACKS
+                    + "` WHERE `" + TRACKS_COLUMN_IDALBUMS + "` IS NOT NULL);");
+            db.execSQL("ANALYZE;");
+        }
+    }, new Migration() {
+        @Override
+        int getVersion() {
+            return 3;
+        }
+
+        /**
+         * Add the position of every track inside its playlist, so that single tracks can be
+         * inserted, removed and moved without rewriting the whole playlist. Existing tracks keep
+         * their order, which used to be the order of their ids.
+         */
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE `" + TABLE_TRACKS + "` ADD COLUMN `" + TRACKS_COLUMN_POSITION
+                    + "` INTEGER;");
+            db.execSQL("UPDATE `" + TABLE_TRACKS + "` SET `" + TRACKS_COLUMN_POSITION
+                    + "` = (SELECT COUNT(*) FROM `" + TABLE_TRACKS + "` t WHERE t.`"
+                    + TRACKS_COLUMN_IDUSERPLAYLISTS + "` = `" + TABLE_TRACKS + "`.`"
+                    + TRACKS_COLUMN_IDUSERPLAYLISTS + "` AND t.`" + TRACKS_COLUMN_ID + "` < `"
+                    + TABLE_TRACKS + "`.`" + TRACKS_COLUMN_ID + "`);");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `" + INDEX_TRACKS_IDUSERPLAYLISTS_POSITION
+                    + "` ON `" + TABLE_TRACKS + "` (`" + TRACKS_COLUMN_IDUSERPLAYLISTS + "`, `"
+                    + TRACKS_COLUMN_POSITION + "`);");
+        }
+    }, new Migration() {
+        @Override
+        int getVersion() {
+            return 4;
+        }
+
+        /**
+         * Move artists into their own table and rebuild the albums table, so that every artist
+         * and every album (identified by its name and the id of its artist) is stored only once
+         * and shared by all tracks referencing it. Artist id 0 in the albums table stands for an
+         * unknown artist, because NULL values would defeat the UNIQUE constraint. For the same
+         * reason, albums without a name are kept as an album with an empty name.
+         */
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE `" + TABLE_ARTISTS + "` (`" + ARTISTS_COLUMN_ID
+                    + "` INTEGER PRIMARY KEY AUTOINCREMENT, `" + ARTISTS_COLUMN_NAME
+                    + "` TEXT NOT NULL, UNIQUE (`" + ARTISTS_COLUMN_NAME + "`));");
+            db.execSQL("INSERT OR IGNORE INTO `" + TABLE_ARTISTS + "` (`" + ARTISTS_COLUMN_NAME
+                    + "`) SELECT DISTINCT `" + TRACKS_COLUMN_ARTISTNAME + "` FROM `" + TABLE_TRACKS
+                    + "` WHERE `" + TRACKS_COLUMN_ARTISTNAME + "` IS NOT NULL;");
+            db.execSQL("ALTER TABLE `" + TABLE_TRACKS + "` ADD COLUMN `" + TRACKS_COLUMN_IDARTISTS
+                    + "` INTEGER;");
+            db.execSQL("UPDATE `" + TABLE_TRACKS + "` SET `" + TRACKS_COLUMN_IDARTISTS
+                    + "` = (SELECT `" + ARTISTS_COLUMN_ID + "` FROM `" + TABLE_ARTISTS
+                    + "` WHERE `" + ARTISTS_COLUMN_NAME + "` = `" + TABLE_TRACKS + "`.`"
+                    + TRACKS_COLUMN_ARTISTNAME + "`), `" + TRACKS_COLUMN_ARTISTNAME
+                    + "` = NULL;");
+
+            String newAlbumsTable = TABLE_ALBUMS + "_new";
+            db.execSQL("CREATE TABLE `" + newAlbumsTable + "` (`" + ALBUMS_COLUMN_ID
+                    + "` INTEGER PRIMARY KEY AUTOINCREMENT, `" + ALBUMS_COLUMN_NAME
+                    + "` TEXT NOT NULL, `" + ALBUMS_COLUMN_IDARTISTS
+                    + "` INTEGER NOT NULL DEFAULT 0, `" + ALBUMS_COLUMN_ALBUMART + "` TEXT, `"
+                    + ALBUMS_COLUMN_FIRSTYEAR + "` INTEGER, `" + ALBUMS_COLUMN_LASTYEAR
+                    + "` INTEGER, UNIQUE (`" + ALBUMS_COLUMN_NAME + "`, `"
+                    + ALBUMS_COLUMN_IDARTISTS + "`));");
+            db.execSQL("INSERT OR IGNORE INTO `" + newAlbumsTable + "` (`" + ALBUMS_COLUMN_NAME
+                    + "`, `" + ALBUMS_COLUMN_IDARTISTS + "`, `" + ALBUMS_COLUMN_ALBUMART + "`, `"
+                    + ALBUMS_COLUMN_FIRSTYEAR + "`, `" + ALBUMS_COLUMN_LASTYEAR
+                    + "`) SELECT IFNULL(a.`" + ALBUMS_COLUMN_NAME + "`, ''), IFNULL(t.`"
+                    + TRACKS_COLUMN_IDARTISTS + "`, 0), a.`" + ALBUMS_COLUMN_ALBUMART + "`, a.`"
+                    + ALBUMS_COLUMN_FIRSTYEAR + "`, a.`" + ALBUMS_COLUMN_LASTYEAR + "` FROM `"
+                    + TABLE_TRACKS + "` t JOIN `" + TABLE_ALBUMS + "` a ON a.`" + ALBUMS_COLUMN_ID
+                    + "` = t.`" + TRACKS_COLUMN_IDALBUMS + "`;");
+            db.execSQL("UPDATE `" + TABLE_TRACKS + "` SET `" + TRACKS_COLUMN_IDALBUMS
+                    + "` = (SELECT n.`" + ALBUMS_COLUMN_ID + "` FROM `" + TABLE_ALBUMS + "` a JOIN `"
+                    + newAlbumsTable + "` n ON n.`" + ALBUMS_COLUMN_NAME + "` = IFNULL(a.`"
+                    + ALBUMS_COLUMN_NAME + "`, '') AND n.`" + ALBUMS_COLUMN_IDARTISTS
+                    + "` = IFNULL(`" + TABLE_TRACKS + "`.`" + TRACKS_COLUMN_IDARTISTS
+                    + "`, 0) WHERE a.`" + ALBUMS_COLUMN_ID + "` = `" + TABLE_TRACKS + "`.`"
+                    + TRACKS_COLUMN_IDALBUMS + "`);");
+            db.execSQL("DROP TABLE `" + TABLE_ALBUMS + "`;");
+            db.execSQL("ALTER TABLE `" + newAlbumsTable + "` RENAME TO `" + TABLE_ALBUMS + "`;");
+
+            db.execSQL("CREATE INDEX IF NOT EXISTS `" + INDEX_TRACKS_IDALBUMS + "` ON `"
+                    + TABLE_TRACKS + "` (`" + TRACKS_COLUMN_IDALBUMS + "`);");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `" + INDEX_TRACKS_IDARTISTS + "` ON `"
+                    + TABLE_TRACKS + "` (`" + TRACKS_COLUMN_IDARTISTS + "`);");
+        }
+    }, new Migration() {
+        @Override
+        int getVersion() {
+            return 5;
+        }
+
+        /**
+         * Add a full text index over the names of all tracks, their albums and their artists. It
+         * is filled with the existing tracks once and kept in sync by triggers afterwards, so
+         * that no code writing to the other tables has to know about it. FTS3 is used, because
+         * FTS4 isn't available before Honeycomb.
+         */
+        @Override
+        void migrate(SQLiteDatabase db) {
+            String albumName = "(SELECT `" + ALBUMS_COLUMN_NAME + "` FROM `" + TABLE_ALBUMS
+                    + "` WHERE `" + ALBUMS_COLUMN_ID + "` = new.`" + TRACKS_COLUMN_IDALBUMS + "`)";
+            String artistName = "(SELECT `" + ARTISTS_COLUMN_NAME + "` FROM `" + TABLE_ARTISTS
+                    + "` WHERE `" + ARTISTS_COLUMN_ID + "` = new.`" + TRACKS_COLUMN_IDARTISTS
+                    + "`)";
+            db.execSQL("CREATE VIRTUAL TABLE `" + TABLE_TRACKS_FTS + "` USING fts3(`"
+                    + TRACKS_FTS_COLUMN_TRACKNAME + "`, `" + TRACKS_FTS_COLUMN_ALBUMNAME + "`, `"
+                    + TRACKS_FTS_COLUMN_ARTISTNAME + "`);");
+            db.execSQL("INSERT INTO `" + TABLE_TRACKS_FTS + "` (docid, `"
+                    + TRACKS_FTS_COLUMN_TRACKNAME + "`, `" + TRACKS_FTS_COLUMN_ALBUMNAME + "`, `"
+                    + TRACKS_FTS_COLUMN_ARTISTNAME + "`) SELECT t.`" + TRACKS_COLUMN_ID + "`, t.`"
+                    + TRACKS_COLUMN_TRACKNAME + "`, a.`" + ALBUMS_COLUMN_NAME + "`, ar.`"
+                    + ARTISTS_COLUMN_NAME + "` FROM `" + TABLE_TRACKS + "` t LEFT JOIN `"
+                    + TABLE_ALBUMS + "` a ON a.`" + ALBUMS_COLUMN_ID + "` = t.`"
+                    + TRACKS_COLUMN_IDALBUMS + "` LEFT JOIN `" + TABLE_ARTISTS + "` ar ON ar.`"
+                    + ARTISTS_COLUMN_ID + "` = t.`" + TRACKS_COLUMN_IDARTISTS + "`;");
+            db.execSQL("CREATE TRIGGER `" + TABLE_TRACKS_FTS + "_insert` AFTER INSERT ON `"
+                    + TABLE_TRACKS + "` BEGIN INSERT INTO `" + TABLE_TRACKS_FTS + "` (docid, `"
+                    + TRACKS_FTS_COLUMN_TRACKNAME + "`, `" + TRACKS_FTS_COLUMN_ALBUMNAME + "`, `"
+                    + TRACKS_FTS_COLUMN_ARTISTNAME + "`) VALUES (new.`" + TRACKS_COLUMN_ID
+                    + "`, new.`" + TRACKS_COLUMN_TRACKNAME + "`, " + albumName + ", " + artistName
+                    + "); END;");
+            db.execSQL("CREATE TRIGGER `" + TABLE_TRACKS_FTS + "_delete` AFTER DELETE ON `"
+                    + TABLE_TRACKS + "` BEGIN DELETE FROM `" + TABLE_TRACKS_FTS
+                    + "` WHERE docid = old.`" + TRACKS_COLUMN_ID + "`; END;");
+            db.execSQL("CREATE TRIGGER `" + TABLE_TRACKS_FTS + "_update` AFTER UPDATE OF `"
+                    + TRACKS_COLUMN_TRACKNAME + "`, `" + TRACKS_COLUMN_IDALBUMS + "`, `"
+                    + TRACKS_COLUMN_IDARTISTS + "` ON `" + TABLE_TRACKS + "` BEGIN UPDATE `"
+                    + TABLE_TRACKS_FTS + "` SET `" + TRACKS_FTS_COLUMN_TRACKNAME + "` = new.`"
+                    + TRACKS_COLUMN_TRACKNAME + "`, `" + TRACKS_FTS_COLUMN_ALBUMNAME + "` = "
+                    + albumName + ", `" + TRACKS_FTS_COLUMN_ARTISTNAME + "` = " + artistName
+                    + " WHERE docid = new.`" + TRACKS_COLUMN_ID + "`; END;");
+            db.execSQL("CREATE TRIGGER `" + TABLE_TRACKS_FTS + "_albums_update` AFTER UPDATE OF `"
+                    + ALBUMS_COLUMN_NAME + "` ON `" + TABLE_ALBUMS + "` BEGIN UPDATE `"
+                    + TABLE_TRACKS_FTS + "` SET `" + TRACKS_FTS_COLUMN_ALBUMNAME + "` = new.`"
+                    + ALBUMS_COLUMN_NAME + "` WHERE docid IN (SELECT `" + TRACKS_COLUMN_ID
+                    + "` FROM `" + TABLE_TRACKS + "` WHERE `" + TRACKS_COLUMN_IDALBUMS + "` = new.`"
+                    + ALBUMS_COLUMN_ID + "`); END;");
+            db.execSQL("CREATE TRIGGER `" + TABLE_TRACKS_FTS + "_artists_update` AFTER UPDATE OF `"
+                    + ARTISTS_COLUMN_NAME + "` ON `" + TABLE_ARTISTS + "` BEGIN UPDATE `"
+                    + TABLE_TRACKS_FTS + "` SET `" + TRACKS_FTS_COLUMN_ARTISTNAME + "` = new.`"
+                    + ARTISTS_COLUMN_NAME + "` WHERE docid IN (SELECT `" + TRACKS_COLUMN_ID
+                    + "` FROM `" + TABLE_TRACKS + "` WHERE `" + TRACKS_COLUMN_IDARTISTS
+                    + "` = new.`" + ARTISTS_COLUMN_ID + "`); END;");
+        }
+    }, new Migration() {
+        @Override
+        int getVersion() {
+            return 6;
+        }
+
+        /**
+         * Add the shuffle state of a playlist. A playlist with a shuffle seed stores its tracks in
+         * their original order, the shuffled order is regenerated from the seed and first index.
+         */
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE `" + TABLE_USERPLAYLISTS + "` ADD COLUMN `"
+                    + USERPLAYLISTS_COLUMN_SHUFFLESEED + "` INTEGER;");
+            db.execSQL("ALTER TABLE `" + TABLE_USERPLAYLISTS + "` ADD COLUMN `"
+                    + USERPLAYLISTS_COLUMN_SHUFFLEFIRSTINDEX + "` INTEGER;");
+        }
+    }, new Migration() {
+        @Override
+        int getVersion() {
+            return 7;
+        }
+
+        /**
+         * Add a version to every playlist, which is increased whenever one of its tracks is
+         * added, removed or moved, so that a changed playlist can be told apart from an unchanged
+         * one without comparing its tracks.
+         */
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE `" + TABLE_USERPLAYLISTS + "` ADD COLUMN `"
+                    + USERPLAYLISTS_COLUMN_TRACKVERSION + "` INTEGER NOT NULL DEFAULT 0;");
+        }
+    }};
+
     public TomahawkSQLiteHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
+    /**
+     * Enable write-ahead logging where available, so that reads don't block on the writer and vice
+     * versa.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB
+                && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
+    }
+
+    /**
+     * Create the initial schema of version 1 and run all migrations on top of it, so that new and
+     * upgraded databases always end up with the same schema.
+     */
     @Override
     public void onCreate(SQLiteDatabase database) {
         database.execSQL(CREATE_TABLE_USERPLAYLISTS);
         database.execSQL(CREATE_TABLE_ALBUMS);
         database.execSQL(CREATE_TABLE_TRACKS);
+        migrate(database, 1, DATABASE_VERSION);
     }
 
+    /**
+     * Run all migrations between the old and the new version. SQLiteOpenHelper calls this inside a
+     * transaction, so a failing migration leaves the database untouched.
+     */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        Log.d(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
+        Log.d(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+        migrate(db, oldVersion, newVersion);
+    }
+
+    /**
+     * A newer schema can't be migrated back, so this is the only case in which all old data is
+     * destroyed.
+     */
+    @Override
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        Log.d(TAG, "Downgrading database from version " + oldVersion + " to " + newVersion
                 + ", which will destroy all old data");
+        db.execSQL("DROP TABLE IF EXISTS `" + TABLE_TRACKS_FTS + "`;");
         db.execSQL("DROP TABLE IF EXISTS `" + TABLE_TRACKS + "`;");
         db.execSQL("DROP TABLE IF EXISTS `" + TABLE_ALBUMS + "`;");
+        db.execSQL("DROP TABLE IF EXISTS `" + TABLE_ARTISTS + "`;");
         db.execSQL("DROP TABLE IF EXISTS `" + TABLE_USERPLAYLISTS + "`;");
         onCreate(db);
     }
 
+    private static void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+        for (Migration migration : MIGRATIONS) {
+            if (migration.getVersion() > oldVersion && migration.getVersion() <= newVersion) {
+                long startTime = System.currentTimeMillis();
+                migration.migrate(db);
+                Log.d(TAG, "Migrated database to version " + migration.getVersion() + " in "
+                        + (System.currentTimeMillis() - startTime) + "ms");
+            }
+        }
+    }
+
 }
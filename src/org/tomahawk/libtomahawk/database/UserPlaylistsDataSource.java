@@ -27,16 +27,35 @@ import org.tomahawk.libtomahawk.resolver.PipeLine;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.database.sqlite.SQLiteTransactionListener;
+import android.text.TextUtils;
+import android.util.Log;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 
 /**
  * Author Enno Gottschalk <mrmaffen@googlemail.com> Date: 06.02.13
+ *
+ * Reading is thread-safe, writing is not. Inside the app, it is only used through the {@link
+ * DatabaseExecutor}, which makes sure that all writes happen on a single thread.
  */
 public class UserPlaylistsDataSource {
 
+    private static final String TAG = UserPlaylistsDataSource.class.getName();
+
     public static final String CACHED_PLAYLIST_NAME = "Last used playlist";
 
     public static final long CACHED_PLAYLIST_ID = 0;
@@ -48,6 +67,72 @@ public class UserPlaylistsDataSource {
 
     private PipeLine mPipeLine;
 
+    // Compiled once per opened database and reused for every inserted row
+    private SQLiteStatement mInsertTrackStatement;
+
+    private SQLiteStatement mSelectArtistStatement;
+
+    private SQLiteStatement mInsertArtistStatement;
+
+    private SQLiteStatement mSelectAlbumStatement;
+
+    private SQLiteStatement mInsertAlbumStatement;
+
+    private SQLiteStatement mUpdateAlbumStatement;
+
+    private static final String SELECT_ARTIST = "SELECT `"
+            + TomahawkSQLiteHelper.ARTISTS_COLUMN_ID + "` FROM `"
+            + TomahawkSQLiteHelper.TABLE_ARTISTS + "` WHERE `"
+            + TomahawkSQLiteHelper.ARTISTS_COLUMN_NAME + "` = ?";
+
+    private static final String INSERT_ARTIST = "INSERT INTO `"
+            + TomahawkSQLiteHelper.TABLE_ARTISTS + "` (`"
+            + TomahawkSQLiteHelper.ARTISTS_COLUMN_NAME + "`) VALUES (?)";
+
+    private static final String SELECT_ALBUM = "SELECT `"
+            + TomahawkSQLiteHelper.ALBUMS_COLUMN_ID + "` FROM `"
+            + TomahawkSQLiteHelper.TABLE_ALBUMS + "` WHERE `"
+            + TomahawkSQLiteHelper.ALBUMS_COLUMN_NAME + "` = ? AND `"
+            + TomahawkSQLiteHelper.ALBUMS_COLUMN_IDARTISTS + "` = ?";
+
+    private static final String INSERT_ALBUM = "INSERT INTO `"
+            + TomahawkSQLiteHelper.TABLE_ALBUMS + "` (`"
+            + TomahawkSQLiteHelper.ALBUMS_COLUMN_NAME + "`, `"
+            + TomahawkSQLiteHelper.ALBUMS_COLUMN_IDARTISTS + "`, `"
+            + TomahawkSQLiteHelper.ALBUMS_COLUMN_ALBUMART + "`, `"
+            + TomahawkSQLiteHelper.ALBUMS_COLUMN_FIRSTYEAR + "`, `"
+            + TomahawkSQLiteHelper.ALBUMS_COLUMN_LASTYEAR + "`) VALUES (?, ?, ?, ?, ?)";
+
+    // Only overwrites the stored values with the given ones, if they are known
+    private static final String UPDATE_ALBUM = "UPDATE `"
+            + TomahawkSQLiteHelper.TABLE_ALBUMS + "` SET `"
+            + TomahawkSQLiteHelper.ALBUMS_COLUMN_ALBUMART + "` = IFNULL(?, `"
+            + TomahawkSQLiteHelper.ALBUMS_COLUMN_ALBUMART + "`), `"
+            + TomahawkSQLiteHelper.ALBUMS_COLUMN_FIRSTYEAR + "` = IFNULL(?, `"
+            + TomahawkSQLiteHelper.ALBUMS_COLUMN_FIRSTYEAR + "`), `"
+            + TomahawkSQLiteHelper.ALBUMS_COLUMN_LASTYEAR + "` = IFNULL(?, `"
+            + TomahawkSQLiteHelper.ALBUMS_COLUMN_LASTYEAR + "`) WHERE `"
+            + TomahawkSQLiteHelper.ALBUMS_COLUMN_ID + "` = ?";
+
+    private static final String INSERT_TRACK = "INSERT INTO `"
+            + TomahawkSQLiteHelper.TABLE_TRACKS + "` (`"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_IDUSERPLAYLISTS + "`, `"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_TRACKNAME + "`, `"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_IDALBUMS + "`, `"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_IDARTISTS + "`, `"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_PATH + "`, `"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_BITRATE + "`, `"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_DURATION + "`, `"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_SIZE + "`, `"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_TRACKNUMBER + "`, `"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_YEAR + "`, `"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_RESOLVERID + "`, `"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_LINKURL + "`, `"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_PURCHASEURL + "`, `"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_SCORE + "`, `"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_POSITION
+            + "`) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
     private String[] mAllUserPlaylistsColumns = {TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_ID,
             TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_NAME,
             TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_CURRENTTRACKINDEX};
@@ -62,12 +147,157 @@ public class UserPlaylistsDataSource {
             TomahawkSQLiteHelper.TRACKS_COLUMN_YEAR, TomahawkSQLiteHelper.TRACKS_COLUMN_RESOLVERID,
             TomahawkSQLiteHelper.TRACKS_COLUMN_LINKURL,
             TomahawkSQLiteHelper.TRACKS_COLUMN_PURCHASEURL,
-            TomahawkSQLiteHelper.TRACKS_COLUMN_SCORE};
+            TomahawkSQLiteHelper.TRACKS_COLUMN_SCORE, TomahawkSQLiteHelper.TRACKS_COLUMN_POSITION};
+
+    // Column indexes of mJoinedPlaylistsQuery, so that they don't have to be looked up per row
+    private static final int COLUMN_PLAYLIST_ID = 0;
+
+    private static final int COLUMN_PLAYLIST_NAME = 1;
+
+    private static final int COLUMN_PLAYLIST_CURRENTTRACKINDEX = 2;
+
+    private static final int COLUMN_TRACK_ID = 3;
+
+    private static final int COLUMN_TRACK_NAME = 4;
+
+    private static final int COLUMN_TRACK_PATH = 5;
+
+    private static final int COLUMN_TRACK_BITRATE = 6;
+
+    private static final int COLUMN_TRACK_DURATION = 7;
+
+    private static final int COLUMN_TRACK_SIZE = 8;
+
+    private static final int COLUMN_TRACK_TRACKNUMBER = 9;
+
+    private static final int COLUMN_TRACK_YEAR = 10;
+
+    private static final int COLUMN_TRACK_RESOLVERID = 11;
 
-    private String[] mAllAlbumsColumns = {TomahawkSQLiteHelper.ALBUMS_COLUMN_ID,
-            TomahawkSQLiteHelper.ALBUMS_COLUMN_NAME, TomahawkSQLiteHelper.ALBUMS_COLUMN_ALBUMART,
-            TomahawkSQLiteHelper.ALBUMS_COLUMN_FIRSTYEAR,
-            TomahawkSQLiteHelper.ALBUMS_COLUMN_LASTYEAR};
+    private static final int COLUMN_TRACK_LINKURL = 12;
+
+    private static final int COLUMN_TRACK_PURCHASEURL = 13;
+
+    private static final int COLUMN_TRACK_SCORE = 14;
+
+    private static final int COLUMN_ALBUM_ID = 15;
+
+    private static final int COLUMN_ALBUM_NAME = 16;
+
+    private static final int COLUMN_ALBUM_ALBUMART = 17;
+
+    private static final int COLUMN_ALBUM_FIRSTYEAR = 18;
+
+    private static final int COLUMN_ALBUM_LASTYEAR = 19;
+
+    private static final int COLUMN_ARTIST_ID = 20;
+
+    private static final int COLUMN_ARTIST_NAME = 21;
+
+    private static final int SEARCH_MAX_CANDIDATES = 1000;
+
+    // Weights of the columns of the full text index, in the order of their declaration
+    private static final float[] SEARCH_COLUMN_WEIGHTS = {1.0f, 0.5f, 0.8f};
+
+    private static final String JOINED_COLUMNS = "p.`"
+            + TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_ID + "`, p.`"
+            + TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_NAME + "`, p.`"
+            + TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_CURRENTTRACKINDEX + "`, t.`"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_ID + "`, t.`"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_TRACKNAME + "`, t.`"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_PATH + "`, t.`"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_BITRATE + "`, t.`"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_DURATION + "`, t.`"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_SIZE + "`, t.`"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_TRACKNUMBER + "`, t.`"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_YEAR + "`, t.`"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_RESOLVERID + "`, t.`"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_LINKURL + "`, t.`"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_PURCHASEURL + "`, t.`"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_SCORE + "`, a.`"
+            + TomahawkSQLiteHelper.ALBUMS_COLUMN_ID + "`, a.`"
+            + TomahawkSQLiteHelper.ALBUMS_COLUMN_NAME + "`, a.`"
+            + TomahawkSQLiteHelper.ALBUMS_COLUMN_ALBUMART + "`, a.`"
+            + TomahawkSQLiteHelper.ALBUMS_COLUMN_FIRSTYEAR + "`, a.`"
+            + TomahawkSQLiteHelper.ALBUMS_COLUMN_LASTYEAR + "`, ar.`"
+            + TomahawkSQLiteHelper.ARTISTS_COLUMN_ID + "`, ar.`"
+            + TomahawkSQLiteHelper.ARTISTS_COLUMN_NAME + "`";
+
+    private static final String JOINED_ALBUMS_AND_ARTISTS = " LEFT JOIN `"
+            + TomahawkSQLiteHelper.TABLE_ALBUMS + "` a ON a.`"
+            + TomahawkSQLiteHelper.ALBUMS_COLUMN_ID + "` = t.`"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_IDALBUMS + "` LEFT JOIN `"
+            + TomahawkSQLiteHelper.TABLE_ARTISTS + "` ar ON ar.`"
+            + TomahawkSQLiteHelper.ARTISTS_COLUMN_ID + "` = t.`"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_IDARTISTS + "`";
+
+    private String mJoinedPlaylistsQuery = "SELECT " + JOINED_COLUMNS + " FROM `"
+            + TomahawkSQLiteHelper.TABLE_USERPLAYLISTS + "` p LEFT JOIN `"
+            + TomahawkSQLiteHelper.TABLE_TRACKS + "` t ON t.`"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_IDUSERPLAYLISTS + "` = p.`"
+            + TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_ID + "`" + JOINED_ALBUMS_AND_ARTISTS;
+
+    /**
+     * Looks up every match of the full text index without touching any other table, so that all
+     * of them can be ranked before the best ones are loaded through mSearchTracksQuery.
+     */
+    private String mSearchMatchesQuery = "SELECT docid, matchinfo(`"
+            + TomahawkSQLiteHelper.TABLE_TRACKS_FTS + "`) FROM `"
+            + TomahawkSQLiteHelper.TABLE_TRACKS_FTS + "` WHERE `"
+            + TomahawkSQLiteHelper.TABLE_TRACKS_FTS + "` MATCH ?";
+
+    // Completed by the list of the ids of the tracks to load
+    private String mSearchTracksQuery = "SELECT " + JOINED_COLUMNS + " FROM `"
+            + TomahawkSQLiteHelper.TABLE_TRACKS + "` t JOIN `"
+            + TomahawkSQLiteHelper.TABLE_USERPLAYLISTS + "` p ON p.`"
+            + TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_ID + "` = t.`"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_IDUSERPLAYLISTS + "`"
+            + JOINED_ALBUMS_AND_ARTISTS + " WHERE t.`" + TomahawkSQLiteHelper.TRACKS_COLUMN_ID
+            + "` IN ";
+
+    private static final int COLUMN_HEADER_ID = 0;
+
+    private static final int COLUMN_HEADER_NAME = 1;
+
+    private static final int COLUMN_HEADER_CURRENTTRACKINDEX = 2;
+
+    private static final int COLUMN_HEADER_TRACKCOUNT = 3;
+
+    private static final int COLUMN_HEADER_TOTALDURATION = 4;
+
+    private static final int COLUMN_HEADER_SIGNATURE = 5;
+
+    private static final int COLUMN_HEADER_COVERHINT = 6;
+
+    /**
+     * Aggregates every playlist into a single row without touching the albums and artists of its
+     * tracks. The signature is the track version of the playlist, which changes whenever a track
+     * is added, removed or moved, so that a changed playlist can be told apart from an unchanged
+     * one by its header alone. The cover hint is the first album art found in the playlist.
+     */
+    private String mPlaylistHeadersQuery = "SELECT p.`"
+            + TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_ID + "`, p.`"
+            + TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_NAME + "`, p.`"
+            + TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_CURRENTTRACKINDEX + "`, COUNT(t.`"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_ID + "`), SUM(t.`"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_DURATION + "`), p.`"
+            + TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_TRACKVERSION + "`, (SELECT a.`"
+            + TomahawkSQLiteHelper.ALBUMS_COLUMN_ALBUMART + "` FROM `"
+            + TomahawkSQLiteHelper.TABLE_TRACKS + "` c JOIN `"
+            + TomahawkSQLiteHelper.TABLE_ALBUMS + "` a ON a.`"
+            + TomahawkSQLiteHelper.ALBUMS_COLUMN_ID + "` = c.`"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_IDALBUMS + "` WHERE c.`"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_IDUSERPLAYLISTS + "` = p.`"
+            + TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_ID + "` AND a.`"
+            + TomahawkSQLiteHelper.ALBUMS_COLUMN_ALBUMART + "` IS NOT NULL ORDER BY c.`"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_POSITION + "` LIMIT 1) FROM `"
+            + TomahawkSQLiteHelper.TABLE_USERPLAYLISTS + "` p LEFT JOIN `"
+            + TomahawkSQLiteHelper.TABLE_TRACKS + "` t ON t.`"
+            + TomahawkSQLiteHelper.TRACKS_COLUMN_IDUSERPLAYLISTS + "` = p.`"
+            + TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_ID + "` WHERE p.`"
+            + TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_ID + "` != " + CACHED_PLAYLIST_ID
+            + " GROUP BY p.`" + TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_ID + "` ORDER BY p.`"
+            + TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_ID + "`";
 
     public UserPlaylistsDataSource(Context context, PipeLine pipeLine) {
         mDbHelper = new TomahawkSQLiteHelper(context);
@@ -79,6 +309,15 @@ public class UserPlaylistsDataSource {
     }
 
     public void close() {
+        if (mInsertTrackStatement != null) {
+            mInsertTrackStatement.close();
+            mSelectArtistStatement.close();
+            mInsertArtistStatement.close();
+            mSelectAlbumStatement.close();
+            mInsertAlbumStatement.close();
+            mUpdateAlbumStatement.close();
+            mInsertTrackStatement = null;
+        }
         mDbHelper.close();
     }
 
@@ -86,174 +325,396 @@ public class UserPlaylistsDataSource {
         return storeUserPlaylist(CACHED_PLAYLIST_ID, CACHED_PLAYLIST_NAME, playlist);
     }
 
+    /**
+     * Store the given playlist under the given id, replacing all of its old tracks, in a single
+     * transaction. If the given id is negative, a new id is assigned.
+     *
+     * @return the id of the stored playlist
+     */
     public long storeUserPlaylist(long insertId, String playlistName, Playlist playlist) {
         ContentValues values = new ContentValues();
         values.put(TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_NAME, playlistName);
         values.put(TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_CURRENTTRACKINDEX,
                 playlist.getCurrentTrackIndex());
+        long startTime = System.currentTimeMillis();
+        ArrayList<Track> tracks = playlist.getTracks();
         mDatabase.beginTransaction();
-        if (insertId >= 0) {
-            if (mDatabase.update(TomahawkSQLiteHelper.TABLE_USERPLAYLISTS, values,
-                    TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_ID + " = " + insertId, null) == 0) {
-                values.put(TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_ID, insertId);
-                mDatabase.insert(TomahawkSQLiteHelper.TABLE_USERPLAYLISTS, null, values);
-            }
-            Cursor tracksCursor = mDatabase
-                    .query(TomahawkSQLiteHelper.TABLE_TRACKS, mAllTracksColumns,
-                            TomahawkSQLiteHelper.TRACKS_COLUMN_IDUSERPLAYLISTS + " = " + insertId,
-                            null, null, null, null);
-            tracksCursor.moveToFirst();
-            while (!tracksCursor.isAfterLast()) {
-                mDatabase.delete(TomahawkSQLiteHelper.TABLE_ALBUMS,
-                        TomahawkSQLiteHelper.ALBUMS_COLUMN_ID + " = " + tracksCursor.getLong(3),
-                        null);
-                tracksCursor.moveToNext();
+        try {
+            if (insertId >= 0) {
+                if (mDatabase.update(TomahawkSQLiteHelper.TABLE_USERPLAYLISTS, values,
+                        TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_ID + " = " + insertId, null)
+                        == 0) {
+                    values.put(TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_ID, insertId);
+                    mDatabase.insert(TomahawkSQLiteHelper.TABLE_USERPLAYLISTS, null, values);
+                }
+                deleteTracks(insertId);
+            } else {
+                insertId = mDatabase.insert(TomahawkSQLiteHelper.TABLE_USERPLAYLISTS, null, values);
             }
-            tracksCursor.close();
-            mDatabase.delete(TomahawkSQLiteHelper.TABLE_TRACKS,
-                    TomahawkSQLiteHelper.TRACKS_COLUMN_IDUSERPLAYLISTS + " = " + insertId, null);
-        } else {
-            insertId = mDatabase.insert(TomahawkSQLiteHelper.TABLE_USERPLAYLISTS, null, values);
+            insertTracks(insertId, tracks, 0, tracks.size(), 0);
+            increaseTrackVersion(insertId);
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
         }
-        for (Track track : playlist.getTracks()) {
-            Album album = track.getAlbum();
-            long albumInsertId = -1;
-            if (album != null) {
-                values.clear();
-                values.put(TomahawkSQLiteHelper.ALBUMS_COLUMN_NAME, album.getName());
-                values.put(TomahawkSQLiteHelper.ALBUMS_COLUMN_ALBUMART, album.getAlbumArtPath());
-                values.put(TomahawkSQLiteHelper.ALBUMS_COLUMN_FIRSTYEAR, album.getFirstYear());
-                values.put(TomahawkSQLiteHelper.ALBUMS_COLUMN_LASTYEAR, album.getLastYear());
-                albumInsertId = mDatabase.insert(TomahawkSQLiteHelper.TABLE_ALBUMS, null, values);
-            }
-            values.clear();
-            values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_IDUSERPLAYLISTS, insertId);
-            values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_TRACKNAME, track.getName());
-            if (albumInsertId >= 0) {
-                values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_IDALBUMS, albumInsertId);
+        logThroughput("storeUserPlaylist", tracks.size(), startTime);
+        return insertId;
+    }
+
+    /**
+     * Load the cached playlist. If it has been stored with a shuffle seed, its tracks are in their
+     * original order and it is shuffled again in the order generated from that seed.
+     */
+    public CustomPlaylist getCachedUserPlaylist() {
+        CustomPlaylist playlist = getUserPlaylist(CACHED_PLAYLIST_ID);
+        if (playlist == null) {
+            return null;
+        }
+        Cursor cursor = mDatabase.query(TomahawkSQLiteHelper.TABLE_USERPLAYLISTS,
+                new String[]{TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_SHUFFLESEED,
+                        TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_SHUFFLEFIRSTINDEX},
+                TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_ID + " = " + CACHED_PLAYLIST_ID, null,
+                null, null, null);
+        try {
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                playlist.setShuffled(cursor.getLong(0), cursor.isNull(1) ? -1 : cursor.getInt(1));
             }
-            if (track.getArtist() != null) {
-                values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_ARTISTNAME,
-                        track.getArtist().getName());
+        } finally {
+            cursor.close();
+        }
+        return playlist;
+    }
+
+    /**
+     * Load a lightweight header of every user playlist, except the cached one. The headers know
+     * their track count, total duration and cover hint, but don't contain any tracks. Those are
+     * loaded page by page through {@link #getUserPlaylistTracks} once they are needed.
+     *
+     * @return the list of CustomPlaylist headers, ordered by id
+     */
+    public ArrayList<CustomPlaylist> getUserPlaylistHeaders() {
+        long startTime = System.currentTimeMillis();
+        ArrayList<CustomPlaylist> playListList = new ArrayList<CustomPlaylist>();
+        Cursor cursor = mDatabase.rawQuery(mPlaylistHeadersQuery, null);
+        try {
+            while (cursor.moveToNext()) {
+                CustomPlaylist customPlaylist = CustomPlaylist
+                        .fromHeader(cursor.getString(COLUMN_HEADER_NAME),
+                                cursor.getInt(COLUMN_HEADER_CURRENTTRACKINDEX),
+                                cursor.getInt(COLUMN_HEADER_TRACKCOUNT),
+                                cursor.getLong(COLUMN_HEADER_TOTALDURATION),
+                                cursor.getLong(COLUMN_HEADER_SIGNATURE),
+                                cursor.getString(COLUMN_HEADER_COVERHINT));
+                customPlaylist.setId(cursor.getLong(COLUMN_HEADER_ID));
+                playListList.add(customPlaylist);
             }
-            values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_PATH, track.getPath());
-            values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_BITRATE, track.getBitrate());
-            values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_DURATION, track.getDuration());
-            values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_SIZE, track.getSize());
-            values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_TRACKNUMBER, track.getTrackNumber());
-            values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_YEAR, track.getYear());
-            if (track.getResolver() != null) {
-                values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_RESOLVERID,
-                        track.getResolver().getId());
+        } finally {
+            cursor.close();
+        }
+        Log.d(TAG, "getUserPlaylistHeaders: loaded " + playListList.size() + " headers in "
+                + (System.currentTimeMillis() - startTime) + "ms");
+        return playListList;
+    }
+
+    /**
+     * Load one page of the tracks of the playlist with the given id. The page is looked up through
+     * the (id_userplaylists, position) index, so its cost doesn't depend on its offset.
+     *
+     * @param fromPosition the position of the first track of the page
+     * @param count        the maximum number of tracks in the page
+     * @param albums       the Albums already loaded for previous pages, by id. Newly loaded
+     *                     Albums are added to it.
+     * @param artists      the Artists already loaded for previous pages, by id. Newly loaded
+     *                     Artists are added to it.
+     * @return the tracks of the page, ordered by position. Contains less than count tracks, if
+     *         it is the last page.
+     */
+    public ArrayList<Track> getUserPlaylistTracks(long playlistId, int fromPosition, int count,
+            HashMap<Long, Album> albums, HashMap<Long, Artist> artists) {
+        ArrayList<Track> trackList = new ArrayList<Track>(count);
+        Cursor cursor = mDatabase.rawQuery(mJoinedPlaylistsQuery + " WHERE p.`"
+                + TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_ID + "` = " + playlistId + " AND t.`"
+                + TomahawkSQLiteHelper.TRACKS_COLUMN_POSITION + "` >= " + fromPosition
+                + " AND t.`" + TomahawkSQLiteHelper.TRACKS_COLUMN_POSITION + "` < "
+                + (fromPosition + count) + " ORDER BY t.`"
+                + TomahawkSQLiteHelper.TRACKS_COLUMN_POSITION + "`", null);
+        try {
+            while (cursor.moveToNext()) {
+                trackList.add(buildTrack(cursor, albums, artists));
             }
-            values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_LINKURL, track.getLinkUrl());
-            values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_PURCHASEURL, track.getPurchaseUrl());
-            values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_SCORE, track.getScore());
-            mDatabase.insert(TomahawkSQLiteHelper.TABLE_TRACKS, null, values);
+        } finally {
+            cursor.close();
         }
-        mDatabase.setTransactionSuccessful();
-        mDatabase.endTransaction();
-        return insertId;
+        return trackList;
     }
 
-    public CustomPlaylist getCachedUserPlaylist() {
-        return getUserPlaylist(CACHED_PLAYLIST_ID);
+    /**
+     * @return the track version of the playlist with the given id, which changes whenever one of
+     *         its tracks is added, removed or moved, or 0 if there is no such playlist
+     */
+    public long getTrackVersion(long playlistId) {
+        return DatabaseUtils.longForQuery(mDatabase, "SELECT IFNULL(MAX("
+                + TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_TRACKVERSION + "), 0) FROM "
+                + TomahawkSQLiteHelper.TABLE_USERPLAYLISTS + " WHERE "
+                + TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_ID + " = " + playlistId, null);
+    }
+
+    public CustomPlaylist getUserPlaylist(long playlistId) {
+        ArrayList<CustomPlaylist> playlists = getUserPlaylists(
+                "p.`" + TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_ID + "` = " + playlistId);
+        if (playlists.size() > 0) {
+            return playlists.get(0);
+        }
+        return null;
     }
 
-    public ArrayList<CustomPlaylist> getAllUserPlaylists() {
+    /**
+     * Load the playlists matching the given selection together with all of their tracks and
+     * albums through a single JOIN query. The rows are ordered by playlist, so they can be
+     * streamed into one CustomPlaylist after the other.
+     *
+     * @param selection the WHERE clause on the "p" (userplaylists) table, or null to load all
+     *                  playlists
+     * @return the list of loaded CustomPlaylists
+     */
+    private ArrayList<CustomPlaylist> getUserPlaylists(String selection) {
+        long startTime = System.currentTimeMillis();
         ArrayList<CustomPlaylist> playListList = new ArrayList<CustomPlaylist>();
-        Cursor userplaylistsCursor = mDatabase
-                .query(TomahawkSQLiteHelper.TABLE_USERPLAYLISTS, mAllUserPlaylistsColumns, null,
-                        null, null, null, null);
-        userplaylistsCursor.moveToFirst();
-        while (!userplaylistsCursor.isAfterLast()) {
-            CustomPlaylist customPlaylist = getUserPlaylist(userplaylistsCursor.getLong(0));
-            customPlaylist.setName(userplaylistsCursor.getString(1));
-            playListList.add(customPlaylist);
-            userplaylistsCursor.moveToNext();
+        Cursor cursor = mDatabase.rawQuery(
+                mJoinedPlaylistsQuery + (selection != null ? " WHERE " + selection : "")
+                        + " ORDER BY p.`" + TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_ID
+                        + "`, t.`" + TomahawkSQLiteHelper.TRACKS_COLUMN_POSITION + "`, t.`"
+                        + TomahawkSQLiteHelper.TRACKS_COLUMN_ID + "`", null);
+        // Albums and artists are shared by all tracks referencing them
+        HashMap<Long, Album> albums = new HashMap<Long, Album>();
+        HashMap<Long, Artist> artists = new HashMap<Long, Artist>();
+        try {
+            int trackCount = 0;
+            long currentPlaylistId = 0;
+            String currentPlaylistName = null;
+            int currentTrackIndex = 0;
+            ArrayList<Track> trackList = null;
+            while (cursor.moveToNext()) {
+                long playlistId = cursor.getLong(COLUMN_PLAYLIST_ID);
+                if (trackList == null || playlistId != currentPlaylistId) {
+                    if (trackList != null) {
+                        playListList.add(buildUserPlaylist(currentPlaylistId, currentPlaylistName,
+                                trackList, currentTrackIndex));
+                    }
+                    currentPlaylistId = playlistId;
+                    currentPlaylistName = cursor.getString(COLUMN_PLAYLIST_NAME);
+                    currentTrackIndex = cursor.getInt(COLUMN_PLAYLIST_CURRENTTRACKINDEX);
+                    trackList = new ArrayList<Track>();
+                }
+                // Playlists without any tracks still show up once because of the LEFT JOIN
+                if (!cursor.isNull(COLUMN_TRACK_ID)) {
+                    trackList.add(buildTrack(cursor, albums, artists));
+                    trackCount++;
+                }
+            }
+            if (trackList != null) {
+                playListList.add(buildUserPlaylist(currentPlaylistId, currentPlaylistName,
+                        trackList, currentTrackIndex));
+            }
+            Log.d(TAG, "getUserPlaylists: loaded " + playListList.size() + " playlists with "
+                    + trackCount + " tracks in " + (System.currentTimeMillis() - startTime)
+                    + "ms");
+        } finally {
+            cursor.close();
         }
-        userplaylistsCursor.close();
         return playListList;
     }
 
-    public CustomPlaylist getUserPlaylist(long playlistId) {
-        ArrayList<Track> trackList;
-        int currentTrackIndex;
-        Cursor userplaylistsCursor = mDatabase
-                .query(TomahawkSQLiteHelper.TABLE_USERPLAYLISTS, mAllUserPlaylistsColumns,
-                        TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_ID + " = " + playlistId, null,
-                        null, null, null);
-        if (userplaylistsCursor.moveToFirst()) {
-            currentTrackIndex = userplaylistsCursor.getInt(2);
-            long iduserplaylistcollection = userplaylistsCursor.getLong(0);
-            Cursor tracksCursor = mDatabase
-                    .query(TomahawkSQLiteHelper.TABLE_TRACKS, mAllTracksColumns,
-                            TomahawkSQLiteHelper.TRACKS_COLUMN_IDUSERPLAYLISTS + " = "
-                                    + iduserplaylistcollection, null, null, null, null);
-            trackList = new ArrayList<Track>();
-            tracksCursor.moveToFirst();
-            while (!tracksCursor.isAfterLast()) {
-                Track track = new Track();
-                track.setId(tracksCursor.getLong(0));
-                track.setName(tracksCursor.getString(2));
-
-                Cursor albumsCursor = mDatabase
-                        .query(TomahawkSQLiteHelper.TABLE_ALBUMS, mAllAlbumsColumns,
-                                TomahawkSQLiteHelper.ALBUMS_COLUMN_ID + " = " + tracksCursor
-                                        .getString(3), null, null, null, null);
-                if (albumsCursor.moveToFirst()) {
-                    Album album = new Album();
-                    album.setName(albumsCursor.getString(1));
-                    album.setAlbumArtPath(albumsCursor.getString(2));
-                    album.setFirstYear(albumsCursor.getString(3));
-                    album.setLastYear(albumsCursor.getString(4));
-                    track.setAlbum(album);
+    /**
+     * Search the names of all stored tracks, their albums and their artists through the full
+     * text index. Every match is ranked by how often each of its columns matches, relative to how
+     * often that column matches in all rows, weighted by SEARCH_COLUMN_WEIGHTS. SQLite can't rank
+     * by matchinfo() itself, so all matches are ranked first and only the best
+     * SEARCH_MAX_CANDIDATES of them are loaded with their albums and artists. A track, which has
+     * been stored in several playlists, is only returned once.
+     *
+     * @param matchExpression the FTS3 MATCH expression, e.g. "trackname:one* daft*"
+     * @param limit           the maximum number of returned tracks
+     * @return the matching tracks, best match first
+     */
+    public ArrayList<Track> searchTracks(String matchExpression, int limit) {
+        long startTime = System.currentTimeMillis();
+        ArrayList<SearchHit> candidates = new ArrayList<SearchHit>();
+        Cursor cursor = mDatabase.rawQuery(mSearchMatchesQuery, new String[]{matchExpression});
+        try {
+            while (cursor.moveToNext()) {
+                candidates.add(new SearchHit(cursor.getLong(0), rank(cursor.getBlob(1))));
+            }
+        } finally {
+            cursor.close();
+        }
+        int matchCount = candidates.size();
+        Collections.sort(candidates, SEARCH_HIT_COMPARATOR);
+        if (candidates.size() > SEARCH_MAX_CANDIDATES) {
+            candidates = new ArrayList<SearchHit>(candidates.subList(0, SEARCH_MAX_CANDIDATES));
+        }
+        HashMap<Long, Float> ranks = new HashMap<Long, Float>();
+        StringBuilder ids = new StringBuilder("(");
+        for (SearchHit candidate : candidates) {
+            ranks.put(candidate.trackId, candidate.rank);
+            if (ids.length() > 1) {
+                ids.append(',');
+            }
+            ids.append(candidate.trackId);
+        }
+        ids.append(')');
+
+        HashMap<String, SearchHit> hits = new HashMap<String, SearchHit>();
+        if (!candidates.isEmpty()) {
+            HashMap<Long, Album> albums = new HashMap<Long, Album>();
+            HashMap<Long, Artist> artists = new HashMap<Long, Artist>();
+            cursor = mDatabase.rawQuery(mSearchTracksQuery + ids, null);
+            try {
+                while (cursor.moveToNext()) {
+                    long trackId = cursor.getLong(COLUMN_TRACK_ID);
+                    String key = cursor.getInt(COLUMN_TRACK_RESOLVERID) + ":" + (
+                            cursor.isNull(COLUMN_TRACK_PATH) ? "#" + trackId
+                                    : cursor.getString(COLUMN_TRACK_PATH));
+                    float rank = ranks.get(trackId);
+                    SearchHit hit = hits.get(key);
+                    if (hit == null || hit.rank < rank) {
+                        hits.put(key, new SearchHit(buildTrack(cursor, albums, artists), rank));
+                    }
                 }
-                albumsCursor.close();
-
-                Artist artist = new Artist();
-                artist.setName(tracksCursor.getString(4));
-                track.setArtist(artist);
-
-                track.setPath(tracksCursor.getString(5));
-                track.setBitrate(tracksCursor.getInt(6));
-                track.setDuration(tracksCursor.getInt(7));
-                track.setSize(tracksCursor.getInt(8));
-                track.setTrackNumber(tracksCursor.getInt(9));
-                track.setYear(tracksCursor.getInt(10));
-                track.setResolver(mPipeLine.getResolver(tracksCursor.getInt(11)));
-                track.setLinkUrl(tracksCursor.getString(12));
-                track.setPurchaseUrl(tracksCursor.getString(13));
-                track.setScore(tracksCursor.getFloat(14));
-                trackList.add(track);
-                tracksCursor.moveToNext();
+            } finally {
+                cursor.close();
             }
-            CustomPlaylist customPlaylist = CustomPlaylist
-                    .fromTrackList(userplaylistsCursor.getString(1), trackList, currentTrackIndex);
-            customPlaylist.setId(userplaylistsCursor.getLong(0));
-            tracksCursor.close();
-            userplaylistsCursor.close();
-            return customPlaylist;
         }
-        userplaylistsCursor.close();
-        return null;
+        ArrayList<SearchHit> sortedHits = new ArrayList<SearchHit>(hits.values());
+        Collections.sort(sortedHits, SEARCH_HIT_COMPARATOR);
+        ArrayList<Track> trackList = new ArrayList<Track>(Math.min(limit, sortedHits.size()));
+        for (int i = 0; i < sortedHits.size() && i < limit; i++) {
+            trackList.add(sortedHits.get(i).track);
+        }
+        Log.d(TAG, "searchTracks: found " + trackList.size() + " of " + hits.size()
+                + " tracks out of " + matchCount + " matches in " + (System.currentTimeMillis()
+                - startTime) + "ms");
+        return trackList;
+    }
+
+    /**
+     * Calculate the rank of a single row from the result of the FTS3 function matchinfo(). It
+     * consists of the number of phrases and columns, followed by the number of hits in this row,
+     * the number of hits in all rows and the number of rows with hits, for every phrase and
+     * column. All values are 32 bit integers in the byte order of the machine.
+     */
+    private static float rank(byte[] matchinfo) {
+        IntBuffer values = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder())
+                .asIntBuffer();
+        int phraseCount = values.get(0);
+        int columnCount = values.get(1);
+        float rank = 0f;
+        for (int phrase = 0; phrase < phraseCount; phrase++) {
+            for (int column = 0; column < columnCount; column++) {
+                int offset = 2 + 3 * (phrase * columnCount + column);
+                int hitsInRow = values.get(offset);
+                int hitsInAllRows = values.get(offset + 1);
+                if (hitsInRow > 0 && column < SEARCH_COLUMN_WEIGHTS.length) {
+                    rank += SEARCH_COLUMN_WEIGHTS[column] * hitsInRow / hitsInAllRows;
+                }
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * A ranked match of the full text index, before or after its track has been loaded
+     */
+    private static class SearchHit {
+
+        private final long trackId;
+
+        private final Track track;
+
+        private final float rank;
+
+        private SearchHit(long trackId, float rank) {
+            this.trackId = trackId;
+            this.track = null;
+            this.rank = rank;
+        }
+
+        private SearchHit(Track track, float rank) {
+            this.trackId = track.getId();
+            this.track = track;
+            this.rank = rank;
+        }
+    }
+
+    // Orders SearchHits by rank, best first
+    private static final Comparator<SearchHit> SEARCH_HIT_COMPARATOR
+            = new Comparator<SearchHit>() {
+        @Override
+        public int compare(SearchHit lhs, SearchHit rhs) {
+            return Float.compare(rhs.rank, lhs.rank);
+        }
+    };
+
+    private CustomPlaylist buildUserPlaylist(long playlistId, String name,
+            ArrayList<Track> trackList, int currentTrackIndex) {
+        CustomPlaylist customPlaylist = CustomPlaylist
+                .fromTrackList(name, trackList, currentTrackIndex);
+        customPlaylist.setId(playlistId);
+        return customPlaylist;
+    }
+
+    private Track buildTrack(Cursor cursor, HashMap<Long, Album> albums,
+            HashMap<Long, Artist> artists) {
+        Track track = new Track();
+        track.setId(cursor.getLong(COLUMN_TRACK_ID));
+        track.setName(cursor.getString(COLUMN_TRACK_NAME));
+        if (!cursor.isNull(COLUMN_ALBUM_ID)) {
+            Album album = albums.get(cursor.getLong(COLUMN_ALBUM_ID));
+            if (album == null) {
+                album = new Album();
+                // An album without a name is stored with an empty name, see upsertAlbum
+                String albumName = cursor.getString(COLUMN_ALBUM_NAME);
+                album.setName(TextUtils.isEmpty(albumName) ? null : albumName);
+                album.setAlbumArtPath(cursor.getString(COLUMN_ALBUM_ALBUMART));
+                album.setFirstYear(cursor.getString(COLUMN_ALBUM_FIRSTYEAR));
+                album.setLastYear(cursor.getString(COLUMN_ALBUM_LASTYEAR));
+                albums.put(cursor.getLong(COLUMN_ALBUM_ID), album);
+            }
+            track.setAlbum(album);
+        }
+        // Tracks without an artist share an Artist without a name, with the id 0
+        long artistId = cursor.isNull(COLUMN_ARTIST_ID) ? 0 : cursor.getLong(COLUMN_ARTIST_ID);
+        Artist artist = artists.get(artistId);
+        if (artist == null) {
+            artist = new Artist();
+            artist.setName(cursor.getString(COLUMN_ARTIST_NAME));
+            artists.put(artistId, artist);
+        }
+        track.setArtist(artist);
+        track.setPath(cursor.getString(COLUMN_TRACK_PATH));
+        track.setBitrate(cursor.getInt(COLUMN_TRACK_BITRATE));
+        track.setDuration(cursor.getInt(COLUMN_TRACK_DURATION));
+        track.setSize(cursor.getInt(COLUMN_TRACK_SIZE));
+        track.setTrackNumber(cursor.getInt(COLUMN_TRACK_TRACKNUMBER));
+        track.setYear(cursor.getInt(COLUMN_TRACK_YEAR));
+        track.setResolver(mPipeLine.getResolver(cursor.getInt(COLUMN_TRACK_RESOLVERID)));
+        track.setLinkUrl(cursor.getString(COLUMN_TRACK_LINKURL));
+        track.setPurchaseUrl(cursor.getString(COLUMN_TRACK_PURCHASEURL));
+        track.setScore(cursor.getFloat(COLUMN_TRACK_SCORE));
+        return track;
     }
 
     public void deleteUserPlaylist(long playlistId) {
-        Cursor tracksCursor = mDatabase.query(TomahawkSQLiteHelper.TABLE_TRACKS, mAllTracksColumns,
-                TomahawkSQLiteHelper.TRACKS_COLUMN_IDUSERPLAYLISTS + " = " + playlistId, null, null,
-                null, null);
-        tracksCursor.moveToFirst();
-        while (!tracksCursor.isAfterLast()) {
-            mDatabase.delete(TomahawkSQLiteHelper.TABLE_ALBUMS,
-                    TomahawkSQLiteHelper.ALBUMS_COLUMN_ID + " = " + tracksCursor.getLong(3), null);
-            tracksCursor.moveToNext();
+        mDatabase.beginTransaction();
+        try {
+            deleteTracks(playlistId);
+            mDatabase.delete(TomahawkSQLiteHelper.TABLE_USERPLAYLISTS,
+                    TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_ID + " = " + playlistId, null);
+            deleteUnusedAlbumsAndArtists();
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
         }
-        tracksCursor.close();
-        mDatabase.delete(TomahawkSQLiteHelper.TABLE_TRACKS,
-                TomahawkSQLiteHelper.TRACKS_COLUMN_IDUSERPLAYLISTS + " = " + playlistId, null);
-        mDatabase.delete(TomahawkSQLiteHelper.TABLE_USERPLAYLISTS,
-                TomahawkSQLiteHelper.TRACKS_COLUMN_ID + " = " + playlistId, null);
     }
 
     public void deleteTrackInUserPlaylist(long playlistId, long trackId) {
@@ -262,61 +723,327 @@ public class UserPlaylistsDataSource {
                         TomahawkSQLiteHelper.TRACKS_COLUMN_ID + " = " + trackId, null, null, null,
                 null);
         if (tracksCursor.moveToFirst()) {
-            mDatabase.delete(TomahawkSQLiteHelper.TABLE_ALBUMS,
-                    TomahawkSQLiteHelper.ALBUMS_COLUMN_ID + " = " + tracksCursor.getLong(3), null);
+            deleteTrackAtPos(playlistId, tracksCursor.getInt(tracksCursor
+                    .getColumnIndex(TomahawkSQLiteHelper.TRACKS_COLUMN_POSITION)));
         }
         tracksCursor.close();
-        mDatabase.delete(TomahawkSQLiteHelper.TABLE_TRACKS,
-                TomahawkSQLiteHelper.TRACKS_COLUMN_IDUSERPLAYLISTS + " = " + playlistId + " and " +
-                        TomahawkSQLiteHelper.TRACKS_COLUMN_ID + " = " + trackId, null);
     }
 
-    public void addTracksToUserPlaylist(long playlistId, ArrayList<Track> tracks) {
+    /**
+     * Insert the given tracks into the playlist with the given id at the given position and move
+     * all following tracks back.
+     */
+    public void insertTracksAtPos(long playlistId, int position, List<Track> tracks) {
+        mDatabase.beginTransaction();
+        try {
+            shiftPositions(playlistId, position, Integer.MAX_VALUE, tracks.size());
+            insertTracks(playlistId, tracks, 0, tracks.size(), position);
+            increaseTrackVersion(playlistId);
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    /**
+     * Delete the track at the given position of the playlist with the given id and move all
+     * following tracks forward.
+     */
+    public void deleteTrackAtPos(long playlistId, int position) {
+        String selection = TomahawkSQLiteHelper.TRACKS_COLUMN_IDUSERPLAYLISTS + " = " + playlistId
+                + " AND " + TomahawkSQLiteHelper.TRACKS_COLUMN_POSITION + " = " + position;
+        mDatabase.beginTransaction();
+        try {
+            mDatabase.delete(TomahawkSQLiteHelper.TABLE_TRACKS, selection, null);
+            shiftPositions(playlistId, position + 1, Integer.MAX_VALUE, -1);
+            increaseTrackVersion(playlistId);
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    /**
+     * Move the track at position "from" of the playlist with the given id to position "to".
+     */
+    public void moveTrack(long playlistId, int from, int to) {
+        if (from == to) {
+            return;
+        }
+        String where = " WHERE " + TomahawkSQLiteHelper.TRACKS_COLUMN_IDUSERPLAYLISTS + " = "
+                + playlistId + " AND " + TomahawkSQLiteHelper.TRACKS_COLUMN_POSITION + " = ";
+        mDatabase.beginTransaction();
+        try {
+            // Park the moved track at -1, so that it isn't shifted together with the others
+            mDatabase.execSQL("UPDATE " + TomahawkSQLiteHelper.TABLE_TRACKS + " SET "
+                    + TomahawkSQLiteHelper.TRACKS_COLUMN_POSITION + " = -1" + where + from);
+            if (from < to) {
+                shiftPositions(playlistId, from + 1, to + 1, -1);
+            } else {
+                shiftPositions(playlistId, to, from, 1);
+            }
+            mDatabase.execSQL("UPDATE " + TomahawkSQLiteHelper.TABLE_TRACKS + " SET "
+                    + TomahawkSQLiteHelper.TRACKS_COLUMN_POSITION + " = " + to + where + "-1");
+            increaseTrackVersion(playlistId);
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    public void setCurrentTrackIndex(long playlistId, int currentTrackIndex) {
         ContentValues values = new ContentValues();
+        values.put(TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_CURRENTTRACKINDEX, currentTrackIndex);
+        mDatabase.update(TomahawkSQLiteHelper.TABLE_USERPLAYLISTS, values,
+                TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_ID + " = " + playlistId, null);
+    }
+
+    /**
+     * Store the shuffle state of the given playlist, or clear it, if the given seed is null.
+     */
+    public void setShuffleState(long playlistId, Long shuffleSeed, int shuffleFirstIndex) {
+        ContentValues values = new ContentValues();
+        if (shuffleSeed != null) {
+            values.put(TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_SHUFFLESEED, shuffleSeed);
+            values.put(TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_SHUFFLEFIRSTINDEX,
+                    shuffleFirstIndex);
+        } else {
+            values.putNull(TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_SHUFFLESEED);
+            values.putNull(TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_SHUFFLEFIRSTINDEX);
+        }
+        mDatabase.update(TomahawkSQLiteHelper.TABLE_USERPLAYLISTS, values,
+                TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_ID + " = " + playlistId, null);
+    }
+
+    public void beginTransaction() {
+        mDatabase.beginTransaction();
+    }
+
+    public void beginTransactionWithListener(SQLiteTransactionListener transactionListener) {
+        mDatabase.beginTransactionWithListener(transactionListener);
+    }
+
+    public void setTransactionSuccessful() {
+        mDatabase.setTransactionSuccessful();
+    }
+
+    public void endTransaction() {
+        mDatabase.endTransaction();
+    }
+
+    /**
+     * Add the given delta to the positions of all tracks of the playlist with the given id, whose
+     * position is in the range from start (inclusive) to end (exclusive).
+     */
+    private void shiftPositions(long playlistId, int start, int end, int delta) {
+        mDatabase.execSQL("UPDATE " + TomahawkSQLiteHelper.TABLE_TRACKS + " SET "
+                + TomahawkSQLiteHelper.TRACKS_COLUMN_POSITION + " = "
+                + TomahawkSQLiteHelper.TRACKS_COLUMN_POSITION + " + " + delta + " WHERE "
+                + TomahawkSQLiteHelper.TRACKS_COLUMN_IDUSERPLAYLISTS + " = " + playlistId + " AND "
+                + TomahawkSQLiteHelper.TRACKS_COLUMN_POSITION + " >= " + start + " AND "
+                + TomahawkSQLiteHelper.TRACKS_COLUMN_POSITION + " < " + end);
+    }
+
+    /**
+     * Increase the track version of the playlist with the given id, which has to be done by every
+     * method adding, removing or moving its tracks.
+     */
+    private void increaseTrackVersion(long playlistId) {
+        mDatabase.execSQL("UPDATE " + TomahawkSQLiteHelper.TABLE_USERPLAYLISTS + " SET "
+                + TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_TRACKVERSION + " = "
+                + TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_TRACKVERSION + " + 1 WHERE "
+                + TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_ID + " = " + playlistId);
+    }
+
+    private int getTrackCount(long playlistId) {
+        return (int) DatabaseUtils.longForQuery(mDatabase, "SELECT COUNT(*) FROM "
+                + TomahawkSQLiteHelper.TABLE_TRACKS + " WHERE "
+                + TomahawkSQLiteHelper.TRACKS_COLUMN_IDUSERPLAYLISTS + " = " + playlistId, null);
+    }
+
+    /**
+     * Append the given tracks to the playlist with the given id in a single transaction. Callers
+     * run it as one write task of the {@link DatabaseExecutor}, which may batch it together with
+     * other writes into an even bigger transaction. Huge lists are not committed in chunks, since
+     * a chunk's transaction would only be nested into the executor's and commit nothing.
+     */
+    public void addTracksToUserPlaylist(long playlistId, ArrayList<Track> tracks) {
         Cursor userplaylistsCursor = mDatabase
                 .query(TomahawkSQLiteHelper.TABLE_USERPLAYLISTS, mAllUserPlaylistsColumns,
                         TomahawkSQLiteHelper.USERPLAYLISTS_COLUMN_ID + " = " + playlistId, null,
                         null, null, null);
-        if (userplaylistsCursor.moveToFirst()) {
-            for (Track track : tracks) {
-                Album album = track.getAlbum();
-                long albumInsertId = -1;
-                if (album != null) {
-                    values.clear();
-                    values.put(TomahawkSQLiteHelper.ALBUMS_COLUMN_NAME, album.getName());
-                    values.put(TomahawkSQLiteHelper.ALBUMS_COLUMN_ALBUMART,
-                            album.getAlbumArtPath());
-                    values.put(TomahawkSQLiteHelper.ALBUMS_COLUMN_FIRSTYEAR, album.getFirstYear());
-                    values.put(TomahawkSQLiteHelper.ALBUMS_COLUMN_LASTYEAR, album.getLastYear());
-                    albumInsertId = mDatabase
-                            .insert(TomahawkSQLiteHelper.TABLE_ALBUMS, null, values);
-                }
-                values.clear();
-                values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_IDUSERPLAYLISTS, playlistId);
-                values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_TRACKNAME, track.getName());
-                if (albumInsertId >= 0) {
-                    values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_IDALBUMS, albumInsertId);
-                }
-                if (track.getArtist() != null) {
-                    values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_ARTISTNAME,
-                            track.getArtist().getName());
-                }
-                values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_PATH, track.getPath());
-                values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_BITRATE, track.getBitrate());
-                values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_DURATION, track.getDuration());
-                values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_SIZE, track.getSize());
-                values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_TRACKNUMBER, track.getTrackNumber());
-                values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_YEAR, track.getYear());
-                if (track.getResolver() != null) {
-                    values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_RESOLVERID,
-                            track.getResolver().getId());
+        boolean exists = userplaylistsCursor.moveToFirst();
+        userplaylistsCursor.close();
+        if (exists) {
+            long startTime = System.currentTimeMillis();
+            mDatabase.beginTransaction();
+            try {
+                insertTracks(playlistId, tracks, 0, tracks.size(), getTrackCount(playlistId));
+                increaseTrackVersion(playlistId);
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+            logThroughput("addTracksToUserPlaylist", tracks.size(), startTime);
+        }
+    }
+
+    /**
+     * Delete all tracks of the playlist with the given id. Has to be called inside a transaction.
+     */
+    private void deleteTracks(long playlistId) {
+        mDatabase.delete(TomahawkSQLiteHelper.TABLE_TRACKS,
+                TomahawkSQLiteHelper.TRACKS_COLUMN_IDUSERPLAYLISTS + " = " + playlistId, null);
+    }
+
+    /**
+     * Delete all albums and artists, which aren't referenced anymore. This has to look at every
+     * track, so it's only done when a whole playlist is deleted. Albums and artists left over by
+     * removing single tracks are shared, so their number is bounded by the number of distinct
+     * albums and artists ever stored.
+     */
+    private void deleteUnusedAlbumsAndArtists() {
+        mDatabase.delete(TomahawkSQLiteHelper.TABLE_ALBUMS,
+                TomahawkSQLiteHelper.ALBUMS_COLUMN_ID + " NOT IN (SELECT "
+                        + TomahawkSQLiteHelper.TRACKS_COLUMN_IDALBUMS + " FROM "
+                        + TomahawkSQLiteHelper.TABLE_TRACKS + " WHERE "
+                        + TomahawkSQLiteHelper.TRACKS_COLUMN_IDALBUMS + " IS NOT NULL)", null);
+        mDatabase.delete(TomahawkSQLiteHelper.TABLE_ARTISTS,
+                TomahawkSQLiteHelper.ARTISTS_COLUMN_ID + " NOT IN (SELECT "
+                        + TomahawkSQLiteHelper.TRACKS_COLUMN_IDARTISTS + " FROM "
+                        + TomahawkSQLiteHelper.TABLE_TRACKS + " WHERE "
+                        + TomahawkSQLiteHelper.TRACKS_COLUMN_IDARTISTS + " IS NOT NULL) AND "
+                        + TomahawkSQLiteHelper.ARTISTS_COLUMN_ID + " NOT IN (SELECT "
+                        + TomahawkSQLiteHelper.ALBUMS_COLUMN_IDARTISTS + " FROM "
+                        + TomahawkSQLiteHelper.TABLE_ALBUMS + ")", null);
+    }
+
+    /**
+     * Insert the tracks from start (inclusive) to end (exclusive) of the given list into the
+     * playlist with the given id, using the compiled statements. Their albums and artists are
+     * looked up and only inserted, if they aren't stored yet. The first inserted track gets the
+     * given position. Has to be called inside a transaction.
+     */
+    private void insertTracks(long playlistId, List<Track> tracks, int start, int end,
+            int firstPosition) {
+        if (mInsertTrackStatement == null) {
+            mInsertTrackStatement = mDatabase.compileStatement(INSERT_TRACK);
+            mSelectArtistStatement = mDatabase.compileStatement(SELECT_ARTIST);
+            mInsertArtistStatement = mDatabase.compileStatement(INSERT_ARTIST);
+            mSelectAlbumStatement = mDatabase.compileStatement(SELECT_ALBUM);
+            mInsertAlbumStatement = mDatabase.compileStatement(INSERT_ALBUM);
+            mUpdateAlbumStatement = mDatabase.compileStatement(UPDATE_ALBUM);
+        }
+        // Most consecutive tracks share their album and artist, so remember the ids for this call
+        HashMap<String, Long> artistIds = new HashMap<String, Long>();
+        IdentityHashMap<Album, Long> albumIds = new IdentityHashMap<Album, Long>();
+        for (int i = start; i < end; i++) {
+            Track track = tracks.get(i);
+            long artistId = 0;
+            if (track.getArtist() != null && track.getArtist().getName() != null) {
+                artistId = upsertArtist(track.getArtist().getName(), artistIds);
+            }
+            long albumId = 0;
+            Album album = track.getAlbum();
+            if (album != null) {
+                Long cachedAlbumId = albumIds.get(album);
+                if (cachedAlbumId == null) {
+                    cachedAlbumId = upsertAlbum(album, artistId);
+                    albumIds.put(album, cachedAlbumId);
                 }
-                values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_LINKURL, track.getLinkUrl());
-                values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_PURCHASEURL, track.getPurchaseUrl());
-                values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_SCORE, track.getScore());
-                mDatabase.insert(TomahawkSQLiteHelper.TABLE_TRACKS, null, values);
+                albumId = cachedAlbumId;
+            }
+            mInsertTrackStatement.clearBindings();
+            mInsertTrackStatement.bindLong(1, playlistId);
+            bindString(mInsertTrackStatement, 2, track.getName());
+            if (albumId > 0) {
+                mInsertTrackStatement.bindLong(3, albumId);
             }
+            if (artistId > 0) {
+                mInsertTrackStatement.bindLong(4, artistId);
+            }
+            bindString(mInsertTrackStatement, 5, track.getPath());
+            mInsertTrackStatement.bindLong(6, track.getBitrate());
+            mInsertTrackStatement.bindLong(7, track.getDuration());
+            mInsertTrackStatement.bindLong(8, track.getSize());
+            mInsertTrackStatement.bindLong(9, track.getTrackNumber());
+            mInsertTrackStatement.bindLong(10, track.getYear());
+            if (track.getResolver() != null) {
+                mInsertTrackStatement.bindLong(11, track.getResolver().getId());
+            }
+            bindString(mInsertTrackStatement, 12, track.getLinkUrl());
+            bindString(mInsertTrackStatement, 13, track.getPurchaseUrl());
+            mInsertTrackStatement.bindDouble(14, track.getScore());
+            mInsertTrackStatement.bindLong(15, firstPosition + i - start);
+            mInsertTrackStatement.executeInsert();
         }
-        userplaylistsCursor.close();
     }
+
+    /**
+     * @return the id of the artist with the given name, which is inserted if it doesn't exist yet
+     */
+    private long upsertArtist(String name, HashMap<String, Long> artistIds) {
+        Long artistId = artistIds.get(name);
+        if (artistId == null) {
+            mSelectArtistStatement.bindString(1, name);
+            try {
+                artistId = mSelectArtistStatement.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                mInsertArtistStatement.bindString(1, name);
+                artistId = mInsertArtistStatement.executeInsert();
+            }
+            artistIds.put(name, artistId);
+        }
+        return artistId;
+    }
+
+    /**
+     * @return the id of the given album by the artist with the given id, which is inserted if it
+     *         doesn't exist yet. Otherwise its album art and years are updated, if they are known.
+     *         An album without a name is stored with an empty name.
+     */
+    private long upsertAlbum(Album album, long artistId) {
+        String albumName = album.getName() != null ? album.getName() : "";
+        mSelectAlbumStatement.bindString(1, albumName);
+        mSelectAlbumStatement.bindLong(2, artistId);
+        try {
+            long albumId = mSelectAlbumStatement.simpleQueryForLong();
+            if (album.getAlbumArtPath() != null || album.getFirstYear() != null
+                    || album.getLastYear() != null) {
+                mUpdateAlbumStatement.clearBindings();
+                bindString(mUpdateAlbumStatement, 1, album.getAlbumArtPath());
+                bindString(mUpdateAlbumStatement, 2, album.getFirstYear());
+                bindString(mUpdateAlbumStatement, 3, album.getLastYear());
+                mUpdateAlbumStatement.bindLong(4, albumId);
+                mUpdateAlbumStatement.execute();
+            }
+            return albumId;
+        } catch (SQLiteDoneException e) {
+            mInsertAlbumStatement.clearBindings();
+            mInsertAlbumStatement.bindString(1, albumName);
+            mInsertAlbumStatement.bindLong(2, artistId);
+            bindString(mInsertAlbumStatement, 3, album.getAlbumArtPath());
+            bindString(mInsertAlbumStatement, 4, album.getFirstYear());
+            bindString(mInsertAlbumStatement, 5, album.getLastYear());
+            return mInsertAlbumStatement.executeInsert();
+        }
+    }
+
+    /**
+     * SQLiteStatement.bindString doesn't accept null, so bind NULL explicitly in that case
+     */
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static void logThroughput(String method, int trackCount, long startTime) {
+        long duration = System.currentTimeMillis() - startTime;
+        Log.d(TAG, method + ": wrote " + trackCount + " tracks in " + duration + "ms ("
+                + (trackCount * 1000L / Math.max(duration, 1)) + " tracks/s)");
+    }
+
 }
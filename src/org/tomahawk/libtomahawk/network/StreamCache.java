@@ -0,0 +1,394 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.network;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A disk cache for remote audio streams, used by the {@link StreamProxy}. Every stream is stored
+ * as one data file, which holds the bytes downloaded so far, starting at offset 0, and one small
+ * metadata file with the total length and the content type reported by the origin. Partially
+ * downloaded streams are kept, so that a later request only has to fetch the missing tail.
+ *
+ * Entries are evicted in least recently used order, whenever the size of all data files exceeds
+ * the quota. Entries, which are currently opened by a connection, are never evicted. The order is
+ * persisted through the files' modification times, so it survives a restart.
+ */
+public class StreamCache {
+
+    private static final String TAG = StreamCache.class.getName();
+
+    private static final String DATA_SUFFIX = ".data";
+
+    private static final String META_SUFFIX = ".meta";
+
+    private final File mDirectory;
+
+    private final long mQuota;
+
+    // Access ordered, so that iteration starts with the least recently used entry
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    // The sum of the recorded lengths of all data files, so that trimming doesn't have to look at
+    // every file
+    private long mSize;
+
+    /**
+     * A single cached stream.
+     */
+    public static class Entry {
+
+        private final String mKey;
+
+        private final File mDataFile;
+
+        private final File mMetaFile;
+
+        private long mTotalLength = -1;
+
+        private String mContentType;
+
+        private int mOpenCount;
+
+        private boolean mWriting;
+
+        // Set, if the stream has changed at the origin while another connection was writing it
+        private boolean mInvalidated;
+
+        // The length of the data file, when it has been looked at last
+        private long mRecordedLength;
+
+        private Entry(File directory, String key) {
+            mKey = key;
+            mDataFile = new File(directory, key + DATA_SUFFIX);
+            mMetaFile = new File(directory, key + META_SUFFIX);
+        }
+
+        public String getKey() {
+            return mKey;
+        }
+
+        public File getDataFile() {
+            return mDataFile;
+        }
+
+        /**
+         * @return the number of bytes, which are stored in the data file, starting at offset 0
+         */
+        public long getCachedLength() {
+            return mDataFile.length();
+        }
+
+        /**
+         * @return the total length of the stream as reported by the origin, or -1 if unknown
+         */
+        public synchronized long getTotalLength() {
+            return mTotalLength;
+        }
+
+        public synchronized String getContentType() {
+            return mContentType;
+        }
+
+        /**
+         * @return whether or not the whole stream is stored in the data file
+         */
+        public synchronized boolean isComplete() {
+            return mTotalLength >= 0 && getCachedLength() >= mTotalLength;
+        }
+    }
+
+    /**
+     * Construct a new StreamCache and restore the entries, which are already stored in the given
+     * directory.
+     *
+     * @param directory the directory to store the cached streams in
+     * @param quota     the maximum number of bytes of all data files together
+     */
+    public StreamCache(File directory, long quota) {
+        mDirectory = directory;
+        mQuota = quota;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "StreamCache: unable to create " + mDirectory);
+        }
+        restoreEntries();
+    }
+
+    /**
+     * @return the key, under which the stream with the given url is stored
+     */
+    public static String keyFor(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16));
+                key.append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "keyFor: " + e.getClass() + ": " + e.getLocalizedMessage());
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, "keyFor: " + e.getClass() + ": " + e.getLocalizedMessage());
+        }
+        return Integer.toHexString(url.hashCode());
+    }
+
+    /**
+     * Open the entry for the stream with the given url, creating it if necessary, and mark it as
+     * the most recently used one. An opened entry is never evicted. Every call has to be balanced
+     * by a call to {@link #close(Entry)}.
+     */
+    public synchronized Entry open(String url) {
+        trim();
+        String key = keyFor(url);
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(mDirectory, key);
+            mEntries.put(key, entry);
+            recordLength(entry);
+        }
+        entry.mOpenCount++;
+        long now = System.currentTimeMillis();
+        entry.mDataFile.setLastModified(now);
+        entry.mMetaFile.setLastModified(now);
+        return entry;
+    }
+
+    /**
+     * Close the given entry and evict least recently used entries, until the quota is met again.
+     */
+    public synchronized void close(Entry entry) {
+        entry.mOpenCount--;
+        trim();
+    }
+
+    /**
+     * Try to become the single writer of the given entry. Only one connection at a time appends
+     * to the data file. Others have to fetch the missing bytes without storing them.
+     *
+     * @return true, if the caller is now the writer and has to call {@link #endWrite(Entry)}
+     */
+    public synchronized boolean beginWrite(Entry entry) {
+        if (entry.mWriting) {
+            return false;
+        }
+        entry.mWriting = true;
+        return true;
+    }
+
+    /**
+     * Stop being the writer of the given entry. If the stream has changed at the origin in the
+     * meantime, the stored bytes are dropped now.
+     */
+    public synchronized void endWrite(Entry entry) {
+        entry.mWriting = false;
+        if (entry.mInvalidated) {
+            entry.mInvalidated = false;
+            synchronized (entry) {
+                entry.mTotalLength = -1;
+                entry.mContentType = null;
+            }
+            deleteFiles(entry);
+        }
+        recordLength(entry);
+    }
+
+    /**
+     * Store the total length and the content type of the given entry's stream. If the total
+     * length differs from the one stored before, the stream has changed at the origin and the
+     * stored bytes are dropped. While another connection is writing the entry, they are only
+     * dropped once it has finished, and the stored metadata is kept until then.
+     *
+     * @param isWriter whether or not the caller is the writer of the entry
+     */
+    public synchronized void setMetadata(Entry entry, long totalLength, String contentType,
+            boolean isWriter) {
+        synchronized (entry) {
+            if (entry.mTotalLength >= 0 && entry.mTotalLength != totalLength) {
+                Log.d(TAG, "setMetadata: length of " + entry.mKey + " has changed");
+                if (entry.mWriting && !isWriter) {
+                    entry.mInvalidated = true;
+                    return;
+                }
+                entry.mDataFile.delete();
+                recordLength(entry);
+            }
+            if (entry.mInvalidated) {
+                return;
+            }
+            entry.mTotalLength = totalLength;
+            entry.mContentType = contentType;
+        }
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(entry.mMetaFile);
+            writer.write(totalLength + "\n" + (contentType != null ? contentType : "") + "\n");
+        } catch (IOException e) {
+            Log.e(TAG, "setMetadata: " + e.getClass() + ": " + e.getLocalizedMessage());
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    /**
+     * @return the number of bytes of the stream with the given url, which are cached. Doesn't
+     * count as a use of the entry.
+     */
+    public synchronized long getCachedLength(String url) {
+        // get() would move the entry to the end of the access order
+        String key = keyFor(url);
+        return mEntries.containsKey(key) ? new File(mDirectory, key + DATA_SUFFIX).length() : 0;
+    }
+
+    /**
+     * @return the number of bytes stored in all data files together. Bytes, which are being
+     *         written right now, are only counted once their writer has finished.
+     */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Drop all entries, which are not opened at the moment.
+     */
+    public synchronized void clear() {
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.mOpenCount == 0) {
+                deleteFiles(entry);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Evict least recently used entries, which are not opened, until the quota is met.
+     */
+    private void trim() {
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (mSize > mQuota && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.mOpenCount == 0) {
+                deleteFiles(entry);
+                iterator.remove();
+            }
+        }
+    }
+
+    private void deleteFiles(Entry entry) {
+        Log.d(TAG, "Evicting " + entry.mKey + " from the stream cache");
+        entry.mDataFile.delete();
+        entry.mMetaFile.delete();
+        recordLength(entry);
+    }
+
+    /**
+     * Look at the length of the given entry's data file again and update the total size
+     */
+    private void recordLength(Entry entry) {
+        long length = entry.getCachedLength();
+        mSize += length - entry.mRecordedLength;
+        entry.mRecordedLength = length;
+    }
+
+    /**
+     * Read the entries stored in the cache directory, least recently used first. Data files
+     * without metadata are kept, because the total length will be fetched again anyway.
+     */
+    private void restoreEntries() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        ArrayList<File> dataFiles = new ArrayList<File>();
+        for (File file : files) {
+            if (file.getName().endsWith(DATA_SUFFIX)) {
+                dataFiles.add(file);
+            } else if (file.getName().endsWith(META_SUFFIX) && !new File(mDirectory,
+                    file.getName().replace(META_SUFFIX, DATA_SUFFIX)).exists()) {
+                file.delete();
+            }
+        }
+        File[] sortedFiles = dataFiles.toArray(new File[dataFiles.size()]);
+        Arrays.sort(sortedFiles, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        for (File file : sortedFiles) {
+            String name = file.getName();
+            Entry entry = new Entry(mDirectory, name.substring(0,
+                    name.length() - DATA_SUFFIX.length()));
+            readMetadata(entry);
+            mEntries.put(entry.mKey, entry);
+            recordLength(entry);
+        }
+        trim();
+    }
+
+    private void readMetadata(Entry entry) {
+        if (!entry.mMetaFile.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(entry.mMetaFile));
+            entry.mTotalLength = Long.parseLong(reader.readLine());
+            String contentType = reader.readLine();
+            entry.mContentType = contentType != null && contentType.length() > 0
+                    ? contentType : null;
+        } catch (IOException e) {
+            Log.e(TAG, "readMetadata: " + e.getClass() + ": " + e.getLocalizedMessage());
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "readMetadata: " + e.getClass() + ": " + e.getLocalizedMessage());
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                Log.e(TAG, "closeQuietly: " + e.getClass() + ": " + e.getLocalizedMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,642 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.network;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A streaming HTTP proxy on the loopback interface, which serves remote audio streams to the
+ * MediaPlayer through a {@link StreamCache}. Bytes, which are already cached, are served from
+ * disk. Missing bytes are fetched from the origin with an HTTP Range request and appended to the
+ * cache while they are passed on, so that a replay, a seek back or a retry after an error doesn't
+ * download the stream again. Range requests of the MediaPlayer are answered with 206 responses.
+ *
+ * Every proxy url contains a random token, so that other apps can't use the proxy to fetch
+ * arbitrary urls.
+ */
+public class StreamProxy {
+
+    private static final String TAG = StreamProxy.class.getName();
+
+    private static final String LOOPBACK_ADDRESS = "127.0.0.1";
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+
+    private static final int TIMEOUT = 15000;
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    private static final Pattern CONTENT_RANGE_PATTERN =
+            Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+
+    private final StreamCache mCache;
+
+    private final String mToken;
+
+    private ServerSocket mServerSocket;
+
+    private ExecutorService mConnectionExecutor;
+
+    private final HashSet<Socket> mOpenSockets = new HashSet<Socket>();
+
+    /**
+     * Tells a running prefetch, whether or not it is still needed.
+     */
+    public interface Cancellation {
+
+        /**
+         * @return true, if the prefetch should stop. Called after every buffer.
+         */
+        boolean isCancelled();
+    }
+
+    /**
+     * A parsed request of the MediaPlayer.
+     */
+    private static class Request {
+
+        private String mUrl;
+
+        private boolean mHasRange;
+
+        private long mRangeStart;
+
+        // Inclusive, -1 if the range is open ended
+        private long mRangeEnd = -1;
+    }
+
+    /**
+     * Accepts connections on the loopback interface, until the server socket is closed.
+     */
+    private class Acceptor implements Runnable {
+
+        private final ServerSocket mAcceptingSocket;
+
+        private final ExecutorService mExecutor;
+
+        private Acceptor(ServerSocket serverSocket, ExecutorService executor) {
+            mAcceptingSocket = serverSocket;
+            mExecutor = executor;
+        }
+
+        @Override
+        public void run() {
+            while (!mAcceptingSocket.isClosed()) {
+                Socket socket = null;
+                try {
+                    socket = mAcceptingSocket.accept();
+                    final Socket connection = socket;
+                    mExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            handleConnection(connection);
+                        }
+                    });
+                } catch (IOException e) {
+                    if (!mAcceptingSocket.isClosed()) {
+                        Log.e(TAG, "run: " + e.getClass() + ": " + e.getLocalizedMessage());
+                    }
+                } catch (RejectedExecutionException e) {
+                    closeQuietly(socket);
+                }
+            }
+        }
+    }
+
+    public StreamProxy(StreamCache cache) {
+        mCache = cache;
+        mToken = Long.toHexString(new SecureRandom().nextLong());
+    }
+
+    /**
+     * Bind the proxy to a free port on the loopback interface and start accepting connections.
+     */
+    public synchronized void start() throws IOException {
+        if (mServerSocket != null) {
+            return;
+        }
+        mServerSocket = new ServerSocket(0, 8, InetAddress.getByName(LOOPBACK_ADDRESS));
+        mConnectionExecutor = Executors.newCachedThreadPool();
+        new Thread(new Acceptor(mServerSocket, mConnectionExecutor), TAG).start();
+    }
+
+    /**
+     * Stop accepting connections and close all open ones.
+     */
+    public synchronized void stop() {
+        if (mServerSocket == null) {
+            return;
+        }
+        closeQuietly(mServerSocket);
+        mServerSocket = null;
+        mConnectionExecutor.shutdownNow();
+        mConnectionExecutor = null;
+        synchronized (mOpenSockets) {
+            for (Socket socket : mOpenSockets) {
+                closeQuietly(socket);
+            }
+            mOpenSockets.clear();
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return mServerSocket != null;
+    }
+
+    public StreamCache getCache() {
+        return mCache;
+    }
+
+    /**
+     * @return the url, under which the proxy serves the stream with the given url, or the given
+     * url itself, if the proxy isn't running
+     */
+    public synchronized String getProxyUrl(String url) {
+        if (mServerSocket == null) {
+            return url;
+        }
+        try {
+            return "http://" + LOOPBACK_ADDRESS + ":" + mServerSocket.getLocalPort() + "/"
+                    + mToken + "?url=" + URLEncoder.encode(url, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, "getProxyUrl: " + e.getClass() + ": " + e.getLocalizedMessage());
+            return url;
+        }
+    }
+
+    /**
+     * Make sure, that at least the first bytes of the stream with the given url are cached, so
+     * that the MediaPlayer can start playing it without waiting for the origin. Blocks until the
+     * bytes have been fetched, so it has to be called on a background thread.
+     *
+     * @param url   the url of the stream
+     * @param count the number of bytes to cache, starting at offset 0
+     * @return true, if the requested bytes are cached now
+     */
+    public boolean prefetch(String url, long count) {
+        return prefetch(url, count, null);
+    }
+
+    /**
+     * Like {@link #prefetch(String, long)}, but stops as soon as the given {@link Cancellation}
+     * says so. The bytes fetched until then are kept in the cache.
+     *
+     * @return true, if the requested bytes are cached now
+     */
+    public boolean prefetch(String url, long count, Cancellation cancellation) {
+        StreamCache.Entry entry = mCache.open(url);
+        try {
+            if (entry.isComplete() || entry.getCachedLength() >= count) {
+                return true;
+            }
+            if (!mCache.beginWrite(entry)) {
+                // Another connection is fetching the stream already
+                return false;
+            }
+            try {
+                long offset = entry.getCachedLength();
+                HttpURLConnection connection = openOrigin(url, offset);
+                try {
+                    int responseCode = connection.getResponseCode();
+                    long totalLength;
+                    if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                        Matcher matcher = CONTENT_RANGE_PATTERN.matcher(
+                                String.valueOf(connection.getHeaderField("Content-Range")));
+                        if (!matcher.matches() || Long.parseLong(matcher.group(1)) != offset
+                                || "*".equals(matcher.group(3))) {
+                            return false;
+                        }
+                        totalLength = Long.parseLong(matcher.group(3));
+                    } else if (responseCode == HttpURLConnection.HTTP_OK && offset == 0) {
+                        totalLength = parseLong(connection.getHeaderField("Content-Length"));
+                    } else {
+                        return false;
+                    }
+                    if (totalLength < 0) {
+                        return false;
+                    }
+                    mCache.setMetadata(entry, totalLength, connection.getContentType(), true);
+                    if (entry.getCachedLength() != offset) {
+                        return false;
+                    }
+                    InputStream originIn = new BufferedInputStream(connection.getInputStream());
+                    pump(originIn, entry.getDataFile(), null, count - offset, cancellation);
+                    return entry.getCachedLength() >= count || entry.isComplete();
+                } finally {
+                    connection.disconnect();
+                }
+            } finally {
+                mCache.endWrite(entry);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "prefetch: " + e.getClass() + ": " + e.getLocalizedMessage());
+            return false;
+        } finally {
+            mCache.close(entry);
+        }
+    }
+
+    private void handleConnection(Socket socket) {
+        synchronized (mOpenSockets) {
+            mOpenSockets.add(socket);
+        }
+        try {
+            socket.setSoTimeout(TIMEOUT);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+            Request request = readRequest(in);
+            if (request == null) {
+                writeStatus(out, "400 Bad Request");
+            } else {
+                serve(request, out);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Usually the MediaPlayer dropping the connection, because it seeks or stops
+            Log.d(TAG, "handleConnection: " + e.getClass() + ": " + e.getLocalizedMessage());
+        } finally {
+            closeQuietly(socket);
+            synchronized (mOpenSockets) {
+                mOpenSockets.remove(socket);
+            }
+        }
+    }
+
+    /**
+     * Read and parse the head of a request. Only GET requests for a proxy url with a valid token
+     * are accepted.
+     *
+     * @return the parsed request, or null if it isn't accepted
+     */
+    private Request readRequest(InputStream in) throws IOException {
+        String[] requestLine = readLine(in).split(" ");
+        if (requestLine.length < 2 || !"GET".equals(requestLine[0])) {
+            return null;
+        }
+        String prefix = "/" + mToken + "?url=";
+        if (!requestLine[1].startsWith(prefix)) {
+            return null;
+        }
+        Request request = new Request();
+        request.mUrl = URLDecoder.decode(requestLine[1].substring(prefix.length()), "UTF-8");
+        String line;
+        while ((line = readLine(in)).length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && "range".equals(
+                    line.substring(0, colon).trim().toLowerCase(Locale.US))) {
+                Matcher matcher = RANGE_PATTERN.matcher(line.substring(colon + 1).trim());
+                if (matcher.matches()) {
+                    request.mHasRange = true;
+                    request.mRangeStart = Long.parseLong(matcher.group(1));
+                    if (matcher.group(2).length() > 0) {
+                        request.mRangeEnd = Long.parseLong(matcher.group(2));
+                    }
+                }
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Serve the given request from the cache, if all requested bytes are cached, or from the
+     * origin otherwise.
+     */
+    private void serve(Request request, OutputStream out) throws IOException {
+        StreamCache.Entry entry = mCache.open(request.mUrl);
+        try {
+            long totalLength = entry.getTotalLength();
+            long cachedLength = entry.getCachedLength();
+            if (totalLength >= 0 && (entry.isComplete()
+                    || (request.mRangeEnd >= 0 && request.mRangeEnd < cachedLength))) {
+                if (request.mRangeStart > 0 && request.mRangeStart >= totalLength) {
+                    writeStatus(out, "416 Requested Range Not Satisfiable");
+                    return;
+                }
+                long last = getLastPosition(request, totalLength);
+                writeHeaders(out, request.mHasRange, request.mRangeStart, last, totalLength,
+                        entry.getContentType());
+                copyFromFile(entry.getDataFile(), request.mRangeStart,
+                        last - request.mRangeStart + 1, out);
+            } else {
+                serveFromOrigin(request, entry, out);
+            }
+        } finally {
+            mCache.close(entry);
+        }
+    }
+
+    /**
+     * Serve the given request from the origin. If this connection becomes the writer of the
+     * entry, the origin is asked for the bytes following the cached ones, which are appended to
+     * the cache and passed on after the cached bytes. Otherwise the requested bytes are passed on
+     * without caching them.
+     */
+    private void serveFromOrigin(Request request, StreamCache.Entry entry, OutputStream out)
+            throws IOException {
+        boolean writing = mCache.beginWrite(entry);
+        try {
+            long offset = request.mRangeStart;
+            if (writing) {
+                long cachedLength = entry.getCachedLength();
+                if (request.mRangeStart > cachedLength) {
+                    // Seeked beyond the cached bytes, which can't be appended to the cache
+                    mCache.endWrite(entry);
+                    writing = false;
+                } else {
+                    offset = cachedLength;
+                }
+            }
+            HttpURLConnection connection = openOrigin(request.mUrl, offset);
+            try {
+                int responseCode = connection.getResponseCode();
+                if (responseCode != HttpURLConnection.HTTP_OK
+                        && responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                    Log.d(TAG, "serveFromOrigin: origin responded with " + responseCode);
+                    writeStatus(out, "502 Bad Gateway");
+                    return;
+                }
+                long originOffset = 0;
+                long totalLength = -1;
+                if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                    Matcher matcher = CONTENT_RANGE_PATTERN.matcher(
+                            String.valueOf(connection.getHeaderField("Content-Range")));
+                    if (matcher.matches()) {
+                        originOffset = Long.parseLong(matcher.group(1));
+                        if (!"*".equals(matcher.group(3))) {
+                            totalLength = Long.parseLong(matcher.group(3));
+                        }
+                    }
+                } else {
+                    totalLength = parseLong(connection.getHeaderField("Content-Length"));
+                }
+                if (originOffset > offset) {
+                    writeStatus(out, "502 Bad Gateway");
+                    return;
+                }
+                InputStream originIn = new BufferedInputStream(connection.getInputStream());
+                skipFully(originIn, offset - originOffset);
+
+                String contentType = connection.getContentType();
+                if (totalLength >= 0) {
+                    mCache.setMetadata(entry, totalLength, contentType, writing);
+                    if (writing && entry.getCachedLength() != offset) {
+                        // The stream has changed at the origin and the cached bytes are gone
+                        mCache.endWrite(entry);
+                        writing = false;
+                        if (offset != request.mRangeStart) {
+                            writeStatus(out, "503 Service Unavailable");
+                            return;
+                        }
+                    }
+                    if (request.mRangeStart > 0 && request.mRangeStart >= totalLength) {
+                        writeStatus(out, "416 Requested Range Not Satisfiable");
+                        return;
+                    }
+                } else if (request.mRangeStart > 0) {
+                    // Without the total length there is no valid partial response
+                    writeStatus(out, "502 Bad Gateway");
+                    return;
+                }
+
+                long last = getLastPosition(request, totalLength);
+                writeHeaders(out, request.mHasRange, request.mRangeStart, last, totalLength,
+                        contentType);
+                long remaining = last >= 0 ? last - request.mRangeStart + 1 : Long.MAX_VALUE;
+                if (offset > request.mRangeStart) {
+                    long count = Math.min(remaining, offset - request.mRangeStart);
+                    copyFromFile(entry.getDataFile(), request.mRangeStart, count, out);
+                    remaining -= count;
+                }
+                boolean reachedEnd = pump(originIn, writing ? entry.getDataFile() : null, out,
+                        remaining, null);
+                if (writing && reachedEnd && totalLength < 0) {
+                    mCache.setMetadata(entry, entry.getCachedLength(), contentType, true);
+                }
+            } finally {
+                connection.disconnect();
+            }
+        } finally {
+            if (writing) {
+                mCache.endWrite(entry);
+            }
+        }
+    }
+
+    private static HttpURLConnection openOrigin(String url, long offset) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+        // Transparent gzip would break the byte offsets
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        if (offset > 0) {
+            connection.setRequestProperty("Range", "bytes=" + offset + "-");
+        }
+        return connection;
+    }
+
+    /**
+     * @return the last position to be served for the given request, or -1 if the total length
+     * is unknown
+     */
+    private static long getLastPosition(Request request, long totalLength) {
+        if (totalLength < 0) {
+            return -1;
+        }
+        if (request.mRangeEnd >= 0) {
+            return Math.min(request.mRangeEnd, totalLength - 1);
+        }
+        return totalLength - 1;
+    }
+
+    /**
+     * Copy the given number of bytes from the input to the output, if it isn't null, and append
+     * them to the given file as well, if it isn't null. The file is written first, so that
+     * everything received is kept, even if the MediaPlayer drops the connection. Stops early, if
+     * the given {@link Cancellation} isn't null and says so.
+     *
+     * @return true, if the end of the input has been reached
+     */
+    private static boolean pump(InputStream in, File file, OutputStream out, long count,
+            Cancellation cancellation) throws IOException {
+        FileOutputStream fileOut = file != null ? new FileOutputStream(file, true) : null;
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (count > 0 && (cancellation == null || !cancellation.isCancelled())) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+                if (read < 0) {
+                    return true;
+                }
+                if (fileOut != null) {
+                    fileOut.write(buffer, 0, read);
+                }
+                if (out != null) {
+                    out.write(buffer, 0, read);
+                }
+                count -= read;
+            }
+            return false;
+        } finally {
+            closeQuietly(fileOut);
+        }
+    }
+
+    private static void copyFromFile(File file, long position, long count, OutputStream out)
+            throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.seek(position);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (count > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+                if (read < 0) {
+                    throw new IOException("Cached stream is shorter than expected");
+                }
+                out.write(buffer, 0, read);
+                count -= read;
+            }
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new IOException("Origin stream is shorter than expected");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    private static void writeHeaders(OutputStream out, boolean hasRange, long first, long last,
+            long totalLength, String contentType) throws IOException {
+        StringBuilder headers = new StringBuilder();
+        boolean partial = hasRange && totalLength >= 0;
+        headers.append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+        headers.append("Content-Type: ")
+                .append(contentType != null ? contentType : "application/octet-stream")
+                .append("\r\n");
+        headers.append("Accept-Ranges: bytes\r\n");
+        if (totalLength >= 0) {
+            headers.append("Content-Length: ").append(last - first + 1).append("\r\n");
+            if (partial) {
+                headers.append("Content-Range: bytes ").append(first).append("-").append(last)
+                        .append("/").append(totalLength).append("\r\n");
+            }
+        }
+        headers.append("Connection: close\r\n\r\n");
+        out.write(headers.toString().getBytes("ISO-8859-1"));
+    }
+
+    private static void writeStatus(OutputStream out, String status) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                .getBytes("ISO-8859-1"));
+    }
+
+    /**
+     * Read a single line of the request head, without its line terminator.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("Connection closed within the request head");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+            if (line.size() > MAX_LINE_LENGTH) {
+                throw new IOException("Request head line too long");
+            }
+        }
+        return line.toString("ISO-8859-1");
+    }
+
+    private static long parseLong(String value) {
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "parseLong: " + e.getClass() + ": " + e.getLocalizedMessage());
+            }
+        }
+        return -1;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                Log.e(TAG, "closeQuietly: " + e.getClass() + ": " + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "closeQuietly: " + e.getClass() + ": " + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    private static void closeQuietly(ServerSocket serverSocket) {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "closeQuietly: " + e.getClass() + ": " + e.getLocalizedMessage());
+        }
+    }
+}
@@ -159,9 +159,7 @@ public class DataBaseResolver implements Resolver {
                     .isEmpty(mAlbumName) && TextUtils.isEmpty(mArtistName)) {
                 return filteredResults;
             }
-            List<TomahawkBaseAdapter.TomahawkListItem> inputList
-                    = new ArrayList<TomahawkBaseAdapter.TomahawkListItem>();
-            inputList.addAll(mCollection.getTracks());
+            List<Track> inputList = mCollection.getTrackList();
 
             for (TomahawkBaseAdapter.TomahawkListItem item : inputList) {
                 if (!TextUtils.isEmpty(mFullTextQuery)) {
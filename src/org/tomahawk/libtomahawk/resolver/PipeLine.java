@@ -18,12 +18,17 @@
 package org.tomahawk.libtomahawk.resolver;
 
 import org.tomahawk.tomahawk_android.TomahawkApp;
+import org.tomahawk.tomahawk_android.services.PlaybackMetrics;
 
 import android.content.Intent;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Author Enno Gottschalk <mrmaffen@googlemail.com> Date: 19.01.13
@@ -46,22 +51,39 @@ public class PipeLine {
 
     private static final float MINSCORE = 0.5F;
 
+    // The time in ms, after which a playback query without any results is given up on, so that
+    // its start time isn't kept forever
+    private static final long RESOLVE_START_TIME_MAX_AGE = 60000L;
+
     TomahawkApp mTomahawkApp;
 
-    private ArrayList<Resolver> mResolvers = new ArrayList<Resolver>();
+    // Written under the PipeLine's lock, iterated without it from the resolving threads
+    private CopyOnWriteArrayList<Resolver> mResolvers = new CopyOnWriteArrayList<Resolver>();
 
     private ConcurrentHashMap<String, Query> mQids = new ConcurrentHashMap<String, Query>();
 
     private ConcurrentHashMap<String, String> mQueryMap = new ConcurrentHashMap<String, String>();
 
+    // The uptime in ms, at which each playback query has been handed to the resolvers, until
+    // its first results have been reported
+    private ConcurrentHashMap<String, Long> mResolveStartTimes
+            = new ConcurrentHashMap<String, Long>();
+
     public PipeLine(TomahawkApp tomahawkApp) {
         mTomahawkApp = tomahawkApp;
     }
 
     /**
-     * Add a resolver to the internal list.
+     * Add a resolver to the internal list. A resolver, which has already been added with the same
+     * id, is replaced, so that adding a resolver is idempotent.
      */
-    public void addResolver(Resolver resolver) {
+    public synchronized void addResolver(Resolver resolver) {
+        for (int i = 0; i < mResolvers.size(); i++) {
+            if (mResolvers.get(i).getId() == resolver.getId()) {
+                mResolvers.set(i, resolver);
+                return;
+            }
+        }
         mResolvers.add(resolver);
     }
 
@@ -119,6 +141,19 @@ public class PipeLine {
      */
     public String resolve(String trackName, String albumName, String artistName,
             boolean onlyLocal) {
+        return resolve(trackName, albumName, artistName, onlyLocal, false);
+    }
+
+    /**
+     * This will invoke every resolver to resolve the given track/artist/album. If there already is
+     * a Query with the same track/artist/album, the old resultList will be reported.
+     *
+     * @param isPlaybackQuery whether or not the track is resolved to be played, so that the time
+     *                        until its first results is recorded in the {@link PlaybackMetrics}.
+     *                        Searches and browsing must not be recorded.
+     */
+    public String resolve(String trackName, String albumName, String artistName,
+            boolean onlyLocal, boolean isPlaybackQuery) {
         Query q = null;
         if (trackName != null && !TextUtils.isEmpty(trackName)) {
             if (mQueryMap.contains(Query.constructCacheKey(trackName, albumName, artistName)) &&
@@ -132,7 +167,7 @@ public class PipeLine {
                 q = new Query(mTomahawkApp.getUniqueQueryId(), trackName, albumName, artistName,
                         onlyLocal);
             }
-            resolve(q, onlyLocal);
+            resolve(q, onlyLocal, isPlaybackQuery);
         }
         return q == null ? null : q.getQid();
     }
@@ -148,6 +183,10 @@ public class PipeLine {
      * This will invoke every resolver to resolve the given Query.
      */
     public void resolve(Query q, boolean onlyLocal) {
+        resolve(q, onlyLocal, false);
+    }
+
+    private void resolve(Query q, boolean onlyLocal, boolean isPlaybackQuery) {
         if (q.isSolved()) {
             if (q.isFullTextQuery()) {
                 sendReportFulltextQueryResultsBroadcast(q.getQid());
@@ -157,21 +196,58 @@ public class PipeLine {
         } else if (!mQids.containsKey(q.getQid())) {
             mQids.put(q.getQid(), q);
             mQueryMap.put(q.getCacheKey(), q.getQid());
+            if (isPlaybackQuery) {
+                long now = SystemClock.uptimeMillis();
+                dropStaleResolveStartTimes(now);
+                mResolveStartTimes.put(q.getQid(), now);
+            }
             for (Resolver resolver : mResolvers) {
-                if ((onlyLocal && resolver instanceof DataBaseResolver) || !onlyLocal) {
+                if (!onlyLocal || isLocal(resolver)) {
                     resolver.resolve(q);
                     q.incResolversTodoCount();
                 }
             }
         } else {
             for (Resolver resolver : mResolvers) {
-                if ((onlyLocal && resolver instanceof DataBaseResolver) || !onlyLocal) {
+                if (!onlyLocal || isLocal(resolver)) {
                     resolver.resolve(q);
                 }
             }
         }
     }
 
+    /**
+     * Drop the start times of all playback queries, which haven't got any results within
+     * RESOLVE_START_TIME_MAX_AGE ms. Queries are never removed from the PipeLine, so this is the
+     * only point, at which a query, which no resolver ever reports on, is dropped from
+     * mResolveStartTimes.
+     */
+    private void dropStaleResolveStartTimes(long now) {
+        Iterator<Map.Entry<String, Long>> iterator = mResolveStartTimes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().getValue() > RESOLVE_START_TIME_MAX_AGE) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return whether or not the given Resolver works without a network connection
+     */
+    private static boolean isLocal(Resolver resolver) {
+        return resolver instanceof DataBaseResolver || resolver instanceof UserPlaylistsResolver;
+    }
+
+    /**
+     * @return the weight of the given Resolver, lowered by the share of its tracks, which couldn't
+     *         be played, so that results of a resolver, whose streams keep failing, are ranked
+     *         below the ones of a more reliable resolver
+     */
+    public float getWeight(Resolver resolver) {
+        return resolver.getWeight() * mTomahawkApp.getPlaybackMetrics()
+                .getReliability(resolver.getId());
+    }
+
     /**
      * Send a broadcast containing the id of the resolved query.
      */
@@ -204,8 +280,15 @@ public class PipeLine {
         ArrayList<Result> cleanArtistResults = new ArrayList<Result>();
         Query q = getQuery(qid);
         if (q != null && results != null) {
+            // Only the first report of a query is recorded
+            Long resolveStartTime = mResolveStartTimes.remove(qid);
+            if (resolveStartTime != null) {
+                mTomahawkApp.getPlaybackMetrics().record(PlaybackMetrics.STAGE_RESOLVE,
+                        SystemClock.uptimeMillis() - resolveStartTime);
+            }
             for (Result r : results) {
                 if (r != null) {
+                    r.setWeight(getWeight(r.getResolver()));
                     r.setTrackScore(q.howSimilar(r, PIPELINE_SEARCHTYPE_TRACKS));
                     if (r.getTrackScore() >= MINSCORE) {
                         cleanTrackResults.add(r);
@@ -166,7 +166,7 @@ public class Query {
                     break;
                 } else {
                     Result trackResult = value.get(i);
-                    if (r.getResolver().getWeight() > trackResult.getResolver().getWeight()) {
+                    if (r.getWeight() > trackResult.getWeight()) {
                         value.add(i, r);
                         break;
                     }
@@ -45,6 +45,9 @@ public class Result {
 
     private float mArtistScore;
 
+    // The weight of the resolver, lowered by how often its tracks failed to play
+    private float mWeight;
+
     public Result() {
     }
 
@@ -112,6 +115,14 @@ public class Result {
         }
     }
 
+    public float getWeight() {
+        return mWeight;
+    }
+
+    public void setWeight(float weight) {
+        this.mWeight = weight;
+    }
+
     public Artist getArtist() {
         return mArtist;
     }
@@ -0,0 +1,168 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.resolver;
+
+import org.tomahawk.libtomahawk.collection.Track;
+import org.tomahawk.libtomahawk.database.DatabaseExecutor;
+import org.tomahawk.libtomahawk.database.TomahawkSQLiteHelper;
+import org.tomahawk.libtomahawk.database.UserPlaylistsDataSource;
+import org.tomahawk.tomahawk_android.R;
+import org.tomahawk.tomahawk_android.TomahawkApp;
+
+import android.database.SQLException;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Resolves queries against all tracks, which have been stored in the user's playlists, through
+ * the full text index of the database. This gives offline results for tracks, which have been
+ * resolved by a {@link ScriptResolver} before, without asking the {@link ScriptResolver} again.
+ */
+public class UserPlaylistsResolver implements Resolver {
+
+    private static final String TAG = UserPlaylistsResolver.class.getName();
+
+    private static final int MAX_RESULTS = 50;
+
+    private TomahawkApp mTomahawkApp;
+
+    private int mId;
+
+    private Drawable mIcon;
+
+    private int mWeight;
+
+    private int mResolvingCount;
+
+    public UserPlaylistsResolver(int id, TomahawkApp tomahawkApp) {
+        // Below the DataBaseResolver, so that local files are preferred over stored copies
+        mWeight = 900;
+        mTomahawkApp = tomahawkApp;
+        mId = id;
+        mIcon = mTomahawkApp.getResources().getDrawable(R.drawable.ic_action_playlist);
+    }
+
+    /**
+     * @return wether or not this resolver is currently resolving
+     */
+    public synchronized boolean isResolving() {
+        return mResolvingCount > 0;
+    }
+
+    /**
+     * @return the icon of this resolver as a drawable
+     */
+    public Drawable getIcon() {
+        return mIcon;
+    }
+
+    /**
+     * resolve the given Query.
+     *
+     * @param query the query which should be resolved
+     */
+    public void resolve(Query query) {
+        final String qid = query.getQid();
+        final String matchExpression;
+        if (query.isFullTextQuery()) {
+            matchExpression = buildMatchExpression(null, query.getFullTextQuery());
+        } else {
+            matchExpression = buildMatchExpression(
+                    TomahawkSQLiteHelper.TRACKS_FTS_COLUMN_TRACKNAME, query.getTrackName()) + " "
+                    + buildMatchExpression(TomahawkSQLiteHelper.TRACKS_FTS_COLUMN_ALBUMNAME,
+                    query.getAlbumName()) + " " + buildMatchExpression(
+                    TomahawkSQLiteHelper.TRACKS_FTS_COLUMN_ARTISTNAME, query.getArtistName());
+        }
+        synchronized (this) {
+            mResolvingCount++;
+        }
+        mTomahawkApp.getDatabaseExecutor().read(new DatabaseExecutor.Task<ArrayList<Track>>() {
+            @Override
+            public ArrayList<Track> run(UserPlaylistsDataSource userPlaylistsDataSource) {
+                if (matchExpression.trim().length() == 0) {
+                    return new ArrayList<Track>();
+                }
+                try {
+                    return userPlaylistsDataSource.searchTracks(matchExpression, MAX_RESULTS);
+                } catch (SQLException e) {
+                    Log.e(TAG, "resolve: " + e.getClass() + ": " + e.getLocalizedMessage());
+                    return new ArrayList<Track>();
+                }
+            }
+        }, new DatabaseExecutor.Callback<ArrayList<Track>>() {
+            @Override
+            public void onResult(ArrayList<Track> tracks) {
+                ArrayList<Result> results = new ArrayList<Result>();
+                for (Track track : tracks) {
+                    Result r = new Result(track);
+                    r.setResolver(UserPlaylistsResolver.this);
+                    results.add(r);
+                }
+                synchronized (UserPlaylistsResolver.this) {
+                    mResolvingCount--;
+                }
+                mTomahawkApp.getPipeLine().reportResults(qid, results);
+            }
+        });
+    }
+
+    /**
+     * Build an FTS3 MATCH expression, which matches every row containing all words of the given
+     * text as prefixes. Everything but letters and digits is dropped, so that the text can't be
+     * interpreted as query syntax.
+     *
+     * @param column the column to restrict the words to, or null to match all columns
+     * @return the MATCH expression. Empty, if the text doesn't contain any words.
+     */
+    private static String buildMatchExpression(String column, String text) {
+        StringBuilder expression = new StringBuilder();
+        if (text == null) {
+            return "";
+        }
+        String lowerCaseText = text.toLowerCase(Locale.US);
+        int start = -1;
+        for (int i = 0; i <= lowerCaseText.length(); i++) {
+            boolean isWordChar = i < lowerCaseText.length()
+                    && Character.isLetterOrDigit(lowerCaseText.charAt(i));
+            if (isWordChar && start < 0) {
+                start = i;
+            } else if (!isWordChar && start >= 0) {
+                if (expression.length() > 0) {
+                    expression.append(' ');
+                }
+                if (column != null) {
+                    expression.append(column).append(':');
+                }
+                expression.append(lowerCaseText, start, i).append('*');
+                start = -1;
+            }
+        }
+        return expression.toString();
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public int getWeight() {
+        return mWeight;
+    }
+}
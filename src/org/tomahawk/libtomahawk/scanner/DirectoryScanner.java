@@ -0,0 +1,219 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.scanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Walks a set of music directories and hands the parsed {@link TagInfo} of every supported audio
+ * file to a {@link Listener} as soon as it has been parsed, so that the results can be streamed
+ * into a collection while the scan is still running. Directories containing a ".nomedia" file and
+ * hidden directories are skipped, like the MediaStore does. If a {@link TagCache} is given, files
+ * which haven't changed since the last scan are not parsed again. Like the {@link TagParser}, this
+ * class doesn't depend on any Android class.
+ */
+public class DirectoryScanner {
+
+    private static final String NOMEDIA = ".nomedia";
+
+    /**
+     * Receives the results of a scan
+     */
+    public interface Listener {
+
+        /**
+         * Called for every audio file, which has been parsed successfully
+         */
+        void onFileScanned(File file, TagInfo tagInfo);
+
+        /**
+         * Called for every audio file, which couldn't be parsed. Called with a null file, if the
+         * {@link TagCache} couldn't be written.
+         */
+        void onFileFailed(File file, IOException e);
+    }
+
+    private final List<File> mRoots;
+
+    private final TagParser mTagParser;
+
+    private final TagCache mTagCache;
+
+    private volatile boolean mIsCancelled;
+
+    private int mDirectoryCount;
+
+    private int mFileCount;
+
+    private int mFailedCount;
+
+    private final HashSet<String> mFailedPaths = new HashSet<String>();
+
+    public DirectoryScanner(List<File> roots, TagParser tagParser) {
+        this(roots, tagParser, null);
+    }
+
+    public DirectoryScanner(List<File> roots, TagParser tagParser, TagCache tagCache) {
+        mRoots = new ArrayList<File>(roots);
+        mTagParser = tagParser;
+        mTagCache = tagCache;
+    }
+
+    /**
+     * Scan all directories. Blocks until the scan is done or has been cancelled.
+     */
+    public void scan(Listener listener) {
+        mIsCancelled = false;
+        mDirectoryCount = 0;
+        mFileCount = 0;
+        mFailedCount = 0;
+        mFailedPaths.clear();
+        HashSet<String> visitedDirectories = new HashSet<String>();
+        LinkedList<File> pendingDirectories = new LinkedList<File>(mRoots);
+        while (!pendingDirectories.isEmpty() && !mIsCancelled) {
+            File directory = pendingDirectories.removeFirst();
+            if (!visitedDirectories.add(getCanonicalPath(directory))) {
+                // avoid symlink loops
+                continue;
+            }
+            File[] files = directory.listFiles();
+            if (files == null) {
+                // e.g. unreadable, or gone because the storage has been unmounted
+                mFailedPaths.add(directory.getAbsolutePath());
+                continue;
+            }
+            if (new File(directory, NOMEDIA).exists()) {
+                continue;
+            }
+            mDirectoryCount++;
+            Arrays.sort(files);
+            ArrayList<File> subDirectories = new ArrayList<File>();
+            for (File file : files) {
+                if (mIsCancelled) {
+                    break;
+                }
+                if (file.getName().startsWith(".")) {
+                    continue;
+                }
+                if (file.isDirectory()) {
+                    subDirectories.add(file);
+                } else if (TagParser.isSupported(file.getName())) {
+                    scanFile(file, listener);
+                }
+            }
+            // depth first, so that the files of an album are reported together
+            pendingDirectories.addAll(0, subDirectories);
+        }
+        if (mTagCache != null) {
+            try {
+                mTagCache.flush();
+            } catch (IOException e) {
+                listener.onFileFailed(null, e);
+            }
+        }
+    }
+
+    private void scanFile(File file, Listener listener) {
+        try {
+            TagInfo tagInfo = mTagCache != null ? mTagCache.get(file) : null;
+            if (tagInfo == null) {
+                tagInfo = mTagParser.parse(file);
+                if (tagInfo != null && mTagCache != null) {
+                    mTagCache.put(file, tagInfo);
+                }
+            }
+            if (tagInfo != null) {
+                mFileCount++;
+                listener.onFileScanned(file, tagInfo);
+            }
+        } catch (IOException e) {
+            mFailedCount++;
+            mFailedPaths.add(file.getAbsolutePath());
+            listener.onFileFailed(file, e);
+        } catch (RuntimeException e) {
+            // corrupt tags may lead to out of bounds accesses
+            mFailedCount++;
+            mFailedPaths.add(file.getAbsolutePath());
+            listener.onFileFailed(file, new IOException(e.getClass() + ": "
+                    + e.getLocalizedMessage()));
+        }
+    }
+
+    /**
+     * Cancel a running scan
+     */
+    public void cancel() {
+        mIsCancelled = true;
+    }
+
+    public int getDirectoryCount() {
+        return mDirectoryCount;
+    }
+
+    public int getFileCount() {
+        return mFileCount;
+    }
+
+    public int getFailedCount() {
+        return mFailedCount;
+    }
+
+    /**
+     * @return the absolute paths of all files, which couldn't be parsed, and of all directories,
+     *         which couldn't be listed, by the last scan
+     */
+    public Set<String> getFailedPaths() {
+        return mFailedPaths;
+    }
+
+    /**
+     * @return whether or not the last scan has been cancelled before it was done
+     */
+    public boolean isCancelled() {
+        return mIsCancelled;
+    }
+
+    /**
+     * @return whether or not the file with the given absolute path has been missed by the last
+     *         scan, because it or one of its parent directories couldn't be read. The file may
+     *         still exist in this case.
+     */
+    public boolean hasFailed(String path) {
+        for (File file = new File(path); file != null; file = file.getParentFile()) {
+            if (mFailedPaths.contains(file.getPath())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getCanonicalPath(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.scanner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A persistent cache of parsed {@link TagInfo}s, keyed by path, file size and last modification
+ * time. As long as a file hasn't changed, looking it up costs a single stat of the file instead of
+ * parsing its tags again.
+ * <p/>
+ * The cache file is an append-only log of records, so that new entries never require rewriting the
+ * whole file. A later record for the same path supersedes an earlier one, a removal record drops
+ * the path. Once the log holds a lot more records than live entries, it is compacted. A record,
+ * which can't be read, e.g. a truncated record after a crash, is ignored together with everything
+ * after it and dropped by the next compaction.
+ */
+public class TagCache {
+
+    private static final int MAGIC = 0x544d5443;
+
+    private static final int VERSION = 1;
+
+    private static final byte RECORD_ENTRY = 1;
+
+    private static final byte RECORD_REMOVAL = 2;
+
+    private static final int COMPACTION_MIN_DEAD_RECORDS = 1000;
+
+    private final File mFile;
+
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    private DataOutputStream mOutputStream;
+
+    private int mRecordCount;
+
+    private boolean mIsCorrupt;
+
+    private int mHitCount;
+
+    private int mMissCount;
+
+    private static class Entry {
+
+        long size;
+
+        long lastModified;
+
+        TagInfo tagInfo;
+    }
+
+    public TagCache(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Load all entries from the cache file. A missing cache file is not an error. A record, which
+     * can't be read, e.g. because it has been truncated or contains a malformed string, ends the
+     * log. The entries before it are kept, and the file is rewritten with the next change or flush.
+     */
+    public synchronized void load() throws IOException {
+        mEntries.clear();
+        mRecordCount = 0;
+        mIsCorrupt = false;
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                mIsCorrupt = true;
+                return;
+            }
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                String path = in.readUTF();
+                if (type == RECORD_ENTRY) {
+                    Entry entry = new Entry();
+                    entry.size = in.readLong();
+                    entry.lastModified = in.readLong();
+                    entry.tagInfo = readTagInfo(in);
+                    mEntries.put(path, entry);
+                } else if (type == RECORD_REMOVAL) {
+                    mEntries.remove(path);
+                } else {
+                    mIsCorrupt = true;
+                    break;
+                }
+                mRecordCount++;
+            }
+        } catch (IOException e) {
+            // the last record has been truncated or is malformed, e.g. UTFDataFormatException
+            mIsCorrupt = true;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Look up the {@link TagInfo} of the given file. Counts as a hit, if the file's size and last
+     * modification time still match the cached entry.
+     *
+     * @return the cached {@link TagInfo}, null if there is none or if the file has changed
+     */
+    public synchronized TagInfo get(File file) {
+        Entry entry = mEntries.get(file.getAbsolutePath());
+        if (entry != null && entry.lastModified == file.lastModified()
+                && entry.size == file.length()) {
+            mHitCount++;
+            return entry.tagInfo;
+        }
+        mMissCount++;
+        return null;
+    }
+
+    /**
+     * Store the {@link TagInfo} of the given file. The record is appended to the cache file, call
+     * flush() to make sure it has been written.
+     */
+    public synchronized void put(File file, TagInfo tagInfo) throws IOException {
+        Entry entry = new Entry();
+        entry.size = file.length();
+        entry.lastModified = file.lastModified();
+        entry.tagInfo = tagInfo;
+        String path = file.getAbsolutePath();
+        mEntries.put(path, entry);
+        DataOutputStream out = getOutputStream();
+        out.writeByte(RECORD_ENTRY);
+        out.writeUTF(path);
+        writeEntry(out, entry);
+        mRecordCount++;
+    }
+
+    /**
+     * Remove the entry of the file with the given path
+     */
+    public synchronized void remove(String path) throws IOException {
+        if (mEntries.remove(path) != null) {
+            DataOutputStream out = getOutputStream();
+            out.writeByte(RECORD_REMOVAL);
+            out.writeUTF(path);
+            mRecordCount++;
+        }
+    }
+
+    /**
+     * Write all pending records to the cache file. Compacts the file, if it mostly consists of
+     * superseded records.
+     */
+    public synchronized void flush() throws IOException {
+        if (mIsCorrupt
+                || mRecordCount - mEntries.size() > Math.max(COMPACTION_MIN_DEAD_RECORDS,
+                mEntries.size())) {
+            compact();
+        } else if (mOutputStream != null) {
+            mOutputStream.flush();
+        }
+    }
+
+    /**
+     * Rewrite the cache file, so that it only contains one record per live entry
+     */
+    public synchronized void compact() throws IOException {
+        close();
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Map.Entry<String, Entry> mapEntry : mEntries.entrySet()) {
+                out.writeByte(RECORD_ENTRY);
+                out.writeUTF(mapEntry.getKey());
+                writeEntry(out, mapEntry.getValue());
+            }
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(mFile)) {
+            throw new IOException("Couldn't rename " + tempFile + " to " + mFile);
+        }
+        mRecordCount = mEntries.size();
+        mIsCorrupt = false;
+    }
+
+    /**
+     * Flush and close the cache file. The cache can still be used afterwards, the file is reopened
+     * with the next change.
+     */
+    public synchronized void close() throws IOException {
+        if (mOutputStream != null) {
+            mOutputStream.close();
+            mOutputStream = null;
+        }
+    }
+
+    /**
+     * @return the number of cached entries
+     */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return the share of lookups, which have been answered from the cache, between 0 and 1
+     */
+    public synchronized float getHitRatio() {
+        int lookupCount = mHitCount + mMissCount;
+        return lookupCount == 0 ? 0f : (float) mHitCount / lookupCount;
+    }
+
+    /**
+     * Reset the hit and miss counters, e.g. before a new scan
+     */
+    public synchronized void resetStatistics() {
+        mHitCount = 0;
+        mMissCount = 0;
+    }
+
+    private DataOutputStream getOutputStream() throws IOException {
+        if (mOutputStream == null) {
+            if (mIsCorrupt) {
+                // never append to a log with a broken tail
+                compact();
+            }
+            boolean isNew = !mFile.exists() || mFile.length() == 0;
+            mOutputStream = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(mFile, true)));
+            if (isNew) {
+                mOutputStream.writeInt(MAGIC);
+                mOutputStream.writeInt(VERSION);
+            }
+        }
+        return mOutputStream;
+    }
+
+    private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+        out.writeLong(entry.size);
+        out.writeLong(entry.lastModified);
+        TagInfo tagInfo = entry.tagInfo;
+        writeString(out, tagInfo.getTitle());
+        writeString(out, tagInfo.getArtist());
+        writeString(out, tagInfo.getAlbumArtist());
+        writeString(out, tagInfo.getAlbum());
+        out.writeShort(tagInfo.getTrackNumber());
+        out.writeShort(tagInfo.getDiscNumber());
+        out.writeShort(tagInfo.getYear());
+        out.writeInt((int) Math.min(Integer.MAX_VALUE, tagInfo.getDuration()));
+        out.writeLong(tagInfo.getArtOffset());
+        out.writeInt(tagInfo.getArtLength());
+        writeString(out, tagInfo.getArtMimeType());
+    }
+
+    private static TagInfo readTagInfo(DataInputStream in) throws IOException {
+        TagInfo tagInfo = new TagInfo();
+        tagInfo.setTitle(readString(in));
+        tagInfo.setArtist(readString(in));
+        tagInfo.setAlbumArtist(readString(in));
+        tagInfo.setAlbum(readString(in));
+        tagInfo.setTrackNumber(in.readUnsignedShort());
+        tagInfo.setDiscNumber(in.readUnsignedShort());
+        tagInfo.setYear(in.readUnsignedShort());
+        tagInfo.setDuration(in.readInt());
+        long artOffset = in.readLong();
+        int artLength = in.readInt();
+        tagInfo.setArt(artOffset, artLength, readString(in));
+        return tagInfo;
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
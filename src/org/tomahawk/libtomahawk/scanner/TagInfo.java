@@ -0,0 +1,155 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.scanner;
+
+/**
+ * The metadata of an audio file, as parsed by the {@link TagParser}. Holds no reference to any
+ * Android class, so that it can be used on a plain JVM.
+ */
+public class TagInfo {
+
+    private String mTitle;
+
+    private String mArtist;
+
+    private String mAlbumArtist;
+
+    private String mAlbum;
+
+    private int mTrackNumber;
+
+    private int mDiscNumber;
+
+    private int mYear;
+
+    /**
+     * Duration in ms
+     */
+    private long mDuration;
+
+    /**
+     * Offset of the embedded album art inside the file, -1 if there is none
+     */
+    private long mArtOffset = -1;
+
+    private int mArtLength;
+
+    private String mArtMimeType;
+
+    public String getTitle() {
+        return mTitle;
+    }
+
+    public void setTitle(String title) {
+        mTitle = title;
+    }
+
+    public String getArtist() {
+        return mArtist;
+    }
+
+    public void setArtist(String artist) {
+        mArtist = artist;
+    }
+
+    public String getAlbumArtist() {
+        return mAlbumArtist;
+    }
+
+    public void setAlbumArtist(String albumArtist) {
+        mAlbumArtist = albumArtist;
+    }
+
+    public String getAlbum() {
+        return mAlbum;
+    }
+
+    public void setAlbum(String album) {
+        mAlbum = album;
+    }
+
+    public int getTrackNumber() {
+        return mTrackNumber;
+    }
+
+    public void setTrackNumber(int trackNumber) {
+        mTrackNumber = trackNumber;
+    }
+
+    public int getDiscNumber() {
+        return mDiscNumber;
+    }
+
+    public void setDiscNumber(int discNumber) {
+        mDiscNumber = discNumber;
+    }
+
+    public int getYear() {
+        return mYear;
+    }
+
+    public void setYear(int year) {
+        mYear = year;
+    }
+
+    public long getDuration() {
+        return mDuration;
+    }
+
+    public void setDuration(long duration) {
+        mDuration = duration;
+    }
+
+    public long getArtOffset() {
+        return mArtOffset;
+    }
+
+    public int getArtLength() {
+        return mArtLength;
+    }
+
+    public String getArtMimeType() {
+        return mArtMimeType;
+    }
+
+    /**
+     * Set the location of the embedded album art inside the file
+     */
+    public void setArt(long offset, int length, String mimeType) {
+        mArtOffset = offset;
+        mArtLength = length;
+        mArtMimeType = mimeType;
+    }
+
+    /**
+     * @return whether or not the file contains embedded album art
+     */
+    public boolean hasArt() {
+        return mArtOffset >= 0 && mArtLength > 0;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return mArtist + " - " + mAlbum + " - " + mDiscNumber + "." + mTrackNumber + " " + mTitle
+                + " (" + mYear + ", " + mDuration + "ms)";
+    }
+}
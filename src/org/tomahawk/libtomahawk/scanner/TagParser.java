@@ -0,0 +1,840 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.scanner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Parses ID3v2/ID3v1 tags (MP3), Vorbis comments (FLAC, Ogg Vorbis and Opus) and iTunes style MP4
+ * atoms (M4A). Only the regions of a file, which contain the tags, are memory-mapped, the audio
+ * data itself is never read apart from a single MPEG frame header. This class only depends on
+ * java.nio, so it can be used and tested on a plain JVM.
+ */
+public class TagParser {
+
+    private static final int ID3V2_HEADER_SIZE = 10;
+
+    private static final int ID3V1_SIZE = 128;
+
+    private static final int MPEG_SYNC_SEARCH_SIZE = 16 * 1024;
+
+    private static final int OGG_HEAD_SIZE = 64 * 1024;
+
+    private static final int OGG_TAIL_SIZE = 64 * 1024;
+
+    /**
+     * Tags larger than this are most likely corrupt and are not mapped at all
+     */
+    private static final int MAX_TAG_SIZE = 16 * 1024 * 1024;
+
+    private static final int PICTURE_TYPE_FRONT_COVER = 3;
+
+    private static final int[][] MPEG_BITRATES = {
+            // MPEG1 layer 1, 2 and 3
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+            // MPEG2 and MPEG2.5 layer 1, 2 and 3
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}};
+
+    private static final int[] MPEG_SAMPLE_RATES = {44100, 48000, 32000};
+
+    private static final String[] SUPPORTED_EXTENSIONS = {".mp3", ".flac", ".ogg", ".oga",
+            ".opus", ".m4a", ".mp4", ".m4b"};
+
+    /**
+     * @return whether or not the file with the given name is probably supported by this parser
+     */
+    public static boolean isSupported(String fileName) {
+        String lowerCaseName = fileName.toLowerCase();
+        for (String extension : SUPPORTED_EXTENSIONS) {
+            if (lowerCaseName.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse the tags of the given file
+     *
+     * @return the parsed {@link TagInfo}, null if the format of the file is not supported
+     */
+    public TagInfo parse(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            long size = channel.size();
+            TagInfo tagInfo = new TagInfo();
+            long offset = 0;
+            long audioStart = 0;
+            byte[] magic = read(channel, 0, 12);
+            if (startsWith(magic, 0, "ID3")) {
+                audioStart = parseId3v2(channel, 0, tagInfo);
+                offset = audioStart;
+                magic = read(channel, offset, 12);
+            }
+            if (startsWith(magic, 0, "fLaC")) {
+                parseFlac(channel, offset, tagInfo);
+            } else if (startsWith(magic, 0, "OggS")) {
+                parseOgg(channel, offset, tagInfo);
+            } else if (startsWith(magic, 4, "ftyp")) {
+                parseMp4(channel, offset, tagInfo);
+            } else {
+                long audioEnd = size;
+                if (size >= ID3V1_SIZE + audioStart && parseId3v1(channel, size - ID3V1_SIZE,
+                        tagInfo)) {
+                    audioEnd -= ID3V1_SIZE;
+                }
+                if (audioStart == 0 && audioEnd == size
+                        && !file.getName().toLowerCase().endsWith(".mp3")) {
+                    return null;
+                }
+                if (tagInfo.getDuration() <= 0) {
+                    tagInfo.setDuration(parseMpegDuration(channel, audioStart, audioEnd));
+                }
+            }
+            return tagInfo;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Parse the ID3v2 tag at the given offset
+     *
+     * @return the offset of the first byte after the tag
+     */
+    private long parseId3v2(FileChannel channel, long offset, TagInfo tagInfo) throws IOException {
+        byte[] header = read(channel, offset, ID3V2_HEADER_SIZE);
+        int majorVersion = header[3];
+        int flags = header[5] & 0xff;
+        int tagSize = syncSafeInt(header, 6);
+        long end = offset + ID3V2_HEADER_SIZE + tagSize + ((flags & 0x10) != 0 ? 10 : 0);
+        if (tagSize > MAX_TAG_SIZE || majorVersion < 2 || majorVersion > 4) {
+            return end;
+        }
+        ByteBuffer tag = map(channel, offset + ID3V2_HEADER_SIZE, tagSize);
+        boolean isUnsynchronized = (flags & 0x80) != 0 && majorVersion < 4;
+        if (isUnsynchronized) {
+            byte[] bytes = new byte[tag.remaining()];
+            tag.get(bytes);
+            tag = ByteBuffer.wrap(resynchronize(bytes));
+        }
+        if ((flags & 0x40) != 0 && majorVersion > 2) {
+            int extendedHeaderSize = majorVersion == 3 ? tag.getInt(0) + 4
+                    : syncSafeInt(tag, 0);
+            tag.position(Math.min(tag.limit(), extendedHeaderSize));
+        }
+        int idLength = majorVersion == 2 ? 3 : 4;
+        int frameHeaderSize = majorVersion == 2 ? 6 : 10;
+        int bestPictureType = -1;
+        while (tag.remaining() >= frameHeaderSize) {
+            int frameStart = tag.position();
+            if (tag.get(frameStart) == 0) {
+                // padding
+                break;
+            }
+            String id = latin1(tag, frameStart, idLength);
+            int frameSize;
+            int formatFlags = 0;
+            if (majorVersion == 2) {
+                frameSize = ((tag.get(frameStart + 3) & 0xff) << 16)
+                        | ((tag.get(frameStart + 4) & 0xff) << 8) | (tag.get(frameStart + 5) & 0xff);
+            } else if (majorVersion == 3) {
+                frameSize = tag.getInt(frameStart + 4);
+                formatFlags = tag.get(frameStart + 9) & 0xff;
+            } else {
+                frameSize = syncSafeInt(tag, frameStart + 4);
+                formatFlags = tag.get(frameStart + 9) & 0xff;
+            }
+            int dataStart = frameStart + frameHeaderSize;
+            if (frameSize <= 0 || dataStart + frameSize > tag.limit()) {
+                break;
+            }
+            tag.position(dataStart + frameSize);
+            boolean isCompressedOrEncrypted = majorVersion == 3 ? (formatFlags & 0xc0) != 0
+                    : majorVersion == 4 && (formatFlags & 0x0c) != 0;
+            if (isCompressedOrEncrypted) {
+                continue;
+            }
+            ByteBuffer frame = slice(tag, dataStart, frameSize);
+            long frameFileOffset = offset + ID3V2_HEADER_SIZE + dataStart;
+            if (majorVersion == 3 && (formatFlags & 0x20) != 0) {
+                frame = slice(frame, 1, frame.limit() - 1);
+                frameFileOffset++;
+            } else if (majorVersion == 4) {
+                if ((formatFlags & 0x40) != 0) {
+                    frame = slice(frame, 1, frame.limit() - 1);
+                    frameFileOffset++;
+                }
+                if ((formatFlags & 0x01) != 0) {
+                    frame = slice(frame, 4, frame.limit() - 4);
+                    frameFileOffset += 4;
+                }
+                if ((formatFlags & 0x02) != 0) {
+                    byte[] bytes = new byte[frame.remaining()];
+                    frame.get(bytes);
+                    frame = ByteBuffer.wrap(resynchronize(bytes));
+                    frameFileOffset = -1;
+                }
+            }
+            if (id.equals("TIT2") || id.equals("TT2")) {
+                tagInfo.setTitle(id3Text(frame));
+            } else if (id.equals("TPE1") || id.equals("TP1")) {
+                tagInfo.setArtist(id3Text(frame));
+            } else if (id.equals("TPE2") || id.equals("TP2")) {
+                tagInfo.setAlbumArtist(id3Text(frame));
+            } else if (id.equals("TALB") || id.equals("TAL")) {
+                tagInfo.setAlbum(id3Text(frame));
+            } else if (id.equals("TRCK") || id.equals("TRK")) {
+                tagInfo.setTrackNumber(parseNumber(id3Text(frame)));
+            } else if (id.equals("TPOS") || id.equals("TPA")) {
+                tagInfo.setDiscNumber(parseNumber(id3Text(frame)));
+            } else if (id.equals("TYER") || id.equals("TYE") || id.equals("TDRC")) {
+                tagInfo.setYear(parseNumber(id3Text(frame)));
+            } else if (id.equals("TLEN") || id.equals("TLE")) {
+                tagInfo.setDuration(parseNumber(id3Text(frame)));
+            } else if (id.equals("APIC") || id.equals("PIC")) {
+                int pictureType = parseId3Picture(frame, majorVersion == 2,
+                        isUnsynchronized ? -1 : frameFileOffset, bestPictureType, tagInfo);
+                if (pictureType >= 0) {
+                    bestPictureType = pictureType;
+                }
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Parse an APIC or PIC frame. The picture is only taken, if there is no front cover yet.
+     *
+     * @return the picture type, if the picture has been taken, -1 otherwise
+     */
+    private int parseId3Picture(ByteBuffer frame, boolean isV22, long frameFileOffset,
+            int bestPictureType, TagInfo tagInfo) {
+        if (frameFileOffset < 0 || bestPictureType == PICTURE_TYPE_FRONT_COVER
+                || frame.limit() < 4) {
+            return -1;
+        }
+        int encoding = frame.get(0);
+        String mimeType;
+        int position;
+        if (isV22) {
+            String format = latin1(frame, 1, 3).toLowerCase();
+            mimeType = format.equals("png") ? "image/png" : "image/jpeg";
+            position = 4;
+        } else {
+            int mimeTypeEnd = indexOfTerminator(frame, 1, 0);
+            if (mimeTypeEnd < 0) {
+                return -1;
+            }
+            mimeType = latin1(frame, 1, mimeTypeEnd - 1);
+            position = mimeTypeEnd + 1;
+        }
+        if (position >= frame.limit()) {
+            return -1;
+        }
+        int pictureType = frame.get(position) & 0xff;
+        int descriptionEnd = indexOfTerminator(frame, position + 1, encoding);
+        if (descriptionEnd < 0) {
+            return -1;
+        }
+        int dataStart = descriptionEnd + (encoding == 1 || encoding == 2 ? 2 : 1);
+        if (dataStart >= frame.limit()) {
+            return -1;
+        }
+        if (bestPictureType < 0 || pictureType == PICTURE_TYPE_FRONT_COVER) {
+            tagInfo.setArt(frameFileOffset + dataStart, frame.limit() - dataStart, mimeType);
+            return pictureType;
+        }
+        return -1;
+    }
+
+    /**
+     * Parse the ID3v1 tag at the given offset. Only fields, which haven't been set by an ID3v2
+     * tag, are taken.
+     *
+     * @return whether or not there is an ID3v1 tag
+     */
+    private boolean parseId3v1(FileChannel channel, long offset, TagInfo tagInfo)
+            throws IOException {
+        ByteBuffer tag = map(channel, offset, ID3V1_SIZE);
+        if (tag.limit() < ID3V1_SIZE || !latin1(tag, 0, 3).equals("TAG")) {
+            return false;
+        }
+        if (tagInfo.getTitle() == null) {
+            tagInfo.setTitle(emptyToNull(latin1(tag, 3, 30).trim()));
+        }
+        if (tagInfo.getArtist() == null) {
+            tagInfo.setArtist(emptyToNull(latin1(tag, 33, 30).trim()));
+        }
+        if (tagInfo.getAlbum() == null) {
+            tagInfo.setAlbum(emptyToNull(latin1(tag, 63, 30).trim()));
+        }
+        if (tagInfo.getYear() == 0) {
+            tagInfo.setYear(parseNumber(latin1(tag, 93, 4)));
+        }
+        if (tagInfo.getTrackNumber() == 0 && tag.get(125) == 0 && tag.get(126) != 0) {
+            tagInfo.setTrackNumber(tag.get(126) & 0xff);
+        }
+        return true;
+    }
+
+    /**
+     * Compute the duration of an MPEG audio stream from its first frame header. Uses the Xing or
+     * VBRI header, if there is one, otherwise assumes a constant bitrate.
+     *
+     * @return the duration in ms, 0 if no frame header could be found
+     */
+    private long parseMpegDuration(FileChannel channel, long audioStart, long audioEnd)
+            throws IOException {
+        ByteBuffer buffer = map(channel, audioStart,
+                (int) Math.min(MPEG_SYNC_SEARCH_SIZE, audioEnd - audioStart));
+        for (int i = 0; i + 4 <= buffer.limit(); i++) {
+            int header = buffer.getInt(i);
+            if ((header & 0xffe00000) != 0xffe00000) {
+                continue;
+            }
+            int versionBits = (header >>> 19) & 3;
+            int layerBits = (header >>> 17) & 3;
+            int bitrateIndex = (header >>> 12) & 15;
+            int sampleRateIndex = (header >>> 10) & 3;
+            if (versionBits == 1 || layerBits == 0 || bitrateIndex == 0 || bitrateIndex == 15
+                    || sampleRateIndex == 3) {
+                continue;
+            }
+            boolean isMpeg1 = versionBits == 3;
+            int layer = 4 - layerBits;
+            int sampleRate = MPEG_SAMPLE_RATES[sampleRateIndex] >> (isMpeg1 ? 0
+                    : versionBits == 2 ? 1 : 2);
+            int bitrate = MPEG_BITRATES[(isMpeg1 ? 0 : 3) + layer - 1][bitrateIndex] * 1000;
+            int samplesPerFrame = layer == 1 ? 384 : layer == 2 || isMpeg1 ? 1152 : 576;
+            boolean isMono = ((header >>> 6) & 3) == 3;
+            int xingOffset = i + 4 + (isMpeg1 ? (isMono ? 17 : 32) : (isMono ? 9 : 17));
+            if (xingOffset + 12 <= buffer.limit()) {
+                String xingId = latin1(buffer, xingOffset, 4);
+                if ((xingId.equals("Xing") || xingId.equals("Info"))
+                        && (buffer.getInt(xingOffset + 4) & 1) != 0) {
+                    long frameCount = buffer.getInt(xingOffset + 8) & 0xffffffffL;
+                    return frameCount * samplesPerFrame * 1000 / sampleRate;
+                }
+            }
+            int vbriOffset = i + 4 + 32;
+            if (vbriOffset + 18 <= buffer.limit() && latin1(buffer, vbriOffset, 4)
+                    .equals("VBRI")) {
+                long frameCount = buffer.getInt(vbriOffset + 14) & 0xffffffffL;
+                return frameCount * samplesPerFrame * 1000 / sampleRate;
+            }
+            return (audioEnd - audioStart - i) * 8 * 1000 / bitrate;
+        }
+        return 0;
+    }
+
+    /**
+     * Parse the metadata blocks of a FLAC stream at the given offset. Every block is mapped on its
+     * own, so that large embedded pictures are never read.
+     */
+    private void parseFlac(FileChannel channel, long offset, TagInfo tagInfo) throws IOException {
+        long position = offset + 4;
+        long size = channel.size();
+        boolean isLast = false;
+        while (!isLast && position + 4 <= size) {
+            byte[] header = read(channel, position, 4);
+            isLast = (header[0] & 0x80) != 0;
+            int type = header[0] & 0x7f;
+            int length = ((header[1] & 0xff) << 16) | ((header[2] & 0xff) << 8)
+                    | (header[3] & 0xff);
+            long blockStart = position + 4;
+            position = blockStart + length;
+            if (type == 0 && length >= 18) {
+                ByteBuffer streamInfo = map(channel, blockStart, 18);
+                long bits = streamInfo.getLong(10);
+                long sampleRate = (bits >>> 44) & 0xfffff;
+                long totalSamples = bits & 0xfffffffffL;
+                if (sampleRate > 0) {
+                    tagInfo.setDuration(totalSamples * 1000 / sampleRate);
+                }
+            } else if (type == 4 && length <= MAX_TAG_SIZE) {
+                parseVorbisComment(map(channel, blockStart, length), tagInfo);
+            } else if (type == 6 && length <= MAX_TAG_SIZE && !tagInfo.hasArt()) {
+                parseFlacPicture(map(channel, blockStart, length), blockStart, tagInfo);
+            }
+        }
+    }
+
+    private void parseFlacPicture(ByteBuffer block, long blockFileOffset, TagInfo tagInfo) {
+        if (block.limit() < 32) {
+            return;
+        }
+        int pictureType = block.getInt(0);
+        int mimeTypeLength = block.getInt(4);
+        if (mimeTypeLength < 0 || 8 + mimeTypeLength + 4 > block.limit()) {
+            return;
+        }
+        String mimeType = latin1(block, 8, mimeTypeLength);
+        int descriptionLength = block.getInt(8 + mimeTypeLength);
+        int dataLengthOffset = 8 + mimeTypeLength + 4 + descriptionLength + 16;
+        if (descriptionLength < 0 || dataLengthOffset + 4 > block.limit()) {
+            return;
+        }
+        int dataLength = block.getInt(dataLengthOffset);
+        if (dataLength > 0 && dataLengthOffset + 4 + dataLength <= block.limit()
+                && (pictureType == PICTURE_TYPE_FRONT_COVER || !tagInfo.hasArt())) {
+            tagInfo.setArt(blockFileOffset + dataLengthOffset + 4, dataLength, mimeType);
+        }
+    }
+
+    /**
+     * Parse a Vorbis comment block. Vorbis comments are little endian.
+     */
+    private void parseVorbisComment(ByteBuffer block, TagInfo tagInfo) {
+        block.order(ByteOrder.LITTLE_ENDIAN);
+        if (block.limit() < 8) {
+            return;
+        }
+        int position = 4 + block.getInt(0);
+        if (position < 4 || position + 4 > block.limit()) {
+            return;
+        }
+        int count = block.getInt(position);
+        position += 4;
+        for (int i = 0; i < count && position + 4 <= block.limit(); i++) {
+            int length = block.getInt(position);
+            position += 4;
+            if (length < 0 || position + length > block.limit()) {
+                return;
+            }
+            String comment = utf8(block, position, length);
+            position += length;
+            int separator = comment.indexOf('=');
+            if (separator <= 0) {
+                continue;
+            }
+            String key = comment.substring(0, separator).toUpperCase();
+            String value = comment.substring(separator + 1);
+            if (key.equals("TITLE")) {
+                tagInfo.setTitle(value);
+            } else if (key.equals("ARTIST")) {
+                tagInfo.setArtist(value);
+            } else if (key.equals("ALBUMARTIST") || key.equals("ALBUM ARTIST")) {
+                tagInfo.setAlbumArtist(value);
+            } else if (key.equals("ALBUM")) {
+                tagInfo.setAlbum(value);
+            } else if (key.equals("TRACKNUMBER")) {
+                tagInfo.setTrackNumber(parseNumber(value));
+            } else if (key.equals("DISCNUMBER")) {
+                tagInfo.setDiscNumber(parseNumber(value));
+            } else if (key.equals("DATE") || key.equals("YEAR")) {
+                tagInfo.setYear(parseNumber(value));
+            }
+        }
+    }
+
+    /**
+     * Parse an Ogg Vorbis or Opus stream. The identification and comment packets are assembled
+     * from the pages at the head of the file, the duration is taken from the granule position of
+     * the last page.
+     */
+    private void parseOgg(FileChannel channel, long offset, TagInfo tagInfo) throws IOException {
+        long maxHeadSize = Math.min(channel.size() - offset, MAX_TAG_SIZE);
+        ByteBuffer head = map(channel, offset, OGG_HEAD_SIZE);
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        int position = 0;
+        int packetCount = 0;
+        long sampleRate = 0;
+        long preSkip = 0;
+        while (packetCount < 2) {
+            boolean isPageMapped = position + 27 <= head.limit()
+                    && position + 27 + (head.get(position + 26) & 0xff) <= head.limit()
+                    && pageEnd(head, position) <= head.limit();
+            if (!isPageMapped) {
+                if (head.limit() < maxHeadSize) {
+                    // the comment packet is larger than the mapped region, map more of it
+                    head = map(channel, offset, (int) Math.min(maxHeadSize, head.limit() * 4L));
+                    continue;
+                }
+                break;
+            }
+            if (!latin1(head, position, 4).equals("OggS")) {
+                break;
+            }
+            int segmentCount = head.get(position + 26) & 0xff;
+            int dataPosition = position + 27 + segmentCount;
+            for (int i = 0; i < segmentCount && packetCount < 2; i++) {
+                int segmentLength = head.get(position + 27 + i) & 0xff;
+                for (int j = 0; j < segmentLength; j++) {
+                    packet.write(head.get(dataPosition + j));
+                }
+                dataPosition += segmentLength;
+                if (segmentLength < 255) {
+                    ByteBuffer packetBuffer = ByteBuffer.wrap(packet.toByteArray());
+                    packetBuffer.order(ByteOrder.LITTLE_ENDIAN);
+                    if (packetCount == 0) {
+                        if (startsWith(packetBuffer, "\u0001vorbis")
+                                && packetBuffer.limit() >= 16) {
+                            sampleRate = packetBuffer.getInt(12) & 0xffffffffL;
+                        } else if (startsWith(packetBuffer, "OpusHead")
+                                && packetBuffer.limit() >= 12) {
+                            preSkip = packetBuffer.getShort(10) & 0xffff;
+                            sampleRate = 48000;
+                        } else {
+                            return;
+                        }
+                    } else if (startsWith(packetBuffer, "\u0003vorbis")) {
+                        parseVorbisComment(slice(packetBuffer, 7, packetBuffer.limit() - 7),
+                                tagInfo);
+                    } else if (startsWith(packetBuffer, "OpusTags")) {
+                        parseVorbisComment(slice(packetBuffer, 8, packetBuffer.limit() - 8),
+                                tagInfo);
+                    }
+                    packet.reset();
+                    packetCount++;
+                }
+            }
+            position = pageEnd(head, position);
+        }
+        if (sampleRate > 0) {
+            long granule = readLastOggGranule(channel);
+            if (granule > preSkip) {
+                tagInfo.setDuration((granule - preSkip) * 1000 / sampleRate);
+            }
+        }
+    }
+
+    /**
+     * @return the position of the first byte after the Ogg page at the given position
+     */
+    private static int pageEnd(ByteBuffer buffer, int pageStart) {
+        int segmentCount = buffer.get(pageStart + 26) & 0xff;
+        int end = pageStart + 27 + segmentCount;
+        for (int i = 0; i < segmentCount; i++) {
+            end += buffer.get(pageStart + 27 + i) & 0xff;
+        }
+        return end;
+    }
+
+    /**
+     * @return the granule position of the last Ogg page in the file, -1 if none could be found
+     */
+    private long readLastOggGranule(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long tailStart = Math.max(0, size - OGG_TAIL_SIZE);
+        ByteBuffer tail = map(channel, tailStart, (int) (size - tailStart));
+        tail.order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = tail.limit() - 27; i >= 0; i--) {
+            if (tail.get(i) == 'O' && latin1(tail, i, 4).equals("OggS")) {
+                return tail.getLong(i + 6);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parse the atoms of an MP4 file. The top level atoms are walked with small reads, only the
+     * "moov" atom, which holds all metadata, is mapped.
+     */
+    private void parseMp4(FileChannel channel, long offset, TagInfo tagInfo) throws IOException {
+        long size = channel.size();
+        long position = offset;
+        while (position + 8 <= size) {
+            ByteBuffer header = ByteBuffer.wrap(read(channel, position, 16));
+            long atomSize = header.getInt(0) & 0xffffffffL;
+            String type = latin1(header, 4, 4);
+            int headerSize = 8;
+            if (atomSize == 1) {
+                atomSize = header.getLong(8);
+                headerSize = 16;
+            } else if (atomSize == 0) {
+                atomSize = size - position;
+            }
+            if (atomSize < headerSize) {
+                return;
+            }
+            if (type.equals("moov")) {
+                if (atomSize - headerSize > MAX_TAG_SIZE) {
+                    return;
+                }
+                long moovStart = position + headerSize;
+                ByteBuffer moov = map(channel, moovStart, (int) (atomSize - headerSize));
+                parseMp4Atoms(moov, 0, moov.limit(), moovStart, tagInfo);
+                return;
+            }
+            position += atomSize;
+        }
+    }
+
+    /**
+     * Walk the child atoms in the given range of the mapped "moov" atom
+     */
+    private void parseMp4Atoms(ByteBuffer moov, int start, int end, long moovFileOffset,
+            TagInfo tagInfo) {
+        int position = start;
+        while (position + 8 <= end) {
+            int atomSize = moov.getInt(position);
+            String type = latin1(moov, position + 4, 4);
+            if (atomSize < 8 || position + atomSize > end) {
+                return;
+            }
+            int dataStart = position + 8;
+            int atomEnd = position + atomSize;
+            if (type.equals("udta") || type.equals("ilst")) {
+                parseMp4Atoms(moov, dataStart, atomEnd, moovFileOffset, tagInfo);
+            } else if (type.equals("meta")) {
+                // full atom, skip version and flags
+                parseMp4Atoms(moov, dataStart + 4, atomEnd, moovFileOffset, tagInfo);
+            } else if (type.equals("mvhd") && dataStart + 32 <= atomEnd) {
+                int version = moov.get(dataStart);
+                long timescale;
+                long duration;
+                if (version == 1) {
+                    timescale = moov.getInt(dataStart + 20) & 0xffffffffL;
+                    duration = moov.getLong(dataStart + 24);
+                } else {
+                    timescale = moov.getInt(dataStart + 12) & 0xffffffffL;
+                    duration = moov.getInt(dataStart + 16) & 0xffffffffL;
+                }
+                if (timescale > 0) {
+                    tagInfo.setDuration(duration * 1000 / timescale);
+                }
+            } else if (dataStart + 16 <= atomEnd
+                    && latin1(moov, dataStart + 4, 4).equals("data")) {
+                parseMp4Item(moov, type, dataStart, atomEnd, moovFileOffset, tagInfo);
+            }
+            position = atomEnd;
+        }
+    }
+
+    /**
+     * Parse an item of the "ilst" atom, which holds its value in a "data" atom
+     */
+    private void parseMp4Item(ByteBuffer moov, String type, int dataAtomStart, int end,
+            long moovFileOffset, TagInfo tagInfo) {
+        int dataAtomSize = Math.min(moov.getInt(dataAtomStart), end - dataAtomStart);
+        int valueStart = dataAtomStart + 16;
+        int valueLength = dataAtomSize - 16;
+        if (valueLength <= 0) {
+            return;
+        }
+        int dataType = moov.getInt(dataAtomStart + 8) & 0xffffff;
+        if (type.equals("\u00a9nam")) {
+            tagInfo.setTitle(utf8(moov, valueStart, valueLength));
+        } else if (type.equals("\u00a9ART")) {
+            tagInfo.setArtist(utf8(moov, valueStart, valueLength));
+        } else if (type.equals("aART")) {
+            tagInfo.setAlbumArtist(utf8(moov, valueStart, valueLength));
+        } else if (type.equals("\u00a9alb")) {
+            tagInfo.setAlbum(utf8(moov, valueStart, valueLength));
+        } else if (type.equals("\u00a9day")) {
+            tagInfo.setYear(parseNumber(utf8(moov, valueStart, valueLength)));
+        } else if (type.equals("trkn") && valueLength >= 4) {
+            tagInfo.setTrackNumber(moov.getShort(valueStart + 2) & 0xffff);
+        } else if (type.equals("disk") && valueLength >= 4) {
+            tagInfo.setDiscNumber(moov.getShort(valueStart + 2) & 0xffff);
+        } else if (type.equals("covr") && !tagInfo.hasArt()) {
+            tagInfo.setArt(moovFileOffset + valueStart, valueLength,
+                    dataType == 14 ? "image/png" : "image/jpeg");
+        }
+    }
+
+    /**
+     * Decode the value of an ID3v2 text frame. Only the first value of multi-valued frames is
+     * taken.
+     */
+    private static String id3Text(ByteBuffer frame) {
+        if (frame.limit() < 1) {
+            return null;
+        }
+        int encoding = frame.get(0);
+        int end = indexOfTerminator(frame, 1, encoding);
+        if (end < 0) {
+            end = frame.limit();
+        }
+        String charset;
+        switch (encoding) {
+            case 1:
+                charset = "UTF-16";
+                break;
+            case 2:
+                charset = "UTF-16BE";
+                break;
+            case 3:
+                charset = "UTF-8";
+                break;
+            default:
+                charset = "ISO-8859-1";
+        }
+        return emptyToNull(decode(frame, 1, end - 1, charset));
+    }
+
+    /**
+     * @return the position of the first string terminator of the given text encoding at or after
+     *         the given position, -1 if there is none
+     */
+    private static int indexOfTerminator(ByteBuffer buffer, int position, int encoding) {
+        if (encoding == 1 || encoding == 2) {
+            for (int i = position; i + 1 < buffer.limit(); i += 2) {
+                if (buffer.get(i) == 0 && buffer.get(i + 1) == 0) {
+                    return i;
+                }
+            }
+        } else {
+            for (int i = position; i < buffer.limit(); i++) {
+                if (buffer.get(i) == 0) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Remove the ID3v2 unsynchronisation scheme, which inserts a zero byte after every 0xff
+     */
+    private static byte[] resynchronize(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            out.write(bytes[i]);
+            if ((bytes[i] & 0xff) == 0xff && i + 1 < bytes.length && bytes[i + 1] == 0) {
+                i++;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Parse the leading number of the given string, e.g. "3" of "3/12" or "2013" of "2013-05-01"
+     *
+     * @return the number, 0 if there is none
+     */
+    static int parseNumber(String string) {
+        if (string == null) {
+            return 0;
+        }
+        int number = 0;
+        int i = 0;
+        while (i < string.length() && Character.isWhitespace(string.charAt(i))) {
+            i++;
+        }
+        for (; i < string.length() && number < 100000000; i++) {
+            char c = string.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            number = number * 10 + c - '0';
+        }
+        return number;
+    }
+
+    private static int syncSafeInt(byte[] bytes, int position) {
+        return ((bytes[position] & 0x7f) << 21) | ((bytes[position + 1] & 0x7f) << 14)
+                | ((bytes[position + 2] & 0x7f) << 7) | (bytes[position + 3] & 0x7f);
+    }
+
+    private static int syncSafeInt(ByteBuffer buffer, int position) {
+        return ((buffer.get(position) & 0x7f) << 21) | ((buffer.get(position + 1) & 0x7f) << 14)
+                | ((buffer.get(position + 2) & 0x7f) << 7) | (buffer.get(position + 3) & 0x7f);
+    }
+
+    /**
+     * Map the given region of the file read-only. The region is clamped to the size of the file.
+     */
+    private static ByteBuffer map(FileChannel channel, long position, int length)
+            throws IOException {
+        long size = channel.size();
+        long clampedLength = Math.max(0, Math.min(length, size - position));
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, clampedLength);
+    }
+
+    /**
+     * Read a few bytes at the given position. Used for headers, which are too small to be worth a
+     * mapping.
+     */
+    private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return buffer.array();
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(position);
+        duplicate.limit(position + Math.max(0, length));
+        return duplicate.slice();
+    }
+
+    private static boolean startsWith(byte[] bytes, int position, String prefix) {
+        if (bytes.length < position + prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (bytes[position + i] != (byte) prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, String prefix) {
+        return buffer.limit() >= prefix.length() && latin1(buffer, 0, prefix.length())
+                .equals(prefix);
+    }
+
+    private static String latin1(ByteBuffer buffer, int position, int length) {
+        return decode(buffer, position, length, "ISO-8859-1");
+    }
+
+    private static String utf8(ByteBuffer buffer, int position, int length) {
+        return decode(buffer, position, length, "UTF-8");
+    }
+
+    private static String decode(ByteBuffer buffer, int position, int length, String charset) {
+        int clampedLength = Math.max(0, Math.min(length, buffer.limit() - position));
+        byte[] bytes = new byte[clampedLength];
+        for (int i = 0; i < clampedLength; i++) {
+            bytes[i] = buffer.get(position + i);
+        }
+        try {
+            String string = new String(bytes, charset);
+            int end = string.length();
+            while (end > 0 && string.charAt(end - 1) == 0) {
+                end--;
+            }
+            return string.substring(0, end);
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    private static String emptyToNull(String string) {
+        return string == null || string.length() == 0 ? null : string;
+    }
+}
@@ -0,0 +1,115 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.utils;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Runs a {@link Runnable} on a {@link Handler}'s thread and coalesces bursts of requests into a
+ * single run. A request postpones the run by the debounce delay, but never by more than the max
+ * latency counted from the first request of the burst. Because every run happens on the same
+ * thread, there is at most one run in flight. Requests arriving during a run schedule exactly one
+ * more run afterwards.
+ */
+public class CoalescingRunner {
+
+    private final Handler mHandler;
+
+    private final Runnable mRunnable;
+
+    private final long mDebounceDelay;
+
+    private final long mMaxLatency;
+
+    private long mFirstRequestTime = -1;
+
+    private int mRequestCount;
+
+    private int mRunCount;
+
+    private final Runnable mCoalescedRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (CoalescingRunner.this) {
+                mFirstRequestTime = -1;
+                mRunCount++;
+            }
+            mRunnable.run();
+        }
+    };
+
+    /**
+     * Construct a new CoalescingRunner
+     *
+     * @param handler       the {@link Handler} on whose thread the runnable will be run
+     * @param runnable      the {@link Runnable} to run
+     * @param debounceDelay time in ms to wait for further requests before running
+     * @param maxLatency    maximum time in ms between the first request of a burst and the run
+     */
+    public CoalescingRunner(Handler handler, Runnable runnable, long debounceDelay,
+            long maxLatency) {
+        mHandler = handler;
+        mRunnable = runnable;
+        mDebounceDelay = debounceDelay;
+        mMaxLatency = maxLatency;
+    }
+
+    /**
+     * Request a run after the default debounce delay.
+     */
+    public void request() {
+        request(mDebounceDelay);
+    }
+
+    /**
+     * Request a run after the given delay. Pending requests are merged into this one.
+     */
+    public synchronized void request(long delay) {
+        long now = SystemClock.uptimeMillis();
+        mRequestCount++;
+        if (mFirstRequestTime < 0) {
+            mFirstRequestTime = now;
+        }
+        long runTime = Math.min(now + delay, mFirstRequestTime + mMaxLatency);
+        mHandler.removeCallbacks(mCoalescedRunnable);
+        mHandler.postAtTime(mCoalescedRunnable, runTime);
+    }
+
+    /**
+     * Drop a pending run, if there is one. A run, which is already in flight, is not affected.
+     */
+    public synchronized void cancel() {
+        mHandler.removeCallbacks(mCoalescedRunnable);
+        mFirstRequestTime = -1;
+    }
+
+    /**
+     * @return the number of requests made so far
+     */
+    public synchronized int getRequestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * @return the number of runs made so far
+     */
+    public synchronized int getRunCount() {
+        return mRunCount;
+    }
+}
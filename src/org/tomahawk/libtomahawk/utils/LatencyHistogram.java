@@ -0,0 +1,123 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.utils;
+
+/**
+ * Counts latencies in buckets, whose bounds grow by a factor of two. Memory and cost of recording
+ * stay constant, no matter how many latencies are recorded, while the percentiles are still
+ * accurate to within a factor of two. Samples can be recorded from any thread.
+ */
+public class LatencyHistogram {
+
+    // Bucket i counts the latencies in [2^(i-1), 2^i) ms, bucket 0 counts the ones below 1ms
+    private static final int BUCKET_COUNT = 24;
+
+    private final long[] mBuckets = new long[BUCKET_COUNT];
+
+    private long mCount;
+
+    private long mSum;
+
+    private long mMax;
+
+    /**
+     * Record the given latency in ms
+     */
+    public synchronized void record(long latency) {
+        if (latency < 0) {
+            latency = 0;
+        }
+        mBuckets[bucketOf(latency)]++;
+        mCount++;
+        mSum += latency;
+        mMax = Math.max(mMax, latency);
+    }
+
+    private static int bucketOf(long latency) {
+        int bucket = 64 - Long.numberOfLeadingZeros(latency);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * @return the number of recorded latencies
+     */
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the mean of all recorded latencies in ms, 0 if none have been recorded
+     */
+    public synchronized long getMean() {
+        return mCount == 0 ? 0 : mSum / mCount;
+    }
+
+    /**
+     * @return the largest recorded latency in ms
+     */
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    /**
+     * @param percentile the percentile, e.g. 90 for the latency, which 90 percent of all recorded
+     *                   latencies don't exceed
+     * @return the upper bound in ms of the bucket containing the given percentile, but never more
+     *         than the largest recorded latency. 0 if no latencies have been recorded.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(mCount * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets[i];
+            if (seen >= rank && seen > 0) {
+                if (i == 0) {
+                    return 0;
+                }
+                // The last bucket is open ended
+                return i == BUCKET_COUNT - 1 ? mMax : Math.min((1L << i) - 1, mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * Forget all recorded latencies
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets[i] = 0;
+        }
+        mCount = 0;
+        mSum = 0;
+        mMax = 0;
+    }
+
+    /**
+     * @return a single line summary, e.g. "n=12 mean=340ms p50=255ms p90=511ms p99=980ms
+     *         max=980ms"
+     */
+    @Override
+    public synchronized String toString() {
+        return "n=" + mCount + " mean=" + getMean() + "ms p50=" + getPercentile(50) + "ms p90="
+                + getPercentile(90) + "ms p99=" + getPercentile(99) + "ms max=" + mMax + "ms";
+    }
+}
@@ -6,15 +6,28 @@ import android.text.TextUtils;
 import android.util.DisplayMetrics;
 import android.util.Log;
 
+import java.text.Collator;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Locale;
 
 public class TomahawkUtils {
 
     public static String TAG = TomahawkUtils.class.getName();
 
+    private static final String[] SORTKEY_ARTICLES = {"the ", "a ", "an "};
+
+    private static final int SORTKEY_NUMBER_WIDTH = 10;
+
+    private static final byte[] EMPTY_SORTKEY = new byte[0];
+
+    // Collators aren't thread-safe, so every thread, which builds sort keys, gets its own one
+    private static final ThreadLocal<Collator> sCollator = new ThreadLocal<Collator>();
+
+    private static final ThreadLocal<Locale> sCollatorLocale = new ThreadLocal<Locale>();
+
     /**
      * Author: Chas Emerick (source: http://mrfoo.de/archiv/1176-Levenshtein-Distance-in-Java.html)
      *
@@ -112,4 +125,105 @@ public class TomahawkUtils {
         }
         return date;
     }
+
+    /**
+     * Build a binary sort key for the given name. Leading articles ("The", "A", "An") are ignored,
+     * case and accents are folded by a locale-aware {@link Collator} and runs of digits are padded,
+     * so that "Track 2" sorts before "Track 10". Two keys can then be compared with {@link
+     * #compareSortKeys(byte[], byte[])} without touching the Collator again.
+     *
+     * @param name the name to build the sort key for, may be null
+     * @return the sort key, never null
+     */
+    public static byte[] getSortKey(String name) {
+        if (name == null) {
+            return EMPTY_SORTKEY;
+        }
+        String normalized = name.trim();
+        String lowerCase = normalized.toLowerCase(Locale.US);
+        for (String article : SORTKEY_ARTICLES) {
+            if (lowerCase.startsWith(article) && lowerCase.length() > article.length()) {
+                normalized = normalized.substring(article.length()).trim();
+                break;
+            }
+        }
+        if (TextUtils.isEmpty(normalized)) {
+            return EMPTY_SORTKEY;
+        }
+        normalized = padNumbers(normalized);
+        return getCollator().getCollationKey(normalized).toByteArray();
+    }
+
+    /**
+     * Compare two sort keys created by {@link #getSortKey(String)}. Bytes are compared unsigned,
+     * a key which is a prefix of the other one sorts first.
+     */
+    public static int compareSortKeys(byte[] key1, byte[] key2) {
+        int length = Math.min(key1.length, key2.length);
+        for (int i = 0; i < length; i++) {
+            int b1 = key1[i] & 0xff;
+            int b2 = key2[i] & 0xff;
+            if (b1 != b2) {
+                return b1 - b2;
+            }
+        }
+        return key1.length - key2.length;
+    }
+
+    /**
+     * @return the calling thread's {@link Collator} for the current default {@link Locale}.
+     *         Collation is done with primary strength, which ignores case and accents.
+     */
+    private static Collator getCollator() {
+        Locale locale = Locale.getDefault();
+        Collator collator = sCollator.get();
+        if (collator == null || !locale.equals(sCollatorLocale.get())) {
+            collator = Collator.getInstance(locale);
+            collator.setStrength(Collator.PRIMARY);
+            collator.setDecomposition(Collator.CANONICAL_DECOMPOSITION);
+            sCollator.set(collator);
+            sCollatorLocale.set(locale);
+        }
+        return collator;
+    }
+
+    /**
+     * Left-pad every run of digits inside the given string with zeros, so that numbers compare by
+     * value instead of character by character.
+     */
+    private static String padNumbers(String string) {
+        StringBuilder builder = null;
+        int length = string.length();
+        int i = 0;
+        while (i < length) {
+            if (!Character.isDigit(string.charAt(i))) {
+                if (builder != null) {
+                    builder.append(string.charAt(i));
+                }
+                i++;
+                continue;
+            }
+            if (builder == null) {
+                builder = new StringBuilder(length + SORTKEY_NUMBER_WIDTH);
+                builder.append(string, 0, i);
+            }
+            int start = i;
+            while (i < length && string.charAt(i) == '0') {
+                i++;
+            }
+            int significantStart = i;
+            while (i < length && Character.isDigit(string.charAt(i))) {
+                i++;
+            }
+            if (significantStart == i && significantStart > start) {
+                // the run consisted of zeros only
+                significantStart--;
+            }
+            for (int pad = i - significantStart; pad < SORTKEY_NUMBER_WIDTH; pad++) {
+                builder.append('0');
+            }
+            builder.append(string, significantStart, i);
+        }
+        return builder == null ? string : builder.toString();
+    }
 }
@@ -21,18 +21,26 @@ package org.tomahawk.tomahawk_android;
 import org.acra.ReportingInteractionMode;
 import org.acra.annotation.ReportsCrashes;
 import org.tomahawk.libtomahawk.collection.Collection;
+import org.tomahawk.libtomahawk.collection.CollectionDelta;
+import org.tomahawk.libtomahawk.collection.FileSystemCollection;
 import org.tomahawk.libtomahawk.collection.Source;
 import org.tomahawk.libtomahawk.collection.SourceList;
 import org.tomahawk.libtomahawk.collection.UserCollection;
+import org.tomahawk.libtomahawk.database.DatabaseExecutor;
 import org.tomahawk.libtomahawk.hatchet.InfoSystem;
 import org.tomahawk.libtomahawk.resolver.DataBaseResolver;
 import org.tomahawk.libtomahawk.resolver.PipeLine;
 import org.tomahawk.libtomahawk.resolver.ScriptResolver;
+import org.tomahawk.libtomahawk.resolver.UserPlaylistsResolver;
+import org.tomahawk.libtomahawk.scanner.TagCache;
 import org.tomahawk.tomahawk_android.activities.TomahawkAccountAuthenticatorActivity;
+import org.tomahawk.tomahawk_android.services.PlaybackMetrics;
+import org.tomahawk.tomahawk_android.services.PlaybackStateStore;
 import org.tomahawk.tomahawk_android.services.TomahawkService;
 import org.tomahawk.tomahawk_android.services.TomahawkService.TomahawkServiceConnection;
 import org.tomahawk.tomahawk_android.services.TomahawkService.TomahawkServiceConnection.TomahawkServiceConnectionListener;
 import org.tomahawk.tomahawk_android.utils.TomahawkExceptionReporter;
+import org.tomahawk.tomahawk_android.utils.TomahawkPreferences;
 
 import android.accounts.AccountManager;
 import android.accounts.AccountManagerCallback;
@@ -41,13 +49,17 @@ import android.accounts.AuthenticatorException;
 import android.accounts.OperationCanceledException;
 import android.app.Application;
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class contains represents the Application core.
@@ -66,6 +78,10 @@ public class TomahawkApp extends Application
 
     public static final int RESOLVER_ID_USERCOLLECTION = 0;
 
+    public static final int RESOLVER_ID_USERPLAYLISTS = 1;
+
+    public static final int RESOLVER_ID_FILESYSTEMCOLLECTION = 2;
+
     public static final int RESOLVER_ID_JAMENDO = 100;
 
     public static final int RESOLVER_ID_OFFICIALFM = 101;
@@ -74,6 +90,8 @@ public class TomahawkApp extends Application
 
     public static final int RESOLVER_ID_SOUNDCLOUD = 103;
 
+    private static final String TAGCACHE_FILENAME = "tagcache";
+
     private static IntentFilter sCollectionUpdateIntentFilter = new IntentFilter(
             Collection.COLLECTION_UPDATED);
 
@@ -89,11 +107,21 @@ public class TomahawkApp extends Application
 
     private InfoSystem mInfoSystem;
 
-    private long mTrackIdCounter;
+    private TagCache mTagCache;
+
+    private DatabaseExecutor mDatabaseExecutor;
+
+    private PlaybackStateStore mPlaybackStateStore = new PlaybackStateStore();
+
+    private PlaybackMetrics mPlaybackMetrics = new PlaybackMetrics();
 
-    private long mAlbumIdCounter;
+    // Ids of tracks, albums and artists, which don't come from the MediaStore, are counted up
+    // from Long.MIN_VALUE, so that they never collide with the positive MediaStore ids
+    private AtomicLong mTrackIdCounter = new AtomicLong(Long.MIN_VALUE);
 
-    private long mArtistIdCounter;
+    private AtomicLong mAlbumIdCounter = new AtomicLong(Long.MIN_VALUE);
+
+    private AtomicLong mArtistIdCounter = new AtomicLong(Long.MIN_VALUE);
 
     private long mQueryIdCounter;
 
@@ -119,7 +147,7 @@ public class TomahawkApp extends Application
         @Override
         public void onReceive(Context context, Intent intent) {
             if (intent.getAction().equals(Collection.COLLECTION_UPDATED)) {
-                onCollectionUpdated();
+                onCollectionUpdated(CollectionDelta.fromIntent(intent));
             }
         }
     }
@@ -137,6 +165,7 @@ public class TomahawkApp extends Application
             mCollectionUpdatedReceiver = new CollectionUpdateReceiver();
             registerReceiver(mCollectionUpdatedReceiver, sCollectionUpdateIntentFilter);
         }
+        mPipeLine.addResolver(new UserPlaylistsResolver(RESOLVER_ID_USERPLAYLISTS, this));
         ScriptResolver scriptResolver = new ScriptResolver(RESOLVER_ID_JAMENDO, this,
                 "js/jamendo/jamendo-resolver.js");
         mPipeLine.addResolver(scriptResolver);
@@ -153,11 +182,52 @@ public class TomahawkApp extends Application
     }
 
     /**
-     * Called when a Collection has been updated.
+     * Called when a Collection has been updated. The {@link DataBaseResolver}s only need to be
+     * registered once, because they always resolve against the current state of the Collection.
+     */
+    protected void onCollectionUpdated(CollectionDelta delta) {
+        if (mPipeLine.getResolver(RESOLVER_ID_USERCOLLECTION) == null) {
+            mPipeLine.addResolver(new DataBaseResolver(RESOLVER_ID_USERCOLLECTION, this,
+                    mSourceList.getLocalSource().getCollection()));
+        }
+        if (delta != null && delta.getCollectionId() == FileSystemCollection.Id
+                && mPipeLine.getResolver(RESOLVER_ID_FILESYSTEMCOLLECTION) == null) {
+            mPipeLine.addResolver(new DataBaseResolver(RESOLVER_ID_FILESYSTEMCOLLECTION, this,
+                    mSourceList.getCollectionFromId(FileSystemCollection.Id)));
+        }
+    }
+
+    /* 
+     * (non-Javadoc)
+     * @see android.app.Application#onLowMemory()
      */
-    protected void onCollectionUpdated() {
-        mPipeLine.addResolver(new DataBaseResolver(RESOLVER_ID_USERCOLLECTION, this,
-                mSourceList.getLocalSource().getCollection()));
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        evictCachedTracks();
+    }
+
+    /* 
+     * (non-Javadoc)
+     * @see android.app.Application#onTrimMemory(int)
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            evictCachedTracks();
+        }
+    }
+
+    /**
+     * Drop the tracks of all user playlists, which are currently held in memory. They are loaded
+     * from the database again on next access.
+     */
+    private void evictCachedTracks() {
+        Source localSource = mSourceList.getLocalSource();
+        if (localSource != null && localSource.getCollection() instanceof UserCollection) {
+            ((UserCollection) localSource.getCollection()).evictCustomPlaylistTracks();
+        }
     }
 
     /**
@@ -168,12 +238,19 @@ public class TomahawkApp extends Application
     }
 
     /**
-     * Initializes a new Collection of all local tracks.
+     * Initializes a new Collection of all local tracks. A {@link FileSystemCollection} is only
+     * added, if the user has configured folders to scan. It leaves out the folders, which the
+     * MediaStore covers, on its own scanning thread.
      */
     public void initLocalCollection() {
         Log.d(TAG, "Initializing Local Collection.");
         Source src = new Source(new UserCollection(this), 0, "My Collection");
         mSourceList.setLocalSource(src);
+        List<File> folders = TomahawkPreferences.getScanFolders();
+        if (!folders.isEmpty()) {
+            mSourceList.addSource(new Source(new FileSystemCollection(this, folders),
+                    FileSystemCollection.Id, "Music Folders"));
+        }
     }
 
     /**
@@ -192,6 +269,48 @@ public class TomahawkApp extends Application
         return mSourceList;
     }
 
+    /**
+     * @return the {@link TagCache}, which is shared by all local {@link Collection}s. Loaded on
+     *         first use, so this shouldn't be called on the main thread.
+     */
+    public synchronized TagCache getTagCache() {
+        if (mTagCache == null) {
+            mTagCache = new TagCache(new File(getFilesDir(), TAGCACHE_FILENAME));
+            try {
+                mTagCache.load();
+            } catch (IOException e) {
+                Log.e(TAG, "getTagCache: " + e.getClass() + ": " + e.getLocalizedMessage());
+            }
+        }
+        return mTagCache;
+    }
+
+    /**
+     * @return the {@link DatabaseExecutor}, through which all database access has to go
+     */
+    public synchronized DatabaseExecutor getDatabaseExecutor() {
+        if (mDatabaseExecutor == null) {
+            mDatabaseExecutor = new DatabaseExecutor(this, mPipeLine);
+        }
+        return mDatabaseExecutor;
+    }
+
+    /**
+     * @return the {@link PlaybackStateStore}, through which the PlaybackService publishes
+     *         its playback state
+     */
+    public PlaybackStateStore getPlaybackStateStore() {
+        return mPlaybackStateStore;
+    }
+
+    /**
+     * @return the {@link PlaybackMetrics}, in which the latencies and errors of the playback
+     *         pipeline are recorded
+     */
+    public PlaybackMetrics getPlaybackMetrics() {
+        return mPlaybackMetrics;
+    }
+
     public PipeLine getPipeLine() {
         return mPipeLine;
     }
@@ -251,15 +370,15 @@ public class TomahawkApp extends Application
     }
 
     public long getUniqueTrackId() {
-        return mTrackIdCounter++;
+        return mTrackIdCounter.getAndIncrement();
     }
 
     public long getUniqueAlbumId() {
-        return mAlbumIdCounter++;
+        return mAlbumIdCounter.getAndIncrement();
     }
 
     public long getUniqueArtistId() {
-        return mArtistIdCounter++;
+        return mArtistIdCounter.getAndIncrement();
     }
 
     public String getUniqueQueryId() {
@@ -26,6 +26,7 @@ import com.slidingmenu.lib.SlidingMenu;
 import org.tomahawk.libtomahawk.collection.Album;
 import org.tomahawk.libtomahawk.collection.Artist;
 import org.tomahawk.libtomahawk.collection.Collection;
+import org.tomahawk.libtomahawk.collection.CollectionDelta;
 import org.tomahawk.libtomahawk.collection.CollectionLoader;
 import org.tomahawk.libtomahawk.collection.CustomPlaylist;
 import org.tomahawk.libtomahawk.collection.SourceList;
@@ -45,6 +46,8 @@ import org.tomahawk.tomahawk_android.fragments.TracksFragment;
 import org.tomahawk.tomahawk_android.services.PlaybackService;
 import org.tomahawk.tomahawk_android.services.PlaybackService.PlaybackServiceConnection;
 import org.tomahawk.tomahawk_android.services.PlaybackService.PlaybackServiceConnection.PlaybackServiceConnectionListener;
+import org.tomahawk.tomahawk_android.services.PlaybackState;
+import org.tomahawk.tomahawk_android.services.PlaybackStateStore;
 import org.tomahawk.tomahawk_android.ui.widgets.SquareHeightRelativeLayout;
 import org.tomahawk.tomahawk_android.utils.ContentViewer;
 
@@ -71,7 +74,8 @@ import java.util.HashMap;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class CollectionActivity extends TomahawkTabsActivity
-        implements PlaybackServiceConnectionListener, LoaderManager.LoaderCallbacks<Collection> {
+        implements PlaybackServiceConnectionListener, LoaderManager.LoaderCallbacks<Collection>,
+        PlaybackStateStore.Observer {
 
     public static final String COLLECTION_ID_STOREDBACKSTACK = "collection_id_storedbackstack";
 
@@ -90,8 +94,6 @@ public class CollectionActivity extends TomahawkTabsActivity
     private PlaybackServiceConnection mPlaybackServiceConnection = new PlaybackServiceConnection(
             this);
 
-    private CollectionActivityBroadcastReceiver mCollectionActivityBroadcastReceiver;
-
     private int mCurrentStackPosition = -1;
 
     /**
@@ -109,23 +111,7 @@ public class CollectionActivity extends TomahawkTabsActivity
         @Override
         public void onReceive(Context context, Intent intent) {
             if (intent.getAction().equals(Collection.COLLECTION_UPDATED)) {
-                onCollectionUpdated();
-            }
-        }
-    }
-
-    private class CollectionActivityBroadcastReceiver extends BroadcastReceiver {
-
-        /* 
-         * (non-Javadoc)
-         * @see android.content.BroadcastReceiver#onReceive(android.content.Context, android.content.Intent)
-         */
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            if (intent.getAction().equals(PlaybackService.BROADCAST_NEWTRACK)) {
-                if (mPlaybackService != null) {
-                    setNowPlayingInfo(mPlaybackService.getCurrentTrack());
-                }
+                onCollectionUpdated(CollectionDelta.fromIntent(intent));
             }
         }
     }
@@ -265,6 +251,7 @@ public class CollectionActivity extends TomahawkTabsActivity
         if (mPlaybackService != null) {
             setNowPlayingInfo(mPlaybackService.getCurrentTrack());
         }
+        ((TomahawkApp) getApplication()).getPlaybackStateStore().addObserver(this);
 
         getSupportLoaderManager().destroyLoader(0);
         getSupportLoaderManager().initLoader(0, null, this);
@@ -294,10 +281,7 @@ public class CollectionActivity extends TomahawkTabsActivity
 
         mCurrentStackPosition = mContentViewer.getCurrentStackId();
 
-        if (mCollectionActivityBroadcastReceiver != null) {
-            unregisterReceiver(mCollectionActivityBroadcastReceiver);
-            mCollectionActivityBroadcastReceiver = null;
-        }
+        ((TomahawkApp) getApplication()).getPlaybackStateStore().removeObserver(this);
         if (mCollectionUpdatedReceiver != null) {
             unregisterReceiver(mCollectionUpdatedReceiver);
             mCollectionUpdatedReceiver = null;
@@ -404,10 +388,17 @@ public class CollectionActivity extends TomahawkTabsActivity
     }
 
     /**
-     * Called when a {@link Collection} has been updated.
+     * Called when a {@link Collection} has been updated. Only reloads, if the loaded
+     * {@link Collection} itself has been updated. The delta is only used to filter out updates of
+     * other Collections, its changes aren't patched into the adapters.
+     *
+     * @param delta the changes of the update, null if unknown
      */
-    protected void onCollectionUpdated() {
-        getSupportLoaderManager().restartLoader(0, null, this);
+    protected void onCollectionUpdated(CollectionDelta delta) {
+        if (delta == null || mCollection == null
+                || delta.getCollectionId() == mCollection.getId()) {
+            getSupportLoaderManager().restartLoader(0, null, this);
+        }
     }
 
     /*
@@ -474,6 +465,16 @@ public class CollectionActivity extends TomahawkTabsActivity
         return intent;
     }
 
+    /* (non-Javadoc)
+     * @see org.tomahawk.tomahawk_android.services.PlaybackStateStore.Observer#onPlaybackStateChanged(org.tomahawk.tomahawk_android.services.PlaybackState, int)
+     */
+    @Override
+    public void onPlaybackStateChanged(PlaybackState state, int changedFields) {
+        if ((changedFields & PlaybackState.CHANGED_TRACK) != 0) {
+            setNowPlayingInfo(state.getTrack());
+        }
+    }
+
     /**
      * Sets the playback information
      */
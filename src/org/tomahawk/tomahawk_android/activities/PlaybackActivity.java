@@ -35,7 +35,6 @@ import org.tomahawk.libtomahawk.collection.CustomPlaylist;
 import org.tomahawk.libtomahawk.collection.Playlist;
 import org.tomahawk.libtomahawk.collection.Track;
 import org.tomahawk.libtomahawk.collection.UserCollection;
-import org.tomahawk.libtomahawk.database.UserPlaylistsDataSource;
 import org.tomahawk.libtomahawk.utils.TomahawkUtils;
 import org.tomahawk.tomahawk_android.R;
 import org.tomahawk.tomahawk_android.TomahawkApp;
@@ -43,18 +42,20 @@ import org.tomahawk.tomahawk_android.adapters.TomahawkBaseAdapter;
 import org.tomahawk.tomahawk_android.adapters.TomahawkListAdapter;
 import org.tomahawk.tomahawk_android.dialogs.ChoosePlaylistDialog;
 import org.tomahawk.tomahawk_android.dialogs.FakeContextMenuDialog;
+import org.tomahawk.tomahawk_android.dialogs.PlaybackStatsDialog;
 import org.tomahawk.tomahawk_android.dialogs.PlaylistDialog;
 import org.tomahawk.tomahawk_android.fragments.PlaybackFragment;
 import org.tomahawk.tomahawk_android.services.PlaybackService;
 import org.tomahawk.tomahawk_android.services.PlaybackService.PlaybackServiceConnection;
 import org.tomahawk.tomahawk_android.services.PlaybackService.PlaybackServiceConnection.PlaybackServiceConnectionListener;
+import org.tomahawk.tomahawk_android.services.PlaybackState;
+import org.tomahawk.tomahawk_android.services.PlaybackStateStore;
 import org.tomahawk.tomahawk_android.utils.FakeContextMenu;
 import org.tomahawk.tomahawk_android.views.TomahawkStickyListHeadersListView;
 
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
 import android.graphics.drawable.Drawable;
 import android.media.AudioManager;
 import android.os.Build;
@@ -74,7 +75,7 @@ import java.util.List;
 public class PlaybackActivity extends SherlockFragmentActivity
         implements PlaybackServiceConnectionListener, Handler.Callback,
         AdapterView.OnItemClickListener, StickyListHeadersListView.OnHeaderClickListener,
-        ViewTreeObserver.OnGlobalLayoutListener, FakeContextMenu {
+        ViewTreeObserver.OnGlobalLayoutListener, FakeContextMenu, PlaybackStateStore.Observer {
 
     public static final String TAG = PlaybackActivity.class.getName();
 
@@ -96,16 +97,12 @@ public class PlaybackActivity extends SherlockFragmentActivity
 
     private PlaybackService mPlaybackService;
 
-    private UserPlaylistsDataSource mUserPlaylistsDataSource;
-
     /**
      * Allow communication to the PlaybackService.
      */
     private PlaybackServiceConnection mPlaybackServiceConnection = new PlaybackServiceConnection(
             this);
 
-    private PlaybackServiceBroadcastReceiver mPlaybackServiceBroadcastReceiver;
-
     /**
      * Identifier for passing a Track as an extra in an Intent.
      */
@@ -121,32 +118,6 @@ public class PlaybackActivity extends SherlockFragmentActivity
 
     public static final String PLAYLIST_PLAYLIST_ID = "playlist_playlist_id";
 
-    private class PlaybackServiceBroadcastReceiver extends BroadcastReceiver {
-
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            if (intent.getAction().equals(PlaybackService.BROADCAST_NEWTRACK)) {
-                if (mPlaybackFragment != null) {
-                    mPlaybackFragment.onTrackChanged();
-                }
-                onTrackChanged();
-                startLoadingAnimation();
-            }
-            if (intent.getAction().equals(PlaybackService.BROADCAST_PLAYLISTCHANGED)) {
-                if (mPlaybackFragment != null) {
-                    mPlaybackFragment.onPlaylistChanged();
-                }
-                onPlaylistChanged();
-            }
-            if (intent.getAction().equals(PlaybackService.BROADCAST_PLAYSTATECHANGED)) {
-                if (mPlaybackFragment != null) {
-                    mPlaybackFragment.onPlaystateChanged();
-                }
-                onPlaystateChanged();
-            }
-        }
-    }
-
     /*
      * (non-Javadoc)
      *
@@ -188,19 +159,7 @@ public class PlaybackActivity extends SherlockFragmentActivity
 
         mProgressDrawable = getResources().getDrawable(R.drawable.progress_indeterminate_tomahawk);
 
-        if (mPlaybackServiceBroadcastReceiver == null) {
-            mPlaybackServiceBroadcastReceiver = new PlaybackServiceBroadcastReceiver();
-        }
-        IntentFilter intentFilter = new IntentFilter(PlaybackService.BROADCAST_NEWTRACK);
-        registerReceiver(mPlaybackServiceBroadcastReceiver, intentFilter);
-        intentFilter = new IntentFilter(PlaybackService.BROADCAST_PLAYLISTCHANGED);
-        registerReceiver(mPlaybackServiceBroadcastReceiver, intentFilter);
-        intentFilter = new IntentFilter(PlaybackService.BROADCAST_PLAYSTATECHANGED);
-        registerReceiver(mPlaybackServiceBroadcastReceiver, intentFilter);
-
-        mUserPlaylistsDataSource = new UserPlaylistsDataSource(this,
-                ((TomahawkApp) getApplication()).getPipeLine());
-        mUserPlaylistsDataSource.open();
+        ((TomahawkApp) getApplication()).getPlaybackStateStore().addObserver(this);
     }
 
     /*
@@ -212,13 +171,7 @@ public class PlaybackActivity extends SherlockFragmentActivity
     public void onPause() {
         super.onPause();
 
-        if (mPlaybackServiceBroadcastReceiver != null) {
-            unregisterReceiver(mPlaybackServiceBroadcastReceiver);
-            mPlaybackServiceBroadcastReceiver = null;
-        }
-        if (mUserPlaylistsDataSource != null) {
-            mUserPlaylistsDataSource.close();
-        }
+        ((TomahawkApp) getApplication()).getPlaybackStateStore().removeObserver(this);
     }
 
     @Override
@@ -244,6 +197,8 @@ public class PlaybackActivity extends SherlockFragmentActivity
         menu.clear();
         MenuInflater inflater = getSupportMenuInflater();
         inflater.inflate(R.menu.playback_menu, menu);
+        boolean debuggable = (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+        menu.findItem(R.id.action_playbackstats_item).setVisible(debuggable);
         return true;
     }
 
@@ -266,6 +221,10 @@ public class PlaybackActivity extends SherlockFragmentActivity
                 new PlaylistDialog(mPlaylist).show(getSupportFragmentManager(),
                         getString(R.string.playbackactivity_save_playlist_dialog_title));
                 return true;
+            } else if (item.getItemId() == R.id.action_playbackstats_item) {
+                new PlaybackStatsDialog().show(getSupportFragmentManager(),
+                        getString(R.string.playbackactivity_playback_stats_dialog_title));
+                return true;
             } else if (item.getItemId() == android.R.id.home) {
                 Intent collectionIntent = getIntent(this, CollectionActivity.class);
                 startActivity(collectionIntent);
@@ -463,6 +422,7 @@ public class PlaybackActivity extends SherlockFragmentActivity
             long trackid = playlistBundle.getLong(PLAYLIST_TRACK_ID);
 
             Playlist playlist = null;
+            boolean waitingForTracks = false;
             TomahawkApp app = (TomahawkApp) getApplication();
             if (playlistBundle.containsKey(PLAYLIST_ALBUM_ID)) {
                 long albumid = playlistBundle.getLong(PLAYLIST_ALBUM_ID);
@@ -477,24 +437,35 @@ public class PlaybackActivity extends SherlockFragmentActivity
                 playlist = ArtistPlaylist.fromArtist(Artist.get(artistid));
             } else if (playlistBundle.containsKey(PLAYLIST_PLAYLIST_ID)) {
                 long playlistid = playlistBundle.getLong(PLAYLIST_PLAYLIST_ID);
-                playlist = app.getSourceList().getCollectionFromId(UserCollection.Id)
-                        .getCustomPlaylistById(playlistid);
-                if (playlist != null) {
-                    playlist.setCurrentTrack(Track.get(trackid));
+                CustomPlaylist customPlaylist = app.getSourceList()
+                        .getCollectionFromId(UserCollection.Id).getCustomPlaylistById(playlistid);
+                if (customPlaylist != null && !customPlaylist.isLoaded()) {
+                    // Played, once its tracks have been loaded in the background
+                    final long currentTrackId = trackid;
+                    waitingForTracks = true;
+                    customPlaylist.loadTracks(new CustomPlaylist.OnTracksLoadedListener() {
+                        @Override
+                        public void onTracksLoaded(CustomPlaylist customPlaylist) {
+                            if (mPlaybackService != null) {
+                                customPlaylist.setCurrentTrack(Track.get(currentTrackId));
+                                playPlaylist(customPlaylist);
+                                onPlaylistChanged();
+                            }
+                        }
+                    });
+                } else if (customPlaylist != null) {
+                    customPlaylist.setCurrentTrack(Track.get(trackid));
+                    playlist = customPlaylist;
                 }
             } else if (playlistBundle.containsKey(UserCollection.USERCOLLECTION_PLAYLISTCACHED)) {
                 playlist = ((UserCollection) app.getSourceList()
                         .getCollectionFromId(UserCollection.Id)).getCachedCustomPlaylist();
             }
             if (playlist != null) {
-                try {
-                    mPlaybackService.setCurrentPlaylist(playlist);
-                    mPlaylist = mPlaybackService.getCurrentPlaylist();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                playPlaylist(playlist);
+            } else if (!waitingForTracks) {
+                mPlaybackService.start();
             }
-            mPlaybackService.start();
         }
         if (mPlaybackFragment != null) {
             mPlaybackFragment.setPlaybackService(mPlaybackService);
@@ -502,6 +473,19 @@ public class PlaybackActivity extends SherlockFragmentActivity
         onPlaylistChanged();
     }
 
+    /**
+     * Hand the given Playlist to the PlaybackService and start playing it
+     */
+    private void playPlaylist(Playlist playlist) {
+        try {
+            mPlaybackService.setCurrentPlaylist(playlist);
+            mPlaylist = mPlaybackService.getCurrentPlaylist();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mPlaybackService.start();
+    }
+
     private void initAdapter() {
         if (mPlaybackService != null) {
             mPlaylist = mPlaybackService.getCurrentPlaylist();
@@ -568,24 +552,47 @@ public class PlaybackActivity extends SherlockFragmentActivity
         mList.setAdapter(adapter);
     }
 
-    /**
-     * Called when the track has Changed inside our PlaybackService
+    /* (non-Javadoc)
+     * @see org.tomahawk.tomahawk_android.services.PlaybackStateStore.Observer#onPlaybackStateChanged(org.tomahawk.tomahawk_android.services.PlaybackState, int)
      */
-    public void onTrackChanged() {
-        if (mPlaylist != null) {
-            mTomahawkListAdapter.setHighlightedItem(mPlaylist.getCurrentTrackIndex());
-            mTomahawkListAdapter.setHighlightedItemIsPlaying(mPlaybackService.isPlaying());
-            mTomahawkListAdapter.notifyDataSetChanged();
+    @Override
+    public void onPlaybackStateChanged(PlaybackState state, int changedFields) {
+        if (mPlaybackService == null) {
+            // Everything is refreshed in onPlaybackServiceReady()
+            return;
+        }
+        if (mPlaybackFragment != null) {
+            if ((changedFields & (PlaybackState.CHANGED_TRACK | PlaybackState.CHANGED_TRACKINDEX))
+                    != 0) {
+                mPlaybackFragment.onTrackChanged();
+            }
+            if ((changedFields & (PlaybackState.CHANGED_QUEUE | PlaybackState.CHANGED_SHUFFLED
+                    | PlaybackState.CHANGED_REPEATING)) != 0) {
+                mPlaybackFragment.onPlaylistChanged();
+            }
+            if ((changedFields & PlaybackState.CHANGED_PLAYSTATE) != 0) {
+                mPlaybackFragment.onPlaystateChanged();
+            }
+        }
+        if ((changedFields & PlaybackState.CHANGED_TRACK) != 0) {
+            startLoadingAnimation();
+        }
+        if ((changedFields & PlaybackState.CHANGED_QUEUE) != 0) {
+            onPlaylistChanged();
+        } else if ((changedFields & (PlaybackState.CHANGED_TRACKINDEX
+                | PlaybackState.CHANGED_PLAYSTATE)) != 0) {
+            onHighlightChanged(state);
         }
     }
 
     /**
-     * Called when the playState (playing or paused) has Changed inside our PlaybackService
+     * Called when the current track or the playState (playing or paused) has changed inside our
+     * PlaybackService, while the tracks of the playlist have stayed the same
      */
-    public void onPlaystateChanged() {
-        if (mPlaylist != null) {
-            mTomahawkListAdapter.setHighlightedItem(mPlaylist.getCurrentTrackIndex());
-            mTomahawkListAdapter.setHighlightedItemIsPlaying(mPlaybackService.isPlaying());
+    private void onHighlightChanged(PlaybackState state) {
+        if (mPlaylist != null && mTomahawkListAdapter != null) {
+            mTomahawkListAdapter.setHighlightedItem(state.getTrackIndex());
+            mTomahawkListAdapter.setHighlightedItemIsPlaying(state.isPlaying());
             mTomahawkListAdapter.notifyDataSetChanged();
         }
     }
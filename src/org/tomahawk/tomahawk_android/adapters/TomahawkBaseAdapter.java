@@ -141,6 +141,17 @@ public abstract class TomahawkBaseAdapter extends BaseAdapter {
         return false;
     }
 
+    /**
+     * @param index the index of the list
+     * @return the list with the given index, null if there is none
+     */
+    public List<TomahawkListItem> getListWithIndex(int index) {
+        if (index < mListArray.size()) {
+            return mListArray.get(index);
+        }
+        return null;
+    }
+
     public void setListWithIndex(int index, ArrayList<TomahawkListItem> itemList) {
         if (hasListWithIndex(index)) {
             mListArray.set(index, itemList);
@@ -20,6 +20,7 @@ package org.tomahawk.tomahawk_android.dialogs;
 import org.tomahawk.libtomahawk.collection.CustomPlaylist;
 import org.tomahawk.libtomahawk.collection.Track;
 import org.tomahawk.libtomahawk.collection.UserCollection;
+import org.tomahawk.libtomahawk.database.DatabaseExecutor;
 import org.tomahawk.libtomahawk.database.UserPlaylistsDataSource;
 import org.tomahawk.tomahawk_android.R;
 import org.tomahawk.tomahawk_android.TomahawkApp;
@@ -63,15 +64,24 @@ public class ChoosePlaylistDialog extends DialogFragment {
         listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                UserPlaylistsDataSource userPlaylistsDataSource = new UserPlaylistsDataSource(
-                        getActivity(),
-                        ((TomahawkApp) getActivity().getApplication()).getPipeLine());
-                userPlaylistsDataSource.open();
-                userPlaylistsDataSource.addTracksToUserPlaylist(
-                        mUserCollection.getCustomPlaylists().get(position).getId(), mTracks);
-                userPlaylistsDataSource.close();
-                ((UserCollection) ((TomahawkApp) getActivity().getApplication()).getSourceList()
-                        .getCollectionFromId(UserCollection.Id)).updateUserPlaylists();
+                final long playlistId = mUserCollection.getCustomPlaylists().get(position)
+                        .getId();
+                final ArrayList<Track> tracks = mTracks;
+                final UserCollection userCollection = (UserCollection) ((TomahawkApp) getActivity()
+                        .getApplication()).getSourceList().getCollectionFromId(UserCollection.Id);
+                ((TomahawkApp) getActivity().getApplication()).getDatabaseExecutor()
+                        .write(new DatabaseExecutor.Task<Void>() {
+                            @Override
+                            public Void run(UserPlaylistsDataSource userPlaylistsDataSource) {
+                                userPlaylistsDataSource.addTracksToUserPlaylist(playlistId, tracks);
+                                return null;
+                            }
+                        }, new DatabaseExecutor.Callback<Void>() {
+                            @Override
+                            public void onResult(Void result) {
+                                userCollection.updateUserPlaylists();
+                            }
+                        });
                 getDialog().dismiss();
             }
         });
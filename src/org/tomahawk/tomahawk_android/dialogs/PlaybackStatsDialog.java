@@ -0,0 +1,64 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.tomahawk_android.dialogs;
+
+import org.tomahawk.tomahawk_android.R;
+import org.tomahawk.tomahawk_android.TomahawkApp;
+import org.tomahawk.tomahawk_android.services.PlaybackMetrics;
+
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.content.DialogInterface;
+import android.os.Bundle;
+import android.support.v4.app.DialogFragment;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.widget.TextView;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Shows the {@link PlaybackMetrics}, which are otherwise only available through dumpsys. Only
+ * offered in debuggable builds.
+ */
+public class PlaybackStatsDialog extends DialogFragment {
+
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        final PlaybackMetrics playbackMetrics = ((TomahawkApp) getActivity().getApplication())
+                .getPlaybackMetrics();
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+        LayoutInflater inflater = getActivity().getLayoutInflater();
+        View view = inflater.inflate(R.layout.playback_stats_dialog, null);
+        StringWriter stringWriter = new StringWriter();
+        playbackMetrics.dump(new PrintWriter(stringWriter));
+        TextView textView = (TextView) view.findViewById(R.id.playback_stats_dialog_textview);
+        textView.setText(stringWriter.toString());
+        builder.setPositiveButton(R.string.ok, null);
+        builder.setNeutralButton(R.string.playbackactivity_playback_stats_reset,
+                new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int id) {
+                        playbackMetrics.reset();
+                    }
+                });
+        builder.setView(view);
+        return builder.create();
+    }
+}
@@ -21,6 +21,7 @@ import org.tomahawk.libtomahawk.collection.CustomPlaylist;
 import org.tomahawk.libtomahawk.collection.Playlist;
 import org.tomahawk.libtomahawk.collection.Track;
 import org.tomahawk.libtomahawk.collection.UserCollection;
+import org.tomahawk.libtomahawk.database.DatabaseExecutor;
 import org.tomahawk.libtomahawk.database.UserPlaylistsDataSource;
 import org.tomahawk.tomahawk_android.R;
 import org.tomahawk.tomahawk_android.TomahawkApp;
@@ -114,18 +115,27 @@ public class PlaylistDialog extends DialogFragment {
         EditText editText = (EditText) getDialog().findViewById(R.id.playlist_dialog_name_textview);
         String playlistName = TextUtils.isEmpty(editText.getText().toString()) ? getString(
                 R.string.playbackplaylistfragment_title_string) : editText.getText().toString();
-        UserPlaylistsDataSource userPlaylistsDataSource = new UserPlaylistsDataSource(getActivity(),
-                ((TomahawkApp) getActivity().getApplication()).getPipeLine());
-        userPlaylistsDataSource.open();
-        if (mPlaylist != null) {
-            userPlaylistsDataSource.storeUserPlaylist(-1, playlistName, mPlaylist);
-        } else {
-            userPlaylistsDataSource.storeUserPlaylist(-1, playlistName,
-                    CustomPlaylist.fromTrackList(playlistName, new ArrayList<Track>(), -1));
-        }
-        userPlaylistsDataSource.close();
-        ((UserCollection) ((TomahawkApp) getActivity().getApplication()).getSourceList()
-                .getCollectionFromId(UserCollection.Id)).updateUserPlaylists();
+        final String name = playlistName;
+        // The tracks are copied here on the main thread, so that the writer thread never sees
+        // the list while it is being changed
+        final Playlist playlist = mPlaylist != null ? CustomPlaylist
+                .fromTrackList(playlistName, new ArrayList<Track>(mPlaylist.getTracks()),
+                        mPlaylist.getCurrentTrackIndex())
+                : CustomPlaylist.fromTrackList(playlistName, new ArrayList<Track>(), -1);
+        final UserCollection userCollection = (UserCollection) ((TomahawkApp) getActivity()
+                .getApplication()).getSourceList().getCollectionFromId(UserCollection.Id);
+        ((TomahawkApp) getActivity().getApplication()).getDatabaseExecutor()
+                .write(new DatabaseExecutor.Task<Long>() {
+                    @Override
+                    public Long run(UserPlaylistsDataSource userPlaylistsDataSource) {
+                        return userPlaylistsDataSource.storeUserPlaylist(-1, name, playlist);
+                    }
+                }, new DatabaseExecutor.Callback<Long>() {
+                    @Override
+                    public void onResult(Long result) {
+                        userCollection.updateUserPlaylists();
+                    }
+                });
     }
 
     private void hideSoftKeyboard() {
@@ -18,8 +18,10 @@
 package org.tomahawk.tomahawk_android.fragments;
 
 import org.tomahawk.libtomahawk.collection.Album;
+import org.tomahawk.libtomahawk.collection.AlbumComparator;
 import org.tomahawk.libtomahawk.collection.Artist;
 import org.tomahawk.libtomahawk.collection.Collection;
+import org.tomahawk.libtomahawk.collection.CollectionDelta;
 import org.tomahawk.libtomahawk.collection.UserCollection;
 import org.tomahawk.libtomahawk.hatchet.AlbumsInfo;
 import org.tomahawk.libtomahawk.hatchet.ArtistInfo;
@@ -169,6 +171,33 @@ public class AlbumsFragment extends TomahawkFragment implements OnItemClickListe
         updateAdapter();
     }
 
+    /* (non-Javadoc)
+     * @see org.tomahawk.tomahawk_android.fragments.TomahawkFragment#isAffectedBy(org.tomahawk.libtomahawk.collection.CollectionDelta)
+     */
+    @Override
+    protected boolean isAffectedBy(CollectionDelta delta) {
+        if (mArtist != null) {
+            return super.isAffectedBy(delta);
+        }
+        return delta.contains(CollectionDelta.TYPE_ALBUMS);
+    }
+
+    /* (non-Javadoc)
+     * @see org.tomahawk.tomahawk_android.fragments.TomahawkFragment#patchAdapter(org.tomahawk.libtomahawk.collection.CollectionDelta)
+     */
+    @Override
+    protected boolean patchAdapter(CollectionDelta delta) {
+        if (mArtist != null) {
+            if (getListAdapter() == null) {
+                return false;
+            }
+            updateAdapter();
+            return true;
+        }
+        return patchList(delta, CollectionDelta.TYPE_ALBUMS,
+                new AlbumComparator(AlbumComparator.COMPARE_ALPHA));
+    }
+
     private void updateAdapter() {
         List<TomahawkBaseAdapter.TomahawkListItem> albums
                 = new ArrayList<TomahawkBaseAdapter.TomahawkListItem>();
@@ -18,7 +18,9 @@
 package org.tomahawk.tomahawk_android.fragments;
 
 import org.tomahawk.libtomahawk.collection.Artist;
+import org.tomahawk.libtomahawk.collection.ArtistComparator;
 import org.tomahawk.libtomahawk.collection.Collection;
+import org.tomahawk.libtomahawk.collection.CollectionDelta;
 import org.tomahawk.tomahawk_android.activities.CollectionActivity;
 import org.tomahawk.tomahawk_android.adapters.TomahawkBaseAdapter;
 import org.tomahawk.tomahawk_android.adapters.TomahawkListAdapter;
@@ -58,6 +60,23 @@ public class ArtistsFragment extends TomahawkFragment implements OnItemClickList
         }
     }
 
+    /* (non-Javadoc)
+     * @see org.tomahawk.tomahawk_android.fragments.TomahawkFragment#isAffectedBy(org.tomahawk.libtomahawk.collection.CollectionDelta)
+     */
+    @Override
+    protected boolean isAffectedBy(CollectionDelta delta) {
+        return delta.contains(CollectionDelta.TYPE_ARTISTS);
+    }
+
+    /* (non-Javadoc)
+     * @see org.tomahawk.tomahawk_android.fragments.TomahawkFragment#patchAdapter(org.tomahawk.libtomahawk.collection.CollectionDelta)
+     */
+    @Override
+    protected boolean patchAdapter(CollectionDelta delta) {
+        return patchList(delta, CollectionDelta.TYPE_ARTISTS,
+                new ArtistComparator(ArtistComparator.COMPARE_ALPHA));
+    }
+
     /* 
      * (non-Javadoc)
      * @see org.tomahawk.tomahawk_android.TomahawkListFragment#onLoadFinished(android.support.v4.content.Loader, org.tomahawk.libtomahawk.Collection)
@@ -18,6 +18,7 @@
 package org.tomahawk.tomahawk_android.fragments;
 
 import org.tomahawk.libtomahawk.collection.Collection;
+import org.tomahawk.libtomahawk.collection.CollectionDelta;
 import org.tomahawk.libtomahawk.collection.CustomPlaylist;
 import org.tomahawk.libtomahawk.collection.Playlist;
 import org.tomahawk.tomahawk_android.R;
@@ -64,6 +65,22 @@ public class PlaylistsFragment extends TomahawkFragment implements OnItemClickLi
         }
     }
 
+    /* (non-Javadoc)
+     * @see org.tomahawk.tomahawk_android.fragments.TomahawkFragment#isAffectedBy(org.tomahawk.libtomahawk.collection.CollectionDelta)
+     */
+    @Override
+    protected boolean isAffectedBy(CollectionDelta delta) {
+        return delta.contains(CollectionDelta.TYPE_PLAYLISTS);
+    }
+
+    /* (non-Javadoc)
+     * @see org.tomahawk.tomahawk_android.fragments.TomahawkFragment#patchAdapter(org.tomahawk.libtomahawk.collection.CollectionDelta)
+     */
+    @Override
+    protected boolean patchAdapter(CollectionDelta delta) {
+        return patchList(delta, CollectionDelta.TYPE_PLAYLISTS, null);
+    }
+
     /* 
      * (non-Javadoc)
      * @see org.tomahawk.tomahawk_android.TomahawkListFragment#onLoadFinished(android.support.v4.content.Loader, org.tomahawk.libtomahawk.Collection)
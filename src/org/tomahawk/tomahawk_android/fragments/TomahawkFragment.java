@@ -21,10 +21,12 @@ package org.tomahawk.tomahawk_android.fragments;
 import org.tomahawk.libtomahawk.collection.Album;
 import org.tomahawk.libtomahawk.collection.Artist;
 import org.tomahawk.libtomahawk.collection.Collection;
+import org.tomahawk.libtomahawk.collection.CollectionDelta;
 import org.tomahawk.libtomahawk.collection.CollectionLoader;
 import org.tomahawk.libtomahawk.collection.CustomPlaylist;
 import org.tomahawk.libtomahawk.collection.Track;
 import org.tomahawk.libtomahawk.collection.UserCollection;
+import org.tomahawk.libtomahawk.database.DatabaseExecutor;
 import org.tomahawk.libtomahawk.database.UserPlaylistsDataSource;
 import org.tomahawk.libtomahawk.hatchet.InfoSystem;
 import org.tomahawk.libtomahawk.resolver.PipeLine;
@@ -55,6 +57,10 @@ import android.view.View;
 import android.widget.AdapterView;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 public abstract class TomahawkFragment extends TomahawkListFragment
@@ -83,8 +89,6 @@ public abstract class TomahawkFragment extends TomahawkListFragment
     protected ConcurrentHashMap<String, Track> mCorrespondingQueryIds
             = new ConcurrentHashMap<String, Track>();
 
-    private UserPlaylistsDataSource mUserPlaylistsDataSource;
-
     protected TomahawkTabsActivity mActivity;
 
     protected int mCorrespondingStackId;
@@ -97,6 +101,9 @@ public abstract class TomahawkFragment extends TomahawkListFragment
 
     private Drawable mProgressDrawable;
 
+    // The version of the current Collection, which the shown content reflects
+    private long mCollectionVersion;
+
     private Handler mAnimationHandler = new Handler(new Handler.Callback() {
         @Override
         public boolean handleMessage(Message msg) {
@@ -133,7 +140,7 @@ public abstract class TomahawkFragment extends TomahawkListFragment
         @Override
         public void onReceive(Context context, Intent intent) {
             if (intent.getAction().equals(Collection.COLLECTION_UPDATED)) {
-                onCollectionUpdated();
+                onCollectionUpdated(CollectionDelta.fromIntent(intent));
             }
         }
     }
@@ -170,6 +177,9 @@ public abstract class TomahawkFragment extends TomahawkListFragment
 
         adaptColumnCount();
 
+        if (getCurrentCollection() != null) {
+            mCollectionVersion = getCurrentCollection().getVersion();
+        }
         getSherlockActivity().getSupportLoaderManager().destroyLoader(getId());
         getSherlockActivity().getSupportLoaderManager().initLoader(getId(), null, this);
 
@@ -178,10 +188,6 @@ public abstract class TomahawkFragment extends TomahawkListFragment
             IntentFilter intentFilter = new IntentFilter(Collection.COLLECTION_UPDATED);
             getActivity().registerReceiver(mTomahawkFragmentReceiver, intentFilter);
         }
-
-        mUserPlaylistsDataSource = new UserPlaylistsDataSource(mActivity,
-                mTomahawkApp.getPipeLine());
-        mUserPlaylistsDataSource.open();
     }
 
     /*
@@ -197,9 +203,6 @@ public abstract class TomahawkFragment extends TomahawkListFragment
             getActivity().unregisterReceiver(mTomahawkFragmentReceiver);
             mTomahawkFragmentReceiver = null;
         }
-        if (mUserPlaylistsDataSource != null) {
-            mUserPlaylistsDataSource.close();
-        }
     }
 
     /*
@@ -260,11 +263,11 @@ public abstract class TomahawkFragment extends TomahawkListFragment
     }
 
     @Override
-    public void onFakeContextItemSelected(String menuItemTitle, int position) {
+    public void onFakeContextItemSelected(final String menuItemTitle, final int listPosition) {
         UserCollection userCollection = ((UserCollection) mTomahawkApp.getSourceList()
                 .getCollectionFromId(UserCollection.Id));
         TomahawkBaseAdapter.TomahawkListItem tomahawkListItem;
-        position -= getListView().getHeaderViewsCount();
+        int position = listPosition - getListView().getHeaderViewsCount();
         if (position >= 0) {
             tomahawkListItem = ((TomahawkBaseAdapter.TomahawkListItem) getListAdapter()
                     .getItem(position));
@@ -272,17 +275,51 @@ public abstract class TomahawkFragment extends TomahawkListFragment
             tomahawkListItem = ((TomahawkListAdapter) getListAdapter())
                     .getContentHeaderTomahawkListItem();
         }
+        if (tomahawkListItem instanceof CustomPlaylist
+                && !((CustomPlaylist) tomahawkListItem).isLoaded() && !menuItemTitle
+                .equals(getResources().getString(R.string.fake_context_menu_delete))) {
+            // Handle the item again, once the tracks of the playlist are available
+            ((CustomPlaylist) tomahawkListItem).loadTracks(
+                    new CustomPlaylist.OnTracksLoadedListener() {
+                        @Override
+                        public void onTracksLoaded(CustomPlaylist customPlaylist) {
+                            if (isAdded()) {
+                                onFakeContextItemSelected(menuItemTitle, listPosition);
+                            }
+                        }
+                    });
+            return;
+        }
         Bundle bundle = new Bundle();
         ArrayList<Track> tracks = new ArrayList<Track>();
         if (menuItemTitle.equals(getResources().getString(R.string.fake_context_menu_delete))) {
+            final UserCollection collection = userCollection;
+            DatabaseExecutor.Callback<Void> callback = new DatabaseExecutor.Callback<Void>() {
+                @Override
+                public void onResult(Void result) {
+                    collection.updateUserPlaylists();
+                }
+            };
             if (tomahawkListItem instanceof CustomPlaylist) {
-                mUserPlaylistsDataSource
-                        .deleteUserPlaylist(((CustomPlaylist) tomahawkListItem).getId());
+                final long playlistId = ((CustomPlaylist) tomahawkListItem).getId();
+                mTomahawkApp.getDatabaseExecutor().write(new DatabaseExecutor.Task<Void>() {
+                    @Override
+                    public Void run(UserPlaylistsDataSource userPlaylistsDataSource) {
+                        userPlaylistsDataSource.deleteUserPlaylist(playlistId);
+                        return null;
+                    }
+                }, callback);
             } else if (tomahawkListItem instanceof Track && mCustomPlaylist != null) {
-                mUserPlaylistsDataSource.deleteTrackInUserPlaylist(mCustomPlaylist.getId(),
-                        ((Track) tomahawkListItem).getId());
+                final long playlistId = mCustomPlaylist.getId();
+                final long trackId = ((Track) tomahawkListItem).getId();
+                mTomahawkApp.getDatabaseExecutor().write(new DatabaseExecutor.Task<Void>() {
+                    @Override
+                    public Void run(UserPlaylistsDataSource userPlaylistsDataSource) {
+                        userPlaylistsDataSource.deleteTrackInUserPlaylist(playlistId, trackId);
+                        return null;
+                    }
+                }, callback);
             }
-            userCollection.updateUserPlaylists();
         } else if (menuItemTitle
                 .equals(getResources().getString(R.string.fake_context_menu_play))) {
             if (tomahawkListItem instanceof Track) {
@@ -389,10 +426,137 @@ public abstract class TomahawkFragment extends TomahawkListFragment
     }
 
     /**
-     * Called when a Collection has been updated.
+     * Called when a Collection has been updated. Updates of other Collections are ignored. If this
+     * fragment is affected by the update, the added, removed and changed items of the delta are
+     * patched into the shown list. The Collection is only reloaded, if an update of the current
+     * Collection has been missed, or if the shown list can't be patched.
+     *
+     * @param delta the changes of the update, null if unknown
+     */
+    protected void onCollectionUpdated(CollectionDelta delta) {
+        boolean missedUpdate = false;
+        Collection collection = getCurrentCollection();
+        if (delta != null && collection != null) {
+            if (delta.getCollectionId() != collection.getId()) {
+                return;
+            }
+            if (delta.getVersion() <= mCollectionVersion) {
+                // The shown content already reflects this update
+                return;
+            }
+            missedUpdate = !delta.follows(mCollectionVersion);
+            mCollectionVersion = delta.getVersion();
+        }
+        if (delta == null || missedUpdate || delta.isFullReload()) {
+            getSherlockActivity().getSupportLoaderManager().restartLoader(getId(), null, this);
+        } else if (isAffectedBy(delta) && !patchAdapter(delta)) {
+            getSherlockActivity().getSupportLoaderManager().restartLoader(getId(), null, this);
+        }
+    }
+
+    /**
+     * @return whether or not the content shown by this fragment is touched by the given {@link
+     *         CollectionDelta}
+     */
+    protected boolean isAffectedBy(CollectionDelta delta) {
+        return !delta.isEmpty();
+    }
+
+    /**
+     * Apply the given {@link CollectionDelta} to the shown list without reloading the Collection.
+     *
+     * @return true if the list has been patched, false if the Collection has to be reloaded
      */
-    protected void onCollectionUpdated() {
-        getSherlockActivity().getSupportLoaderManager().restartLoader(getId(), null, this);
+    protected boolean patchAdapter(CollectionDelta delta) {
+        return false;
+    }
+
+    /**
+     * Patch the first list of the current adapter with the items of the given type. Every item,
+     * which has been added, removed or changed, is taken out of the list. Added and changed items
+     * are then looked up in the current Collection and inserted at their sorted position.
+     *
+     * @param delta      the changes to apply
+     * @param type       the {@link CollectionDelta} type of the items in the list
+     * @param comparator the order of the list, null to append new items at the end
+     * @return true if the list has been patched, false if there is no list to patch
+     */
+    @SuppressWarnings("unchecked")
+    protected boolean patchList(CollectionDelta delta, int type, Comparator<?> comparator) {
+        Collection collection = getCurrentCollection();
+        if (!(getListAdapter() instanceof TomahawkBaseAdapter) || collection == null) {
+            return false;
+        }
+        TomahawkBaseAdapter adapter = (TomahawkBaseAdapter) getListAdapter();
+        List<TomahawkBaseAdapter.TomahawkListItem> items = adapter.getListWithIndex(0);
+        if (items == null) {
+            return false;
+        }
+        Set<Long> added = delta.getIds(type, CollectionDelta.KIND_ADDED);
+        Set<Long> removed = delta.getIds(type, CollectionDelta.KIND_REMOVED);
+        Set<Long> changed = delta.getIds(type, CollectionDelta.KIND_CHANGED);
+        ArrayList<TomahawkBaseAdapter.TomahawkListItem> patchedItems
+                = new ArrayList<TomahawkBaseAdapter.TomahawkListItem>(items.size() + added.size());
+        for (TomahawkBaseAdapter.TomahawkListItem item : items) {
+            Long id = getItemId(item);
+            if (id == null || !(added.contains(id) || removed.contains(id)
+                    || changed.contains(id))) {
+                patchedItems.add(item);
+            }
+        }
+        Comparator<TomahawkBaseAdapter.TomahawkListItem> itemComparator
+                = (Comparator<TomahawkBaseAdapter.TomahawkListItem>) comparator;
+        List<Long> ids = new ArrayList<Long>(added);
+        ids.addAll(changed);
+        for (Long id : ids) {
+            TomahawkBaseAdapter.TomahawkListItem item = getItemById(collection, type, id);
+            if (item == null || removed.contains(id)) {
+                continue;
+            }
+            if (itemComparator == null) {
+                patchedItems.add(item);
+            } else {
+                int position = Collections.binarySearch(patchedItems, item, itemComparator);
+                patchedItems.add(position < 0 ? -position - 1 : position, item);
+            }
+        }
+        adapter.setListWithIndex(0, patchedItems);
+        return true;
+    }
+
+    /**
+     * @return the id of the given item, or null if it has none
+     */
+    private static Long getItemId(TomahawkBaseAdapter.TomahawkListItem item) {
+        if (item instanceof Track) {
+            return ((Track) item).getId();
+        } else if (item instanceof Album) {
+            return ((Album) item).getId();
+        } else if (item instanceof Artist) {
+            return ((Artist) item).getId();
+        } else if (item instanceof CustomPlaylist) {
+            return ((CustomPlaylist) item).getId();
+        }
+        return null;
+    }
+
+    /**
+     * @return the item of the given {@link CollectionDelta} type with the given id, or null if the
+     *         Collection doesn't contain it
+     */
+    private static TomahawkBaseAdapter.TomahawkListItem getItemById(Collection collection,
+            int type, Long id) {
+        switch (type) {
+            case CollectionDelta.TYPE_TRACKS:
+                return collection.getTrackById(id);
+            case CollectionDelta.TYPE_ALBUMS:
+                return collection.getAlbumById(id);
+            case CollectionDelta.TYPE_ARTISTS:
+                return collection.getArtistById(id);
+            case CollectionDelta.TYPE_PLAYLISTS:
+                return collection.getCustomPlaylistById(id);
+        }
+        return null;
     }
 
     /*
@@ -19,8 +19,10 @@ package org.tomahawk.tomahawk_android.fragments;
 
 import org.tomahawk.libtomahawk.collection.Album;
 import org.tomahawk.libtomahawk.collection.Collection;
+import org.tomahawk.libtomahawk.collection.CollectionDelta;
 import org.tomahawk.libtomahawk.collection.CustomPlaylist;
 import org.tomahawk.libtomahawk.collection.Track;
+import org.tomahawk.libtomahawk.collection.TrackComparator;
 import org.tomahawk.libtomahawk.collection.UserCollection;
 import org.tomahawk.libtomahawk.hatchet.InfoSystem;
 import org.tomahawk.libtomahawk.resolver.PipeLine;
@@ -40,6 +42,7 @@ import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -140,6 +143,47 @@ public class TracksFragment extends TomahawkFragment implements OnItemClickListe
         }
     }
 
+    /*
+     * (non-Javadoc)
+     * @see org.tomahawk.tomahawk_android.fragments.TomahawkFragment#isAffectedBy(org.tomahawk.libtomahawk.collection.CollectionDelta)
+     */
+    @Override
+    protected boolean isAffectedBy(CollectionDelta delta) {
+        if (mAlbum != null) {
+            return delta.contains(CollectionDelta.TYPE_ALBUMS, mAlbum.getId());
+        } else if (mArtist != null) {
+            return delta.contains(CollectionDelta.TYPE_ARTISTS, mArtist.getId());
+        } else if (mCustomPlaylist != null) {
+            return delta.contains(CollectionDelta.TYPE_PLAYLISTS, mCustomPlaylist.getId());
+        }
+        return delta.contains(CollectionDelta.TYPE_TRACKS);
+    }
+
+    /* (non-Javadoc)
+     * @see org.tomahawk.tomahawk_android.fragments.TomahawkFragment#patchAdapter(org.tomahawk.libtomahawk.collection.CollectionDelta)
+     */
+    @Override
+    protected boolean patchAdapter(CollectionDelta delta) {
+        if (mAlbum != null || mArtist != null || mCustomPlaylist != null) {
+            // These lists are small and built from the item itself, so just rebuild them
+            if (getListAdapter() == null) {
+                return false;
+            }
+            if (mCustomPlaylist != null) {
+                // The Collection replaces a playlist, when its tracks have changed
+                CustomPlaylist customPlaylist = mActivity.getCollection()
+                        .getCustomPlaylistById(mCustomPlaylist.getId());
+                if (customPlaylist != null) {
+                    mCustomPlaylist = customPlaylist;
+                }
+            }
+            updateAdapter();
+            return true;
+        }
+        return patchList(delta, CollectionDelta.TYPE_TRACKS,
+                new TrackComparator(TrackComparator.COMPARE_ALPHA));
+    }
+
     /* (non-Javadoc)
      * @see android.widget.AdapterView.OnItemClickListener#onItemClick(android.widget.AdapterView, android.view.View, int, long)
      */
@@ -157,7 +201,7 @@ public class TracksFragment extends TomahawkFragment implements OnItemClickListe
                 } else if (mCustomPlaylist != null) {
                     tracks = mCustomPlaylist.getTracks();
                 } else {
-                    tracks.addAll(mActivity.getCollection().getTracks());
+                    tracks.addAll(mActivity.getCollection().getTrackList());
                 }
                 CustomPlaylist playlist = CustomPlaylist.fromTrackList("Last used playlist", tracks,
                         (Track) getListAdapter().getItem(idx));
@@ -219,6 +263,17 @@ public class TracksFragment extends TomahawkFragment implements OnItemClickListe
             }
         } else if (mCustomPlaylist != null) {
             mCustomPlaylist = coll.getCustomPlaylistById(mCustomPlaylist.getId());
+            if (!mCustomPlaylist.isLoaded()) {
+                // Shows the header for now, the tracks follow once they have been loaded
+                mCustomPlaylist.loadTracks(new CustomPlaylist.OnTracksLoadedListener() {
+                    @Override
+                    public void onTracksLoaded(CustomPlaylist customPlaylist) {
+                        if (isAdded()) {
+                            updateAdapter();
+                        }
+                    }
+                });
+            }
             items.addAll(mCustomPlaylist.getTracks());
             List<List<TomahawkBaseAdapter.TomahawkListItem>> listArray
                     = new ArrayList<List<TomahawkBaseAdapter.TomahawkListItem>>();
@@ -233,10 +288,10 @@ public class TracksFragment extends TomahawkFragment implements OnItemClickListe
                 ((TomahawkListAdapter) getListAdapter()).setListArray(listArray);
             }
         } else {
-            items.addAll(coll.getTracks());
             List<List<TomahawkBaseAdapter.TomahawkListItem>> listArray
                     = new ArrayList<List<TomahawkBaseAdapter.TomahawkListItem>>();
-            listArray.add(items);
+            listArray.add(Collections
+                    .<TomahawkBaseAdapter.TomahawkListItem>unmodifiableList(coll.getTrackList()));
             if (getListAdapter() == null) {
                 tomahawkListAdapter = new TomahawkListAdapter(mActivity, listArray);
                 getListView().setAreHeadersSticky(false);
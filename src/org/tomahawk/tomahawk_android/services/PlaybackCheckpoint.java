@@ -0,0 +1,259 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.tomahawk_android.services;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A small record of where playback currently is: the queue version, the index of the current
+ * track, the position inside it and its path. The record is kept in a memory mapped file of a
+ * fixed size, so that writing it every few seconds only costs a copy into memory and the OS
+ * writes it back by itself. {@link #force()} writes it back immediately, e.g. on pause.
+ *
+ * A checksum over the record detects a record, which has been written only partially.
+ */
+public class PlaybackCheckpoint {
+
+    private static final String TAG = PlaybackCheckpoint.class.getName();
+
+    private static final int RECORD_SIZE = 4096;
+
+    private static final int MAGIC = 0x546f6d61;
+
+    private static final int VERSION = 1;
+
+    private static final int OFFSET_MAGIC = 0;
+
+    private static final int OFFSET_VERSION = 4;
+
+    private static final int OFFSET_QUEUEVERSION = 8;
+
+    private static final int OFFSET_TRACKINDEX = 16;
+
+    private static final int OFFSET_POSITION = 20;
+
+    private static final int OFFSET_TIMESTAMP = 24;
+
+    private static final int OFFSET_CHECKSUM = 32;
+
+    private static final int OFFSET_PATHLENGTH = 40;
+
+    private static final int OFFSET_PATH = 44;
+
+    private static final int MAX_PATH_LENGTH = RECORD_SIZE - OFFSET_PATH;
+
+    /**
+     * A checkpoint, which has been read back
+     */
+    public static class Record {
+
+        private final long mQueueVersion;
+
+        private final int mTrackIndex;
+
+        private final int mPosition;
+
+        private final long mTimestamp;
+
+        private final String mPath;
+
+        private Record(long queueVersion, int trackIndex, int position, long timestamp,
+                String path) {
+            mQueueVersion = queueVersion;
+            mTrackIndex = trackIndex;
+            mPosition = position;
+            mTimestamp = timestamp;
+            mPath = path;
+        }
+
+        public long getQueueVersion() {
+            return mQueueVersion;
+        }
+
+        public int getTrackIndex() {
+            return mTrackIndex;
+        }
+
+        /**
+         * @return the position inside the track in ms
+         */
+        public int getPosition() {
+            return mPosition;
+        }
+
+        /**
+         * @return the time the checkpoint has been written at in ms since the epoch
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        public String getPath() {
+            return mPath;
+        }
+    }
+
+    private final File mFile;
+
+    private MappedByteBuffer mBuffer;
+
+    private final CRC32 mCrc32 = new CRC32();
+
+    // The encoded path of the last write, so that it isn't encoded again on every write
+    private String mPath;
+
+    private byte[] mPathBytes;
+
+    public PlaybackCheckpoint(File file) {
+        mFile = file;
+    }
+
+    /**
+     * @return the stored checkpoint, or null if there is none or it is broken
+     */
+    public synchronized Record read() {
+        if (!ensureMapped()) {
+            return null;
+        }
+        if (mBuffer.getInt(OFFSET_MAGIC) != MAGIC || mBuffer.getInt(OFFSET_VERSION) != VERSION) {
+            return null;
+        }
+        int pathLength = mBuffer.getInt(OFFSET_PATHLENGTH);
+        if (pathLength <= 0 || pathLength > MAX_PATH_LENGTH) {
+            return null;
+        }
+        byte[] pathBytes = new byte[pathLength];
+        mBuffer.position(OFFSET_PATH);
+        mBuffer.get(pathBytes);
+        if (mBuffer.getLong(OFFSET_CHECKSUM) != checksum(pathBytes)) {
+            Log.d(TAG, "read: dropping a partially written checkpoint");
+            return null;
+        }
+        try {
+            return new Record(mBuffer.getLong(OFFSET_QUEUEVERSION),
+                    mBuffer.getInt(OFFSET_TRACKINDEX), mBuffer.getInt(OFFSET_POSITION),
+                    mBuffer.getLong(OFFSET_TIMESTAMP), new String(pathBytes, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, "read: " + e.getClass() + ": " + e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Store the given checkpoint. The previous one is overwritten.
+     *
+     * @param position the position inside the track in ms
+     */
+    public synchronized void write(long queueVersion, int trackIndex, int position, String path) {
+        if (path == null || !ensureMapped()) {
+            return;
+        }
+        if (!path.equals(mPath)) {
+            try {
+                byte[] pathBytes = path.getBytes("UTF-8");
+                if (pathBytes.length > MAX_PATH_LENGTH) {
+                    return;
+                }
+                mPathBytes = pathBytes;
+                mPath = path;
+            } catch (UnsupportedEncodingException e) {
+                Log.e(TAG, "write: " + e.getClass() + ": " + e.getLocalizedMessage());
+                return;
+            }
+        }
+        mBuffer.putInt(OFFSET_MAGIC, MAGIC);
+        mBuffer.putInt(OFFSET_VERSION, VERSION);
+        mBuffer.putLong(OFFSET_QUEUEVERSION, queueVersion);
+        mBuffer.putInt(OFFSET_TRACKINDEX, trackIndex);
+        mBuffer.putInt(OFFSET_POSITION, position);
+        mBuffer.putLong(OFFSET_TIMESTAMP, System.currentTimeMillis());
+        mBuffer.putInt(OFFSET_PATHLENGTH, mPathBytes.length);
+        mBuffer.position(OFFSET_PATH);
+        mBuffer.put(mPathBytes);
+        mBuffer.putLong(OFFSET_CHECKSUM, checksum(mPathBytes));
+    }
+
+    /**
+     * Write the current checkpoint back to the file immediately. Blocks on disk I/O, so don't call
+     * it on the main thread. The lock isn't held meanwhile, so that {@link #write} doesn't wait.
+     */
+    public void force() {
+        MappedByteBuffer buffer;
+        synchronized (this) {
+            buffer = mBuffer;
+        }
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * The checksum over all fields of the record, which is currently in mBuffer, and the given
+     * path.
+     */
+    private long checksum(byte[] pathBytes) {
+        mCrc32.reset();
+        for (int i = OFFSET_MAGIC; i < OFFSET_CHECKSUM; i++) {
+            mCrc32.update(mBuffer.get(i));
+        }
+        for (int i = OFFSET_PATHLENGTH; i < OFFSET_PATH; i++) {
+            mCrc32.update(mBuffer.get(i));
+        }
+        mCrc32.update(pathBytes);
+        return mCrc32.getValue();
+    }
+
+    /**
+     * Map the file into memory, creating it if necessary.
+     *
+     * @return whether the file is mapped
+     */
+    private boolean ensureMapped() {
+        if (mBuffer != null) {
+            return true;
+        }
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "rw");
+            if (file.length() != RECORD_SIZE) {
+                file.setLength(RECORD_SIZE);
+            }
+            // The mapping stays valid after the file has been closed
+            mBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, RECORD_SIZE);
+        } catch (IOException e) {
+            Log.e(TAG, "ensureMapped: " + e.getClass() + ": " + e.getLocalizedMessage());
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "ensureMapped: " + e.getClass() + ": " + e.getLocalizedMessage());
+                }
+            }
+        }
+        return mBuffer != null;
+    }
+}
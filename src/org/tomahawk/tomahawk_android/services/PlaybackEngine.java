@@ -0,0 +1,891 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.tomahawk_android.services;
+
+import org.tomahawk.libtomahawk.collection.Track;
+import org.tomahawk.libtomahawk.network.StreamProxy;
+
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives the MediaPlayers of the {@link PlaybackService} through an explicit state machine on a
+ * dedicated playback thread. Every call into a MediaPlayer happens on that thread, so the main
+ * thread never blocks on the player and never sees a half initialized one. Other threads only
+ * read the {@link Status}, which the playback thread publishes whenever the current player
+ * changes.
+ *
+ * A MediaPlayer is never released to switch tracks. It is reset() and prepared asynchronously
+ * again instead. Every call to {@link #prepare(Track)} starts a new generation, which cancels all
+ * prepares, retries and callbacks of the previous generations, so that skipping quickly through
+ * a playlist only ever prepares the track the user ends up on.
+ *
+ * A second MediaPlayer is prepared for the next track in the background. When that track is
+ * prepared, both players swap roles, which makes the switch gapless.
+ *
+ * The latency of every stage from the request of a track until it is started, as well as all
+ * retries, errors and rebuffers, are recorded in the given {@link PlaybackMetrics}.
+ */
+public class PlaybackEngine
+        implements MediaPlayer.OnPreparedListener, MediaPlayer.OnCompletionListener,
+        MediaPlayer.OnErrorListener, MediaPlayer.OnInfoListener {
+
+    private static final String TAG = PlaybackEngine.class.getName();
+
+    /**
+     * Receives the events of a PlaybackEngine. All methods are called on the main thread and only
+     * for the current generation.
+     */
+    public interface Listener {
+
+        /**
+         * The current track has been prepared and can be started.
+         */
+        void onPrepared();
+
+        /**
+         * The current track has been played until its end.
+         */
+        void onCompletion();
+
+        /**
+         * The current track couldn't be played, even after retrying.
+         */
+        void onError();
+    }
+
+    public static final int STATE_IDLE = 0;
+
+    public static final int STATE_PREPARING = 1;
+
+    public static final int STATE_PREPARED = 2;
+
+    public static final int STATE_STARTED = 3;
+
+    public static final int STATE_PAUSED = 4;
+
+    public static final int STATE_STOPPED = 5;
+
+    public static final int STATE_COMPLETED = 6;
+
+    public static final int STATE_ERROR = 7;
+
+    private static final int MAX_RETRIES = 3;
+
+    private static final long RETRY_BASE_DELAY = 500;
+
+    // The interval in ms, in which the position of a running player is published again
+    private static final long STATUS_INTERVAL = 1000;
+
+    // Defined in MediaPlayer since API level 17
+    private static final int MEDIA_ERROR_IO = -1004;
+
+    private static final int MEDIA_ERROR_TIMED_OUT = -110;
+
+    // MediaPlayer.MEDIA_INFO_BUFFERING_START and _END, only available since Gingerbread
+    private static final int MEDIA_INFO_BUFFERING_START = 701;
+
+    private static final int MEDIA_INFO_BUFFERING_END = 702;
+
+    /**
+     * A MediaPlayer together with its state and the track it has been prepared for.
+     */
+    private class Player {
+
+        private MediaPlayer mMediaPlayer;
+
+        private volatile int mState = STATE_IDLE;
+
+        private volatile Track mTrack;
+
+        private int mGeneration;
+
+        private int mAttempt;
+
+        // The position in ms to seek to, once prepared
+        private volatile int mStartPosition;
+
+        // The uptime in ms, at which prepareAsync() has been called
+        private long mPrepareStartTime;
+
+        // The uptime in ms, at which the MediaPlayer has run out of data, 0 if it hasn't
+        private long mRebufferStartTime;
+
+        // Whether the start of the current track has been recorded in the PlaybackMetrics
+        private boolean mStartRecorded;
+
+        private Player() {
+            mMediaPlayer = createMediaPlayer();
+        }
+
+        /**
+         * @return whether or not the MediaPlayer is in a state, in which it can be started, paused,
+         *         and asked for its position
+         */
+        private boolean isPrepared() {
+            return mState == STATE_PREPARED || mState == STATE_STARTED || mState == STATE_PAUSED
+                    || mState == STATE_COMPLETED;
+        }
+    }
+
+    /**
+     * An immutable snapshot of the current player, published by the playback thread. While the
+     * track is running, the position is extrapolated from the time it has been taken at.
+     */
+    private static class Status {
+
+        private final int mState;
+
+        private final Track mTrack;
+
+        private final int mGeneration;
+
+        private final int mPosition;
+
+        private final int mDuration;
+
+        // Whether or not the position advances, i.e. the player is started and not rebuffering
+        private final boolean mRunning;
+
+        // The uptime in ms, at which the position has been taken
+        private final long mTime;
+
+        private Status(int state, Track track, int generation, int position, int duration,
+                boolean running) {
+            mState = state;
+            mTrack = track;
+            mGeneration = generation;
+            mPosition = position;
+            mDuration = duration;
+            mRunning = running;
+            mTime = SystemClock.uptimeMillis();
+        }
+
+        private int getPosition() {
+            if (!mRunning) {
+                return mPosition;
+            }
+            long position = mPosition + SystemClock.uptimeMillis() - mTime;
+            if (mDuration > 0 && position > mDuration) {
+                return mDuration;
+            }
+            return (int) position;
+        }
+    }
+
+    private final Listener mListener;
+
+    private final HandlerThread mPlaybackThread;
+
+    private final Handler mPlaybackHandler;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    private final StreamProxy mStreamProxy;
+
+    private final PlaybackMetrics mPlaybackMetrics;
+
+    // Both players are only ever accessed on the playback thread
+    private Player mCurrentPlayer;
+
+    private Player mNextPlayer;
+
+    private volatile Status mStatus = new Status(STATE_IDLE, null, 0, 0, 0, false);
+
+    private final Runnable mPublishStatusRunnable = new Runnable() {
+        @Override
+        public void run() {
+            publishStatus();
+        }
+    };
+
+    // The next track, which will be prepared once the current one is prepared
+    private Track mPendingNextTrack;
+
+    private boolean mNextPlayerChained;
+
+    // The uptime in ms, at which the current track has been requested
+    private volatile long mRequestTime;
+
+    // Whether the time to the first audio of the current track still has to be recorded
+    private volatile boolean mFirstAudioPending;
+
+    /**
+     * Construct a new PlaybackEngine
+     *
+     * @param listener    the {@link Listener} to report the events to
+     * @param streamProxy     the {@link StreamProxy} to play remote tracks through, or null to
+     *                        play them directly from their urls
+     * @param playbackMetrics the {@link PlaybackMetrics} to record the latencies and errors of
+     *                        the playback pipeline in
+     */
+    public PlaybackEngine(Listener listener, StreamProxy streamProxy,
+            PlaybackMetrics playbackMetrics) {
+        mListener = listener;
+        mStreamProxy = streamProxy;
+        mPlaybackMetrics = playbackMetrics;
+        mPlaybackThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_AUDIO);
+        mPlaybackThread.start();
+        mPlaybackHandler = new Handler(mPlaybackThread.getLooper());
+        mPlaybackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Created on the playback thread, so that their callbacks arrive on it as well
+                mCurrentPlayer = new Player();
+                mNextPlayer = new Player();
+            }
+        });
+    }
+
+    private MediaPlayer createMediaPlayer() {
+        MediaPlayer mediaPlayer = new MediaPlayer();
+        mediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+        mediaPlayer.setOnPreparedListener(this);
+        mediaPlayer.setOnCompletionListener(this);
+        mediaPlayer.setOnErrorListener(this);
+        mediaPlayer.setOnInfoListener(this);
+        return mediaPlayer;
+    }
+
+    /**
+     * Prepare the given track for playback. Cancels everything, which is still going on for the
+     * previously prepared track. If the next player has already been prepared for this track, the
+     * players are swapped instead.
+     */
+    public void prepare(Track track) {
+        prepare(track, 0);
+    }
+
+    /**
+     * Prepare the given track for playback and seek to the given position before reporting it as
+     * prepared, e.g. to resume a track from a checkpoint.
+     *
+     * @param startPosition the position in ms to start at
+     */
+    public void prepare(final Track track, final int startPosition) {
+        final int generation = mGeneration.incrementAndGet();
+        mRequestTime = SystemClock.uptimeMillis();
+        mFirstAudioPending = true;
+        mPlaybackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mGeneration.get()) {
+                    return;
+                }
+                mPlaybackMetrics.record(PlaybackMetrics.STAGE_DISPATCH,
+                        SystemClock.uptimeMillis() - mRequestTime);
+                if (startPosition == 0 && mNextPlayer.mTrack == track
+                        && mNextPlayer.mState == STATE_PREPARED) {
+                    switchToNextPlayer(generation);
+                } else {
+                    mCurrentPlayer.mStartPosition = startPosition;
+                    doPrepare(track, generation, 0);
+                }
+            }
+        });
+    }
+
+    /**
+     * Let the current player continue with the given track, if it has been prepared for a track
+     * with the same path, instead of preparing the given track again. Used, when the track, which
+     * has been prepared from a checkpoint, turns up in the restored playlist.
+     *
+     * @return whether the current player has taken over the given track
+     */
+    public boolean adoptTrack(final Track track) {
+        Status status = mStatus;
+        final int generation = mGeneration.get();
+        if (status.mTrack == null || status.mGeneration != generation
+                || status.mState == STATE_IDLE || status.mState == STATE_ERROR
+                || track.getPath() == null || !track.getPath().equals(status.mTrack.getPath())) {
+            return false;
+        }
+        mPlaybackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // A prepare, which has been requested in the meantime, starts a new generation
+                if (generation == mGeneration.get() && mCurrentPlayer.mTrack != null
+                        && track.getPath().equals(mCurrentPlayer.mTrack.getPath())) {
+                    mCurrentPlayer.mTrack = track;
+                    publishStatus();
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Prepare the next player for the given track in the background, once the current track has
+     * been prepared. Does nothing, if it is already prepared or preparing for it.
+     *
+     * @param track the track following the current one, or null to release the next player
+     */
+    public void prepareNext(final Track track) {
+        mPlaybackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mPendingNextTrack = track;
+                if (mNextPlayer.mTrack == track && (mNextPlayer.mState == STATE_PREPARING
+                        || mNextPlayer.mState == STATE_PREPARED)) {
+                    return;
+                }
+                resetNextPlayer();
+                if (track != null && mCurrentPlayer.isPrepared()) {
+                    doPrepareNext(track);
+                }
+            }
+        });
+    }
+
+    public void start() {
+        mPlaybackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCurrentPlayer.mState == STATE_STOPPED) {
+                    // A stopped MediaPlayer has to be prepared again, before it can be started
+                    mCurrentPlayer.mState = STATE_PREPARING;
+                    mCurrentPlayer.mMediaPlayer.prepareAsync();
+                } else if (mCurrentPlayer.isPrepared()
+                        && mCurrentPlayer.mState != STATE_STARTED) {
+                    mCurrentPlayer.mMediaPlayer.start();
+                    mCurrentPlayer.mState = STATE_STARTED;
+                    recordStarted(mCurrentPlayer);
+                    recordFirstAudio();
+                }
+                publishStatus();
+            }
+        });
+    }
+
+    public void pause() {
+        mFirstAudioPending = false;
+        mPlaybackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCurrentPlayer.mState == STATE_STARTED) {
+                    mCurrentPlayer.mMediaPlayer.pause();
+                    mCurrentPlayer.mState = STATE_PAUSED;
+                }
+                publishStatus();
+            }
+        });
+    }
+
+    public void stop() {
+        mFirstAudioPending = false;
+        mPlaybackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCurrentPlayer.isPrepared()) {
+                    unchainNextPlayer();
+                    mCurrentPlayer.mMediaPlayer.stop();
+                    mCurrentPlayer.mState = STATE_STOPPED;
+                }
+                publishStatus();
+            }
+        });
+    }
+
+    /**
+     * Cancel everything, which is still going on, and reset both players, so that no track is
+     * prepared anymore. Used, when a track, which has been prepared in advance, turns out not to
+     * be needed, e.g. because the playlist it has been restored from is gone.
+     */
+    public void reset() {
+        mGeneration.incrementAndGet();
+        mFirstAudioPending = false;
+        mPlaybackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                resetNextPlayer();
+                mPendingNextTrack = null;
+                if (mCurrentPlayer.mState != STATE_IDLE) {
+                    mCurrentPlayer.mMediaPlayer.reset();
+                    mCurrentPlayer.mState = STATE_IDLE;
+                }
+                mCurrentPlayer.mTrack = null;
+                mCurrentPlayer.mStartPosition = 0;
+                publishStatus();
+            }
+        });
+    }
+
+    public void seekTo(final int msec) {
+        mPlaybackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCurrentPlayer.isPrepared()) {
+                    mCurrentPlayer.mMediaPlayer.seekTo(msec);
+                }
+                publishStatus();
+            }
+        });
+    }
+
+    public void setVolume(final float volume) {
+        mPlaybackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mCurrentPlayer.mMediaPlayer.setVolume(volume, volume);
+            }
+        });
+    }
+
+    /**
+     * Release both players and stop the playback thread. The PlaybackEngine can't be used
+     * afterwards.
+     */
+    public void release() {
+        mGeneration.incrementAndGet();
+        mPlaybackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mCurrentPlayer.mMediaPlayer.release();
+                mNextPlayer.mMediaPlayer.release();
+                mCurrentPlayer.mState = STATE_IDLE;
+                mNextPlayer.mState = STATE_IDLE;
+                publishStatus();
+                mPlaybackThread.quit();
+            }
+        });
+    }
+
+    /**
+     * @return the position of playback in the current track in ms, or the position it will start
+     *         at, while it is still being prepared. Safe to be called on any thread, never blocks.
+     */
+    public int getPosition() {
+        return mStatus.getPosition();
+    }
+
+    /**
+     * @return whether or not the current track is still being prepared
+     */
+    public boolean isPreparing() {
+        int state = mStatus.mState;
+        return state == STATE_IDLE || state == STATE_PREPARING;
+    }
+
+    /**
+     * @return the state of the current player, one of the STATE_* constants
+     */
+    public int getState() {
+        return mStatus.mState;
+    }
+
+    /**
+     * Publish the state and position of the current player to the other threads, and keep
+     * publishing its position while it is running. Has to be called on the playback thread,
+     * whenever the current player has changed.
+     */
+    private void publishStatus() {
+        mPlaybackHandler.removeCallbacks(mPublishStatusRunnable);
+        Player player = mCurrentPlayer;
+        if (player == null) {
+            mStatus = new Status(STATE_IDLE, null, 0, 0, 0, false);
+            return;
+        }
+        int position = player.mStartPosition;
+        int duration = 0;
+        if (player.isPrepared()) {
+            try {
+                position = player.mMediaPlayer.getCurrentPosition();
+                duration = player.mMediaPlayer.getDuration();
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "publishStatus: " + e.getClass() + ": " + e.getLocalizedMessage());
+            }
+        }
+        boolean running = player.mState == STATE_STARTED && player.mRebufferStartTime == 0;
+        mStatus = new Status(player.mState, player.mTrack, player.mGeneration, position, duration,
+                running);
+        if (running) {
+            mPlaybackHandler.postDelayed(mPublishStatusRunnable, STATUS_INTERVAL);
+        }
+    }
+
+    /**
+     * Reset the current player and prepare it for the given track. Has to be called on the
+     * playback thread.
+     *
+     * @param attempt the number of previous attempts to prepare this track in this generation
+     */
+    private void doPrepare(Track track, int generation, int attempt) {
+        if (generation != mGeneration.get()) {
+            return;
+        }
+        unchainNextPlayer();
+        mCurrentPlayer.mMediaPlayer.reset();
+        mCurrentPlayer.mState = STATE_IDLE;
+        mCurrentPlayer.mTrack = track;
+        mCurrentPlayer.mGeneration = generation;
+        mCurrentPlayer.mAttempt = attempt;
+        mCurrentPlayer.mRebufferStartTime = 0;
+        mCurrentPlayer.mStartRecorded = false;
+        try {
+            long setDataSourceTime = SystemClock.uptimeMillis();
+            mCurrentPlayer.mMediaPlayer.setDataSource(getDataSource(track));
+            mCurrentPlayer.mPrepareStartTime = SystemClock.uptimeMillis();
+            mPlaybackMetrics.record(PlaybackMetrics.STAGE_SETDATASOURCE,
+                    mCurrentPlayer.mPrepareStartTime - setDataSourceTime);
+            mCurrentPlayer.mState = STATE_PREPARING;
+            mCurrentPlayer.mMediaPlayer.prepareAsync();
+        } catch (IOException e) {
+            Log.e(TAG, "doPrepare: " + e.getClass() + ": " + e.getLocalizedMessage());
+            mCurrentPlayer.mState = STATE_ERROR;
+            recordError(track, e);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "doPrepare: " + e.getClass() + ": " + e.getLocalizedMessage());
+            mCurrentPlayer.mState = STATE_ERROR;
+            recordError(track, e);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "doPrepare: " + e.getClass() + ": " + e.getLocalizedMessage());
+            mCurrentPlayer.mState = STATE_ERROR;
+            recordError(track, e);
+        }
+        publishStatus();
+        if (mCurrentPlayer.mState == STATE_ERROR) {
+            // Only streams are worth a retry, a broken local file stays broken
+            retryOrFail(mCurrentPlayer, isStream(track), false);
+        }
+    }
+
+    private void recordError(Track track, Exception e) {
+        mPlaybackMetrics.recordError(PlaybackMetrics.getResolverId(track),
+                e.getClass().getSimpleName());
+    }
+
+    /**
+     * Record the time from the request of the current track until now, if it is the first time
+     * the current track has been started. Has to be called on the playback thread, right after
+     * the current player has been started.
+     */
+    private void recordFirstAudio() {
+        if (mFirstAudioPending && mCurrentPlayer.mGeneration == mGeneration.get()) {
+            mFirstAudioPending = false;
+            mPlaybackMetrics.record(PlaybackMetrics.STAGE_FIRSTAUDIO,
+                    SystemClock.uptimeMillis() - mRequestTime);
+        }
+    }
+
+    private static boolean isStream(Track track) {
+        return track.getPath() != null && track.getPath().startsWith("http");
+    }
+
+    /**
+     * @return the path to hand to the MediaPlayer for the given track. Streams are played through
+     * the {@link StreamProxy}, so that replays and seeks are served from its cache.
+     */
+    private String getDataSource(Track track) {
+        if (mStreamProxy != null && isStream(track)) {
+            return mStreamProxy.getProxyUrl(track.getPath());
+        }
+        return track.getPath();
+    }
+
+    /**
+     * Reset the next player and prepare it for the given track. Has to be called on the playback
+     * thread.
+     */
+    private void doPrepareNext(Track track) {
+        mNextPlayer.mMediaPlayer.reset();
+        mNextPlayer.mTrack = track;
+        mNextPlayer.mRebufferStartTime = 0;
+        mNextPlayer.mStartRecorded = false;
+        try {
+            mNextPlayer.mMediaPlayer.setDataSource(getDataSource(track));
+            mNextPlayer.mPrepareStartTime = SystemClock.uptimeMillis();
+            mNextPlayer.mState = STATE_PREPARING;
+            mNextPlayer.mMediaPlayer.prepareAsync();
+        } catch (IOException e) {
+            Log.e(TAG, "doPrepareNext: " + e.getClass() + ": " + e.getLocalizedMessage());
+            mNextPlayer.mState = STATE_ERROR;
+            recordError(track, e);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "doPrepareNext: " + e.getClass() + ": " + e.getLocalizedMessage());
+            mNextPlayer.mState = STATE_ERROR;
+            recordError(track, e);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "doPrepareNext: " + e.getClass() + ": " + e.getLocalizedMessage());
+            mNextPlayer.mState = STATE_ERROR;
+            recordError(track, e);
+        }
+    }
+
+    /**
+     * Make the prepared next player the current one, and reuse the current player as the next
+     * one. If the current player has handed over to the next player by itself, the next player is
+     * already playing. Has to be called on the playback thread.
+     */
+    private void switchToNextPlayer(final int generation) {
+        Player previousPlayer = mCurrentPlayer;
+        mCurrentPlayer = mNextPlayer;
+        mNextPlayer = previousPlayer;
+        boolean handedOver = mNextPlayerChained && previousPlayer.mState == STATE_COMPLETED;
+        if (handedOver) {
+            mCurrentPlayer.mState = STATE_STARTED;
+        }
+        mNextPlayerChained = false;
+        mCurrentPlayer.mGeneration = generation;
+        if (handedOver) {
+            recordStarted(mCurrentPlayer);
+            recordFirstAudio();
+        }
+        mCurrentPlayer.mAttempt = 0;
+        mCurrentPlayer.mStartPosition = 0;
+        resetNextPlayer();
+        publishStatus();
+        mPendingNextTrack = null;
+        postToListener(generation, new Runnable() {
+            @Override
+            public void run() {
+                mListener.onPrepared();
+            }
+        });
+    }
+
+    /**
+     * Let the current MediaPlayer hand over to the next MediaPlayer by itself, once it completes.
+     * Only available since Jelly Bean. On older devices the next MediaPlayer is started, once
+     * the current track has been switched.
+     */
+    private void chainNextPlayer() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                && mCurrentPlayer.isPrepared() && mCurrentPlayer.mState != STATE_COMPLETED
+                && mNextPlayer.mState == STATE_PREPARED) {
+            try {
+                mCurrentPlayer.mMediaPlayer.setNextMediaPlayer(mNextPlayer.mMediaPlayer);
+                mNextPlayerChained = true;
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "chainNextPlayer: " + e.getClass() + ": " + e.getLocalizedMessage());
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "chainNextPlayer: " + e.getClass() + ": " + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    private void unchainNextPlayer() {
+        if (mNextPlayerChained) {
+            mNextPlayerChained = false;
+            try {
+                mCurrentPlayer.mMediaPlayer.setNextMediaPlayer(null);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "unchainNextPlayer: " + e.getClass() + ": " + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    private void resetNextPlayer() {
+        unchainNextPlayer();
+        if (mNextPlayer.mState != STATE_IDLE) {
+            mNextPlayer.mMediaPlayer.reset();
+            mNextPlayer.mState = STATE_IDLE;
+        }
+        mNextPlayer.mTrack = null;
+    }
+
+    /**
+     * Retry to prepare the track of the given current player with an exponential backoff, or
+     * report the error to the Listener, once all retries are used up or the error is permanent.
+     *
+     * @param recreate whether or not the MediaPlayer has to be replaced, e.g. because the media
+     *                 server died
+     */
+    private void retryOrFail(final Player player, boolean retryable, boolean recreate) {
+        if (recreate) {
+            player.mMediaPlayer.release();
+            player.mMediaPlayer = createMediaPlayer();
+            player.mState = STATE_IDLE;
+        }
+        final int generation = player.mGeneration;
+        if (generation != mGeneration.get()) {
+            return;
+        }
+        if (retryable && player.mAttempt < MAX_RETRIES) {
+            final Track track = player.mTrack;
+            final int attempt = player.mAttempt + 1;
+            long delay = RETRY_BASE_DELAY << player.mAttempt;
+            mPlaybackMetrics.recordRetry(PlaybackMetrics.getResolverId(track));
+            Log.d(TAG, "Retrying to prepare " + track.getPath() + " in " + delay + "ms, attempt "
+                    + attempt);
+            mPlaybackHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    doPrepare(track, generation, attempt);
+                }
+            }, delay);
+        } else {
+            mPlaybackMetrics.recordFailure(PlaybackMetrics.getResolverId(player.mTrack));
+            postToListener(generation, new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onError();
+                }
+            });
+        }
+    }
+
+    /**
+     * Post the given event to the main thread, where it is dropped, if a newer generation has
+     * been started in the meantime.
+     */
+    private void postToListener(final int generation, final Runnable event) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == mGeneration.get()) {
+                    event.run();
+                }
+            }
+        });
+    }
+
+    /* 
+     * (non-Javadoc)
+     * @see android.media.MediaPlayer.OnPreparedListener#onPrepared(android.media.MediaPlayer)
+     */
+    @Override
+    public void onPrepared(MediaPlayer mp) {
+        if (mp == mNextPlayer.mMediaPlayer) {
+            mNextPlayer.mState = STATE_PREPARED;
+            recordPrepared(mNextPlayer);
+            chainNextPlayer();
+        } else if (mp == mCurrentPlayer.mMediaPlayer) {
+            if (mCurrentPlayer.mGeneration != mGeneration.get()) {
+                return;
+            }
+            recordPrepared(mCurrentPlayer);
+            if (mCurrentPlayer.mStartPosition > 0) {
+                mp.seekTo(mCurrentPlayer.mStartPosition);
+                mCurrentPlayer.mStartPosition = 0;
+            }
+            mCurrentPlayer.mState = STATE_PREPARED;
+            publishStatus();
+            postToListener(mCurrentPlayer.mGeneration, new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onPrepared();
+                }
+            });
+            if (mPendingNextTrack != null && mNextPlayer.mState == STATE_IDLE) {
+                doPrepareNext(mPendingNextTrack);
+            } else {
+                chainNextPlayer();
+            }
+        }
+    }
+
+    private void recordPrepared(Player player) {
+        mPlaybackMetrics.record(PlaybackMetrics.STAGE_PREPARE,
+                SystemClock.uptimeMillis() - player.mPrepareStartTime);
+    }
+
+    /**
+     * Credit the resolver of the track of the given player with a successful playback, once per
+     * track. Has to be called on the playback thread, right after the player has been started.
+     */
+    private void recordStarted(Player player) {
+        if (!player.mStartRecorded) {
+            player.mStartRecorded = true;
+            mPlaybackMetrics.recordStarted(PlaybackMetrics.getResolverId(player.mTrack));
+        }
+    }
+
+    /* 
+     * (non-Javadoc)
+     * @see android.media.MediaPlayer.OnCompletionListener#onCompletion(android.media.MediaPlayer)
+     */
+    @Override
+    public void onCompletion(MediaPlayer mp) {
+        if (mp == mCurrentPlayer.mMediaPlayer) {
+            mCurrentPlayer.mState = STATE_COMPLETED;
+            publishStatus();
+            postToListener(mCurrentPlayer.mGeneration, new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onCompletion();
+                }
+            });
+        }
+    }
+
+    /* 
+     * (non-Javadoc)
+     * @see android.media.MediaPlayer.OnErrorListener#onError(android.media.MediaPlayer, int, int)
+     */
+    @Override
+    public boolean onError(MediaPlayer mp, int what, int extra) {
+        Log.e(TAG, "onError - what: " + what + ", extra: " + extra);
+        boolean serverDied = what == MediaPlayer.MEDIA_ERROR_SERVER_DIED;
+        String error = "what=" + what + " extra=" + extra;
+        if (mp == mNextPlayer.mMediaPlayer) {
+            mPlaybackMetrics.recordError(PlaybackMetrics.getResolverId(mNextPlayer.mTrack), error);
+            // The next track will be prepared the usual way, once it is reached
+            if (serverDied) {
+                mNextPlayer.mMediaPlayer.release();
+                mNextPlayer.mMediaPlayer = createMediaPlayer();
+                mNextPlayer.mState = STATE_IDLE;
+                mNextPlayer.mTrack = null;
+            } else {
+                resetNextPlayer();
+            }
+        } else if (mp == mCurrentPlayer.mMediaPlayer) {
+            mPlaybackMetrics.recordError(PlaybackMetrics.getResolverId(mCurrentPlayer.mTrack),
+                    error);
+            mCurrentPlayer.mState = STATE_ERROR;
+            boolean retryable = serverDied || extra == MEDIA_ERROR_IO
+                    || extra == MEDIA_ERROR_TIMED_OUT;
+            retryOrFail(mCurrentPlayer, retryable, serverDied);
+            publishStatus();
+        }
+        // Handled, so that onCompletion isn't called
+        return true;
+    }
+
+    /* 
+     * (non-Javadoc)
+     * @see android.media.MediaPlayer.OnInfoListener#onInfo(android.media.MediaPlayer, int, int)
+     */
+    @Override
+    public boolean onInfo(MediaPlayer mp, int what, int extra) {
+        if (mp == mCurrentPlayer.mMediaPlayer && mCurrentPlayer.mState == STATE_STARTED) {
+            if (what == MEDIA_INFO_BUFFERING_START) {
+                mCurrentPlayer.mRebufferStartTime = SystemClock.uptimeMillis();
+            } else if (what == MEDIA_INFO_BUFFERING_END
+                    && mCurrentPlayer.mRebufferStartTime > 0) {
+                mPlaybackMetrics.recordRebuffer(
+                        PlaybackMetrics.getResolverId(mCurrentPlayer.mTrack),
+                        SystemClock.uptimeMillis() - mCurrentPlayer.mRebufferStartTime);
+                mCurrentPlayer.mRebufferStartTime = 0;
+            }
+            publishStatus();
+        }
+        return false;
+    }
+}
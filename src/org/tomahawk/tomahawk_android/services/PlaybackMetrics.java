@@ -0,0 +1,216 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.tomahawk_android.services;
+
+import org.tomahawk.libtomahawk.collection.Track;
+import org.tomahawk.libtomahawk.utils.LatencyHistogram;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects how long each stage of the playback pipeline takes and how often the tracks of each
+ * resolver fail to play. The latencies are kept in {@link LatencyHistogram}s, so that their
+ * percentiles can be dumped, e.g. through "adb shell dumpsys activity service PlaybackService".
+ * The failure rates are fed back into the weights, by which the PipeLine ranks the results of the
+ * resolvers. Can be called from any thread.
+ */
+public class PlaybackMetrics {
+
+    public static final int RESOLVER_ID_UNKNOWN = -1;
+
+    // From the query being handed to the resolvers until a resolver reports its results
+    public static final int STAGE_RESOLVE = 0;
+
+    // From the track being requested until its prepare starts on the playback thread
+    public static final int STAGE_DISPATCH = 1;
+
+    // The call to MediaPlayer.setDataSource()
+    public static final int STAGE_SETDATASOURCE = 2;
+
+    // From MediaPlayer.prepareAsync() until the MediaPlayer reports that it has been prepared
+    public static final int STAGE_PREPARE = 3;
+
+    // From the track being requested until the MediaPlayer is started
+    public static final int STAGE_FIRSTAUDIO = 4;
+
+    // From the MediaPlayer running out of data during playback until it continues
+    public static final int STAGE_REBUFFER = 5;
+
+    private static final String[] STAGE_NAMES = new String[]{"resolve", "dispatch",
+            "setDataSource", "prepare", "timeToFirstAudio", "rebuffer"};
+
+    // Started tracks, which every resolver is credited with in advance, so that a single failure
+    // doesn't bury a resolver, which hasn't been used much yet
+    private static final int RELIABILITY_PRIOR = 4;
+
+    /**
+     * The counters of a single resolver
+     */
+    private static class ResolverStats {
+
+        private long mStarted;
+
+        private long mRetries;
+
+        private long mFailures;
+
+        private long mRebuffers;
+
+        // Error description mapped to the number of times it has occurred
+        private final TreeMap<String, Long> mErrors = new TreeMap<String, Long>();
+    }
+
+    private final LatencyHistogram[] mStages = new LatencyHistogram[STAGE_NAMES.length];
+
+    private final HashMap<Integer, ResolverStats> mResolverStats
+            = new HashMap<Integer, ResolverStats>();
+
+    public PlaybackMetrics() {
+        for (int i = 0; i < mStages.length; i++) {
+            mStages[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @return the id of the resolver, which the given track has been resolved by, or
+     *         RESOLVER_ID_UNKNOWN
+     */
+    public static int getResolverId(Track track) {
+        if (track == null || track.getResolver() == null) {
+            return RESOLVER_ID_UNKNOWN;
+        }
+        return track.getResolver().getId();
+    }
+
+    /**
+     * Record the latency in ms of the given stage
+     *
+     * @param stage one of the STAGE_* constants
+     */
+    public void record(int stage, long latency) {
+        mStages[stage].record(latency);
+    }
+
+    /**
+     * @param stage one of the STAGE_* constants
+     * @return the {@link LatencyHistogram} of the given stage
+     */
+    public LatencyHistogram getHistogram(int stage) {
+        return mStages[stage];
+    }
+
+    private ResolverStats getResolverStats(int resolverId) {
+        ResolverStats stats = mResolverStats.get(resolverId);
+        if (stats == null) {
+            stats = new ResolverStats();
+            mResolverStats.put(resolverId, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Record that a track of the given resolver has actually started playing. A track, which has
+     * only been prepared, e.g. in advance as the next track, doesn't count.
+     */
+    public synchronized void recordStarted(int resolverId) {
+        getResolverStats(resolverId).mStarted++;
+    }
+
+    /**
+     * Record that the prepare of a track of the given resolver is retried
+     */
+    public synchronized void recordRetry(int resolverId) {
+        getResolverStats(resolverId).mRetries++;
+    }
+
+    /**
+     * Record that a track of the given resolver couldn't be played, even after retrying
+     */
+    public synchronized void recordFailure(int resolverId) {
+        getResolverStats(resolverId).mFailures++;
+    }
+
+    /**
+     * Record the given error of a track of the given resolver
+     *
+     * @param error a short description, e.g. "what=1 extra=-1004" for an error reported by the
+     *              MediaPlayer
+     */
+    public synchronized void recordError(int resolverId, String error) {
+        TreeMap<String, Long> errors = getResolverStats(resolverId).mErrors;
+        Long count = errors.get(error);
+        errors.put(error, count == null ? 1L : count + 1);
+    }
+
+    /**
+     * Record that the playback of a track of the given resolver has stalled for the given time
+     * in ms
+     */
+    public synchronized void recordRebuffer(int resolverId, long duration) {
+        getResolverStats(resolverId).mRebuffers++;
+        mStages[STAGE_REBUFFER].record(duration);
+    }
+
+    /**
+     * @return the share of the tracks of the given resolver, which could be played, between 0
+     *         and 1. 1 for a resolver without any failures.
+     */
+    public synchronized float getReliability(int resolverId) {
+        ResolverStats stats = mResolverStats.get(resolverId);
+        if (stats == null || stats.mFailures == 0) {
+            return 1f;
+        }
+        return (float) (stats.mStarted + RELIABILITY_PRIOR)
+                / (stats.mStarted + stats.mFailures + RELIABILITY_PRIOR);
+    }
+
+    /**
+     * Forget everything, which has been recorded so far
+     */
+    public synchronized void reset() {
+        for (LatencyHistogram histogram : mStages) {
+            histogram.reset();
+        }
+        mResolverStats.clear();
+    }
+
+    /**
+     * Print the percentiles of every stage and the counters of every resolver
+     */
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Playback pipeline latencies:");
+        for (int i = 0; i < mStages.length; i++) {
+            writer.println("  " + STAGE_NAMES[i] + ": " + mStages[i]);
+        }
+        writer.println("Resolvers:");
+        for (Map.Entry<Integer, ResolverStats> entry
+                : new TreeMap<Integer, ResolverStats>(mResolverStats).entrySet()) {
+            ResolverStats stats = entry.getValue();
+            writer.println("  " + entry.getKey() + ": started=" + stats.mStarted + " retries="
+                    + stats.mRetries + " failures=" + stats.mFailures + " rebuffers="
+                    + stats.mRebuffers + " reliability=" + getReliability(entry.getKey()));
+            for (Map.Entry<String, Long> error : stats.mErrors.entrySet()) {
+                writer.println("    " + error.getKey() + ": " + error.getValue());
+            }
+        }
+        writer.flush();
+    }
+}
@@ -23,7 +23,11 @@ import org.tomahawk.libtomahawk.collection.CustomPlaylist;
 import org.tomahawk.libtomahawk.collection.Playlist;
 import org.tomahawk.libtomahawk.collection.Track;
 import org.tomahawk.libtomahawk.collection.UserCollection;
+import org.tomahawk.libtomahawk.database.CachedPlaylistWriter;
+import org.tomahawk.libtomahawk.database.DatabaseExecutor;
 import org.tomahawk.libtomahawk.database.UserPlaylistsDataSource;
+import org.tomahawk.libtomahawk.network.StreamCache;
+import org.tomahawk.libtomahawk.network.StreamProxy;
 import org.tomahawk.tomahawk_android.R;
 import org.tomahawk.tomahawk_android.TomahawkApp;
 import org.tomahawk.tomahawk_android.activities.PlaybackActivity;
@@ -43,18 +47,16 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.media.AudioManager;
-import android.media.MediaPlayer;
-import android.media.MediaPlayer.OnCompletionListener;
-import android.media.MediaPlayer.OnErrorListener;
-import android.media.MediaPlayer.OnPreparedListener;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.PowerManager;
+import android.os.Process;
 import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
@@ -64,11 +66,14 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.widget.RemoteViews;
 
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 
 public class PlaybackService extends Service
-        implements OnCompletionListener, OnErrorListener, OnPreparedListener {
+        implements PlaybackEngine.Listener, TrackPrefetcher.Listener {
 
     private static String TAG = PlaybackService.class.getName();
 
@@ -76,15 +81,6 @@ public class PlaybackService extends Service
 
     private boolean mHasBoundServices;
 
-    public static final String BROADCAST_NEWTRACK
-            = "org.tomahawk.libtomahawk.audio.PlaybackService.BROADCAST_NEWTRACK";
-
-    public static final String BROADCAST_PLAYLISTCHANGED
-            = "org.tomahawk.libtomahawk.audio.PlaybackService.BROADCAST_PLAYLISTCHANGED";
-
-    public static final String BROADCAST_PLAYSTATECHANGED
-            = "org.tomahawk.libtomahawk.audio.PlaybackService.BROADCAST_PLAYSTATECHANGED";
-
     public static final String BROADCAST_NOTIFICATIONINTENT_PREVIOUS
             = "org.tomahawk.libtomahawk.audio.PlaybackService.BROADCAST_NOTIFICATIONINTENT_PREVIOUS";
 
@@ -97,21 +93,40 @@ public class PlaybackService extends Service
     public static final String BROADCAST_NOTIFICATIONINTENT_EXIT
             = "org.tomahawk.libtomahawk.audio.PlaybackService.BROADCAST_NOTIFICATIONINTENT_EXIT";
 
-    private static final int PLAYBACKSERVICE_PLAYSTATE_PLAYING = 0;
+    public static final int PLAYBACKSERVICE_PLAYSTATE_PLAYING = 0;
 
-    private static final int PLAYBACKSERVICE_PLAYSTATE_PAUSED = 1;
+    public static final int PLAYBACKSERVICE_PLAYSTATE_PAUSED = 1;
 
-    private static final int PLAYBACKSERVICE_PLAYSTATE_STOPPED = 2;
+    public static final int PLAYBACKSERVICE_PLAYSTATE_STOPPED = 2;
 
     private int mPlayState = PLAYBACKSERVICE_PLAYSTATE_PLAYING;
 
+    // Increased whenever the tracks of the current Playlist or their order change
+    private long mQueueVersion;
+
+    private PlaybackStateStore mPlaybackStateStore;
+
+    private PlaybackMetrics mPlaybackMetrics;
+
     private static final int PLAYBACKSERVICE_NOTIFICATION_ID = 1;
 
     private static final int DELAY_TO_KILL = 300000;
 
+    private static final String STREAM_CACHE_DIRECTORY = "streams";
+
+    private static final long STREAM_CACHE_QUOTA = 100 * 1024 * 1024;
+
+    private static final String CHECKPOINT_FILENAME = "playback.checkpoint";
+
+    private static final long CHECKPOINT_INTERVAL = 5000L;
+
     private Playlist mCurrentPlaylist;
 
-    private TomahawkMediaPlayer mTomahawkMediaPlayer;
+    private PlaybackEngine mPlaybackEngine;
+
+    private StreamProxy mStreamProxy;
+
+    private TrackPrefetcher mTrackPrefetcher;
 
     private PowerManager.WakeLock mWakeLock;
 
@@ -119,7 +134,37 @@ public class PlaybackService extends Service
 
     private Handler mHandler;
 
-    private UserPlaylistsDataSource mUserPlaylistsDataSource;
+    private PlaybackCheckpoint mPlaybackCheckpoint;
+
+    // Writes the checkpoint back to its file, which blocks on disk I/O, off the main thread
+    private HandlerThread mCheckpointThread;
+
+    private Handler mCheckpointHandler;
+
+    // The checkpoint read on creation, until the playlist it belongs to has been restored
+    private PlaybackCheckpoint.Record mRestoredCheckpoint;
+
+    // Whether the checkpointed track is being prepared, while the playlist is still being restored
+    private boolean mResumingFromCheckpoint;
+
+    private Runnable mCheckpointRunnable = new Runnable() {
+        @Override
+        public void run() {
+            checkpoint(getPosition());
+            if (isPlaying()) {
+                mHandler.postDelayed(this, CHECKPOINT_INTERVAL);
+            }
+        }
+    };
+
+    private Runnable mForceCheckpointRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mPlaybackCheckpoint.force();
+        }
+    };
+
+    private CachedPlaylistWriter mCachedPlaylistWriter;
 
     private BitmapItem.AsyncBitmap mNotificationAsyncBitmap = new BitmapItem.AsyncBitmap(null);
 
@@ -193,8 +238,7 @@ public class PlaybackService extends Service
             switch (state) {
                 case TelephonyManager.DATA_CONNECTED:
                     try {
-                        if (mTomahawkMediaPlayer != null
-                                && mTomahawkMediaPlayer.getCurrentPosition() == 0) {
+                        if (mPlaybackEngine != null && mPlaybackEngine.getPosition() == 0) {
                             setCurrentTrack(getCurrentTrack());
                         }
                     } catch (IOException e1) {
@@ -242,11 +286,6 @@ public class PlaybackService extends Service
         }
     }
 
-    private class TomahawkMediaPlayer extends MediaPlayer {
-
-        private boolean mIsPreparing;
-    }
-
     /**
      * This Runnable is used to increase the volume gently.
      */
@@ -257,7 +296,7 @@ public class PlaybackService extends Service
         @Override
         public void run() {
 
-            mTomahawkMediaPlayer.setVolume(mVolume, mVolume);
+            mPlaybackEngine.setVolume(mVolume);
 
             if (mVolume < 1.0f) {
                 mVolume += .05f;
@@ -309,11 +348,27 @@ public class PlaybackService extends Service
         Message msg = mKillTimerHandler.obtainMessage();
         mKillTimerHandler.sendMessageDelayed(msg, DELAY_TO_KILL);
 
-        mUserPlaylistsDataSource = new UserPlaylistsDataSource(this,
-                ((TomahawkApp) getApplication()).getPipeLine());
-        mUserPlaylistsDataSource.open();
+        mPlaybackStateStore = ((TomahawkApp) getApplication()).getPlaybackStateStore();
+        mCachedPlaylistWriter = new CachedPlaylistWriter(
+                ((TomahawkApp) getApplication()).getDatabaseExecutor());
 
-        initMediaPlayer();
+        mStreamProxy = new StreamProxy(new StreamCache(
+                new File(getCacheDir(), STREAM_CACHE_DIRECTORY), STREAM_CACHE_QUOTA));
+        try {
+            mStreamProxy.start();
+        } catch (IOException e) {
+            // Remote tracks will be streamed directly then
+            Log.e(TAG, "onCreate: " + e.getClass() + ": " + e.getLocalizedMessage());
+        }
+        mPlaybackMetrics = ((TomahawkApp) getApplication()).getPlaybackMetrics();
+        mPlaybackEngine = new PlaybackEngine(this, mStreamProxy, mPlaybackMetrics);
+        mTrackPrefetcher = new TrackPrefetcher(this,
+                ((TomahawkApp) getApplication()).getPipeLine(), mStreamProxy, this);
+        mPlaybackCheckpoint = new PlaybackCheckpoint(new File(getFilesDir(), CHECKPOINT_FILENAME));
+        mCheckpointThread = new HandlerThread(PlaybackCheckpoint.class.getSimpleName(),
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mCheckpointThread.start();
+        mCheckpointHandler = new Handler(mCheckpointThread.getLooper());
         restoreState();
     }
 
@@ -358,11 +413,25 @@ public class PlaybackService extends Service
     @Override
     public void onDestroy() {
         pause(true);
+        mHandler.removeCallbacks(mCheckpointRunnable);
+        // Quit only after the checkpoint of the pause above has been written back
+        mCheckpointHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mCheckpointThread.quit();
+            }
+        });
         saveState();
-        mUserPlaylistsDataSource.close();
+        getUserCollection().setPlayingPlaylist(null);
+        mCachedPlaylistWriter.close();
+        mCachedPlaylistWriter = null;
         unregisterReceiver(mServiceBroadcastReceiver);
-        mTomahawkMediaPlayer.release();
-        mTomahawkMediaPlayer = null;
+        mTrackPrefetcher.release();
+        mTrackPrefetcher = null;
+        mPlaybackEngine.release();
+        mPlaybackEngine = null;
+        mStreamProxy.stop();
+        mStreamProxy = null;
         if (mWakeLock.isHeld()) {
             mWakeLock.release();
         }
@@ -371,21 +440,20 @@ public class PlaybackService extends Service
     }
 
     /* (non-Javadoc)
-     * @see android.media.MediaPlayer.OnPreparedListener#onPrepared(android.media.MediaPlayer)
+     * @see org.tomahawk.tomahawk_android.services.PlaybackEngine.Listener#onPrepared()
      */
     @Override
-    public void onPrepared(MediaPlayer mp) {
+    public void onPrepared() {
         Log.d(TAG, "Mediaplayer is prepared.");
-        mTomahawkMediaPlayer.mIsPreparing = false;
         handlePlayState();
+        prepareNextTrack();
     }
 
     /* (non-Javadoc)
-     * @see android.media.MediaPlayer.OnCompletionListener#onCompletion(android.media.MediaPlayer)
+     * @see org.tomahawk.tomahawk_android.services.PlaybackEngine.Listener#onCompletion()
      */
     @Override
-    public void onCompletion(MediaPlayer mp) {
-
+    public void onCompletion() {
         if (mCurrentPlaylist == null) {
             stop();
             return;
@@ -404,71 +472,165 @@ public class PlaybackService extends Service
     }
 
     /* (non-Javadoc)
-     * @see android.media.MediaPlayer.OnErrorListener#onError(android.media.MediaPlayer, int, int)
+     * @see org.tomahawk.tomahawk_android.services.PlaybackEngine.Listener#onError()
      */
     @Override
-    public boolean onError(MediaPlayer mp, int what, int extra) {
-        String whatString = "CODE UNSPECIFIED";
-        switch (what) {
-            case MediaPlayer.MEDIA_ERROR_UNKNOWN:
-                whatString = "MEDIA_ERROR_UNKNOWN";
-                break;
-            case MediaPlayer.MEDIA_ERROR_SERVER_DIED:
-                whatString = "MEDIA_ERROR_SERVER_DIED";
-        }
-
-        Log.e(TAG, "onError - " + whatString);
-        if (mp == mTomahawkMediaPlayer && isNetworkAvailable()) {
+    public void onError() {
+        Log.e(TAG, "onError - unable to play " + getCurrentTrack());
+        if (isNetworkAvailable()) {
             next();
         }
-        return false;
+    }
+
+    /* (non-Javadoc)
+     * @see org.tomahawk.tomahawk_android.services.TrackPrefetcher.Listener#onTrackResolved(org.tomahawk.libtomahawk.collection.Track)
+     */
+    @Override
+    public void onTrackResolved(Track track) {
+        prepareNextTrack();
+    }
+
+    /**
+     * @return the index of the first resolved Track following the current one in the current
+     *         Playlist, taking shuffle and repeat mode into account. -1 if there is none.
+     */
+    private int findNextResolvedTrackIndex() {
+        if (mCurrentPlaylist == null) {
+            return -1;
+        }
+        int count = mCurrentPlaylist.getCount();
+        int currentTrackIndex = mCurrentPlaylist.getCurrentTrackIndex();
+        for (int i = 1; i <= count; i++) {
+            int index = currentTrackIndex + i;
+            if (index >= count) {
+                if (!mCurrentPlaylist.isRepeating()) {
+                    return -1;
+                }
+                index -= count;
+            }
+            if (mCurrentPlaylist.peekTrackAtPos(index).isResolved()) {
+                return index;
+            }
+        }
+        return -1;
     }
 
     /**
-     * Initializes the mediaplayer. Sets the listeners and AudioStreamType.
+     * Let the PlaybackEngine prepare the Track, which will be played after the current one, and
+     * let the TrackPrefetcher get the Tracks after it ready. Has to be called whenever the current
+     * Playlist, its order or its repeat mode changes.
      */
-    public void initMediaPlayer() {
-        mTomahawkMediaPlayer = new TomahawkMediaPlayer();
-        mTomahawkMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-        mTomahawkMediaPlayer.setOnCompletionListener(this);
-        mTomahawkMediaPlayer.setOnPreparedListener(this);
-        mTomahawkMediaPlayer.setOnErrorListener(this);
+    private void prepareNextTrack() {
+        int nextTrackIndex = findNextResolvedTrackIndex();
+        Track nextTrack = nextTrackIndex >= 0
+                ? mCurrentPlaylist.peekTrackAtPos(nextTrackIndex) : null;
+        mTrackPrefetcher.update(mCurrentPlaylist, nextTrack);
+        mPlaybackEngine.prepareNext(nextTrack);
     }
 
     /**
-     * Save the current playlist in the UserCollection
+     * Save the current playlist in the UserCollection. The database is kept up to date by the
+     * CachedPlaylistWriter all the time, so nothing has to be written here.
      */
     private void saveState() {
         if (getCurrentPlaylist() != null) {
-            UserCollection userCollection = ((UserCollection) ((TomahawkApp) getApplication())
-                    .getSourceList().getCollectionFromId(UserCollection.Id));
-            userCollection.setCachedPlaylist(CustomPlaylist
+            getUserCollection().setCachedPlaylist(CustomPlaylist
                     .fromTrackList(UserPlaylistsDataSource.CACHED_PLAYLIST_NAME,
                             getCurrentPlaylist().getTracks()));
-            long startTime = System.currentTimeMillis();
-            mUserPlaylistsDataSource.storeCachedUserPlaylist(getCurrentPlaylist());
-            Log.d(TAG, "Playlist stored in " + (System.currentTimeMillis() - startTime) + "ms");
         }
     }
 
+    private UserCollection getUserCollection() {
+        return (UserCollection) ((TomahawkApp) getApplication()).getSourceList()
+                .getCollectionFromId(UserCollection.Id);
+    }
+
     /**
      * Restore the current playlist from the UserCollection
      */
     private void restoreState() {
-        UserCollection userCollection = ((UserCollection) ((TomahawkApp) getApplication())
-                .getSourceList().getCollectionFromId(UserCollection.Id));
+        mRestoredCheckpoint = mPlaybackCheckpoint.read();
+        if (mRestoredCheckpoint != null) {
+            // Keeps increasing across restarts
+            mQueueVersion = mRestoredCheckpoint.getQueueVersion();
+        }
+        UserCollection userCollection = getUserCollection();
+        if (userCollection.getCachedCustomPlaylist() != null) {
+            restoreState(userCollection.getCachedCustomPlaylist());
+        } else {
+            if (mRestoredCheckpoint != null) {
+                // Get the checkpointed track ready to play at its position right away, instead of
+                // waiting for the whole playlist to be loaded
+                Track track = new Track();
+                track.setPath(mRestoredCheckpoint.getPath());
+                mPlayState = PLAYBACKSERVICE_PLAYSTATE_PAUSED;
+                mResumingFromCheckpoint = true;
+                mPlaybackEngine.prepare(track, mRestoredCheckpoint.getPosition());
+            }
+            final long startTime = System.currentTimeMillis();
+            ((TomahawkApp) getApplication()).getDatabaseExecutor()
+                    .read(new DatabaseExecutor.Task<CustomPlaylist>() {
+                        @Override
+                        public CustomPlaylist run(UserPlaylistsDataSource userPlaylistsDataSource) {
+                            return userPlaylistsDataSource.getCachedUserPlaylist();
+                        }
+                    }, new DatabaseExecutor.Callback<CustomPlaylist>() {
+                        @Override
+                        public void onResult(CustomPlaylist result) {
+                            Log.d(TAG, "Playlist loaded in " + (System.currentTimeMillis()
+                                    - startTime) + "ms");
+                            // Don't replace a playlist, which has been set in the meantime
+                            if (getCurrentPlaylist() == null && mCachedPlaylistWriter != null) {
+                                restoreState(result);
+                            }
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Make the given restored playlist the current one. If the checkpoint fits into it, its
+     * current track and the position inside of it are taken from the checkpoint. Otherwise the
+     * track, which has been prepared from the checkpoint, is dropped, so that the engine doesn't
+     * keep it when there is no playlist to play it from.
+     */
+    private void restoreState(CustomPlaylist playlist) {
+        PlaybackCheckpoint.Record checkpoint = mRestoredCheckpoint;
+        mRestoredCheckpoint = null;
+        boolean resumingFromCheckpoint = mResumingFromCheckpoint;
+        mResumingFromCheckpoint = false;
+        int startPosition = 0;
+        boolean adopted = false;
+        if (checkpoint != null && playlist != null) {
+            Track track = playlist.peekTrackAtPos(checkpoint.getTrackIndex());
+            if (track != null && checkpoint.getPath().equals(track.getPath())) {
+                playlist.setCurrentTrackIndex(checkpoint.getTrackIndex());
+                startPosition = checkpoint.getPosition();
+                adopted = resumingFromCheckpoint && mPlaybackEngine.adoptTrack(track);
+            }
+        }
+        if (resumingFromCheckpoint && !adopted) {
+            mPlaybackEngine.reset();
+            resumingFromCheckpoint = false;
+        }
         try {
-            setCurrentPlaylist(userCollection.getCachedCustomPlaylist());
-            if (getCurrentPlaylist() == null) {
-                long startTime = System.currentTimeMillis();
-                setCurrentPlaylist(mUserPlaylistsDataSource.getCachedUserPlaylist());
-                Log.d(TAG, "Playlist loaded in " + (System.currentTimeMillis() - startTime) + "ms");
+            if (adopted) {
+                // The track has already been prepared at the right position
+                mCurrentPlaylist = playlist;
+                mQueueVersion++;
+                publishState();
+                prepareNextTrack();
+            } else {
+                setCurrentPlaylist(playlist, false, startPosition);
             }
+            mCachedPlaylistWriter.setStoredPlaylist(playlist);
         } catch (IOException e) {
             Log.e(TAG, "restoreState(): " + IOException.class.getName() + ": " + e
                     .getLocalizedMessage());
         }
-        if (getCurrentPlaylist() != null && isPlaying()) {
+        // Pause playback, which has been started while the playlist was being restored, unless
+        // it is the checkpointed track, which has been resumed
+        if (getCurrentPlaylist() != null && isPlaying() && !resumingFromCheckpoint) {
             pause(true);
         }
     }
@@ -496,7 +658,7 @@ public class PlaybackService extends Service
             mPlayState = PLAYBACKSERVICE_PLAYSTATE_PLAYING;
             updatePlayingNotification();
         }
-        sendBroadcast(new Intent(BROADCAST_PLAYSTATECHANGED));
+        publishState();
         handlePlayState();
     }
 
@@ -505,7 +667,7 @@ public class PlaybackService extends Service
      */
     public void start() {
         mPlayState = PLAYBACKSERVICE_PLAYSTATE_PLAYING;
-        sendBroadcast(new Intent(BROADCAST_PLAYSTATECHANGED));
+        publishState();
         handlePlayState();
         updatePlayingNotification();
     }
@@ -515,7 +677,7 @@ public class PlaybackService extends Service
      */
     public void stop() {
         mPlayState = PLAYBACKSERVICE_PLAYSTATE_STOPPED;
-        sendBroadcast(new Intent(BROADCAST_PLAYSTATECHANGED));
+        publishState();
         handlePlayState();
         stopForeground(true);
     }
@@ -532,7 +694,7 @@ public class PlaybackService extends Service
      */
     public void pause(boolean dismissNotificationOnPause) {
         mPlayState = PLAYBACKSERVICE_PLAYSTATE_PAUSED;
-        sendBroadcast(new Intent(BROADCAST_PLAYSTATECHANGED));
+        publishState();
         handlePlayState();
         if (dismissNotificationOnPause) {
             stopForeground(true);
@@ -542,43 +704,68 @@ public class PlaybackService extends Service
     }
 
     /**
-     * Update the TomahawkMediaPlayer so that it reflects the current playState
+     * Publish a snapshot of the current playback state. The PlaybackStateStore coalesces the
+     * several snapshots, which are published during a single action.
+     */
+    private void publishState() {
+        Playlist playlist = mCurrentPlaylist;
+        mPlaybackStateStore.publish(new PlaybackState(
+                playlist != null ? playlist.getCurrentTrack() : null,
+                playlist != null ? playlist.getCurrentTrackIndex() : -1, mPlayState,
+                playlist != null && playlist.isShuffled(),
+                playlist != null && playlist.isRepeating(), mQueueVersion));
+    }
+
+    /**
+     * Update the PlaybackEngine so that it reflects the current playState
      */
     public void handlePlayState() {
         if (!isPreparing()) {
-            try {
-                switch (mPlayState) {
-                    case PLAYBACKSERVICE_PLAYSTATE_PLAYING:
-                        if (!mWakeLock.isHeld()) {
-                            mWakeLock.acquire();
-                        }
-                        if (!mTomahawkMediaPlayer.isPlaying()) {
-                            mTomahawkMediaPlayer.start();
-                        }
-                        break;
-                    case PLAYBACKSERVICE_PLAYSTATE_PAUSED:
-                        if (mTomahawkMediaPlayer.isPlaying()) {
-                            mTomahawkMediaPlayer.pause();
-                        }
-                        if (mWakeLock.isHeld()) {
-                            mWakeLock.release();
-                        }
-                        break;
-                    case PLAYBACKSERVICE_PLAYSTATE_STOPPED:
-                        mTomahawkMediaPlayer.stop();
-                        if (mWakeLock.isHeld()) {
-                            mWakeLock.release();
-                        }
-                }
-            } catch (IllegalStateException e1) {
-                Log.e(TAG,
-                        "handlePlayState() IllegalStateException, msg:" + e1.getLocalizedMessage()
-                                + " , preparing=" + isPreparing());
+            switch (mPlayState) {
+                case PLAYBACKSERVICE_PLAYSTATE_PLAYING:
+                    if (!mWakeLock.isHeld()) {
+                        mWakeLock.acquire();
+                    }
+                    mPlaybackEngine.start();
+                    break;
+                case PLAYBACKSERVICE_PLAYSTATE_PAUSED:
+                    mPlaybackEngine.pause();
+                    if (mWakeLock.isHeld()) {
+                        mWakeLock.release();
+                    }
+                    break;
+                case PLAYBACKSERVICE_PLAYSTATE_STOPPED:
+                    mPlaybackEngine.stop();
+                    if (mWakeLock.isHeld()) {
+                        mWakeLock.release();
+                    }
             }
             mKillTimerHandler.removeCallbacksAndMessages(null);
             Message msg = mKillTimerHandler.obtainMessage();
             mKillTimerHandler.sendMessageDelayed(msg, DELAY_TO_KILL);
         }
+        mHandler.removeCallbacks(mCheckpointRunnable);
+        if (mPlayState == PLAYBACKSERVICE_PLAYSTATE_PLAYING) {
+            mHandler.postDelayed(mCheckpointRunnable, CHECKPOINT_INTERVAL);
+        } else {
+            checkpoint(getPosition());
+            mCheckpointHandler.removeCallbacks(mForceCheckpointRunnable);
+            mCheckpointHandler.post(mForceCheckpointRunnable);
+        }
+    }
+
+    /**
+     * Store where playback currently is in the PlaybackCheckpoint. Only copies a few bytes, so it
+     * is cheap enough to be called every few seconds.
+     *
+     * @param position the position inside the current Track in ms
+     */
+    private void checkpoint(int position) {
+        Track track = getCurrentTrack();
+        if (track != null) {
+            mPlaybackCheckpoint.write(mQueueVersion, mCurrentPlaylist.getCurrentTrackIndex(),
+                    position, track.getPath());
+        }
     }
 
     /**
@@ -622,7 +809,10 @@ public class PlaybackService extends Service
      */
     public void setShuffled(boolean shuffled) {
         mCurrentPlaylist.setShuffled(shuffled);
-        sendBroadcast(new Intent(BROADCAST_PLAYLISTCHANGED));
+        mCachedPlaylistWriter.setShuffleState(mCurrentPlaylist);
+        prepareNextTrack();
+        mQueueVersion++;
+        publishState();
     }
 
     /**
@@ -630,7 +820,8 @@ public class PlaybackService extends Service
      */
     public void setRepeating(boolean repeating) {
         mCurrentPlaylist.setRepeating(repeating);
-        sendBroadcast(new Intent(BROADCAST_PLAYLISTCHANGED));
+        prepareNextTrack();
+        publishState();
     }
 
     /**
@@ -644,7 +835,7 @@ public class PlaybackService extends Service
      * @return Whether or not the mediaPlayer currently prepares a track
      */
     public boolean isPreparing() {
-        return mTomahawkMediaPlayer == null || mTomahawkMediaPlayer.mIsPreparing;
+        return mPlaybackEngine == null || mPlaybackEngine.isPreparing();
     }
 
     /**
@@ -663,58 +854,29 @@ public class PlaybackService extends Service
      * This method sets the current track and prepares it for playback.
      */
     public void setCurrentTrack(final Track track) throws IOException {
+        setCurrentTrack(track, 0);
+    }
+
+    /**
+     * Set the current track and prepare it for playback from the given position in ms.
+     */
+    private void setCurrentTrack(Track track, int startPosition) throws IOException {
         mNotificationAsyncBitmap.bitmap = null;
-        if (mTomahawkMediaPlayer != null && track != null) {
+        if (mCurrentPlaylist != null) {
+            mCachedPlaylistWriter.setCurrentTrackIndex(mCurrentPlaylist.getCurrentTrackIndex());
+        }
+        if (mPlaybackEngine != null && track != null) {
+            mTrackPrefetcher.onTrackNeeded(track);
             if (track.isResolved()) {
-                Runnable releaseRunnable = new Runnable() {
-                    @Override
-                    public void run() {
-                        int loopCounter = 0;
-                        while (true) {
-                            if (loopCounter++ > 10) {
-                                Log.e(TAG, "MediaPlayer was unable to prepare the track");
-                                break;
-                            }
-                            long startTime = System.currentTimeMillis();
-                            mTomahawkMediaPlayer.release();
-                            initMediaPlayer();
-                            long endTime = System.currentTimeMillis();
-                            Log.d(TAG, "MediaPlayer reinitialize in " + (endTime - startTime)
-                                    + "ms, preparing=" + isPreparing());
-                            mTomahawkMediaPlayer.mIsPreparing = true;
-                            try {
-                                mTomahawkMediaPlayer.setDataSource(track.getPath());
-                            } catch (IllegalStateException e1) {
-                                Log.e(TAG, "setDataSource() IllegalStateException, msg:" + e1
-                                        .getLocalizedMessage() + " , preparing=" + isPreparing());
-                                continue;
-                            } catch (IOException e2) {
-                                Log.e(TAG, "setDataSource() IOException, msg:" + e2
-                                        .getLocalizedMessage() + " , preparing=" + isPreparing());
-                                continue;
-                            }
-                            try {
-                                mTomahawkMediaPlayer.prepare();
-                            } catch (IllegalStateException e1) {
-                                Log.e(TAG, "prepare() IllegalStateException, msg:" + e1
-                                        .getLocalizedMessage() + " , preparing=" + isPreparing());
-                                continue;
-                            } catch (IOException e2) {
-                                Log.e(TAG, "prepare() IOException, msg:" + e2.getLocalizedMessage()
-                                        + " , preparing=" + isPreparing());
-                                continue;
-                            }
-                            break;
-                        }
-                    }
-                };
-                new Thread(releaseRunnable).start();
+                // Cancels the prepare of any track, which has been skipped in the meantime
+                mPlaybackEngine.prepare(track, startPosition);
+                checkpoint(startPosition);
 
                 mKillTimerHandler.removeCallbacksAndMessages(null);
                 Message msg = mKillTimerHandler.obtainMessage();
                 mKillTimerHandler.sendMessageDelayed(msg, DELAY_TO_KILL);
 
-                sendBroadcast(new Intent(BROADCAST_NEWTRACK));
+                publishState();
             } else {
                 next();
             }
@@ -740,19 +902,43 @@ public class PlaybackService extends Service
      * Track.
      */
     public void setCurrentPlaylist(Playlist playlist) throws IOException {
+        setCurrentPlaylist(playlist, true, 0);
+    }
+
+    /**
+     * Set the current Playlist to playlist. If persist is false, the playlist is assumed to be
+     * stored already, e.g. because it has just been restored.
+     *
+     * @param startPosition the position in ms to start the current Track at
+     */
+    private void setCurrentPlaylist(Playlist playlist, boolean persist, int startPosition)
+            throws IOException {
         mCurrentPlaylist = playlist;
+        // A user playlist being played must keep its tracks, when memory runs low
+        getUserCollection().setPlayingPlaylist(playlist);
+        if (persist && playlist != null) {
+            mCachedPlaylistWriter.replace(playlist);
+        }
         if (playlist != null) {
-            setCurrentTrack(mCurrentPlaylist.getCurrentTrack());
+            setCurrentTrack(mCurrentPlaylist.getCurrentTrack(), startPosition);
         }
-        sendBroadcast(new Intent(BROADCAST_PLAYLISTCHANGED));
+        mQueueVersion++;
+        publishState();
     }
 
     public void addTracksToCurrentPlaylist(ArrayList<Track> tracks) {
         if (mCurrentPlaylist == null) {
             mCurrentPlaylist = CustomPlaylist.fromTrackList("Temp", new ArrayList<Track>());
+            mCachedPlaylistWriter.replace(mCurrentPlaylist);
         }
         boolean wasEmpty = mCurrentPlaylist.getCount() <= 0;
         mCurrentPlaylist.addTracks(tracks);
+        if (mCachedPlaylistWriter.storesShuffleSeed()) {
+            // The edited shuffled order can't be regenerated from its seed anymore
+            mCachedPlaylistWriter.replace(mCurrentPlaylist);
+        } else {
+            mCachedPlaylistWriter.append(tracks);
+        }
         if (wasEmpty && mCurrentPlaylist.getCount() > 0) {
             try {
                 setCurrentTrack(mCurrentPlaylist.getTrackAtPos(0));
@@ -760,19 +946,32 @@ public class PlaybackService extends Service
                 e.printStackTrace();
             }
         }
-        sendBroadcast(new Intent(BROADCAST_PLAYLISTCHANGED));
+        prepareNextTrack();
+        mQueueVersion++;
+        publishState();
     }
 
     public void addTracksToCurrentPlaylist(int position, ArrayList<Track> tracks) {
         if (mCurrentPlaylist == null) {
             mCurrentPlaylist = CustomPlaylist.fromTrackList("Temp", new ArrayList<Track>());
+            mCachedPlaylistWriter.replace(mCurrentPlaylist);
         }
         boolean wasEmpty = mCurrentPlaylist.getCount() <= 0;
-        if (position < mCurrentPlaylist.getCount()) {
+        boolean append = position >= mCurrentPlaylist.getCount();
+        if (append) {
+            mCurrentPlaylist.addTracks(tracks);
+        } else {
             mCurrentPlaylist.addTracks(position, tracks);
+        }
+        if (mCachedPlaylistWriter.storesShuffleSeed()) {
+            // The edited shuffled order can't be regenerated from its seed anymore
+            mCachedPlaylistWriter.replace(mCurrentPlaylist);
+        } else if (append) {
+            mCachedPlaylistWriter.append(tracks);
         } else {
-            mCurrentPlaylist.addTracks(tracks);
+            mCachedPlaylistWriter.insert(position, tracks);
         }
+        mCachedPlaylistWriter.setCurrentTrackIndex(mCurrentPlaylist.getCurrentTrackIndex());
         if (wasEmpty && mCurrentPlaylist.getCount() > 0) {
             try {
                 setCurrentTrack(mCurrentPlaylist.getTrackAtPos(0));
@@ -780,32 +979,76 @@ public class PlaybackService extends Service
                 e.printStackTrace();
             }
         }
-        sendBroadcast(new Intent(BROADCAST_PLAYLISTCHANGED));
+        prepareNextTrack();
+        mQueueVersion++;
+        publishState();
     }
 
     public void deleteTrackAtPos(int position) {
         mCurrentPlaylist.deleteTrackAtPos(position);
-        sendBroadcast(new Intent(BROADCAST_PLAYLISTCHANGED));
+        if (mCachedPlaylistWriter.storesShuffleSeed()) {
+            // The edited shuffled order can't be regenerated from its seed anymore
+            mCachedPlaylistWriter.replace(mCurrentPlaylist);
+        } else {
+            mCachedPlaylistWriter.remove(position);
+        }
+        mCachedPlaylistWriter.setCurrentTrackIndex(mCurrentPlaylist.getCurrentTrackIndex());
+        prepareNextTrack();
+        mQueueVersion++;
+        publishState();
+    }
+
+    /**
+     * Move the Track at the given position of the current Playlist to another position.
+     */
+    public void moveTrack(int from, int to) {
+        mCurrentPlaylist.moveTrack(from, to);
+        if (mCachedPlaylistWriter.storesShuffleSeed()) {
+            // The edited shuffled order can't be regenerated from its seed anymore
+            mCachedPlaylistWriter.replace(mCurrentPlaylist);
+        } else {
+            mCachedPlaylistWriter.move(from, to);
+        }
+        mCachedPlaylistWriter.setCurrentTrackIndex(mCurrentPlaylist.getCurrentTrackIndex());
+        prepareNextTrack();
+        mQueueVersion++;
+        publishState();
     }
 
     /**
      * Returns the position of playback in the current Track.
      */
     public int getPosition() {
-        int position = 0;
-        try {
-            position = mTomahawkMediaPlayer.getCurrentPosition();
-        } catch (IllegalStateException e) {
-            Log.e(TAG, "getPosition: " + e.getClass() + ": " + e.getLocalizedMessage());
+        if (mPlaybackEngine == null) {
+            return 0;
         }
-        return position;
+        return mPlaybackEngine.getPosition();
     }
 
     /**
      * Seeks to position msec
      */
     public void seekTo(int msec) {
-        mTomahawkMediaPlayer.seekTo(msec);
+        mPlaybackEngine.seekTo(msec);
+    }
+
+    /**
+     * Print the current playback state and the {@link PlaybackMetrics}, e.g. through "adb shell
+     * dumpsys activity service PlaybackService". Pass "reset" as argument to clear the metrics
+     * afterwards.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Current track: " + getCurrentTrack());
+        writer.println("Play state: " + mPlayState + ", preparing: " + isPreparing()
+                + ", queue version: " + mQueueVersion);
+        writer.println("Prefetcher: needed=" + mTrackPrefetcher.getNeededCount() + " ready="
+                + mTrackPrefetcher.getReadyCount());
+        mPlaybackMetrics.dump(writer);
+        if (args != null && args.length > 0 && "reset".equals(args[0])) {
+            mPlaybackMetrics.reset();
+            writer.println("Metrics have been reset");
+        }
     }
 
     /**
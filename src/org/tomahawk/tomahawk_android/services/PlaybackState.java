@@ -0,0 +1,128 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.tomahawk_android.services;
+
+import org.tomahawk.libtomahawk.collection.Track;
+
+/**
+ * An immutable snapshot of the playback state of the {@link PlaybackService}. A new snapshot is
+ * published through the {@link PlaybackStateStore} whenever any of its fields changes.
+ */
+public class PlaybackState {
+
+    public static final int CHANGED_TRACK = 1;
+
+    public static final int CHANGED_TRACKINDEX = 2;
+
+    public static final int CHANGED_PLAYSTATE = 4;
+
+    public static final int CHANGED_SHUFFLED = 8;
+
+    public static final int CHANGED_REPEATING = 16;
+
+    public static final int CHANGED_QUEUE = 32;
+
+    public static final int CHANGED_ALL = CHANGED_TRACK | CHANGED_TRACKINDEX | CHANGED_PLAYSTATE
+            | CHANGED_SHUFFLED | CHANGED_REPEATING | CHANGED_QUEUE;
+
+    private final Track mTrack;
+
+    private final int mTrackIndex;
+
+    private final int mPlayState;
+
+    private final boolean mShuffled;
+
+    private final boolean mRepeating;
+
+    private final long mQueueVersion;
+
+    /**
+     * @param playState    one of the PLAYBACKSERVICE_PLAYSTATE_* constants of the {@link
+     *                     PlaybackService}
+     * @param queueVersion a number, which is increased whenever the tracks of the queue or their
+     *                     order change
+     */
+    public PlaybackState(Track track, int trackIndex, int playState, boolean shuffled,
+            boolean repeating, long queueVersion) {
+        mTrack = track;
+        mTrackIndex = trackIndex;
+        mPlayState = playState;
+        mShuffled = shuffled;
+        mRepeating = repeating;
+        mQueueVersion = queueVersion;
+    }
+
+    public Track getTrack() {
+        return mTrack;
+    }
+
+    public int getTrackIndex() {
+        return mTrackIndex;
+    }
+
+    public int getPlayState() {
+        return mPlayState;
+    }
+
+    public boolean isPlaying() {
+        return mPlayState == PlaybackService.PLAYBACKSERVICE_PLAYSTATE_PLAYING;
+    }
+
+    public boolean isShuffled() {
+        return mShuffled;
+    }
+
+    public boolean isRepeating() {
+        return mRepeating;
+    }
+
+    public long getQueueVersion() {
+        return mQueueVersion;
+    }
+
+    /**
+     * @return the CHANGED_* flags of all fields, which differ between this and the given state.
+     * All flags are set, if the given state is null.
+     */
+    public int diff(PlaybackState state) {
+        if (state == null) {
+            return CHANGED_ALL;
+        }
+        int changedFields = 0;
+        if (mTrack != state.mTrack) {
+            changedFields |= CHANGED_TRACK;
+        }
+        if (mTrackIndex != state.mTrackIndex) {
+            changedFields |= CHANGED_TRACKINDEX;
+        }
+        if (mPlayState != state.mPlayState) {
+            changedFields |= CHANGED_PLAYSTATE;
+        }
+        if (mShuffled != state.mShuffled) {
+            changedFields |= CHANGED_SHUFFLED;
+        }
+        if (mRepeating != state.mRepeating) {
+            changedFields |= CHANGED_REPEATING;
+        }
+        if (mQueueVersion != state.mQueueVersion) {
+            changedFields |= CHANGED_QUEUE;
+        }
+        return changedFields;
+    }
+}
@@ -0,0 +1,149 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.tomahawk_android.services;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+
+/**
+ * Publishes the {@link PlaybackState} of the {@link PlaybackService} to observers inside this
+ * process. States can be published from any thread. They are coalesced, so that observers are
+ * notified on the main thread at most once per FRAME_INTERVAL, no matter how many states have
+ * been published in between, and only with the fields, which have changed since their last
+ * notification.
+ */
+public class PlaybackStateStore {
+
+    public static final long FRAME_INTERVAL = 16L;
+
+    public interface Observer {
+
+        /**
+         * Called on the main thread after the playback state has changed.
+         *
+         * @param changedFields the PlaybackState.CHANGED_* flags of all fields, which have changed
+         *                      since the last call
+         */
+        void onPlaybackStateChanged(PlaybackState state, int changedFields);
+    }
+
+    private static class ObserverEntry {
+
+        Observer observer;
+
+        // The state this observer has been notified of last
+        PlaybackState state;
+
+        ObserverEntry(Observer observer, PlaybackState state) {
+            this.observer = observer;
+            this.state = state;
+        }
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Object mLock = new Object();
+
+    // Guarded by mLock
+    private PlaybackState mState;
+
+    private boolean mDispatchScheduled;
+
+    // Only accessed on the main thread
+    private final ArrayList<ObserverEntry> mObserverEntries = new ArrayList<ObserverEntry>();
+
+    private Runnable mDispatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    /**
+     * @return the latest published state, or null if none has been published yet
+     */
+    public PlaybackState getState() {
+        synchronized (mLock) {
+            return mState;
+        }
+    }
+
+    /**
+     * Publish the given state. Observers are notified with the next dispatch.
+     */
+    public void publish(PlaybackState state) {
+        synchronized (mLock) {
+            mState = state;
+            if (!mDispatchScheduled) {
+                mDispatchScheduled = true;
+                mHandler.postDelayed(mDispatchRunnable, FRAME_INTERVAL);
+            }
+        }
+    }
+
+    /**
+     * Add the given observer. It is only notified of changes made after the current state, which
+     * it is expected to read through {@link #getState()} itself. Has to be called on the main
+     * thread.
+     */
+    public void addObserver(Observer observer) {
+        for (ObserverEntry entry : mObserverEntries) {
+            if (entry.observer == observer) {
+                return;
+            }
+        }
+        mObserverEntries.add(new ObserverEntry(observer, getState()));
+    }
+
+    /**
+     * Has to be called on the main thread.
+     */
+    public void removeObserver(Observer observer) {
+        for (int i = 0; i < mObserverEntries.size(); i++) {
+            if (mObserverEntries.get(i).observer == observer) {
+                mObserverEntries.remove(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Notify every observer of the fields of the latest state, which differ from the state it has
+     * been notified of last.
+     */
+    private void dispatch() {
+        PlaybackState state;
+        synchronized (mLock) {
+            state = mState;
+            mDispatchScheduled = false;
+        }
+        // Observers may remove themselves while being notified
+        for (ObserverEntry entry : new ArrayList<ObserverEntry>(mObserverEntries)) {
+            if (!mObserverEntries.contains(entry)) {
+                continue;
+            }
+            int changedFields = state.diff(entry.state);
+            entry.state = state;
+            if (changedFields != 0) {
+                entry.observer.onPlaybackStateChanged(state, changedFields);
+            }
+        }
+    }
+}
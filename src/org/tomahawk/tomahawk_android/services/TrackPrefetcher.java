@@ -0,0 +1,360 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.tomahawk_android.services;
+
+import org.tomahawk.libtomahawk.collection.Playlist;
+import org.tomahawk.libtomahawk.collection.Track;
+import org.tomahawk.libtomahawk.network.StreamProxy;
+import org.tomahawk.libtomahawk.resolver.PipeLine;
+import org.tomahawk.libtomahawk.resolver.Query;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gets the Tracks following the current one ready before they are needed. Unresolved Tracks are
+ * resolved through the {@link PipeLine}, a few at a time, and the first seconds of remote Tracks
+ * are fetched into the cache of the {@link StreamProxy} on a background thread. How far to look
+ * ahead and how much to fetch depends on the kind of network connection and on the battery.
+ *
+ * All methods have to be called on the main thread.
+ */
+public class TrackPrefetcher {
+
+    private static final String TAG = TrackPrefetcher.class.getName();
+
+    private static final int LOOKAHEAD_UNMETERED = 5;
+
+    private static final int LOOKAHEAD_METERED = 2;
+
+    private static final int LOOKAHEAD_LOW_BATTERY = 1;
+
+    private static final int PREBUFFER_TRACKS_UNMETERED = 3;
+
+    private static final int PREBUFFER_TRACKS_METERED = 1;
+
+    private static final int PREBUFFER_SECONDS_UNMETERED = 20;
+
+    private static final int PREBUFFER_SECONDS_METERED = 8;
+
+    // Assumed for Tracks, which don't know their bitrate, in kbit/s
+    private static final int DEFAULT_BITRATE = 320;
+
+    private static final int LOW_BATTERY_PERCENT = 15;
+
+    private static final int MAX_PENDING_RESOLVES = 2;
+
+    // A query, which hasn't been solved by then, gives up its slot for the next queued Track, in ms
+    private static final long RESOLVE_TIMEOUT = 15000L;
+
+    /**
+     * Is notified, whenever an upcoming Track has been resolved.
+     */
+    public interface Listener {
+
+        void onTrackResolved(Track track);
+    }
+
+    private final Context mContext;
+
+    private final PipeLine mPipeLine;
+
+    private final StreamProxy mStreamProxy;
+
+    private final Listener mListener;
+
+    private final HandlerThread mPrefetchThread;
+
+    private final Handler mPrefetchHandler;
+
+    // Incremented on every update, so that queued prefetches of old updates are skipped
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    private final Handler mHandler = new Handler();
+
+    private final HashMap<String, Track> mResolvingTracks = new HashMap<String, Track>();
+
+    // The uptime in ms, at which each of the resolving Tracks has been handed to the PipeLine
+    private final HashMap<String, Long> mResolveStartTimes = new HashMap<String, Long>();
+
+    private final LinkedList<Track> mResolveQueue = new LinkedList<Track>();
+
+    private boolean mResolveOnlyLocal;
+
+    private int mNeededCount;
+
+    private int mReadyCount;
+
+    private final BroadcastReceiver mPipeLineReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String qid = intent.getStringExtra(PipeLine.PIPELINE_RESULTSREPORTED_QID);
+            Track track = mResolvingTracks.get(qid);
+            if (track == null) {
+                return;
+            }
+            Query query = mPipeLine.getQuery(qid);
+            if (query != null && !track.isResolved()) {
+                ArrayList<Track> results = query.getTrackResults();
+                if (results != null && !results.isEmpty()) {
+                    Query.trackResultToTrack(results.get(0), track);
+                    Log.d(TAG, "Prefetched resolution of " + track.getName());
+                    mListener.onTrackResolved(track);
+                }
+            }
+            if (query == null || query.isSolved() || track.isResolved()) {
+                releaseResolve(qid);
+                resolveNext();
+            }
+        }
+    };
+
+    public TrackPrefetcher(Context context, PipeLine pipeLine, StreamProxy streamProxy,
+            Listener listener) {
+        mContext = context;
+        mPipeLine = pipeLine;
+        mStreamProxy = streamProxy;
+        mListener = listener;
+        mPrefetchThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mPrefetchThread.start();
+        mPrefetchHandler = new Handler(mPrefetchThread.getLooper());
+        mContext.registerReceiver(mPipeLineReceiver,
+                new IntentFilter(PipeLine.PIPELINE_RESULTSREPORTED_NON_FULLTEXTQUERY));
+    }
+
+    /**
+     * Stop prefetching and release the prefetch thread.
+     */
+    public void release() {
+        mGeneration.incrementAndGet();
+        mContext.unregisterReceiver(mPipeLineReceiver);
+        mResolveQueue.clear();
+        mResolvingTracks.clear();
+        mResolveStartTimes.clear();
+        mHandler.removeCallbacksAndMessages(null);
+        mPrefetchHandler.removeCallbacksAndMessages(null);
+        mPrefetchThread.quit();
+    }
+
+    /**
+     * Start prefetching the Tracks following the current one in the given Playlist. Has to be
+     * called whenever the current Track, the Playlist, its order or its repeat mode changes.
+     * Prefetches of Tracks, which aren't upcoming anymore, are dropped, running ones stop after
+     * their current buffer.
+     *
+     * @param preparedTrack the Track, which the PlaybackEngine prepares to be played next, or
+     *                      null. Its stream is already being fetched through the
+     *                      {@link StreamProxy}, so it isn't prefetched a second time.
+     */
+    public void update(Playlist playlist, Track preparedTrack) {
+        final int generation = mGeneration.incrementAndGet();
+        mResolveQueue.clear();
+        if (playlist == null) {
+            mResolvingTracks.clear();
+            mResolveStartTimes.clear();
+            return;
+        }
+
+        int lookahead;
+        int prebufferTracks;
+        int prebufferSeconds;
+        NetworkInfo networkInfo = ((ConnectivityManager) mContext.getSystemService(
+                Context.CONNECTIVITY_SERVICE)).getActiveNetworkInfo();
+        boolean connected = networkInfo != null && networkInfo.isConnected();
+        if (isBatteryLow()) {
+            lookahead = LOOKAHEAD_LOW_BATTERY;
+            prebufferTracks = 0;
+            prebufferSeconds = 0;
+        } else if (connected && !isNetworkMetered(networkInfo)) {
+            lookahead = LOOKAHEAD_UNMETERED;
+            prebufferTracks = PREBUFFER_TRACKS_UNMETERED;
+            prebufferSeconds = PREBUFFER_SECONDS_UNMETERED;
+        } else {
+            lookahead = LOOKAHEAD_METERED;
+            prebufferTracks = connected ? PREBUFFER_TRACKS_METERED : 0;
+            prebufferSeconds = PREBUFFER_SECONDS_METERED;
+        }
+        // Without a connection only the local resolvers are of any use
+        mResolveOnlyLocal = !connected;
+
+        ArrayList<Track> upcomingTracks = playlist.peekNextTracks(lookahead);
+        Iterator<Map.Entry<String, Track>> iterator = mResolvingTracks.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Track> entry = iterator.next();
+            if (!upcomingTracks.contains(entry.getValue())) {
+                mResolveStartTimes.remove(entry.getKey());
+                iterator.remove();
+            }
+        }
+        for (Track track : upcomingTracks) {
+            if (!track.isResolved()) {
+                if (!mResolvingTracks.containsValue(track) && !mResolveQueue.contains(track)) {
+                    mResolveQueue.add(track);
+                }
+            } else if (prebufferTracks > 0 && mStreamProxy != null && isStream(track)
+                    && track != preparedTrack) {
+                prebufferTracks--;
+                final String path = track.getPath();
+                final long count = getPrebufferLength(track, prebufferSeconds);
+                final StreamProxy.Cancellation cancellation = new StreamProxy.Cancellation() {
+                    @Override
+                    public boolean isCancelled() {
+                        return generation != mGeneration.get();
+                    }
+                };
+                mPrefetchHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!cancellation.isCancelled()) {
+                            mStreamProxy.prefetch(path, count, cancellation);
+                        }
+                    }
+                });
+            }
+        }
+        resolveNext();
+    }
+
+    /**
+     * Record, whether or not the given Track is ready to be played right away, now that it is
+     * needed. A Track is ready, if it is resolved and, in case of a remote Track, the first
+     * seconds of it are cached.
+     */
+    public void onTrackNeeded(Track track) {
+        mNeededCount++;
+        boolean ready = track.isResolved();
+        if (ready && mStreamProxy != null && isStream(track)) {
+            ready = mStreamProxy.getCache().getCachedLength(track.getPath())
+                    >= getPrebufferLength(track, PREBUFFER_SECONDS_METERED);
+        }
+        if (ready) {
+            mReadyCount++;
+        }
+        Log.d(TAG, "Tracks ready before they were needed: " + mReadyCount + "/" + mNeededCount);
+    }
+
+    /**
+     * @return the number of Tracks, which have been needed so far
+     */
+    public int getNeededCount() {
+        return mNeededCount;
+    }
+
+    /**
+     * @return the number of Tracks, which were ready to be played, when they were needed
+     */
+    public int getReadyCount() {
+        return mReadyCount;
+    }
+
+    /**
+     * Hand the queued Tracks to the PipeLine, as long as not too many are being resolved already,
+     * so that prefetching never floods the resolvers. A query, which no resolver solves, releases
+     * its slot after RESOLVE_TIMEOUT, since there is no report once all resolvers are done.
+     */
+    private void resolveNext() {
+        while (mResolvingTracks.size() < MAX_PENDING_RESOLVES && !mResolveQueue.isEmpty()) {
+            Track track = mResolveQueue.removeFirst();
+            final String qid = mPipeLine.resolve(track.getName(),
+                    track.getAlbum() != null ? track.getAlbum().getName() : null,
+                    track.getArtist() != null ? track.getArtist().getName() : null,
+                    mResolveOnlyLocal, true);
+            if (qid != null) {
+                mResolvingTracks.put(qid, track);
+                mResolveStartTimes.put(qid, SystemClock.uptimeMillis());
+                mHandler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        expireResolve(qid);
+                    }
+                }, RESOLVE_TIMEOUT);
+            }
+        }
+    }
+
+    /**
+     * Release the slot of the query with the given id, if it has been resolving for longer than
+     * RESOLVE_TIMEOUT. The same query may have been handed to the PipeLine again in the meantime,
+     * in which case it keeps its slot until its own timeout.
+     */
+    private void expireResolve(String qid) {
+        Long startTime = mResolveStartTimes.get(qid);
+        if (startTime != null && SystemClock.uptimeMillis() - startTime >= RESOLVE_TIMEOUT) {
+            Track track = mResolvingTracks.get(qid);
+            Log.d(TAG, "Gave up prefetching the resolution of " + track.getName());
+            releaseResolve(qid);
+            resolveNext();
+        }
+    }
+
+    private void releaseResolve(String qid) {
+        mResolvingTracks.remove(qid);
+        mResolveStartTimes.remove(qid);
+    }
+
+    private boolean isBatteryLow() {
+        Intent batteryStatus = mContext.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (batteryStatus == null) {
+            return false;
+        }
+        int level = batteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = batteryStatus.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        boolean plugged = batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        return !plugged && level >= 0 && scale > 0 && level * 100 < LOW_BATTERY_PERCENT * scale;
+    }
+
+    private boolean isNetworkMetered(NetworkInfo networkInfo) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return ((ConnectivityManager) mContext.getSystemService(
+                    Context.CONNECTIVITY_SERVICE)).isActiveNetworkMetered();
+        }
+        return networkInfo.getType() != ConnectivityManager.TYPE_WIFI
+                && networkInfo.getType() != ConnectivityManager.TYPE_ETHERNET;
+    }
+
+    private static boolean isStream(Track track) {
+        return track.getPath() != null && track.getPath().startsWith("http");
+    }
+
+    /**
+     * @return the number of bytes needed to play the given number of seconds of the given Track
+     */
+    private static long getPrebufferLength(Track track, int seconds) {
+        int bitrate = track.getBitrate() > 0 ? track.getBitrate() : DEFAULT_BITRATE;
+        return (long) seconds * bitrate * 1000 / 8;
+    }
+}
@@ -21,6 +21,11 @@ import org.tomahawk.tomahawk_android.TomahawkApp;
 
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
+import android.text.TextUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 public class TomahawkPreferences {
 
@@ -32,6 +37,8 @@ public class TomahawkPreferences {
 
     public static final String PREFERENCE_GO_ONLINE = "go_online";
 
+    public static final String PREFERENCE_SCAN_FOLDERS = "scan_folders";
+
     private TomahawkPreferences() {
     }
 
@@ -67,4 +74,22 @@ public class TomahawkPreferences {
                 .getDefaultSharedPreferences(TomahawkApp.getContext());
         return prefs.getBoolean(PREFERENCE_GO_ONLINE, false);
     }
+
+    /**
+     * @return the folders, which should be scanned for music files in addition to the ones the
+     *         MediaStore knows about. Stored as a list of paths separated by the path separator.
+     *         Empty by default.
+     */
+    public static List<File> getScanFolders() {
+        SharedPreferences prefs = PreferenceManager
+                .getDefaultSharedPreferences(TomahawkApp.getContext());
+        ArrayList<File> folders = new ArrayList<File>();
+        String paths = prefs.getString(PREFERENCE_SCAN_FOLDERS, "");
+        for (String path : paths.split(File.pathSeparator)) {
+            if (!TextUtils.isEmpty(path)) {
+                folders.add(new File(path));
+            }
+        }
+        return folders;
+    }
 }
@@ -21,6 +21,7 @@ import junit.framework.Assert;
 
 import org.tomahawk.libtomahawk.collection.Album;
 import org.tomahawk.libtomahawk.collection.Artist;
+import org.tomahawk.libtomahawk.collection.ArtistComparator;
 
 import android.test.AndroidTestCase;
 
@@ -48,4 +49,20 @@ public class ArtistTest extends AndroidTestCase {
 
         Assert.assertTrue(mTstArtist.getAlbums().contains(tstAlbum));
     }
+
+    public void testCompareAlpha() {
+        ArtistComparator comparator = new ArtistComparator(ArtistComparator.COMPARE_ALPHA);
+        Artist beatles = new Artist(1L);
+        beatles.setName("The Beatles");
+        Artist abba = new Artist(2L);
+        abba.setName("abba");
+        Artist band2 = new Artist(3L);
+        band2.setName("Band 2");
+        Artist band10 = new Artist(4L);
+        band10.setName("band 10");
+
+        Assert.assertTrue(comparator.compare(abba, beatles) < 0);
+        Assert.assertTrue(comparator.compare(band2, band10) < 0);
+        Assert.assertTrue(comparator.compare(band10, beatles) < 0);
+    }
 }
@@ -0,0 +1,61 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.test;
+
+import junit.framework.Assert;
+
+import org.tomahawk.libtomahawk.utils.LatencyHistogram;
+
+import android.test.AndroidTestCase;
+
+public class LatencyHistogramTest extends AndroidTestCase {
+
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getMean());
+        Assert.assertEquals(0, histogram.getPercentile(50));
+    }
+
+    public void testPercentilesWithinFactorOfTwo() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 10);
+        }
+        Assert.assertEquals(100, histogram.getCount());
+        Assert.assertEquals(505, histogram.getMean());
+        Assert.assertEquals(1000, histogram.getMax());
+        long p50 = histogram.getPercentile(50);
+        Assert.assertTrue(p50 >= 500 && p50 < 1000);
+        long p90 = histogram.getPercentile(90);
+        Assert.assertTrue(p90 >= 900 && p90 <= 1000);
+        Assert.assertEquals(1000, histogram.getPercentile(100));
+
+        histogram.reset();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getPercentile(99));
+    }
+
+    public void testOutliersAreClamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE / 2);
+        Assert.assertEquals(0, histogram.getPercentile(50));
+        Assert.assertEquals(Long.MAX_VALUE / 2, histogram.getPercentile(100));
+    }
+}
@@ -0,0 +1,233 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.test;
+
+import junit.framework.Assert;
+
+import org.tomahawk.libtomahawk.collection.CustomPlaylist;
+import org.tomahawk.libtomahawk.collection.Playlist;
+import org.tomahawk.libtomahawk.collection.Track;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+public class PlaylistTest extends AndroidTestCase {
+
+    private static ArrayList<Track> createTracks(long firstId, int count) {
+        ArrayList<Track> tracks = new ArrayList<Track>();
+        for (int i = 0; i < count; i++) {
+            tracks.add(new Track(firstId + i));
+        }
+        return tracks;
+    }
+
+    public void testShuffleKeepsCurrentTrack() {
+        ArrayList<Track> tracks = createTracks(1, 1000);
+        Playlist playlist = CustomPlaylist.fromTrackList("test", new ArrayList<Track>(tracks));
+        playlist.setCurrentTrack(tracks.get(500));
+        Assert.assertEquals(500, playlist.getCurrentTrackIndex());
+
+        playlist.setShuffled(true);
+        Assert.assertSame(tracks.get(500), playlist.getCurrentTrack());
+        HashSet<Track> shuffledTracks = new HashSet<Track>(playlist.getTracks());
+        Assert.assertEquals(1000, shuffledTracks.size());
+        Assert.assertTrue(shuffledTracks.containsAll(tracks));
+
+        playlist.setShuffled(false);
+        Assert.assertEquals(500, playlist.getCurrentTrackIndex());
+        Assert.assertEquals(tracks, playlist.getTracks());
+    }
+
+    public void testShuffleIsReproducibleFromSeed() {
+        ArrayList<Track> tracks = createTracks(1, 1000);
+        Playlist playlist = CustomPlaylist.fromTrackList("test", new ArrayList<Track>(tracks));
+        playlist.setCurrentTrack(tracks.get(500));
+        playlist.setShuffled(true);
+        Assert.assertEquals(0, playlist.getCurrentTrackIndex());
+        Assert.assertEquals(500, playlist.getShuffleFirstIndex());
+        Assert.assertTrue(playlist.isShuffleReproducible());
+
+        Playlist restored = CustomPlaylist.fromTrackList("test", new ArrayList<Track>(tracks));
+        restored.setShuffled(playlist.getShuffleSeed(), playlist.getShuffleFirstIndex());
+        Assert.assertSame(tracks.get(500), restored.getCurrentTrack());
+        for (int i = 0; i < 50; i++) {
+            Assert.assertSame(playlist.peekNextTrack(), restored.peekNextTrack());
+            Assert.assertSame(playlist.getNextTrack(), restored.getNextTrack());
+        }
+        Assert.assertSame(playlist.getPreviousTrack(), restored.getPreviousTrack());
+        Assert.assertEquals(playlist.getTracks(), restored.getTracks());
+
+        restored.moveTrack(0, 1);
+        Assert.assertFalse(restored.isShuffleReproducible());
+    }
+
+    public void testChangedTrackListKeepsShuffleState() {
+        ArrayList<Track> tracks = createTracks(1, 20);
+        Playlist playlist = CustomPlaylist.fromTrackList("test", tracks);
+        playlist.setShuffled(42L, 3);
+        ArrayList<Track> shuffledTracks = new ArrayList<Track>(playlist.getTracks());
+
+        // Tracks appended to the shared list are appended to the shuffled order
+        ArrayList<Track> appendedTracks = createTracks(21, 5);
+        tracks.addAll(appendedTracks);
+        Assert.assertEquals(42L, playlist.getShuffleSeed());
+        Assert.assertEquals(shuffledTracks, playlist.getTracks().subList(0, 20));
+        Assert.assertEquals(appendedTracks, playlist.getTracks().subList(20, 25));
+
+        // A new list is shuffled again with the same seed and first index
+        ArrayList<Track> newTracks = createTracks(100, 10);
+        playlist.setTracks(newTracks);
+        Assert.assertEquals(42L, playlist.getShuffleSeed());
+        Assert.assertEquals(3, playlist.getShuffleFirstIndex());
+        Assert.assertTrue(playlist.isShuffleReproducible());
+        Playlist restored = CustomPlaylist.fromTrackList("test", new ArrayList<Track>(newTracks));
+        restored.setShuffled(42L, 3);
+        Assert.assertEquals(restored.getTracks(), playlist.getTracks());
+    }
+
+    public void testLookupOfUndrawnTrackKeepsSeededOrder() {
+        ArrayList<Track> tracks = createTracks(1, 20);
+        Playlist lookedUp = CustomPlaylist.fromTrackList("test", new ArrayList<Track>(tracks));
+        Playlist full = CustomPlaylist.fromTrackList("test", new ArrayList<Track>(tracks));
+        lookedUp.setShuffled(42L, 0);
+        full.setShuffled(42L, 0);
+        ArrayList<Track> expected = full.getTracks();
+
+        // Looks up the position of a track, which hasn't been drawn yet
+        lookedUp.setCurrentTrack(tracks.get(15));
+        Assert.assertSame(tracks.get(15), lookedUp.getCurrentTrack());
+        Assert.assertEquals(expected.indexOf(tracks.get(15)), lookedUp.getCurrentTrackIndex());
+        Assert.assertTrue(lookedUp.isShuffleReproducible());
+        Assert.assertEquals(expected, lookedUp.getTracks());
+    }
+
+    public void testRemovalKeepsOrderLazy() {
+        ArrayList<Track> tracks = createTracks(1, 10000);
+        Playlist playlist = CustomPlaylist.fromTrackList("test", new ArrayList<Track>(tracks));
+        playlist.setShuffled(42L, 0);
+        ArrayList<Track> expected = new ArrayList<Track>(playlist.getTracks());
+        Track lastTrack = expected.get(9999);
+
+        playlist.deleteTrackAtPos(3);
+        expected.remove(3);
+        Assert.assertTrue(playlist.getMaterializedShuffleCount() <= 3);
+        playlist.setCurrentTrack(lastTrack);
+        Assert.assertEquals(9998, playlist.getCurrentTrackIndex());
+        Assert.assertTrue(playlist.getMaterializedShuffleCount() <= 3);
+        Assert.assertEquals(expected, playlist.getTracks());
+    }
+
+    public void testSetRemovedTrackIsIgnored() {
+        ArrayList<Track> tracks = createTracks(1, 10);
+        Playlist playlist = CustomPlaylist.fromTrackList("test", new ArrayList<Track>(tracks));
+        playlist.setCurrentTrack(tracks.get(9));
+        playlist.setCurrentTrack(tracks.get(3));
+        playlist.deleteTrackAtPos(9);
+
+        playlist.setCurrentTrack(tracks.get(9));
+        Assert.assertEquals(3, playlist.getCurrentTrackIndex());
+        Assert.assertSame(tracks.get(3), playlist.getCurrentTrack());
+    }
+
+    public void testLazyEditsMatchFullOrder() {
+        Random random = new Random(11);
+        ArrayList<Track> tracks = createTracks(1, 500);
+        Playlist lazy = CustomPlaylist.fromTrackList("test", new ArrayList<Track>(tracks));
+        Playlist full = CustomPlaylist.fromTrackList("test", new ArrayList<Track>(tracks));
+        lazy.setShuffled(42L, -1);
+        full.setShuffled(42L, -1);
+        full.getTracks();
+        long nextId = 1000;
+
+        for (int step = 0; step < 50; step++) {
+            int size = full.getCount();
+            int operation = random.nextInt(3);
+            if (operation == 0) {
+                int position = random.nextInt(20);
+                ArrayList<Track> newTracks = createTracks(nextId++, 1);
+                lazy.addTracks(position, newTracks);
+                full.addTracks(position, newTracks);
+            } else if (operation == 1) {
+                int from = random.nextInt(20);
+                int to = random.nextInt(20);
+                lazy.moveTrack(from, to);
+                full.moveTrack(from, to);
+            } else if (size > 1 && random.nextInt(10) == 0) {
+                int position = random.nextInt(size);
+                lazy.deleteTrackAtPos(position);
+                full.deleteTrackAtPos(position);
+            }
+            int position = random.nextInt(30);
+            Assert.assertSame(full.peekTrackAtPos(position), lazy.peekTrackAtPos(position));
+        }
+        Assert.assertEquals(full.getTracks(), lazy.getTracks());
+    }
+
+    public void testEditsMatchList() {
+        Random random = new Random(7);
+        ArrayList<Track> originalOrder = createTracks(1, 200);
+        ArrayList<Track> playOrder = new ArrayList<Track>(originalOrder);
+        Playlist playlist = CustomPlaylist.fromTrackList("test",
+                new ArrayList<Track>(originalOrder));
+        long nextId = 1000;
+
+        for (int step = 0; step < 2000; step++) {
+            int operation = random.nextInt(10);
+            int size = playOrder.size();
+            if (operation < 3) {
+                int position = random.nextInt(size + 1);
+                ArrayList<Track> tracks = createTracks(nextId, 1 + random.nextInt(3));
+                nextId += tracks.size();
+                playlist.addTracks(position, tracks);
+                playOrder.addAll(position, tracks);
+                if (playlist.isShuffled()) {
+                    originalOrder.addAll(tracks);
+                } else {
+                    originalOrder.addAll(position, tracks);
+                }
+            } else if (operation < 5 && size > 1) {
+                int position = random.nextInt(size);
+                playlist.deleteTrackAtPos(position);
+                originalOrder.remove(playOrder.remove(position));
+            } else if (operation < 7 && size > 1) {
+                int from = random.nextInt(size);
+                int to = random.nextInt(size);
+                playlist.moveTrack(from, to);
+                Track track = playOrder.remove(from);
+                playOrder.add(to, track);
+                if (!playlist.isShuffled()) {
+                    originalOrder.remove(track);
+                    originalOrder.add(to, track);
+                }
+            } else if (operation == 7) {
+                playlist.setShuffled(!playlist.isShuffled());
+                playOrder = new ArrayList<Track>(playlist.isShuffled() ? playlist.getTracks()
+                        : originalOrder);
+            } else if (size > 0) {
+                Track track = playOrder.get(random.nextInt(size));
+                playlist.setCurrentTrack(track);
+                Assert.assertEquals(playOrder.indexOf(track), playlist.getCurrentTrackIndex());
+                Assert.assertSame(track, playlist.getCurrentTrack());
+            }
+            Assert.assertEquals(playOrder, playlist.getTracks());
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.test;
+
+import junit.framework.Assert;
+
+import org.tomahawk.libtomahawk.network.StreamCache;
+import org.tomahawk.libtomahawk.network.StreamProxy;
+
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class StreamProxyTest extends AndroidTestCase {
+
+    private static final int STREAM_LENGTH = 200 * 1024;
+
+    private byte[] mStream;
+
+    private OriginServer mOriginServer;
+
+    private File mCacheDirectory;
+
+    private StreamProxy mStreamProxy;
+
+    /**
+     * A minimal HTTP server, which serves a single stream and answers Range requests.
+     */
+    private static class OriginServer implements Runnable {
+
+        private static final Pattern RANGE_PATTERN = Pattern.compile("(?i)range: bytes=(\\d+)-");
+
+        private final ServerSocket mServerSocket;
+
+        private final byte[] mContent;
+
+        private volatile int mRequestCount;
+
+        private volatile long mLastRangeStart = -1;
+
+        private OriginServer(byte[] content) throws IOException {
+            mContent = content;
+            mServerSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+            new Thread(this).start();
+        }
+
+        private String getUrl() {
+            return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/track.mp3";
+        }
+
+        @Override
+        public void run() {
+            while (!mServerSocket.isClosed()) {
+                try {
+                    Socket socket = mServerSocket.accept();
+                    try {
+                        serve(socket);
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        }
+
+        private void serve(Socket socket) throws IOException {
+            InputStream in = socket.getInputStream();
+            StringBuilder head = new StringBuilder();
+            while (!head.toString().endsWith("\r\n\r\n")) {
+                int b = in.read();
+                if (b < 0) {
+                    return;
+                }
+                head.append((char) b);
+            }
+            mRequestCount++;
+            long start = 0;
+            Matcher matcher = RANGE_PATTERN.matcher(head);
+            if (matcher.find()) {
+                start = Long.parseLong(matcher.group(1));
+            }
+            mLastRangeStart = start;
+            String headers = (start > 0 ? "HTTP/1.1 206 Partial Content\r\n"
+                    + "Content-Range: bytes " + start + "-" + (mContent.length - 1) + "/"
+                    + mContent.length + "\r\n" : "HTTP/1.1 200 OK\r\n")
+                    + "Content-Type: audio/mpeg\r\n"
+                    + "Content-Length: " + (mContent.length - start) + "\r\n"
+                    + "Connection: close\r\n\r\n";
+            OutputStream out = socket.getOutputStream();
+            out.write(headers.getBytes("ISO-8859-1"));
+            out.write(mContent, (int) start, (int) (mContent.length - start));
+            out.flush();
+        }
+
+        private void close() throws IOException {
+            mServerSocket.close();
+        }
+    }
+
+    public void setUp() throws IOException {
+        mStream = new byte[STREAM_LENGTH];
+        new Random(42).nextBytes(mStream);
+        mOriginServer = new OriginServer(mStream);
+        mCacheDirectory = new File(getContext().getCacheDir(), "streamproxytest");
+        deleteCacheDirectory();
+        mStreamProxy = new StreamProxy(new StreamCache(mCacheDirectory, STREAM_LENGTH * 3 / 2));
+        mStreamProxy.start();
+    }
+
+    public void tearDown() throws IOException {
+        mStreamProxy.stop();
+        mOriginServer.close();
+        deleteCacheDirectory();
+    }
+
+    public void testServesFromCacheOnReplay() throws IOException {
+        String url = mOriginServer.getUrl();
+
+        Assert.assertTrue(Arrays.equals(mStream, fetch(url, null, 200)));
+        Assert.assertTrue(Arrays.equals(mStream, fetch(url, null, 200)));
+        Assert.assertEquals(1, mOriginServer.mRequestCount);
+    }
+
+    public void testServesRangesFromCache() throws IOException {
+        String url = mOriginServer.getUrl();
+        fetch(url, null, 200);
+
+        byte[] range = fetch(url, "bytes=1000-1999", 206);
+        Assert.assertTrue(Arrays.equals(slice(1000, 2000), range));
+        range = fetch(url, "bytes=150000-", 206);
+        Assert.assertTrue(Arrays.equals(slice(150000, STREAM_LENGTH), range));
+        Assert.assertEquals(1, mOriginServer.mRequestCount);
+    }
+
+    public void testResumesPartialDownload() throws IOException {
+        String url = mOriginServer.getUrl();
+
+        byte[] head = fetch(url, "bytes=0-9999", 206);
+        Assert.assertTrue(Arrays.equals(slice(0, 10000), head));
+        Assert.assertTrue(Arrays.equals(mStream, fetch(url, null, 200)));
+        Assert.assertEquals(2, mOriginServer.mRequestCount);
+        Assert.assertEquals(10000, mOriginServer.mLastRangeStart);
+        Assert.assertTrue(Arrays.equals(mStream, fetch(url, null, 200)));
+        Assert.assertEquals(2, mOriginServer.mRequestCount);
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        String url = mOriginServer.getUrl();
+        String otherUrl = url + "?other";
+
+        fetch(url, null, 200);
+        fetch(otherUrl, null, 200);
+        Assert.assertTrue(Arrays.equals(mStream, fetch(url, null, 200)));
+        Assert.assertEquals(3, mOriginServer.mRequestCount);
+    }
+
+    public void testKeepsEntryOfActiveWriterOnLengthChange() throws IOException {
+        StreamCache cache = mStreamProxy.getCache();
+        StreamCache.Entry entry = cache.open(mOriginServer.getUrl());
+        Assert.assertTrue(cache.beginWrite(entry));
+        cache.setMetadata(entry, STREAM_LENGTH, null, true);
+        FileOutputStream out = new FileOutputStream(entry.getDataFile());
+        out.write(mStream, 0, 1000);
+        out.close();
+
+        cache.setMetadata(entry, STREAM_LENGTH + 1, null, false);
+        Assert.assertEquals(1000, entry.getCachedLength());
+        Assert.assertEquals(STREAM_LENGTH, entry.getTotalLength());
+        cache.endWrite(entry);
+        Assert.assertEquals(0, entry.getCachedLength());
+        Assert.assertEquals(-1, entry.getTotalLength());
+        cache.close(entry);
+    }
+
+    private byte[] fetch(String url, String range, int expectedResponseCode) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(
+                mStreamProxy.getProxyUrl(url)).openConnection();
+        try {
+            if (range != null) {
+                connection.setRequestProperty("Range", range);
+            }
+            Assert.assertEquals(expectedResponseCode, connection.getResponseCode());
+            InputStream in = connection.getInputStream();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private byte[] slice(int from, int to) {
+        byte[] slice = new byte[to - from];
+        System.arraycopy(mStream, from, slice, 0, slice.length);
+        return slice;
+    }
+
+    private void deleteCacheDirectory() {
+        File[] files = mCacheDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mCacheDirectory.delete();
+    }
+}
@@ -0,0 +1,392 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.test;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.tomahawk.libtomahawk.scanner.DirectoryScanner;
+import org.tomahawk.libtomahawk.scanner.TagCache;
+import org.tomahawk.libtomahawk.scanner.TagInfo;
+import org.tomahawk.libtomahawk.scanner.TagParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Writes minimal sample files of every supported format and parses them. The {@link TagParser}
+ * doesn't depend on Android, so this is a plain JUnit test, which runs on a plain JVM as well.
+ */
+public class TagParserTest extends TestCase {
+
+    private File mDirectory;
+
+    private TagParser mTagParser;
+
+    public void setUp() {
+        mDirectory = new File(System.getProperty("java.io.tmpdir"), "tagparsertest");
+        mDirectory.mkdirs();
+        mTagParser = new TagParser();
+    }
+
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    public void testId3v2() throws IOException {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        writeId3Frame(frames, "TIT2", "\u0003Title");
+        writeId3Frame(frames, "TPE1", "\u0000Artist");
+        writeId3Frame(frames, "TALB", "\u0000Album");
+        writeId3Frame(frames, "TRCK", "\u00003/12");
+        writeId3Frame(frames, "TPOS", "\u00002/2");
+        writeId3Frame(frames, "TYER", "\u00002013");
+        writeId3Frame(frames, "APIC", "\u0000image/png\u0000\u0003\u0000PNGDATA");
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        file.write(new byte[]{'I', 'D', '3', 3, 0, 0});
+        file.write(syncSafe(frames.size()));
+        frames.writeTo(file);
+        int artOffset = file.size() - "PNGDATA".length();
+        // a single MPEG1 layer 3 frame header, 128kbit/s, 44.1kHz
+        file.write(new byte[]{(byte) 0xff, (byte) 0xfb, (byte) 0x90, 0});
+        file.write(new byte[16000 - 4]);
+
+        TagInfo tagInfo = mTagParser.parse(write("sample.mp3", file.toByteArray()));
+        Assert.assertEquals("Title", tagInfo.getTitle());
+        Assert.assertEquals("Artist", tagInfo.getArtist());
+        Assert.assertEquals("Album", tagInfo.getAlbum());
+        Assert.assertEquals(3, tagInfo.getTrackNumber());
+        Assert.assertEquals(2, tagInfo.getDiscNumber());
+        Assert.assertEquals(2013, tagInfo.getYear());
+        Assert.assertEquals(1000, tagInfo.getDuration());
+        Assert.assertEquals(artOffset, tagInfo.getArtOffset());
+        Assert.assertEquals("PNGDATA".length(), tagInfo.getArtLength());
+        Assert.assertEquals("image/png", tagInfo.getArtMimeType());
+    }
+
+    public void testId3v1() throws IOException {
+        byte[] tag = new byte[128];
+        put(tag, 0, "TAG");
+        put(tag, 3, "Title");
+        put(tag, 33, "Artist");
+        put(tag, 63, "Album");
+        put(tag, 93, "1999");
+        tag[126] = 7;
+
+        TagInfo tagInfo = mTagParser.parse(write("sample.mp3", tag));
+        Assert.assertEquals("Title", tagInfo.getTitle());
+        Assert.assertEquals("Artist", tagInfo.getArtist());
+        Assert.assertEquals("Album", tagInfo.getAlbum());
+        Assert.assertEquals(1999, tagInfo.getYear());
+        Assert.assertEquals(7, tagInfo.getTrackNumber());
+    }
+
+    public void testFlac() throws IOException {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        file.write(new byte[]{'f', 'L', 'a', 'C'});
+        ByteBuffer streamInfo = ByteBuffer.allocate(34);
+        // 44.1kHz, 2 channels, 16 bits, 88200 samples
+        streamInfo.putLong(10, (44100L << 44) | (1L << 41) | (15L << 36) | 88200L);
+        writeFlacBlock(file, 0, false, streamInfo.array());
+        writeFlacBlock(file, 4, true, vorbisComment("TITLE=Title", "ARTIST=Artist",
+                "ALBUM=Album", "TRACKNUMBER=4", "DISCNUMBER=1", "DATE=2001-02-03"));
+
+        TagInfo tagInfo = mTagParser.parse(write("sample.flac", file.toByteArray()));
+        Assert.assertEquals("Title", tagInfo.getTitle());
+        Assert.assertEquals("Artist", tagInfo.getArtist());
+        Assert.assertEquals("Album", tagInfo.getAlbum());
+        Assert.assertEquals(4, tagInfo.getTrackNumber());
+        Assert.assertEquals(1, tagInfo.getDiscNumber());
+        Assert.assertEquals(2001, tagInfo.getYear());
+        Assert.assertEquals(2000, tagInfo.getDuration());
+    }
+
+    public void testOggVorbis() throws IOException {
+        ByteBuffer identification = ByteBuffer.allocate(30).order(ByteOrder.LITTLE_ENDIAN);
+        identification.put(new byte[]{1, 'v', 'o', 'r', 'b', 'i', 's'});
+        identification.putInt(7, 0);
+        identification.put(11, (byte) 2);
+        identification.putInt(12, 48000);
+        ByteArrayOutputStream comment = new ByteArrayOutputStream();
+        comment.write(new byte[]{3, 'v', 'o', 'r', 'b', 'i', 's'});
+        comment.write(vorbisComment("TITLE=Title", "ARTIST=Artist", "TRACKNUMBER=9"));
+        comment.write(1);
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        writeOggPage(file, 0, identification.array());
+        writeOggPage(file, 0, comment.toByteArray());
+        writeOggPage(file, 48000 * 3, new byte[100]);
+
+        TagInfo tagInfo = mTagParser.parse(write("sample.ogg", file.toByteArray()));
+        Assert.assertEquals("Title", tagInfo.getTitle());
+        Assert.assertEquals("Artist", tagInfo.getArtist());
+        Assert.assertEquals(9, tagInfo.getTrackNumber());
+        Assert.assertEquals(3000, tagInfo.getDuration());
+    }
+
+    public void testMp4() throws IOException {
+        ByteBuffer mvhd = ByteBuffer.allocate(100);
+        mvhd.putInt(12, 1000);
+        mvhd.putInt(16, 4000);
+        byte[] ilst = concat(mp4Item("\u00a9nam", 1, "Title".getBytes("UTF-8")),
+                mp4Item("\u00a9ART", 1, "Artist".getBytes("UTF-8")),
+                mp4Item("\u00a9alb", 1, "Album".getBytes("UTF-8")),
+                mp4Item("trkn", 0, new byte[]{0, 0, 0, 5, 0, 10, 0, 0}),
+                mp4Item("disk", 0, new byte[]{0, 0, 0, 2, 0, 2}),
+                mp4Item("\u00a9day", 1, "2010".getBytes("UTF-8")));
+        byte[] meta = concat(new byte[4], atom("ilst", ilst));
+        byte[] moov = atom("moov", concat(atom("mvhd", mvhd.array()),
+                atom("udta", atom("meta", meta))));
+        byte[] file = concat(atom("ftyp", "M4A \u0000\u0000\u0000\u0000".getBytes("ISO-8859-1")),
+                atom("mdat", new byte[1000]), moov);
+
+        TagInfo tagInfo = mTagParser.parse(write("sample.m4a", file));
+        Assert.assertEquals("Title", tagInfo.getTitle());
+        Assert.assertEquals("Artist", tagInfo.getArtist());
+        Assert.assertEquals("Album", tagInfo.getAlbum());
+        Assert.assertEquals(5, tagInfo.getTrackNumber());
+        Assert.assertEquals(2, tagInfo.getDiscNumber());
+        Assert.assertEquals(2010, tagInfo.getYear());
+        Assert.assertEquals(4000, tagInfo.getDuration());
+    }
+
+    public void testDirectoryScanner() throws IOException {
+        byte[] tag = new byte[128];
+        put(tag, 0, "TAG");
+        put(tag, 3, "Title");
+        write("a.mp3", tag);
+        write("b.txt", tag);
+        final ArrayList<String> scannedFiles = new ArrayList<String>();
+        DirectoryScanner scanner = new DirectoryScanner(Arrays.asList(mDirectory), mTagParser);
+        scanner.scan(new DirectoryScanner.Listener() {
+            @Override
+            public void onFileScanned(File file, TagInfo tagInfo) {
+                scannedFiles.add(file.getName());
+            }
+
+            @Override
+            public void onFileFailed(File file, IOException e) {
+            }
+        });
+        Assert.assertEquals(Arrays.asList("a.mp3"), scannedFiles);
+    }
+
+    public void testDirectoryScannerRecordsMissingDirectory() {
+        File missingDirectory = new File(mDirectory, "missing");
+        DirectoryScanner scanner = new DirectoryScanner(Arrays.asList(missingDirectory),
+                mTagParser);
+        scanner.scan(new DirectoryScanner.Listener() {
+            @Override
+            public void onFileScanned(File file, TagInfo tagInfo) {
+            }
+
+            @Override
+            public void onFileFailed(File file, IOException e) {
+            }
+        });
+        Assert.assertTrue(scanner.hasFailed(new File(missingDirectory, "a.mp3").getPath()));
+        Assert.assertFalse(scanner.hasFailed(new File(mDirectory, "a.mp3").getPath()));
+    }
+
+    public void testTagCache() throws IOException {
+        File audioFile = write("cached.mp3", new byte[]{1, 2, 3});
+        File cacheFile = new File(mDirectory, "tagcache");
+        TagInfo tagInfo = new TagInfo();
+        tagInfo.setTitle("Title");
+        tagInfo.setDiscNumber(2);
+        tagInfo.setArt(10, 20, "image/jpeg");
+        TagCache tagCache = new TagCache(cacheFile);
+        tagCache.put(audioFile, tagInfo);
+        tagCache.close();
+
+        tagCache = new TagCache(cacheFile);
+        tagCache.load();
+        TagInfo cachedTagInfo = tagCache.get(audioFile);
+        Assert.assertEquals("Title", cachedTagInfo.getTitle());
+        Assert.assertEquals(null, cachedTagInfo.getArtist());
+        Assert.assertEquals(2, cachedTagInfo.getDiscNumber());
+        Assert.assertEquals(10, cachedTagInfo.getArtOffset());
+        Assert.assertEquals(20, cachedTagInfo.getArtLength());
+
+        write("cached.mp3", new byte[]{1, 2, 3, 4});
+        Assert.assertEquals(null, tagCache.get(audioFile));
+        Assert.assertEquals(0.5f, tagCache.getHitRatio(), 0f);
+    }
+
+    public void testTagCacheWithMalformedString() throws IOException {
+        File firstFile = write("first.mp3", new byte[]{1});
+        File secondFile = write("second.mp3", new byte[]{2});
+        File cacheFile = new File(mDirectory, "tagcache");
+        TagInfo tagInfo = new TagInfo();
+        tagInfo.setTitle("First");
+        TagCache tagCache = new TagCache(cacheFile);
+        tagCache.put(firstFile, tagInfo);
+        tagInfo = new TagInfo();
+        tagInfo.setTitle("Second");
+        tagCache.put(secondFile, tagInfo);
+        tagCache.close();
+
+        // 0xff never occurs in modified UTF-8, so reading the title fails
+        byte[] bytes = read(cacheFile);
+        int position = indexOf(bytes, "Second".getBytes("UTF-8"));
+        Assert.assertTrue(position > 0);
+        bytes[position] = (byte) 0xff;
+        write("tagcache", bytes);
+
+        tagCache = new TagCache(cacheFile);
+        tagCache.load();
+        Assert.assertEquals(1, tagCache.size());
+        Assert.assertEquals("First", tagCache.get(firstFile).getTitle());
+        Assert.assertEquals(null, tagCache.get(secondFile));
+
+        // the malformed record is dropped, when the cache is written the next time
+        tagCache.put(secondFile, tagInfo);
+        tagCache.flush();
+        tagCache.close();
+        tagCache = new TagCache(cacheFile);
+        tagCache.load();
+        Assert.assertEquals(2, tagCache.size());
+        Assert.assertEquals("Second", tagCache.get(secondFile).getTitle());
+    }
+
+    private File write(String name, byte[] content) throws IOException {
+        File file = new File(mDirectory, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private static int indexOf(byte[] bytes, byte[] pattern) {
+        for (int i = 0; i + pattern.length <= bytes.length; i++) {
+            int j = 0;
+            while (j < pattern.length && bytes[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void put(byte[] bytes, int position, String string) {
+        for (int i = 0; i < string.length(); i++) {
+            bytes[position + i] = (byte) string.charAt(i);
+        }
+    }
+
+    private static byte[] syncSafe(int value) {
+        return new byte[]{(byte) ((value >> 21) & 0x7f), (byte) ((value >> 14) & 0x7f),
+                (byte) ((value >> 7) & 0x7f), (byte) (value & 0x7f)};
+    }
+
+    private static void writeId3Frame(ByteArrayOutputStream out, String id, String content)
+            throws IOException {
+        byte[] data = content.getBytes("ISO-8859-1");
+        out.write(id.getBytes("ISO-8859-1"));
+        out.write(ByteBuffer.allocate(4).putInt(data.length).array());
+        out.write(new byte[2]);
+        out.write(data);
+    }
+
+    private static void writeFlacBlock(ByteArrayOutputStream out, int type, boolean isLast,
+            byte[] data) throws IOException {
+        out.write((isLast ? 0x80 : 0) | type);
+        out.write(data.length >> 16);
+        out.write(data.length >> 8);
+        out.write(data.length);
+        out.write(data);
+    }
+
+    private static byte[] vorbisComment(String... comments) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer integer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        out.write(integer.putInt(0, 0).array());
+        out.write(integer.putInt(0, comments.length).array());
+        for (String comment : comments) {
+            byte[] bytes = comment.getBytes("UTF-8");
+            out.write(integer.putInt(0, bytes.length).array());
+            out.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeOggPage(ByteArrayOutputStream out, long granule, byte[] packet)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(27).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[]{'O', 'g', 'g', 'S'});
+        header.putLong(6, granule);
+        int segmentCount = packet.length / 255 + 1;
+        header.put(26, (byte) segmentCount);
+        out.write(header.array());
+        for (int i = 0; i < segmentCount - 1; i++) {
+            out.write(255);
+        }
+        out.write(packet.length % 255);
+        out.write(packet);
+    }
+
+    private static byte[] atom(String type, byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(ByteBuffer.allocate(4).putInt(content.length + 8).array());
+        out.write(type.getBytes("ISO-8859-1"));
+        out.write(content);
+        return out.toByteArray();
+    }
+
+    private static byte[] mp4Item(String type, int dataType, byte[] value) throws IOException {
+        byte[] data = concat(ByteBuffer.allocate(8).putInt(0, dataType).array(), value);
+        return atom(type, atom("data", data));
+    }
+
+    private static byte[] concat(byte[]... arrays) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            out.write(array);
+        }
+        return out.toByteArray();
+    }
+}
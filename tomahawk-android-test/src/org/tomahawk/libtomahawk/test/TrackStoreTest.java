@@ -0,0 +1,163 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.test;
+
+import junit.framework.Assert;
+
+import org.tomahawk.libtomahawk.collection.Album;
+import org.tomahawk.libtomahawk.collection.Artist;
+import org.tomahawk.libtomahawk.collection.Track;
+import org.tomahawk.libtomahawk.collection.TrackStore;
+import org.tomahawk.libtomahawk.utils.TomahawkUtils;
+
+import android.test.AndroidTestCase;
+
+import java.util.List;
+
+public class TrackStoreTest extends AndroidTestCase {
+
+    private TrackStore mTrackStore;
+
+    private Album mAlbum;
+
+    private Artist mArtist;
+
+    public void setUp() {
+        mTrackStore = new TrackStore();
+        mAlbum = new Album(1L);
+        mArtist = new Artist(1L);
+        mTrackStore.add(10L, "/sdcard/Music/b.mp3", "b", 1000L, 2, mAlbum, mArtist);
+        mTrackStore.add(11L, "/sdcard/Music/a.mp3", "a", 2000L, 1, mAlbum, mArtist);
+    }
+
+    public void tearDown() {
+        mTrackStore = null;
+    }
+
+    public void testFlyweight() {
+        int row = mTrackStore.getRow(11L);
+        Track track = mTrackStore.getTrack(row);
+
+        Assert.assertEquals(11L, track.getId());
+        Assert.assertEquals("a", track.getName());
+        Assert.assertEquals("/sdcard/Music/a.mp3", track.getPath());
+        Assert.assertEquals(2000L, track.getDuration());
+        Assert.assertSame(mAlbum, track.getAlbum());
+        Assert.assertSame(track, mTrackStore.getTrack(row));
+
+        track.setName("c");
+        Assert.assertEquals("c", mTrackStore.getName(row));
+    }
+
+    public void testSortKeyIsComputedOnce() {
+        Track track = mTrackStore.getTrack(mTrackStore.getRow(10L));
+
+        Assert.assertSame(track.getSortKey(), track.getSortKey());
+        track.setName("c");
+        Assert.assertEquals(0, TomahawkUtils.compareSortKeys(TomahawkUtils.getSortKey("c"),
+                track.getSortKey()));
+    }
+
+    public void testTagColumns() {
+        int row = mTrackStore.getRow(10L);
+        Track track = mTrackStore.getTrack(row);
+
+        Assert.assertEquals(0, track.getDiscNumber());
+        track.setDiscNumber(2);
+        track.setYear(1999);
+        Assert.assertEquals(2, mTrackStore.getDiscNumber(row));
+        Assert.assertEquals(1999, mTrackStore.getYear(row));
+    }
+
+    public void testResolverColumns() {
+        int row = mTrackStore.getRow(10L);
+        Track track = mTrackStore.getTrack(row);
+
+        track.setBitrate(320);
+        track.setSize(4096);
+        track.setScore(0.5f);
+        track.setLocal(false);
+        Assert.assertEquals(320, mTrackStore.getBitrate(row));
+        Assert.assertEquals(4096, mTrackStore.getSize(row));
+        Assert.assertEquals(0.5f, mTrackStore.getScore(row), 0f);
+        Assert.assertFalse(mTrackStore.isLocal(row));
+        Assert.assertTrue(mTrackStore.isLocal(mTrackStore.getRow(11L)));
+    }
+
+    public void testFlyweightStateIsStored() {
+        int row = mTrackStore.getRow(10L);
+        Track track = mTrackStore.getTrack(row);
+
+        Assert.assertTrue(track.isResolved());
+        track.setLinkUrl("http://example.com/b");
+        track.setPurchaseUrl("http://example.com/buy/b");
+        Assert.assertEquals("http://example.com/b", mTrackStore.getLinkUrl(row));
+        Assert.assertEquals("http://example.com/buy/b", mTrackStore.getPurchaseUrl(row));
+        Assert.assertTrue(mTrackStore.isResolved(row));
+    }
+
+    public void testRemovedRowIsReused() {
+        int row = mTrackStore.getRow(10L);
+        Assert.assertTrue(mTrackStore.remove(10L));
+        Assert.assertEquals(-1, mTrackStore.getRow(10L));
+        Assert.assertEquals(1, mTrackStore.size());
+
+        mTrackStore.trimToSize();
+        Assert.assertEquals(row, mTrackStore.add(12L, "/sdcard/Music/c.mp3", "c", 3000L, 3, mAlbum,
+                mArtist));
+        Assert.assertEquals(2, mTrackStore.size());
+        Assert.assertEquals(2, mTrackStore.getRowCount());
+        Assert.assertEquals("c", mTrackStore.getName(row));
+        Assert.assertEquals("/sdcard/Music/c.mp3", mTrackStore.getPath(row));
+        Assert.assertEquals("/sdcard/Music/a.mp3", mTrackStore.getPath(mTrackStore.getRow(11L)));
+    }
+
+    public void testRemovedRowIsKeptForFlyweight() {
+        int row = mTrackStore.getRow(10L);
+        Track track = mTrackStore.getTrack(row);
+        mTrackStore.remove(10L);
+        mTrackStore.trimToSize();
+
+        Assert.assertEquals("b", track.getName());
+        Assert.assertTrue(mTrackStore.add(12L, "/sdcard/Music/c.mp3", "c", 3000L, 3, mAlbum,
+                mArtist) != row);
+        Assert.assertEquals("/sdcard/Music/b.mp3", track.getPath());
+    }
+
+    public void testAddTrackRowTwice() {
+        int row = mTrackStore.getRow(10L);
+        mAlbum.addTrackRow(mTrackStore, row);
+        mAlbum.addTrackRow(mTrackStore, row);
+        mAlbum.addTrackRow(mTrackStore, mTrackStore.getRow(11L));
+
+        Assert.assertEquals(2, mAlbum.getTracks().size());
+    }
+
+    public void testAddExisting() {
+        Assert.assertTrue(mTrackStore.add(10L, "/sdcard/x.mp3", "x", 0L, 0, null, null) < 0);
+        Assert.assertEquals(2, mTrackStore.size());
+    }
+
+    public void testSortedTracks() {
+        List<Track> tracks = mTrackStore.getSortedTracks();
+
+        Assert.assertEquals(2, tracks.size());
+        Assert.assertEquals("a", tracks.get(0).getName());
+        Assert.assertEquals("b", tracks.get(1).getName());
+    }
+}
@@ -0,0 +1,180 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.test;
+
+import junit.framework.Assert;
+
+import org.tomahawk.libtomahawk.collection.Album;
+import org.tomahawk.libtomahawk.collection.Artist;
+import org.tomahawk.libtomahawk.collection.CustomPlaylist;
+import org.tomahawk.libtomahawk.collection.Track;
+import org.tomahawk.libtomahawk.database.UserPlaylistsDataSource;
+import org.tomahawk.libtomahawk.resolver.PipeLine;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+public class UserPlaylistsDataSourceTest extends AndroidTestCase {
+
+    private static final long TEST_PLAYLIST_ID = 1000;
+
+    private static final int TEST_TRACK_COUNT = 10000;
+
+    private UserPlaylistsDataSource mUserPlaylistsDataSource;
+
+    public void setUp() {
+        mUserPlaylistsDataSource = new UserPlaylistsDataSource(getContext(), new PipeLine(null));
+        mUserPlaylistsDataSource.open();
+    }
+
+    public void tearDown() {
+        mUserPlaylistsDataSource.deleteUserPlaylist(TEST_PLAYLIST_ID);
+        mUserPlaylistsDataSource.close();
+    }
+
+    public void testStoreAndLoad() {
+        ArrayList<Track> tracks = createTracks(TEST_TRACK_COUNT);
+        CustomPlaylist playlist = CustomPlaylist.fromTrackList("test", tracks, 5);
+
+        mUserPlaylistsDataSource.storeUserPlaylist(TEST_PLAYLIST_ID, "test", playlist);
+
+        CustomPlaylist loaded = mUserPlaylistsDataSource.getUserPlaylist(TEST_PLAYLIST_ID);
+
+        Assert.assertEquals(TEST_PLAYLIST_ID, loaded.getId());
+        Assert.assertEquals("test", loaded.getName());
+        Assert.assertEquals(TEST_TRACK_COUNT, loaded.getCount());
+        Assert.assertEquals(5, loaded.getCurrentTrackIndex());
+        for (int i = 0; i < TEST_TRACK_COUNT; i += 997) {
+            Track track = loaded.getTracks().get(i);
+            Assert.assertEquals("track" + i, track.getName());
+            Assert.assertEquals("/sdcard/Music/track" + i + ".mp3", track.getPath());
+            Assert.assertEquals("album" + i / 10, track.getAlbum().getName());
+            Assert.assertEquals("artist" + i / 100, track.getArtist().getName());
+        }
+    }
+
+    public void testSharedAlbumsAndArtists() {
+        mUserPlaylistsDataSource.storeUserPlaylist(TEST_PLAYLIST_ID, "test",
+                CustomPlaylist.fromTrackList("test", createTracks(20)));
+
+        CustomPlaylist loaded = mUserPlaylistsDataSource.getUserPlaylist(TEST_PLAYLIST_ID);
+        Track first = loaded.getTracks().get(0);
+        Assert.assertSame(first.getAlbum(), loaded.getTracks().get(9).getAlbum());
+        Assert.assertNotSame(first.getAlbum(), loaded.getTracks().get(10).getAlbum());
+        Assert.assertSame(first.getArtist(), loaded.getTracks().get(19).getArtist());
+    }
+
+    public void testAddTracks() {
+        mUserPlaylistsDataSource.storeUserPlaylist(TEST_PLAYLIST_ID, "test",
+                CustomPlaylist.fromTrackList("test", createTracks(1)));
+        mUserPlaylistsDataSource.addTracksToUserPlaylist(TEST_PLAYLIST_ID,
+                createTracks(TEST_TRACK_COUNT));
+
+        CustomPlaylist loaded = mUserPlaylistsDataSource.getUserPlaylist(TEST_PLAYLIST_ID);
+        Assert.assertEquals(TEST_TRACK_COUNT + 1, loaded.getCount());
+        Assert.assertEquals("track" + (TEST_TRACK_COUNT - 1),
+                loaded.getTracks().get(TEST_TRACK_COUNT).getName());
+    }
+
+    public void testHeadersAndPages() {
+        mUserPlaylistsDataSource.storeUserPlaylist(TEST_PLAYLIST_ID, "test",
+                CustomPlaylist.fromTrackList("test", createTracks(TEST_TRACK_COUNT)));
+
+        CustomPlaylist header = null;
+        for (CustomPlaylist customPlaylist : mUserPlaylistsDataSource.getUserPlaylistHeaders()) {
+            if (customPlaylist.getId() == TEST_PLAYLIST_ID) {
+                header = customPlaylist;
+            }
+        }
+        Assert.assertNotNull(header);
+        Assert.assertFalse(header.isLoaded());
+        Assert.assertEquals(TEST_TRACK_COUNT, header.getCount());
+        Assert.assertEquals(TEST_TRACK_COUNT * 180000L, header.getTotalDuration());
+
+        HashMap<Long, Album> albums = new HashMap<Long, Album>();
+        HashMap<Long, Artist> artists = new HashMap<Long, Artist>();
+        ArrayList<Track> page = mUserPlaylistsDataSource
+                .getUserPlaylistTracks(TEST_PLAYLIST_ID, TEST_TRACK_COUNT - 150, 100, albums,
+                        artists);
+        Assert.assertEquals(100, page.size());
+        Assert.assertEquals("track" + (TEST_TRACK_COUNT - 150), page.get(0).getName());
+        page = mUserPlaylistsDataSource
+                .getUserPlaylistTracks(TEST_PLAYLIST_ID, TEST_TRACK_COUNT - 50, 100, albums,
+                        artists);
+        Assert.assertEquals(50, page.size());
+        Assert.assertEquals("track" + (TEST_TRACK_COUNT - 1), page.get(49).getName());
+    }
+
+    public void testTrackVersion() {
+        mUserPlaylistsDataSource.storeUserPlaylist(TEST_PLAYLIST_ID, "test",
+                CustomPlaylist.fromTrackList("test", createTracks(3)));
+        long trackVersion = mUserPlaylistsDataSource.getTrackVersion(TEST_PLAYLIST_ID);
+
+        mUserPlaylistsDataSource.setCurrentTrackIndex(TEST_PLAYLIST_ID, 2);
+        Assert.assertEquals(trackVersion,
+                mUserPlaylistsDataSource.getTrackVersion(TEST_PLAYLIST_ID));
+
+        // Swapping two tracks back and forth keeps the same tracks, but must change the version
+        mUserPlaylistsDataSource.moveTrack(TEST_PLAYLIST_ID, 0, 1);
+        mUserPlaylistsDataSource.moveTrack(TEST_PLAYLIST_ID, 0, 1);
+        long movedVersion = mUserPlaylistsDataSource.getTrackVersion(TEST_PLAYLIST_ID);
+        Assert.assertTrue(movedVersion != trackVersion);
+
+        mUserPlaylistsDataSource.deleteTrackAtPos(TEST_PLAYLIST_ID, 0);
+        Assert.assertTrue(
+                mUserPlaylistsDataSource.getTrackVersion(TEST_PLAYLIST_ID) != movedVersion);
+    }
+
+    public void testSearchTracks() {
+        mUserPlaylistsDataSource.storeUserPlaylist(TEST_PLAYLIST_ID, "test",
+                CustomPlaylist.fromTrackList("test", createTracks(TEST_TRACK_COUNT)));
+
+        ArrayList<Track> tracks = mUserPlaylistsDataSource.searchTracks("track4242", 10);
+        Assert.assertEquals(1, tracks.size());
+        Assert.assertEquals("track4242", tracks.get(0).getName());
+        Assert.assertEquals("artist42", tracks.get(0).getArtist().getName());
+
+        tracks = mUserPlaylistsDataSource.searchTracks("trackname:track42* artistname:artist42*",
+                5);
+        Assert.assertEquals(5, tracks.size());
+        for (Track track : tracks) {
+            Assert.assertTrue(track.getName().startsWith("track42"));
+        }
+    }
+
+    private ArrayList<Track> createTracks(int count) {
+        ArrayList<Track> tracks = new ArrayList<Track>(count);
+        for (int i = 0; i < count; i++) {
+            Album album = new Album();
+            album.setName("album" + i / 10);
+            Artist artist = new Artist();
+            artist.setName("artist" + i / 100);
+            Track track = new Track();
+            track.setName("track" + i);
+            track.setPath("/sdcard/Music/track" + i + ".mp3");
+            track.setDuration(180000);
+            track.setTrackNumber(i % 10 + 1);
+            track.setAlbum(album);
+            track.setArtist(artist);
+            tracks.add(track);
+        }
+        return tracks;
+    }
+}
@@ -0,0 +1,76 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2013, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.tomahawk_android.test;
+
+import junit.framework.Assert;
+
+import org.tomahawk.tomahawk_android.services.PlaybackCheckpoint;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class PlaybackCheckpointTest extends AndroidTestCase {
+
+    private File mFile;
+
+    @Override
+    public void setUp() {
+        mFile = new File(getContext().getCacheDir(), "test.checkpoint");
+        mFile.delete();
+    }
+
+    @Override
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    public void testWriteAndRead() {
+        PlaybackCheckpoint checkpoint = new PlaybackCheckpoint(mFile);
+        Assert.assertNull(checkpoint.read());
+
+        checkpoint.write(3, 42, 61000, "/sdcard/Music/first.mp3");
+        checkpoint.write(4, 43, 1500, "http://example.com/stream?id=\u00e4");
+        checkpoint.force();
+
+        PlaybackCheckpoint.Record record = new PlaybackCheckpoint(mFile).read();
+        Assert.assertNotNull(record);
+        Assert.assertEquals(4, record.getQueueVersion());
+        Assert.assertEquals(43, record.getTrackIndex());
+        Assert.assertEquals(1500, record.getPosition());
+        Assert.assertEquals("http://example.com/stream?id=\u00e4", record.getPath());
+    }
+
+    public void testPartialWriteIsDropped() throws IOException {
+        PlaybackCheckpoint checkpoint = new PlaybackCheckpoint(mFile);
+        checkpoint.write(1, 2, 3000, "/sdcard/Music/track.mp3");
+        checkpoint.force();
+
+        // Overwrite the position without updating the checksum
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(20);
+            file.writeInt(4000);
+        } finally {
+            file.close();
+        }
+        Assert.assertNull(new PlaybackCheckpoint(mFile).read());
+    }
+}